@@ -0,0 +1,151 @@
+package org.red5.whip;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.red5.whip.AnswerTemplate.Values;
+
+import com.red5pro.media.sdp.SDPFactory;
+import com.red5pro.media.sdp.SessionDescription;
+import com.red5pro.media.sdp.model.AttributeField;
+import com.red5pro.media.sdp.model.AttributeKey;
+import com.red5pro.media.sdp.model.ConnectionField;
+import com.red5pro.media.sdp.model.MediaField;
+import com.red5pro.media.sdp.model.OriginField;
+import com.red5pro.media.sdp.model.SDPMediaType;
+
+/**
+ * Answers per second for an audio and H264 video publish with rtx, built with the sdp model as buildAnswer does and
+ * written from the template learned from that answer. The templated path also parses the answer into the model it
+ * publishes, so that's measured along with the render. Each answer gets the values of a different session.
+ *
+ * @author Paul Gregoire
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AnswerTemplateBenchmark {
+
+    private static final String SHAPE = "benchmark|audio:opus|video:h264";
+
+    private static final int SESSIONS = 16;
+
+    private Values[] values;
+
+    private AnswerTemplate template;
+
+    private int session;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        values = new Values[SESSIONS];
+        for (int i = 0; i < SESSIONS; i++) {
+            List<String> candidates = Arrays.asList(String.format("candidate:1 1 udp 2130706431 10.0.0.5 %d typ host", 49152 + i), String.format("candidate:2 1 udp 1694498815 198.51.100.7 %d typ srflx raddr 10.0.0.5 rport %d", 49152 + i, 49152 + i));
+            values[i] = new Values("red5pro_stream" + i, Long.toString(1000000000000L + i * 7919L), 2L, String.format("u%03d", i), String.format("pwd%03dx8Ya2LtS4qv0zfgJxQ", i), candidates);
+            values[i].setFingerprint(AnswerTemplate.AUDIO, fingerprint(i, 0x11));
+            values[i].setFingerprint(AnswerTemplate.VIDEO, fingerprint(i, 0x22));
+        }
+        AnswerTemplate.learn(SHAPE, buildAnswer(values[0]), values[0]);
+        template = AnswerTemplate.get(SHAPE);
+        for (int i = 1; template != null && !template.isVerified(); i++) {
+            template.verify(SHAPE, buildAnswer(values[i]), values[i]);
+            template = AnswerTemplate.get(SHAPE);
+        }
+        if (template == null) {
+            throw new IllegalStateException("The model built answer couldn't be templated");
+        }
+    }
+
+    private Values next() {
+        session = (session + 1) % SESSIONS;
+        return values[session];
+    }
+
+    @Benchmark
+    public String build() {
+        return buildAnswer(next());
+    }
+
+    @Benchmark
+    public String render() {
+        return template.render(next());
+    }
+
+    @Benchmark
+    public SessionDescription renderAndParse() {
+        SessionDescription sdp = SDPFactory.createSessionDescription(template.render(next()));
+        sdp.free();
+        return sdp;
+    }
+
+    private static String fingerprint(int session, int seed) {
+        StringBuilder sb = new StringBuilder("sha-256 ");
+        for (int i = 0; i < 32; i++) {
+            if (i > 0) {
+                sb.append(':');
+            }
+            sb.append(String.format("%02X", (session * 31 + seed + i) & 0xff));
+        }
+        return sb.toString();
+    }
+
+    // the model as init and buildAnswer fill it for this shape
+    private static String buildAnswer(Values values) {
+        SessionDescription sdp = new SessionDescription();
+        MediaField audio = new MediaField(SDPMediaType.audio, 9, MediaField.PROTOCOL_UDP, 1);
+        sdp.addMediaDescription(audio);
+        MediaField video = new MediaField(SDPMediaType.video, 9, MediaField.PROTOCOL_UDP, 1);
+        video.addAttributeField(new AttributeField(AttributeKey.fmtp, String.format("%d profile-level-id=%s;level-asymmetry-allowed=1;packetization-mode=1", 102, "42e01f")));
+        sdp.addMediaDescription(video);
+        audio.addAttributeField(new AttributeField(AttributeKey.rtpmap, "111 opus/48000/2"));
+        audio.setFormats(new int[] { 111 });
+        video.addAttributeField(new AttributeField(AttributeKey.rtpmap, "102 H264/90000"));
+        video.addAttributeField(new AttributeField(AttributeKey.rtpmap, String.format("%d rtx/90000", 103)));
+        video.addAttributeField(new AttributeField(AttributeKey.fmtp, String.format("%d apt=%d", 103, 102)));
+        video.setFormats(new int[] { 102, 103 });
+        sdp.setOrigin(new OriginField(values.originUser, values.sessionId, Long.parseLong(values.sessionVersion), "0.0.0.0"));
+        sdp.setBundle(true);
+        section(audio, values, AnswerTemplate.AUDIO, "0");
+        audio.addAttributeField(new AttributeField(AttributeKey.fmtp, String.format("%d minptime=10;sprop-stereo=1;stereo=1;useinbandfec=0;maxaveragebitrate=%d;cbr=0", 111, 128000)));
+        section(video, values, AnswerTemplate.VIDEO, "1");
+        video.addAttributeField(new AttributeField(AttributeKey.rtcpfb, String.format("%d nack", 102)));
+        video.addAttributeField(new AttributeField(AttributeKey.rtcpfb, String.format("%d nack pli", 102)));
+        video.addAttributeField(new AttributeField(AttributeKey.rtcpfb, String.format("%d ccm fir", 102)));
+        String answer = sdp.toString();
+        sdp.free();
+        return answer;
+    }
+
+    private static void section(MediaField media, Values values, int section, String mid) {
+        media.setConnection(new ConnectionField("198.51.100.7"));
+        media.addAttributeField(new AttributeField(AttributeKey.iceufrag, values.ufrag));
+        media.addAttributeField(new AttributeField(AttributeKey.icepwd, values.pwd));
+        media.addAttributeField(new AttributeField(AttributeKey.iceoptions, "trickle"));
+        media.addAttributeField(new AttributeField(AttributeKey.fingerprint, values.fingerprints[section]));
+        media.addAttributeField(new AttributeField(AttributeKey.setup, "passive"));
+        media.addAttributeField(new AttributeField(AttributeKey.mid, mid));
+        values.candidates.forEach(c -> {
+            media.addAttributeField(new AttributeField(AttributeKey.candidate, c));
+        });
+        media.addAttributeField(new AttributeField(AttributeKey.endofcandidates, null));
+        media.addAttributeField(new AttributeField(AttributeKey.recvonly, null));
+        media.addAttributeField(new AttributeField(AttributeKey.rtcpmux, null));
+        media.addAttributeField(new AttributeField(AttributeKey.rtcprsize, null));
+    }
+
+}
@@ -0,0 +1,146 @@
+package org.red5.whip;
+
+import java.util.concurrent.TimeUnit;
+
+import org.ice4j.ice.Agent;
+import org.ice4j.ice.IceMediaStream;
+import org.ice4j.ice.KeepAliveStrategy;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.red5.whip.CandidateParser.ParsedCandidate;
+
+import com.red5pro.media.rtp.RTPCodec;
+
+/**
+ * Candidate parsing and serializing against the split and regex based parser it replaced, over the candidates each
+ * client gathers. The trickled benchmarks take the candidates a line at a time as they arrive in PATCH requests, the
+ * joined ones as a single escaped string. Run with -prof gc for the allocation per operation.
+ *
+ * @author Paul Gregoire
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CandidateParserBenchmark {
+
+    // host, tcp, srflx and relay; chrome adds generation, ufrag and network fields. Foundations are kept under 2^31
+    // throughout as the legacy toJson reads them as an int
+    private static final String[] CHROME = { "candidate:1998378186 1 udp 2122260223 192.168.1.12 56143 typ host generation 0 ufrag PnfW network-id 1 network-cost 10", "candidate:1233069003 1 tcp 1518280447 192.168.1.12 9 typ host tcptype active generation 0 ufrag PnfW network-id 1 network-cost 10", "candidate:976374523 1 udp 1686052607 198.51.100.24 56143 typ srflx raddr 192.168.1.12 rport 56143 generation 0 ufrag PnfW network-id 1 network-cost 10", "candidate:1337202041 1 udp 41885439 203.0.113.50 3478 typ relay raddr 198.51.100.24 rport 56143 generation 0 ufrag PnfW network-id 1 network-cost 10" };
+
+    private static final String[] FIREFOX = { "candidate:0 1 UDP 2122252543 192.168.1.12 54634 typ host", "candidate:1 1 TCP 2105524479 192.168.1.12 9 typ host tcptype active", "candidate:2 1 UDP 1686052863 198.51.100.24 54634 typ srflx raddr 192.168.1.12 rport 54634" };
+
+    // safari hides the related address of a reflexive candidate
+    private static final String[] SAFARI = { "candidate:1876313031 1 udp 2113937151 192.168.1.12 61225 typ host generation 0 ufrag wRq2 network-cost 999", "candidate:1876313032 1 tcp 1518222591 192.168.1.12 9 typ host tcptype active generation 0 ufrag wRq2 network-cost 999", "candidate:1359532563 1 udp 1685987071 198.51.100.24 61225 typ srflx raddr 0.0.0.0 rport 0 generation 0 ufrag wRq2 network-cost 999" };
+
+    // libjuice
+    private static final String[] OBS = { "candidate:1 1 UDP 2122317823 192.168.1.20 51356 typ host", "candidate:2 1 UDP 1686109951 198.51.100.20 51356 typ srflx raddr 0.0.0.0 rport 0" };
+
+    // libnice
+    private static final String[] GSTREAMER = { "candidate:1 1 UDP 2015363327 192.168.1.30 44117 typ host", "candidate:2 1 TCP 1015021823 192.168.1.30 9 typ host tcptype active", "candidate:3 1 TCP 1010827519 192.168.1.30 45353 typ host tcptype passive", "candidate:4 1 UDP 1679819007 198.51.100.30 44117 typ srflx raddr 192.168.1.30 rport 44117" };
+
+    @Param({ "chrome", "firefox", "safari", "obs", "gstreamer" })
+    private String client;
+
+    private String[] lines;
+
+    private String joined;
+
+    private Agent agent;
+
+    private IceMediaStream stream;
+
+    private final ParsedCandidate parsed = new ParsedCandidate();
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        switch (client) {
+            case "chrome":
+                lines = CHROME;
+                break;
+            case "firefox":
+                lines = FIREFOX;
+                break;
+            case "safari":
+                lines = SAFARI;
+                break;
+            case "obs":
+                lines = OBS;
+                break;
+            default:
+                lines = GSTREAMER;
+                break;
+        }
+        joined = String.join("\\r\\n", lines);
+        // a component without a socket or harvesting, the candidates are only built against it
+        agent = new Agent();
+        agent.setUseHostHarvester(false);
+        stream = agent.createMediaStream(RTPCodec.MEDIA_0);
+        agent.createComponent(stream, KeepAliveStrategy.SELECTED_ONLY, true);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        agent.free();
+    }
+
+    @Benchmark
+    public void tokenize(Blackhole bh) {
+        for (String line : lines) {
+            bh.consume(parsed.parse(line, 10, line.length()));
+        }
+    }
+
+    @Benchmark
+    public void parseTrickled(Blackhole bh) {
+        for (String line : lines) {
+            bh.consume(CandidateParser.parseRemoteCandidates(stream, line));
+        }
+    }
+
+    @Benchmark
+    public void parseTrickledLegacy(Blackhole bh) {
+        for (String line : lines) {
+            bh.consume(LegacyCandidateParser.parseRemoteCandidates(stream, line));
+        }
+    }
+
+    @Benchmark
+    public Object parseJoined() {
+        return CandidateParser.parseRemoteCandidates(stream, joined);
+    }
+
+    @Benchmark
+    public Object parseJoinedLegacy() {
+        return LegacyCandidateParser.parseRemoteCandidates(stream, joined);
+    }
+
+    @Benchmark
+    public void toJson(Blackhole bh) {
+        for (String line : lines) {
+            bh.consume(CandidateParser.toJson(line));
+        }
+    }
+
+    @Benchmark
+    public void toJsonLegacy(Blackhole bh) {
+        for (String line : lines) {
+            bh.consume(LegacyCandidateParser.toJson(line));
+        }
+    }
+
+}
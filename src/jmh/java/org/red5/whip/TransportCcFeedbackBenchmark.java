@@ -0,0 +1,95 @@
+package org.red5.whip;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Per packet cost transport-cc adds to the receive path: finding the sequence number in the header extension,
+ * recording the arrival, and a share of the feedback packet built every interval. Packets arrive a millisecond apart
+ * with one in fifty lost, so an invocation of a hundred packets is one feedback interval. Feedback is built but not
+ * sent, there being no stream to inject it into. With -prof gc the allocation should be the feedback packet alone.
+ *
+ * @author Paul Gregoire
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TransportCcFeedbackBenchmark {
+
+    private static final int PACKETS = 100;
+
+    private static final int TRANSPORT_CC_ID = 3;
+
+    private static final long ARRIVAL_MICROS = 1000L;
+
+    private final byte[][] packets = new byte[PACKETS][];
+
+    private TransportCcFeedback feedback;
+
+    private int base;
+
+    private long micros;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        for (int i = 0; i < PACKETS; i++) {
+            byte[] p = new byte[12 + 12 + 1000];
+            p[0] = (byte) 0x90;
+            p[1] = (byte) 96;
+            RtpPackets.writeUint16(p, 2, i);
+            RtpPackets.writeUint32(p, 4, 3000L * (i / 4));
+            RtpPackets.writeUint32(p, 8, 0x1234abcdL);
+            // one-byte extensions, abs-send-time then transport-cc
+            p[12] = (byte) 0xbe;
+            p[13] = (byte) 0xde;
+            RtpPackets.writeUint16(p, 14, 2);
+            p[16] = (byte) ((2 << 4) | 2);
+            p[20] = (byte) ((TRANSPORT_CC_ID << 4) | 1);
+            RtpPackets.writeUint16(p, 21, i);
+            packets[i] = p;
+        }
+        feedback = new TransportCcFeedback(null, 0x11223344L, 0x1234abcdL, TransportCcFeedback.DEFAULT_INTERVAL_MICROS);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(PACKETS)
+    public void received(Blackhole bh) {
+        for (int i = 0; i < PACKETS; i++) {
+            micros += ARRIVAL_MICROS;
+            if (i % 50 == 49) {
+                continue;
+            }
+            byte[] p = packets[i];
+            int offset = RtpPackets.findExtension(p, 0, p.length, TRANSPORT_CC_ID);
+            feedback.record((RtpPackets.readUint16(p, offset) + base) & 0xffff, micros);
+        }
+        base += PACKETS;
+        bh.consume(feedback.build());
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(PACKETS)
+    public void findExtension(Blackhole bh) {
+        for (int i = 0; i < PACKETS; i++) {
+            byte[] p = packets[i];
+            bh.consume(RtpPackets.findExtension(p, 0, p.length, TRANSPORT_CC_ID));
+        }
+    }
+
+}
@@ -0,0 +1,168 @@
+package org.red5.whip;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.red5.server.net.rtmp.event.VideoData;
+
+/**
+ * Frames per second assembled from RTP into slabs and dispatched, for a one second GOP at 30 fps: an H264 keyframe
+ * with its parameter sets in a STAP-A and FU-A slices, or a VP8 keyframe, then delta frames, in packets of up to 1200
+ * bytes of payload. The dispatched events are released at once, as the muxer would once it has written them, so the
+ * slabs are recycled. Run with -prof gc; in the steady state what's allocated per frame is the event and the buffer
+ * wrapping the tag, the payload bytes being copied into the ring and the slab only.
+ *
+ * @author Paul Gregoire
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class VideoDepacketizerBenchmark {
+
+    private static final int FRAMES = 30;
+
+    private static final int KEYFRAME_SIZE = 64 * 1024, DELTA_SIZE = 6 * 1024;
+
+    private static final int MAX_PAYLOAD = 1200;
+
+    private static final byte[] SPS = { 0x67, 0x42, (byte) 0xc0, 0x1f, (byte) 0xda, 0x01, 0x40, 0x16, (byte) 0xe8, 0x06, (byte) 0xd0, (byte) 0xa1, 0x35 };
+
+    private static final byte[] PPS = { 0x68, (byte) 0xce, 0x06, (byte) 0xe2 };
+
+    @Param({ "h264", "vp8" })
+    private String codec;
+
+    // packets of the gop, with the frame each belongs to
+    private byte[][] packets;
+
+    private int[] frames;
+
+    private VideoDepacketizer depacketizer;
+
+    private int seq;
+
+    private long timestamp, now;
+
+    private long dispatched;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        FrameSlabPool.start(FrameSlabPool.DEFAULT_SLAB_SIZE, 64);
+        boolean vp8 = "vp8".equals(codec);
+        Random random = new Random(42L);
+        List<byte[]> payloads = new ArrayList<>();
+        List<Integer> frameIndexes = new ArrayList<>();
+        for (int f = 0; f < FRAMES; f++) {
+            byte[] data = new byte[f == 0 ? KEYFRAME_SIZE : DELTA_SIZE];
+            random.nextBytes(data);
+            int first = payloads.size();
+            if (vp8) {
+                packetizeVp8(data, f == 0, payloads);
+            } else {
+                if (f == 0) {
+                    payloads.add(stapA());
+                }
+                packetizeFuA(data, f == 0 ? 0x65 : 0x41, payloads);
+            }
+            for (int i = first; i < payloads.size(); i++) {
+                frameIndexes.add(f);
+            }
+        }
+        packets = new byte[payloads.size()][];
+        frames = new int[payloads.size()];
+        for (int i = 0; i < packets.length; i++) {
+            byte[] payload = payloads.get(i);
+            byte[] p = new byte[12 + payload.length];
+            p[0] = (byte) 0x80;
+            // marker on the last packet of each frame
+            boolean marker = i == packets.length - 1 || frameIndexes.get(i + 1) != frameIndexes.get(i);
+            p[1] = (byte) ((marker ? 0x80 : 0) | 96);
+            RtpPackets.writeUint32(p, 8, 0x1234abcdL);
+            System.arraycopy(payload, 0, p, 12, payload.length);
+            packets[i] = p;
+            frames[i] = frameIndexes.get(i);
+        }
+        depacketizer = new VideoDepacketizer(event -> {
+            dispatched++;
+            ((VideoData) event).release();
+        }, () -> 0L, () -> "benchmark", vp8, null);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        depacketizer.close();
+        FrameSlabPool.stop();
+    }
+
+    private static byte[] stapA() {
+        byte[] p = new byte[1 + 2 + SPS.length + 2 + PPS.length];
+        p[0] = 0x78;
+        RtpPackets.writeUint16(p, 1, SPS.length);
+        System.arraycopy(SPS, 0, p, 3, SPS.length);
+        RtpPackets.writeUint16(p, 3 + SPS.length, PPS.length);
+        System.arraycopy(PPS, 0, p, 5 + SPS.length, PPS.length);
+        return p;
+    }
+
+    // the nal header is replaced by the fu indicator and header
+    private static void packetizeFuA(byte[] nal, int header, List<byte[]> payloads) {
+        for (int pos = 0; pos < nal.length; pos += MAX_PAYLOAD - 2) {
+            int length = Math.min(MAX_PAYLOAD - 2, nal.length - pos);
+            byte[] p = new byte[2 + length];
+            p[0] = (byte) ((header & 0xe0) | 28);
+            p[1] = (byte) ((pos == 0 ? 0x80 : 0) | (pos + length == nal.length ? 0x40 : 0) | (header & 0x1f));
+            System.arraycopy(nal, pos, p, 2, length);
+            payloads.add(p);
+        }
+    }
+
+    // extended descriptor with a two byte picture id, the payload header being the first bytes of the frame
+    private static void packetizeVp8(byte[] frame, boolean keyframe, List<byte[]> payloads) {
+        frame[0] = (byte) (keyframe ? 0x50 : 0x51);
+        for (int pos = 0; pos < frame.length; pos += MAX_PAYLOAD - 4) {
+            int length = Math.min(MAX_PAYLOAD - 4, frame.length - pos);
+            byte[] p = new byte[4 + length];
+            p[0] = (byte) (pos == 0 ? 0x90 : 0x80);
+            p[1] = (byte) 0x80;
+            p[2] = (byte) 0x81;
+            p[3] = 0x23;
+            System.arraycopy(frame, pos, p, 4, length);
+            payloads.add(p);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FRAMES)
+    public long receive() {
+        for (int i = 0; i < packets.length; i++) {
+            byte[] p = packets[i];
+            RtpPackets.writeUint16(p, 2, (seq + i) & 0xffff);
+            RtpPackets.writeUint32(p, 4, (timestamp + frames[i] * 3000L) & 0xffffffffL);
+            depacketizer.receive(p, 0, p.length, now + frames[i] * 33L);
+        }
+        seq += packets.length;
+        timestamp += FRAMES * 3000L;
+        now += FRAMES * 33L;
+        return dispatched;
+    }
+
+}
@@ -0,0 +1,363 @@
+package org.red5.whip;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.red5pro.media.rtp.RTPCodecEnum;
+import com.red5pro.media.sdp.SDPFactory;
+import com.red5pro.media.sdp.SessionDescription;
+import com.red5pro.media.sdp.model.AttributeField;
+import com.red5pro.media.sdp.model.AttributeKey;
+import com.red5pro.media.sdp.model.MediaField;
+import com.red5pro.media.sdp.model.SDPMediaType;
+
+/**
+ * Offers per second read from a request body and walked for the fields a publish needs, against reading the body a
+ * char at a time into the sdp model and splitting its attribute values. A publish still builds the model for its
+ * answer, so the read with the model is the cost of a publish today and the read alone is what the offer reader costs
+ * once nothing needs the model. Run with -prof gc for the bytes allocated per offer.
+ *
+ * @author Paul Gregoire
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WhipOfferBenchmark {
+
+    private static final int MAX_OFFER_SIZE = 65536;
+
+    // chrome publishing audio and video, bundled, with its full codec list and host and srflx candidates
+    private static final String CHROME = String.join("\r\n",
+            "v=0",
+            "o=- 4611731400430051336 2 IN IP4 127.0.0.1",
+            "s=-",
+            "t=0 0",
+            "a=group:BUNDLE 0 1",
+            "a=extmap-allow-mixed",
+            "a=msid-semantic: WMS 8d2c4f0e-7b3a-4b6e-9f4e-2a6c1e0b5d7f",
+            "m=audio 9 UDP/TLS/RTP/SAVPF 111 63 9 0 8 13 110 126",
+            "c=IN IP4 0.0.0.0",
+            "a=rtcp:9 IN IP4 0.0.0.0",
+            "a=candidate:1998378186 1 udp 2122260223 192.168.1.12 56143 typ host generation 0 network-id 1 network-cost 10",
+            "a=candidate:976374523 1 udp 1686052607 198.51.100.24 56143 typ srflx raddr 192.168.1.12 rport 56143 generation 0 network-id 1 network-cost 10",
+            "a=candidate:1233069003 1 tcp 1518280447 192.168.1.12 9 typ host tcptype active generation 0 network-id 1 network-cost 10",
+            "a=ice-ufrag:EsAw",
+            "a=ice-pwd:bP+XJMM09aR8AiX1jdukzR6Y",
+            "a=ice-options:trickle",
+            "a=fingerprint:sha-256 19:E2:1C:3B:4B:9F:81:E6:B8:5C:F4:A5:A8:D8:73:04:BB:05:2F:70:9F:04:A9:0E:05:E9:26:33:E8:70:88:A2",
+            "a=setup:actpass",
+            "a=mid:0",
+            "a=extmap:1 urn:ietf:params:rtp-hdrext:ssrc-audio-level",
+            "a=extmap:2 http://www.webrtc.org/experiments/rtp-hdrext/abs-send-time",
+            "a=extmap:3 http://www.ietf.org/id/draft-holmer-rmcat-transport-wide-cc-extensions-01",
+            "a=extmap:4 urn:ietf:params:rtp-hdrext:sdes:mid",
+            "a=sendonly",
+            "a=msid:8d2c4f0e-7b3a-4b6e-9f4e-2a6c1e0b5d7f 1f0c6a2e-3d4b-4e5f-8a9b-0c1d2e3f4a5b",
+            "a=rtcp-mux",
+            "a=rtpmap:111 opus/48000/2",
+            "a=rtcp-fb:111 transport-cc",
+            "a=fmtp:111 minptime=10;useinbandfec=1",
+            "a=rtpmap:63 red/48000/2",
+            "a=fmtp:63 111/111",
+            "a=rtpmap:9 G722/8000",
+            "a=rtpmap:0 PCMU/8000",
+            "a=rtpmap:8 PCMA/8000",
+            "a=rtpmap:13 CN/8000",
+            "a=rtpmap:110 telephone-event/48000",
+            "a=rtpmap:126 telephone-event/8000",
+            "a=ssrc:3570614608 cname:4TOk42mSjXCkVIa6",
+            "a=ssrc:3570614608 msid:8d2c4f0e-7b3a-4b6e-9f4e-2a6c1e0b5d7f 1f0c6a2e-3d4b-4e5f-8a9b-0c1d2e3f4a5b",
+            "m=video 9 UDP/TLS/RTP/SAVPF 96 97 102 103 104 105 106 107 108 109 127 125 39 40 45 46 98 99 100 101 116 117 118",
+            "c=IN IP4 0.0.0.0",
+            "a=rtcp:9 IN IP4 0.0.0.0",
+            "a=ice-ufrag:EsAw",
+            "a=ice-pwd:bP+XJMM09aR8AiX1jdukzR6Y",
+            "a=ice-options:trickle",
+            "a=fingerprint:sha-256 19:E2:1C:3B:4B:9F:81:E6:B8:5C:F4:A5:A8:D8:73:04:BB:05:2F:70:9F:04:A9:0E:05:E9:26:33:E8:70:88:A2",
+            "a=setup:actpass",
+            "a=mid:1",
+            "a=extmap:14 urn:ietf:params:rtp-hdrext:toffset",
+            "a=extmap:2 http://www.webrtc.org/experiments/rtp-hdrext/abs-send-time",
+            "a=extmap:13 urn:3gpp:video-orientation",
+            "a=extmap:3 http://www.ietf.org/id/draft-holmer-rmcat-transport-wide-cc-extensions-01",
+            "a=extmap:5 http://www.webrtc.org/experiments/rtp-hdrext/playout-delay",
+            "a=extmap:4 urn:ietf:params:rtp-hdrext:sdes:mid",
+            "a=extmap:10 urn:ietf:params:rtp-hdrext:sdes:rtp-stream-id",
+            "a=extmap:11 urn:ietf:params:rtp-hdrext:sdes:repaired-rtp-stream-id",
+            "a=sendonly",
+            "a=msid:8d2c4f0e-7b3a-4b6e-9f4e-2a6c1e0b5d7f 6a7b8c9d-0e1f-4a2b-8c3d-4e5f6a7b8c9d",
+            "a=rtcp-mux",
+            "a=rtcp-rsize",
+            "a=rtpmap:96 VP8/90000",
+            "a=rtcp-fb:96 goog-remb",
+            "a=rtcp-fb:96 transport-cc",
+            "a=rtcp-fb:96 ccm fir",
+            "a=rtcp-fb:96 nack",
+            "a=rtcp-fb:96 nack pli",
+            "a=rtpmap:97 rtx/90000",
+            "a=fmtp:97 apt=96",
+            "a=rtpmap:102 H264/90000",
+            "a=rtcp-fb:102 goog-remb",
+            "a=rtcp-fb:102 transport-cc",
+            "a=rtcp-fb:102 ccm fir",
+            "a=rtcp-fb:102 nack",
+            "a=rtcp-fb:102 nack pli",
+            "a=fmtp:102 level-asymmetry-allowed=1;packetization-mode=1;profile-level-id=42001f",
+            "a=rtpmap:103 rtx/90000",
+            "a=fmtp:103 apt=102",
+            "a=rtpmap:104 H264/90000",
+            "a=rtcp-fb:104 goog-remb",
+            "a=rtcp-fb:104 transport-cc",
+            "a=rtcp-fb:104 ccm fir",
+            "a=rtcp-fb:104 nack",
+            "a=rtcp-fb:104 nack pli",
+            "a=fmtp:104 level-asymmetry-allowed=1;packetization-mode=0;profile-level-id=42001f",
+            "a=rtpmap:105 rtx/90000",
+            "a=fmtp:105 apt=104",
+            "a=rtpmap:106 H264/90000",
+            "a=rtcp-fb:106 goog-remb",
+            "a=rtcp-fb:106 transport-cc",
+            "a=rtcp-fb:106 ccm fir",
+            "a=rtcp-fb:106 nack",
+            "a=rtcp-fb:106 nack pli",
+            "a=fmtp:106 level-asymmetry-allowed=1;packetization-mode=1;profile-level-id=42e01f",
+            "a=rtpmap:107 rtx/90000",
+            "a=fmtp:107 apt=106",
+            "a=rtpmap:108 H264/90000",
+            "a=rtcp-fb:108 goog-remb",
+            "a=rtcp-fb:108 transport-cc",
+            "a=rtcp-fb:108 ccm fir",
+            "a=rtcp-fb:108 nack",
+            "a=rtcp-fb:108 nack pli",
+            "a=fmtp:108 level-asymmetry-allowed=1;packetization-mode=0;profile-level-id=42e01f",
+            "a=rtpmap:109 rtx/90000",
+            "a=fmtp:109 apt=108",
+            "a=rtpmap:127 H264/90000",
+            "a=rtcp-fb:127 goog-remb",
+            "a=rtcp-fb:127 transport-cc",
+            "a=rtcp-fb:127 ccm fir",
+            "a=rtcp-fb:127 nack",
+            "a=rtcp-fb:127 nack pli",
+            "a=fmtp:127 level-asymmetry-allowed=1;packetization-mode=1;profile-level-id=4d001f",
+            "a=rtpmap:125 rtx/90000",
+            "a=fmtp:125 apt=127",
+            "a=rtpmap:39 H264/90000",
+            "a=rtcp-fb:39 goog-remb",
+            "a=rtcp-fb:39 transport-cc",
+            "a=rtcp-fb:39 ccm fir",
+            "a=rtcp-fb:39 nack",
+            "a=rtcp-fb:39 nack pli",
+            "a=fmtp:39 level-asymmetry-allowed=1;packetization-mode=0;profile-level-id=4d001f",
+            "a=rtpmap:40 rtx/90000",
+            "a=fmtp:40 apt=39",
+            "a=rtpmap:45 AV1/90000",
+            "a=rtcp-fb:45 goog-remb",
+            "a=rtcp-fb:45 transport-cc",
+            "a=rtcp-fb:45 ccm fir",
+            "a=rtcp-fb:45 nack",
+            "a=rtcp-fb:45 nack pli",
+            "a=fmtp:45 level-idx=5;profile=0;tier=0",
+            "a=rtpmap:46 rtx/90000",
+            "a=fmtp:46 apt=45",
+            "a=rtpmap:98 VP9/90000",
+            "a=rtcp-fb:98 goog-remb",
+            "a=rtcp-fb:98 transport-cc",
+            "a=rtcp-fb:98 ccm fir",
+            "a=rtcp-fb:98 nack",
+            "a=rtcp-fb:98 nack pli",
+            "a=fmtp:98 profile-id=0",
+            "a=rtpmap:99 rtx/90000",
+            "a=fmtp:99 apt=98",
+            "a=rtpmap:100 VP9/90000",
+            "a=rtcp-fb:100 goog-remb",
+            "a=rtcp-fb:100 transport-cc",
+            "a=rtcp-fb:100 ccm fir",
+            "a=rtcp-fb:100 nack",
+            "a=rtcp-fb:100 nack pli",
+            "a=fmtp:100 profile-id=2",
+            "a=rtpmap:101 rtx/90000",
+            "a=fmtp:101 apt=100",
+            "a=rtpmap:116 red/90000",
+            "a=rtpmap:117 rtx/90000",
+            "a=fmtp:117 apt=116",
+            "a=rtpmap:118 ulpfec/90000",
+            "a=ssrc-group:FID 2231627014 632943048",
+            "a=ssrc:2231627014 cname:4TOk42mSjXCkVIa6",
+            "a=ssrc:2231627014 msid:8d2c4f0e-7b3a-4b6e-9f4e-2a6c1e0b5d7f 6a7b8c9d-0e1f-4a2b-8c3d-4e5f6a7b8c9d",
+            "a=ssrc:632943048 cname:4TOk42mSjXCkVIa6",
+            "a=ssrc:632943048 msid:8d2c4f0e-7b3a-4b6e-9f4e-2a6c1e0b5d7f 6a7b8c9d-0e1f-4a2b-8c3d-4e5f6a7b8c9d",
+            "");
+
+    // obs publishing through libdatachannel, one codec each and candidates gathered up front
+    private static final String OBS = String.join("\r\n",
+            "v=0",
+            "o=rtc 2716338412 0 IN IP4 127.0.0.1",
+            "s=-",
+            "t=0 0",
+            "a=group:BUNDLE 0 1",
+            "a=group:LS 0 1",
+            "a=msid-semantic:WMS *",
+            "a=setup:actpass",
+            "a=ice-ufrag:Yq2c",
+            "a=ice-pwd:B0bnmrHHcNY6AXDoPbF3Sp",
+            "a=ice-options:ice2,trickle",
+            "a=fingerprint:sha-256 6B:8B:F0:65:5F:78:E2:51:3B:AC:6F:F3:3F:46:1B:35:DC:B8:5F:64:1A:24:C2:43:F0:A1:58:D0:A1:2C:19:08",
+            "m=audio 51356 UDP/TLS/RTP/SAVPF 111",
+            "c=IN IP4 192.168.1.20",
+            "a=mid:0",
+            "a=sendonly",
+            "a=ssrc:1447108112 cname:obs",
+            "a=ssrc:1447108112 msid:obs obs-audio",
+            "a=msid:obs obs-audio",
+            "a=rtcp-mux",
+            "a=rtpmap:111 opus/48000/2",
+            "a=fmtp:111 minptime=10;maxaveragebitrate=96000;stereo=1;sprop-stereo=1;useinbandfec=1",
+            "a=candidate:1 1 UDP 2122317823 192.168.1.20 51356 typ host",
+            "a=candidate:2 1 UDP 1686109951 198.51.100.20 51356 typ srflx raddr 0.0.0.0 rport 0",
+            "a=end-of-candidates",
+            "m=video 51356 UDP/TLS/RTP/SAVPF 96",
+            "c=IN IP4 192.168.1.20",
+            "a=mid:1",
+            "a=sendonly",
+            "a=ssrc:1447108113 cname:obs",
+            "a=ssrc:1447108113 msid:obs obs-video",
+            "a=msid:obs obs-video",
+            "a=rtcp-mux",
+            "a=rtpmap:96 H264/90000",
+            "a=rtcp-fb:96 nack",
+            "a=rtcp-fb:96 nack pli",
+            "a=rtcp-fb:96 goog-remb",
+            "a=fmtp:96 profile-level-id=42e01f;packetization-mode=1;level-asymmetry-allowed=1",
+            "");
+
+    @Param({ "chrome", "obs" })
+    private String client;
+
+    private byte[] body;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        body = ("chrome".equals(client) ? CHROME : OBS).getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public void read(Blackhole bh) throws IOException {
+        WhipOffer offer = WhipOffer.read(new ByteArrayInputStream(body), body.length, MAX_OFFER_SIZE);
+        walk(offer, bh);
+    }
+
+    @Benchmark
+    public void readWithModel(Blackhole bh) throws IOException {
+        WhipOffer offer = WhipOffer.read(new ByteArrayInputStream(body), body.length, MAX_OFFER_SIZE);
+        walk(offer, bh);
+        SessionDescription sdp = offer.getSessionDescription();
+        bh.consume(sdp);
+        sdp.free();
+    }
+
+    @Benchmark
+    public void readLegacy(Blackhole bh) throws IOException {
+        SessionDescription sdp;
+        try (BufferedReader br = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(body), StandardCharsets.UTF_8))) {
+            int b;
+            StringBuilder buf = new StringBuilder();
+            while ((b = br.read()) != -1) {
+                buf.append((char) b);
+            }
+            sdp = SDPFactory.createSessionDescription(buf.toString());
+        }
+        walkLegacy(sdp, bh);
+        sdp.free();
+    }
+
+    // the fields init and setRemoteProperties read from the offer
+    private static void walk(WhipOffer offer, Blackhole bh) {
+        for (int m = 0; m < offer.getMediaCount(); m++) {
+            WhipOffer.Media media = offer.getMedia(m);
+            if ("audio".equals(media.getType())) {
+                int pt = media.findPayloadType(RTPCodecEnum.OPUS.encodingName);
+                bh.consume(media.hasRtcpFb(pt, "transport-cc"));
+                bh.consume(media.getExtmapId(TransportCcFeedback.URI));
+            } else if ("video".equals(media.getType())) {
+                for (int i = 0; i < media.getRtpMapCount(); i++) {
+                    if (media.isEncoding(i, RTPCodecEnum.H264_PMODE1.encodingName) || media.isEncoding(i, RTPCodecEnum.VP8.encodingName)) {
+                        int pt = media.getPayloadType(i);
+                        bh.consume(media.getEncodingName(i));
+                        bh.consume(media.getFmtpParameter(pt, "packetization-mode"));
+                        bh.consume(media.getFmtpParameter(pt, "profile-level-id"));
+                        bh.consume(media.hasRtcpFb(pt, "nack"));
+                        bh.consume(media.findRtxPayloadType(pt));
+                    }
+                }
+                bh.consume(media.findPayloadType("red"));
+                bh.consume(media.findPayloadType("ulpfec"));
+                bh.consume(media.getFidSsrc(media.getSsrc()));
+            }
+        }
+        WhipOffer.Media first = offer.getMedia(0);
+        bh.consume(first.getIceUfrag());
+        bh.consume(first.getIcePwd());
+        bh.consume(first.getFingerprintHash());
+        bh.consume(first.getFingerprint());
+        bh.consume(offer.getSession().getSetup());
+        bh.consume(first.getSetup());
+        bh.consume(first.getCandidates());
+    }
+
+    // the same fields as the model was walked for them before the offer reader
+    private static void walkLegacy(SessionDescription sdp, Blackhole bh) {
+        for (MediaField media : sdp.getMediaDescriptions()) {
+            if (SDPMediaType.audio.equals(media.getMediaType())) {
+                String audioCodec = media.getAttribute(AttributeKey.rtpmap, EnumSet.of(RTPCodecEnum.OPUS)).getValue();
+                bh.consume(audioCodec.split("[\\s|\\/]"));
+                bh.consume(media.getAttribute(AttributeKey.ssrc).getValue().split("\\s"));
+            } else if (SDPMediaType.video.equals(media.getMediaType())) {
+                List<AttributeField> videoCodecs = media.getAttributeSelections(AttributeKey.rtpmap, EnumSet.of(RTPCodecEnum.H264_PMODE1, RTPCodecEnum.VP8));
+                for (AttributeField videoAtt : videoCodecs) {
+                    String[] videoCodecParts = videoAtt.getValue().split("[\\s|\\/]");
+                    int pt = Integer.valueOf(videoCodecParts[0]);
+                    AttributeField fmtp = media.getAttribute(AttributeKey.fmtp, pt);
+                    if (fmtp != null) {
+                        bh.consume(fmtp.getValue().split("[\\s|\\;]"));
+                    }
+                }
+                bh.consume(media.getAttribute(AttributeKey.ssrc).getValue().split("\\s"));
+            }
+        }
+        MediaField first = sdp.getMediaDescriptions()[0];
+        AttributeField ufrag = first.getAttribute(AttributeKey.iceufrag);
+        bh.consume(ufrag != null ? ufrag.getValue() : sdp.getAttribute(AttributeKey.iceufrag).getValue());
+        AttributeField pwd = first.getAttribute(AttributeKey.icepwd);
+        bh.consume(pwd != null ? pwd.getValue() : sdp.getAttribute(AttributeKey.icepwd).getValue());
+        AttributeField fingerPrint = first.getAttribute(AttributeKey.fingerprint);
+        if (fingerPrint == null) {
+            fingerPrint = sdp.getAttribute(AttributeKey.fingerprint);
+        }
+        bh.consume(fingerPrint.getValue().split(" "));
+        bh.consume(sdp.getAttribute(AttributeKey.setup) != null ? sdp.getAttribute(AttributeKey.setup) : first.getAttribute(AttributeKey.setup));
+    }
+
+}
@@ -0,0 +1,368 @@
+package org.red5.whip;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Precompiled answer sdp for a given answer shape; the selected codecs, profile and payload types, mids, bitrates, data
+ * channel, browser family and the other inputs which don't change between publishes with the same kind of offer. A
+ * template is compiled from the first answer of its shape built by the sdp model, with the per-session values located
+ * by line: origin username, session id and version, ICE credentials, fingerprint, the sctp port and candidates. Answers
+ * are then written by splicing those values between the literal portions. Mids and payload types are part of the shape
+ * rather than slots since they also appear in lines such as the bundle group.
+ * <br>
+ * Templated answers are compared to model built answers for the first few publishes of a shape, and the shape falls
+ * back to the model for good if any byte differs.
+ *
+ * @author Paul Gregoire
+ */
+public class AnswerTemplate {
+
+    private static final Logger log = LoggerFactory.getLogger(AnswerTemplate.class);
+
+    // media section indexes for the per-media values
+    public static final int AUDIO = 0, VIDEO = 1, DATA = 2;
+
+    // model built answers compared with the template before its trusted
+    private static final int VERIFICATIONS = 3;
+
+    // marks a shape which can't be templated
+    private static final AnswerTemplate DISABLED = new AnswerTemplate(new String[] { "" }, new Slot[0], new int[0]);
+
+    private static final ConcurrentMap<String, AnswerTemplate> templates = new ConcurrentHashMap<>();
+
+    private static volatile boolean enabled = true;
+
+    private enum Slot {
+        ORIGIN_USER, SESSION_ID, SESSION_VERSION, UFRAG, PWD, FINGERPRINT, SCTP_PORT, CANDIDATES
+    }
+
+    // literal text surrounding the slots, one more than there are slots
+    private final String[] literals;
+
+    private final Slot[] slots;
+
+    // media section of each slot, -1 for session level
+    private final int[] sections;
+
+    // prefix written ahead of each candidate
+    private String candidatePrefix = "";
+
+    // line terminator between candidates
+    private String lineEnd = "\r\n";
+
+    private int length;
+
+    private final AtomicInteger verifications = new AtomicInteger();
+
+    private AnswerTemplate(String[] literals, Slot[] slots, int[] sections) {
+        this.literals = literals;
+        this.slots = slots;
+        this.sections = sections;
+        for (String literal : literals) {
+            length += literal.length();
+        }
+    }
+
+    public static void setEnabled(boolean enabled) {
+        AnswerTemplate.enabled = enabled;
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Returns the template for the shape.
+     *
+     * @param shape
+     * @return template or null if there isn't a usable one
+     */
+    public static AnswerTemplate get(String shape) {
+        AnswerTemplate template = templates.get(shape);
+        return template != DISABLED ? template : null;
+    }
+
+    /**
+     * Returns whether the shape has been seen, whether or not it could be templated.
+     *
+     * @param shape
+     * @return true if known
+     */
+    public static boolean isKnown(String shape) {
+        return templates.containsKey(shape);
+    }
+
+    /**
+     * Compiles a template for the shape from a model built answer and the values it was built with. The shape is
+     * disabled if the answer can't be reproduced from the template.
+     *
+     * @param shape
+     * @param answer
+     * @param values
+     */
+    public static void learn(String shape, String answer, Values values) {
+        AnswerTemplate template = compile(answer, values);
+        if (template != null && answer.equals(template.render(values))) {
+            if (templates.putIfAbsent(shape, template) == null) {
+                log.debug("Answer template compiled for shape: {} slots: {}", shape, template.slots.length);
+            }
+        } else {
+            log.info("Answer shape can't be templated, answers will be built by the model: {}", shape);
+            templates.put(shape, DISABLED);
+        }
+    }
+
+    /**
+     * Returns whether the template has been checked against enough model built answers.
+     *
+     * @return true if verified
+     */
+    public boolean isVerified() {
+        return verifications.get() >= VERIFICATIONS;
+    }
+
+    /**
+     * Checks the template against a model built answer, disabling the shape on a mismatch.
+     *
+     * @param shape
+     * @param answer
+     * @param values
+     * @return true if the template matched
+     */
+    public boolean verify(String shape, String answer, Values values) {
+        if (answer.equals(render(values))) {
+            verifications.incrementAndGet();
+            return true;
+        }
+        log.warn("Answer template mismatch, answers will be built by the model for shape: {}", shape);
+        templates.put(shape, DISABLED);
+        return false;
+    }
+
+    /**
+     * Writes the answer with the values spliced in.
+     *
+     * @param values
+     * @return answer sdp
+     */
+    public String render(Values values) {
+        StringBuilder sb = new StringBuilder(length + 512);
+        sb.append(literals[0]);
+        for (int i = 0; i < slots.length; i++) {
+            int section = sections[i];
+            switch (slots[i]) {
+                case ORIGIN_USER:
+                    sb.append(values.originUser);
+                    break;
+                case SESSION_ID:
+                    sb.append(values.sessionId);
+                    break;
+                case SESSION_VERSION:
+                    sb.append(values.sessionVersion);
+                    break;
+                case UFRAG:
+                    sb.append(values.ufrag);
+                    break;
+                case PWD:
+                    sb.append(values.pwd);
+                    break;
+                case FINGERPRINT:
+                    sb.append(values.fingerprints[section]);
+                    break;
+                case SCTP_PORT:
+                    sb.append(values.sctpPort);
+                    break;
+                case CANDIDATES:
+                    // the literal following the slot ends the last candidate line
+                    for (int c = 0; c < values.candidates.size(); c++) {
+                        if (c > 0) {
+                            sb.append(lineEnd);
+                        }
+                        sb.append(candidatePrefix).append(values.candidates.get(c));
+                    }
+                    break;
+            }
+            sb.append(literals[i + 1]);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Splits the answer into literals and slots, line by line.
+     *
+     * @param answer
+     * @param values
+     * @return template or null if the values couldn't all be located
+     */
+    private static AnswerTemplate compile(String answer, Values values) {
+        List<String> literals = new ArrayList<>();
+        List<Slot> slots = new ArrayList<>();
+        List<Integer> sections = new ArrayList<>();
+        StringBuilder literal = new StringBuilder();
+        String candidatePrefix = null, candidateEnd = null, lineEnd = null;
+        int section = -1, candidateCount = 0, pos = 0;
+        while (pos < answer.length()) {
+            int nl = answer.indexOf('\n', pos);
+            int next = nl != -1 ? nl + 1 : answer.length();
+            int end = nl != -1 ? (nl > pos && answer.charAt(nl - 1) == '\r' ? nl - 1 : nl) : answer.length();
+            String line = answer.substring(pos, end);
+            String terminator = answer.substring(end, next);
+            pos = next;
+            if (line.startsWith("a=candidate:")) {
+                if (candidateCount >= values.candidates.size()) {
+                    return null;
+                }
+                String candidate = values.candidates.get(candidateCount++);
+                if (!line.endsWith(candidate)) {
+                    return null;
+                }
+                String prefix = line.substring(0, line.length() - candidate.length());
+                if (candidatePrefix == null) {
+                    candidatePrefix = prefix;
+                } else if (!candidatePrefix.equals(prefix)) {
+                    return null;
+                }
+                if (candidateEnd == null) {
+                    // first candidate of a block
+                    add(literals, slots, sections, literal, Slot.CANDIDATES, section);
+                } else if (lineEnd == null) {
+                    lineEnd = candidateEnd;
+                } else if (!lineEnd.equals(candidateEnd)) {
+                    return null;
+                }
+                // held until the block ends, only the last one is literal
+                candidateEnd = terminator;
+                continue;
+            }
+            if (candidateEnd != null) {
+                // all of the candidates are written in each block
+                if (candidateCount != values.candidates.size()) {
+                    return null;
+                }
+                literal.append(candidateEnd);
+                candidateEnd = null;
+                candidateCount = 0;
+            }
+            if (line.startsWith("m=")) {
+                section = line.startsWith("m=audio ") ? AUDIO : line.startsWith("m=video ") ? VIDEO : line.startsWith("m=application ") ? DATA : -1;
+                literal.append(line);
+            } else if (line.startsWith("o=")) {
+                String prefix = "o=" + values.originUser + ' ' + values.sessionId + ' ' + values.sessionVersion + ' ';
+                if (!line.startsWith(prefix)) {
+                    return null;
+                }
+                literal.append("o=");
+                add(literals, slots, sections, literal, Slot.ORIGIN_USER, -1);
+                literal.append(' ');
+                add(literals, slots, sections, literal, Slot.SESSION_ID, -1);
+                literal.append(' ');
+                add(literals, slots, sections, literal, Slot.SESSION_VERSION, -1);
+                literal.append(line, prefix.length() - 1, line.length());
+            } else if (!value(line, "a=ice-ufrag:", values.ufrag, Slot.UFRAG, -1, literals, slots, sections, literal)
+                    && !value(line, "a=ice-pwd:", values.pwd, Slot.PWD, -1, literals, slots, sections, literal)
+                    && !(section != -1 && value(line, "a=fingerprint:", values.fingerprints[section], Slot.FINGERPRINT, section, literals, slots, sections, literal))
+                    && !(section == DATA && value(line, "a=sctp-port:", values.sctpPort, Slot.SCTP_PORT, section, literals, slots, sections, literal))) {
+                literal.append(line);
+            }
+            literal.append(terminator);
+        }
+        if (candidateEnd != null) {
+            if (candidateCount != values.candidates.size()) {
+                return null;
+            }
+            literal.append(candidateEnd);
+        }
+        literals.add(literal.toString());
+        // a per-session value left in a literal would be written into other sessions answers
+        for (String text : literals) {
+            if (contains(text, values.originUser) || contains(text, values.sessionId) || contains(text, values.ufrag) || contains(text, values.pwd)) {
+                return null;
+            }
+            for (String fingerprint : values.fingerprints) {
+                if (contains(text, fingerprint)) {
+                    return null;
+                }
+            }
+        }
+        int[] sectionArray = new int[sections.size()];
+        for (int i = 0; i < sectionArray.length; i++) {
+            sectionArray[i] = sections.get(i);
+        }
+        AnswerTemplate template = new AnswerTemplate(literals.toArray(new String[0]), slots.toArray(new Slot[0]), sectionArray);
+        if (candidatePrefix != null) {
+            template.candidatePrefix = candidatePrefix;
+        }
+        if (lineEnd != null) {
+            template.lineEnd = lineEnd;
+        }
+        return template;
+    }
+
+    private static boolean contains(String text, String value) {
+        return value != null && !value.isEmpty() && text.contains(value);
+    }
+
+    private static void add(List<String> literals, List<Slot> slots, List<Integer> sections, StringBuilder literal, Slot slot, int section) {
+        literals.add(literal.toString());
+        literal.setLength(0);
+        slots.add(slot);
+        sections.add(section);
+    }
+
+    // attribute lines whose entire value is a slot
+    private static boolean value(String line, String prefix, String value, Slot slot, int section, List<String> literals, List<Slot> slots, List<Integer> sections, StringBuilder literal) {
+        if (value != null && line.length() == prefix.length() + value.length() && line.startsWith(prefix) && line.endsWith(value)) {
+            literal.append(prefix);
+            add(literals, slots, sections, literal, slot, section);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Per-session values of an answer.
+     */
+    public static final class Values {
+
+        final String originUser, sessionId, sessionVersion, ufrag, pwd;
+
+        final List<String> candidates;
+
+        final String[] fingerprints = new String[3];
+
+        String sctpPort;
+
+        public Values(String originUser, String sessionId, long sessionVersion, String ufrag, String pwd, List<String> candidates) {
+            this.originUser = originUser;
+            this.sessionId = sessionId;
+            this.sessionVersion = Long.toString(sessionVersion);
+            this.ufrag = ufrag;
+            this.pwd = pwd;
+            this.candidates = candidates != null ? candidates : Collections.emptyList();
+        }
+
+        /**
+         * Sets the fingerprint attribute value for a media section.
+         *
+         * @param section AUDIO, VIDEO or DATA
+         * @param fingerprint
+         */
+        public void setFingerprint(int section, String fingerprint) {
+            fingerprints[section] = fingerprint;
+        }
+
+        public void setSctpPort(int sctpPort) {
+            this.sctpPort = Integer.toString(sctpPort);
+        }
+
+    }
+
+}
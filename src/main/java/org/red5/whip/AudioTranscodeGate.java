@@ -0,0 +1,236 @@
+package org.red5.whip;
+
+import java.util.Arrays;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.jitsi.service.neomedia.RawPacket;
+import org.red5.whip.TranscodeScheduler.Priority;
+
+/**
+ * Runs a publisher's audio transcoding only while it's wanted and admitted. A lazy gate wants transcoding while the
+ * stream has consumers, and for the grace period after the last leaves, covering consumers that reconnect; otherwise
+ * it's wanted for the life of the stream. When the node has a {@link TranscodeScheduler}, a gate wanting to transcode
+ * waits for admission and may later be shed. While transcoding is off, Opus packets are held back from the transcoding
+ * device and the most recent are kept in a small ring; when it starts the ring is replayed ahead of the live packets,
+ * so the decoder and AAC encoder start on a run of audio rather than a cold packet. Consumers are tracked by identity,
+ * so one reported both by an event and by a snapshot of the stream's consumers counts once, and a disconnect for one
+ * never counted is ignored. Consumer events and admission arrive on any thread; packets, the ring and the replay stay
+ * on the receive thread.
+ *
+ * @author Paul Gregoire
+ */
+public class AudioTranscodeGate {
+
+    // 320ms of 20ms packets
+    private static final int HISTORY_SIZE = 16;
+
+    private static final int MAX_PACKET_SIZE = 1500;
+
+    private final String name;
+
+    private final long gracePeriodMs;
+
+    private final boolean lazy;
+
+    private final Priority priority;
+
+    private final Set<Object> consumers = ConcurrentHashMap.newKeySet();
+
+    private final AtomicBoolean active = new AtomicBoolean();
+
+    private final AtomicBoolean replayPending = new AtomicBoolean();
+
+    private volatile long idleSince;
+
+    // ring of the latest held back packets, slot buffers are allocated once
+    private final byte[][] history = new byte[HISTORY_SIZE][];
+
+    private final int[] historyLengths = new int[HISTORY_SIZE];
+
+    private int historyNext, historyCount;
+
+    // whether the last packet was passed on, receive thread only
+    private boolean passing;
+
+    private volatile boolean closed;
+
+    // when admission was asked for, set by the scheduler
+    long requestedAt;
+
+    /**
+     * @param name stream name
+     * @param gracePeriodMs time transcoding continues after the last consumer leaves
+     * @param lazy whether transcoding waits for consumers
+     * @param priority priority class with the scheduler
+     */
+    public AudioTranscodeGate(String name, long gracePeriodMs, boolean lazy, Priority priority) {
+        this.name = name;
+        this.gracePeriodMs = gracePeriodMs;
+        this.lazy = lazy;
+        this.priority = priority;
+        if (!lazy) {
+            activate();
+        }
+    }
+
+    /**
+     * Counts a consumer of the stream, once however often it's reported.
+     *
+     * @param consumer
+     */
+    public void consumerConnected(Object consumer) {
+        if (consumers.add(consumer)) {
+            activate();
+        }
+    }
+
+    /**
+     * Stops counting a consumer; one that was never counted is ignored.
+     *
+     * @param consumer
+     */
+    public void consumerDisconnected(Object consumer) {
+        if (consumers.remove(consumer) && consumers.isEmpty()) {
+            idleSince = System.currentTimeMillis();
+        }
+    }
+
+    private void activate() {
+        if (closed) {
+            return;
+        }
+        TranscodeScheduler scheduler = TranscodeScheduler.getInstance();
+        if (scheduler != null) {
+            scheduler.request(this);
+        } else {
+            start();
+        }
+    }
+
+    /**
+     * Starts transcoding, once admitted.
+     */
+    void start() {
+        if (!closed && active.compareAndSet(false, true)) {
+            replayPending.set(true);
+            WhipMetrics.transcodingStarted();
+        }
+    }
+
+    /**
+     * Stops transcoding for the scheduler, to wait for admission again.
+     *
+     * @return true if it was transcoding
+     */
+    boolean shed() {
+        if (active.compareAndSet(true, false)) {
+            WhipMetrics.transcodingStopped();
+            return true;
+        }
+        return false;
+    }
+
+    private boolean isWanted(long now) {
+        return !lazy || !consumers.isEmpty() || now - idleSince < gracePeriodMs;
+    }
+
+    /**
+     * Returns whether a packet goes on to the transcoding device; if not, it's kept for replay.
+     *
+     * @param buf
+     * @param offset
+     * @param length
+     * @param now milliseconds
+     * @return true to pass it on
+     */
+    public boolean admit(byte[] buf, int offset, int length, long now) {
+        if (active.get()) {
+            if (isWanted(now)) {
+                passing = true;
+                return true;
+            }
+            if (active.compareAndSet(true, false)) {
+                WhipMetrics.transcodingStopped();
+                replayPending.set(false);
+                TranscodeScheduler scheduler = TranscodeScheduler.getInstance();
+                if (scheduler != null) {
+                    scheduler.release(this);
+                }
+                // a consumer connecting while this was stopping
+                if (!consumers.isEmpty()) {
+                    activate();
+                    if (active.get()) {
+                        passing = true;
+                        return true;
+                    }
+                }
+            }
+        }
+        if (passing) {
+            // the ring holds packets from before transcoding started, too old to replay
+            passing = false;
+            historyCount = 0;
+        }
+        if (length <= MAX_PACKET_SIZE) {
+            if (history[historyNext] == null) {
+                history[historyNext] = new byte[MAX_PACKET_SIZE];
+            }
+            System.arraycopy(buf, offset, history[historyNext], 0, length);
+            historyLengths[historyNext] = length;
+            historyNext = (historyNext + 1) % HISTORY_SIZE;
+            historyCount = Math.min(historyCount + 1, HISTORY_SIZE);
+        }
+        return false;
+    }
+
+    /**
+     * Puts the held back packets ahead of the packets being passed on, once after transcoding starts.
+     *
+     * @param pkts
+     * @return packets, with the history first if it was due
+     */
+    public RawPacket[] replay(RawPacket[] pkts) {
+        if (!replayPending.compareAndSet(true, false) || historyCount == 0) {
+            return pkts;
+        }
+        int length = pkts != null ? pkts.length : 0;
+        RawPacket[] out = new RawPacket[historyCount + length];
+        // oldest first; the replayed packets are handed on, so they're copied out of the ring
+        for (int i = 0; i < historyCount; i++) {
+            int slot = (historyNext - historyCount + i + HISTORY_SIZE) % HISTORY_SIZE;
+            byte[] copy = Arrays.copyOf(history[slot], historyLengths[slot]);
+            out[i] = new RawPacket(copy, 0, copy.length);
+        }
+        if (length > 0) {
+            System.arraycopy(pkts, 0, out, historyCount, length);
+        }
+        historyCount = 0;
+        return out;
+    }
+
+    public boolean isActive() {
+        return active.get();
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public Priority getPriority() {
+        return priority;
+    }
+
+    public void close() {
+        closed = true;
+        if (active.compareAndSet(true, false)) {
+            WhipMetrics.transcodingStopped();
+        }
+        TranscodeScheduler scheduler = TranscodeScheduler.getInstance();
+        if (scheduler != null) {
+            scheduler.release(this);
+        }
+    }
+
+}
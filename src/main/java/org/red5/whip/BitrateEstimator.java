@@ -0,0 +1,92 @@
+package org.red5.whip;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Sliding window bitrate estimator. Bytes are added to a ring of fixed width time buckets, each stamped with the
+ * interval it counts, and the rate is the sum of the buckets still inside the window. Adding is a read and an atomic
+ * add in the common case, so the receive path never blocks a reader or another writer. A bucket being recycled for a
+ * new interval may drop bytes added concurrently by a thread still in the old interval; this is an estimate.
+ *
+ * @author Paul Gregoire
+ */
+public class BitrateEstimator {
+
+    // bucket width in milliseconds
+    private final int interval;
+
+    private final int buckets;
+
+    private final AtomicLongArray bytes;
+
+    // interval number each bucket is counting
+    private final AtomicLongArray epochs;
+
+    /**
+     * One second window of 100ms buckets.
+     */
+    public BitrateEstimator() {
+        this(100, 10);
+    }
+
+    public BitrateEstimator(int interval, int buckets) {
+        this.interval = interval;
+        this.buckets = buckets;
+        bytes = new AtomicLongArray(buckets);
+        epochs = new AtomicLongArray(buckets);
+    }
+
+    /**
+     * Adds bytes received at the given time.
+     *
+     * @param now milliseconds
+     * @param length bytes
+     */
+    public void add(long now, int length) {
+        long epoch = now / interval;
+        int slot = (int) (epoch % buckets);
+        long current = epochs.get(slot);
+        if (current != epoch) {
+            if (current < epoch && epochs.compareAndSet(slot, current, epoch)) {
+                // first add of the interval resets the bucket
+                bytes.set(slot, length);
+                return;
+            }
+            if (epochs.get(slot) != epoch) {
+                // the bucket has moved on to a later interval
+                return;
+            }
+        }
+        bytes.addAndGet(slot, length);
+    }
+
+    /**
+     * Returns the bitrate over the window ending at the given time.
+     *
+     * @param now milliseconds
+     * @return bits per second
+     */
+    public long getBitrate(long now) {
+        long epoch = now / interval;
+        long sum = 0L;
+        for (int i = 0; i < buckets; i++) {
+            long e = epochs.get(i);
+            if (e <= epoch && e > epoch - buckets) {
+                sum += bytes.get(i);
+            }
+        }
+        // the current bucket is only partly through its interval
+        long span = (long) (buckets - 1) * interval + (now % interval) + 1L;
+        return sum * 8000L / span;
+    }
+
+    /**
+     * Returns the window length in milliseconds.
+     *
+     * @return window
+     */
+    public long getWindow() {
+        return (long) interval * buckets;
+    }
+
+}
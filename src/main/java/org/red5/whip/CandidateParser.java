@@ -1,7 +1,6 @@
 package org.red5.whip;
 
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 import java.util.regex.Matcher;
@@ -21,7 +20,10 @@ import net.minidev.json.JSONObject;
 
 /**
  * Parses ICE candidates.
- * 
+ * <br>
+ * Candidate lines are tokenized in a single pass directly into the primitive fields of a reusable per-thread
+ * {@link ParsedCandidate}; only the strings which ice4j requires (foundation, addresses and ufrag) are created.
+ *
  * @author Paul Gregoire
  */
 public class CandidateParser {
@@ -32,58 +34,51 @@ public class CandidateParser {
 
     private static final Pattern IPV6_ADDRESS_PATTERN = Pattern.compile("([a-fA-F0-9:]+:+)+[a-fA-F0-9]+");
 
+    // separator between candidates in a multi-candidate string, as escaped in json
+    private static final String ESCAPED_CRLF = "\\r\\n";
+
+    private static final ThreadLocal<ParsedCandidate> PARSED = ThreadLocal.withInitial(ParsedCandidate::new);
+
     /**
      * Parses incoming string containing ICE candidate entries into RemoteCandidate instances.
-     * 
+     *
      * @param iceMediaStream
      * @param remoteCandidates
      * @return remote candidates
      */
     public static List<RemoteCandidate> parseRemoteCandidates(IceMediaStream iceMediaStream, String remoteCandidates) {
-        log.info("parseRemoteCandidates for: {}\n{}", iceMediaStream.getName(), remoteCandidates);
+        if (isDebug) {
+            log.debug("parseRemoteCandidates for: {}\n{}", iceMediaStream.getName(), remoteCandidates);
+        }
         List<RemoteCandidate> candidates = new ArrayList<>(1);
+        ParsedCandidate parsed = PARSED.get();
         if (remoteCandidates.indexOf("\\n") != -1) {
-            String[] split = remoteCandidates.split("\\s*\\Q\\r\\n\\E\\s*");
-            log.info("Candidates: {}", split.length);
-            for (String s : split) {
-                String[] candidate = s.substring(s.indexOf(':')).split(" ");
-                /*
-                 *  0 foundation
-                 *  1 component-id
-                 *  2 transport
-                 *  3 priority
-                 *  4 ip
-                 *  5 port
-                 *  6 cand-type-marker
-                 *  7 candidate type (host, srflx, prflx, relay)
-                 *  8 raddr or generation (or tcptype for tcp candidate)
-                 *  9 ip
-                 * 10 rport
-                 * 11 port
-                 * --- may or may not exist or in this order 
-                 * 12 generation
-                 * 13 generation value
-                 * 14 ufrag
-                 * 15 user fragment
-                 * 16 network-id
-                 * 17 network id value
-                 * 18 network-cost
-                 * 19 network cost value 
-                 */
-                RemoteCandidate remoteCandidate = buildCandidate(iceMediaStream, candidate);
-                if (remoteCandidate != null) {
-                    candidates.add(remoteCandidate);
+            int start = 0, length = remoteCandidates.length();
+            while (start < length) {
+                int end = remoteCandidates.indexOf(ESCAPED_CRLF, start);
+                if (end == -1) {
+                    end = length;
                 }
+                // skip past the candidate prefix, the foundation starts after the colon
+                int colonIdx = remoteCandidates.indexOf(':', start);
+                if (colonIdx != -1 && colonIdx < end) {
+                    if (parsed.parse(remoteCandidates, colonIdx + 1, end)) {
+                        RemoteCandidate remoteCandidate = buildCandidate(iceMediaStream, parsed);
+                        if (remoteCandidate != null) {
+                            candidates.add(remoteCandidate);
+                        }
+                    }
+                }
+                start = end + ESCAPED_CRLF.length();
             }
         } else {
-            int startIndex = remoteCandidates.contains("candidate:") ? remoteCandidates.indexOf("candidate:") : 0;
-            String[] candidate = remoteCandidates.substring(startIndex).split("[\\s\"]");
-            if (isDebug) {
-                log.debug("Candidate array: {}", Arrays.toString(candidate));
-            }
-            RemoteCandidate remoteCandidate = buildCandidate(iceMediaStream, candidate);
-            if (remoteCandidate != null) {
-                candidates.add(remoteCandidate);
+            int startIndex = remoteCandidates.indexOf("candidate:");
+            startIndex = startIndex != -1 ? startIndex + 10 : 0;
+            if (parsed.parse(remoteCandidates, startIndex, remoteCandidates.length())) {
+                RemoteCandidate remoteCandidate = buildCandidate(iceMediaStream, parsed);
+                if (remoteCandidate != null) {
+                    candidates.add(remoteCandidate);
+                }
             }
         }
         if (candidates.size() > 1) {
@@ -97,7 +92,7 @@ public class CandidateParser {
     }
 
     /**
-     * 
+     *
        candidate-attribute   = "candidate" ":" foundation SP component-id SP
                                "TCP" SP
                                priority SP
@@ -109,115 +104,69 @@ public class CandidateParser {
                                SP tcp-type-ext
                                *(SP extension-att-name SP
                                     extension-att-value)
-    
+
         tcp-type-ext          = "tcptype" SP tcp-type
         tcp-type              = "active" / "passive" / "so"
-    
+
      * @param iceMediaStream
      * @param candidate
      * @return
      */
-    private static RemoteCandidate buildCandidate(IceMediaStream iceMediaStream, String[] candidate) {
-        log.info("buildCandidate for: {} {}", iceMediaStream.getName(), Arrays.toString(candidate));
+    private static RemoteCandidate buildCandidate(IceMediaStream iceMediaStream, ParsedCandidate candidate) {
+        if (isDebug) {
+            log.debug("buildCandidate for: {} {}", iceMediaStream.getName(), candidate);
+        }
         RemoteCandidate remoteCandidate = null;
-        if (!"end-of-candidates".equals(candidate[0])) {
-            Transport transport = "UDP".equals(candidate[2].toUpperCase()) ? Transport.UDP : Transport.TCP;
-            //log.trace("Transport: {}", transport);
+        Component component = iceMediaStream.getComponent(candidate.componentId);
+        if (component != null) {
             // https://blog.mozilla.org/webrtc/active-ice-tcp-punch-firewalls-directly/
             // if its port 9 and transport is tcp then its masked, check the tcptype for 'active' which means our end will listen
-            int port = Integer.valueOf(candidate[5]);
-            // ensure foundation value is valid
-            String foundation = candidate[0];
-            int colonIdx = foundation.indexOf(':');
-            if (colonIdx != -1) {
-                foundation = foundation.substring(colonIdx + 1);
-            }
-            //log.trace("Foundation: {}", foundation);
-            int componentId = Integer.valueOf(candidate[1]);
-            Component component = iceMediaStream.getComponent(componentId);
-            log.trace("Component: {}", component);
-            if (component != null) {
-                TransportAddress mainAddr = new TransportAddress(candidate[4], port, transport);
-                try {
-                    RemoteCandidate relatedCandidate = null;
-                    // if there is a rel addr and rel port is not
-                    if (candidate.length >= 11 && "raddr".equals(candidate[8])) {
-                        TransportAddress relatedAddr = new TransportAddress(candidate[9], Integer.valueOf(candidate[11]), transport);
-                        relatedCandidate = component.findRemoteCandidate(relatedAddr);
-                        // ensure the component ids match
-                        if (relatedCandidate != null && relatedCandidate.getComponentId() != componentId) {
-                            // null it out if they dont match
-                            relatedCandidate = null;
-                        }
-                    }
-                    //                                                                             type           foundation  componentId  priority
-                    remoteCandidate = new RemoteCandidate(mainAddr, component, CandidateType.parse(candidate[7]), foundation, componentId, Long.valueOf(candidate[3]), relatedCandidate);
-                    // grab tcptype if we have it
-                    if (transport == Transport.TCP) {
-                        if (candidate.length >= 9 && "tcptype".equals(candidate[8])) {
-                            // candidate:4 1 TCP 2105458943 10.0.1.16 9 typ host tcptype active
-                            remoteCandidate.setTcpType(CandidateTcpType.parse(candidate[9]));
-                        } else if (candidate.length >= 11 && "tcptype".equals(candidate[10])) {
-                            //candidate:2 1 tcp 1684798975 10.0.0.13 51774 typ srflx 10.0.0.13 51774 tcptype active
-                            remoteCandidate.setTcpType(CandidateTcpType.parse(candidate[11]));
-                        }
-                    }
-                    // check for generation, network-id, and network-cost
-                    if (candidate.length >= 13) {
-                        /* 
-                         * 12 generation
-                         * 13 generation value
-                         * 14 ufrag
-                         * 15 user fragment
-                         * 16 network-id
-                         * 17 network id value
-                         * 18 network-cost
-                         * 19 network cost value 
-                         */
-                        // candidate:2 1 udp 1686052607 71.222.38.190 49803 typ srflx raddr 192.168.0.134 rport 49803 generation 0 ufrag OsoO network-id 1
-                        // candidate:2 1 udp 1685987071 71.222.38.190 50923 typ srflx raddr 192.168.0.155 rport 50923 generation 0 ufrag OsoO network-id 2 network-cost 10
-                        // candidate:2 1 udp 2122260224 192.168.0.143 63394 typ host generation 0 ufrag DFmw network-id 3 network-cost 10
-                        for (int f = 8; f < candidate.length; f++) {
-                            //log.trace("Candidate field: {}", candidate[f]);
-                            String val = candidate[f];
-                            switch (val) {
-                                case "ufrag":
-                                    val = candidate[f + 1];
-                                    remoteCandidate.setUfrag(val);
-                                    break;
-                                case "generation":
-                                    val = candidate[f + 1];
-                                    log.debug("Candidate field: \"{}\"", candidate[f + 1]);
-                                    remoteCandidate.setGeneration(Integer.valueOf(val));
-                                    break;
-                                case "network-id":
-                                    val = candidate[f + 1];
-                                    log.debug("Candidate field: \"{}\"", candidate[f + 1]);
-                                    remoteCandidate.setNetworkId(Integer.valueOf(val));
-                                    break;
-                                case "network-cost":
-                                    val = candidate[f + 1];
-                                    log.debug("Candidate field: \"{}\"", candidate[f + 1]);
-                                    remoteCandidate.setNetworkCost(Integer.valueOf(val));
-                                    break;
-                            }
-                        }
+            TransportAddress mainAddr = new TransportAddress(candidate.address, candidate.port, candidate.transport);
+            try {
+                RemoteCandidate relatedCandidate = null;
+                // if there is a rel addr and rel port is not
+                if (candidate.relatedAddress != null && candidate.relatedPort >= 0) {
+                    TransportAddress relatedAddr = new TransportAddress(candidate.relatedAddress, candidate.relatedPort, candidate.transport);
+                    relatedCandidate = component.findRemoteCandidate(relatedAddr);
+                    // ensure the component ids match
+                    if (relatedCandidate != null && relatedCandidate.getComponentId() != candidate.componentId) {
+                        // null it out if they dont match
+                        relatedCandidate = null;
                     }
-                    // all the candidates are added to the component; the component will decide which network id's to drop
-                    //component.addRemoteCandidate(remoteCandidate);
-                } catch (Exception ex) {
-                    log.warn("Build candidate exception", ex);
                 }
-            } else {
-                log.debug("ICE media stream component not found for candidate: {}", Arrays.toString(candidate));
+                //                                                                   type            foundation            componentId            priority
+                remoteCandidate = new RemoteCandidate(mainAddr, component, candidate.type, candidate.foundation, candidate.componentId, candidate.priority, relatedCandidate);
+                // grab tcptype if we have it
+                if (candidate.transport == Transport.TCP && candidate.tcpType != null) {
+                    remoteCandidate.setTcpType(candidate.tcpType);
+                }
+                // candidate:2 1 udp 1685987071 71.222.38.190 50923 typ srflx raddr 192.168.0.155 rport 50923 generation 0 ufrag OsoO network-id 2 network-cost 10
+                if (candidate.ufrag != null) {
+                    remoteCandidate.setUfrag(candidate.ufrag);
+                }
+                if (candidate.generation >= 0) {
+                    remoteCandidate.setGeneration(candidate.generation);
+                }
+                if (candidate.networkId >= 0) {
+                    remoteCandidate.setNetworkId(candidate.networkId);
+                }
+                if (candidate.networkCost >= 0) {
+                    remoteCandidate.setNetworkCost(candidate.networkCost);
+                }
+                // all the candidates are added to the component; the component will decide which network id's to drop
+                //component.addRemoteCandidate(remoteCandidate);
+            } catch (Exception ex) {
+                log.warn("Build candidate exception", ex);
             }
+        } else if (isDebug) {
+            log.debug("ICE media stream component not found for candidate: {}", candidate);
         }
         return remoteCandidate;
     }
 
     /**
      * Parses a JSON formatted candidate.
-     * 
+     *
      * @param candidate
      * @return string-style candidate
      */
@@ -228,104 +177,66 @@ public class CandidateParser {
         String protocol = candidate.getAsString("protocol");
         String raddr = candidate.getAsString("relatedAddress");
         int rport = (int) candidate.getAsNumber("relatedPort");
+        StringBuilder sb = new StringBuilder(96);
+        sb.append("candidate:").append(candidate.getAsNumber("foundation")).append(" 1 ").append(protocol).append(' ').append(candidate.getAsNumber("priority")).append(' ').append(candidate.getAsString("ip")).append(' ').append(candidate.getAsNumber("port")).append(" typ ");
         // reflexive type
         if (raddr != null && rport > 0) {
-            if ("udp".equals(protocol)) {
-                return String.format("candidate:%d 1 %s %d %s %d typ %s %s %d", candidate.getAsNumber("foundation"), protocol, candidate.getAsNumber("priority"), candidate.getAsString("ip"), candidate.getAsNumber("port"), candidate.getAsString("type"), raddr, rport);
-            } else {
-                return String.format("candidate:%d 1 %s %d %s %d typ %s %s %d tcptype %s", candidate.getAsNumber("foundation"), protocol, candidate.getAsNumber("priority"), candidate.getAsString("ip"), candidate.getAsNumber("port"), candidate.getAsString("type"), raddr, rport, candidate.getAsString("tcpType"));
+            sb.append(candidate.getAsString("type")).append(' ').append(raddr).append(' ').append(rport);
+            if (!"udp".equals(protocol)) {
+                sb.append(" tcptype ").append(candidate.getAsString("tcpType"));
             }
+            return sb.toString();
         }
         // host type
-        return String.format("candidate:%d 1 %s %d %s %d typ host", candidate.getAsNumber("foundation"), protocol, candidate.getAsNumber("priority"), candidate.getAsString("ip"), candidate.getAsNumber("port"));
+        return sb.append("host").toString();
     }
 
     /**
      * Returns an OO style JSON string for the given candidate string.
-     * 
+     *
      * @param rawCandidate
      * @return json string
      */
     public static String toJson(String rawCandidate) {
-        JSONObject candidate = new JSONObject();
-        // find out transport
-        boolean udp = rawCandidate.contains("udp");
-        // reflexive or relay type
-        boolean reflexive = false;
-        // split on spaces
-        String[] parts = rawCandidate.split("\\s");
-        for (int p = 0; p < parts.length; p++) {
-            switch (p) {
-                case 0: // foundation
-                    String foundation = parts[p];
-                    int colonIdx = foundation.indexOf(':');
-                    if (colonIdx != -1) {
-                        foundation = foundation.substring(colonIdx + 1);
-                    }
-                    candidate.put("foundation", Integer.valueOf(foundation));
-                    break;
-                case 1: // component
-                    //int component = Integer.valueOf(parts[p]);
-                    //candidate.put("component", component);
-                    break;
-                case 2: // protocol
-                    String protocol = parts[p].toLowerCase();
-                    candidate.put("protocol", protocol);
-                    break;
-                case 3: // priority
-                    int priority = Integer.valueOf(parts[p]);
-                    candidate.put("priority", priority);
-                    break;
-                case 4: // ip address
-                    String ip = parts[p];
-                    candidate.put("ip", ip);
-                    break;
-                case 5: // port
-                    int port = Integer.valueOf(parts[p]);
-                    candidate.put("port", port);
-                    break;
-                case 6: // typ string not used
-                    break;
-                case 7: // candidate type
-                    String type = parts[p];
-                    candidate.put("type", type);
-                    break;
-                case 8: // raddr string, just verify
-                    String raddr = parts[p];
-                    if ("raddr".equals(raddr)) {
-                        reflexive = true;
-                    }
-                    break;
-                case 9: // raddr value
-                    if (reflexive) {
-                        String raddress = parts[p];
-                        candidate.put("relatedAddress", raddress);
-                    }
-                    break;
-                case 10: // rport string
-                    // skip
-                    break;
-                case 11: // rport value
-                    if (reflexive) {
-                        int rport = Integer.valueOf(parts[p]);
-                        candidate.put("relatedPort", rport);
-                    }
-                    break;
-                case 12: // if tcp, look for type string
-                    String tcptype = parts[p];
-                    if (!udp && "tcptype".equals(tcptype)) {
-                        tcptype = parts[p + 1];
-                        candidate.put("tcpType", tcptype);
-                    }
-                    break;
+        ParsedCandidate parsed = PARSED.get();
+        int colonIdx = rawCandidate.indexOf(':');
+        int start = colonIdx != -1 && colonIdx < rawCandidate.indexOf(' ') ? colonIdx + 1 : 0;
+        if (!parsed.parse(rawCandidate, start, rawCandidate.length())) {
+            return "{}";
+        }
+        StringBuilder sb = new StringBuilder(160);
+        sb.append('{');
+        sb.append("\"foundation\":");
+        if (isNumeric(parsed.foundation)) {
+            sb.append(parsed.foundation);
+        } else {
+            appendQuoted(sb, parsed.foundation);
+        }
+        sb.append(",\"protocol\":");
+        appendQuoted(sb, parsed.transport == Transport.UDP ? "udp" : "tcp");
+        sb.append(",\"priority\":").append(parsed.priority);
+        sb.append(",\"ip\":");
+        appendQuoted(sb, parsed.address);
+        sb.append(",\"port\":").append(parsed.port);
+        sb.append(",\"type\":");
+        appendQuoted(sb, parsed.typeName);
+        if (parsed.relatedAddress != null) {
+            sb.append(",\"relatedAddress\":");
+            appendQuoted(sb, parsed.relatedAddress);
+            if (parsed.relatedPort >= 0) {
+                sb.append(",\"relatedPort\":").append(parsed.relatedPort);
             }
         }
-        return candidate.toJSONString();
+        if (parsed.transport == Transport.TCP && parsed.tcpType != null) {
+            sb.append(",\"tcpType\":");
+            appendQuoted(sb, parsed.tcpType.toString());
+        }
+        return sb.append('}').toString();
     }
 
     /**
      * Returns true if the candidate json contains an IPv6 address.
-     * 
+     *
      * @param json
      * @return true if IPv6 and false otherwise
      */
@@ -335,4 +246,242 @@ public class CandidateParser {
         return matcher.find();
     }
 
+    private static boolean isNumeric(String value) {
+        int length = value.length();
+        if (length == 0 || length > 18) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            if (c < '0' || c > '9') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void appendQuoted(StringBuilder sb, String value) {
+        sb.append('"');
+        for (int i = 0, length = value.length(); i < length; i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                sb.append('\\');
+            }
+            sb.append(c);
+        }
+        sb.append('"');
+    }
+
+    /**
+     * Fields of a candidate line, filled in a single pass over the characters.
+     */
+    static final class ParsedCandidate {
+
+        String foundation;
+
+        int componentId;
+
+        Transport transport;
+
+        long priority;
+
+        String address;
+
+        int port;
+
+        CandidateType type;
+
+        String typeName;
+
+        String relatedAddress;
+
+        int relatedPort;
+
+        CandidateTcpType tcpType;
+
+        int generation;
+
+        String ufrag;
+
+        int networkId;
+
+        int networkCost;
+
+        // current token bounds
+        private int tokenStart, tokenEnd;
+
+        private void reset() {
+            foundation = null;
+            componentId = 0;
+            transport = null;
+            priority = 0L;
+            address = null;
+            port = -1;
+            type = null;
+            typeName = null;
+            relatedAddress = null;
+            relatedPort = -1;
+            tcpType = null;
+            generation = -1;
+            ufrag = null;
+            networkId = -1;
+            networkCost = -1;
+        }
+
+        /**
+         * Parses the candidate between start and end, where start is the first character of the foundation.
+         *
+         * @param line
+         * @param start
+         * @param end
+         * @return true if a candidate was parsed and false for end-of-candidates or malformed lines
+         */
+        boolean parse(CharSequence line, int start, int end) {
+            reset();
+            try {
+                return parseFields(line, start, end);
+            } catch (IllegalArgumentException e) {
+                // malformed numbers as well as unknown candidate or tcp types skip the candidate
+                log.warn("Malformed candidate: {}", e.getMessage());
+            }
+            return false;
+        }
+
+        private boolean parseFields(CharSequence line, int start, int end) {
+            int pos = start;
+            /*
+             *  0 foundation
+             *  1 component-id
+             *  2 transport
+             *  3 priority
+             *  4 ip
+             *  5 port
+             *  6 cand-type-marker
+             *  7 candidate type (host, srflx, prflx, relay)
+             *  --- followed by name / value pairs in any order
+             *  raddr, rport, tcptype, generation, ufrag, network-id, network-cost
+             */
+            for (int field = 0; field < 8; field++) {
+                if ((pos = nextToken(line, pos, end)) == -1) {
+                    return false;
+                }
+                switch (field) {
+                    case 0:
+                        if (regionMatches(line, "end-of-candidates")) {
+                            return false;
+                        }
+                        foundation = token(line);
+                        break;
+                    case 1:
+                        componentId = (int) parseLong(line);
+                        break;
+                    case 2:
+                        transport = regionMatches(line, "udp") ? Transport.UDP : Transport.TCP;
+                        break;
+                    case 3:
+                        priority = parseLong(line);
+                        break;
+                    case 4:
+                        address = token(line);
+                        break;
+                    case 5:
+                        port = (int) parseLong(line);
+                        break;
+                    case 6:
+                        // typ
+                        break;
+                    case 7:
+                        typeName = token(line);
+                        type = CandidateType.parse(typeName);
+                        break;
+                }
+            }
+            // extension name / value pairs
+            while ((pos = nextToken(line, pos, end)) != -1) {
+                int nameStart = tokenStart, nameEnd = tokenEnd;
+                if ((pos = nextToken(line, pos, end)) == -1) {
+                    break;
+                }
+                if (regionMatches(line, nameStart, nameEnd, "raddr")) {
+                    relatedAddress = token(line);
+                } else if (regionMatches(line, nameStart, nameEnd, "rport")) {
+                    relatedPort = (int) parseLong(line);
+                } else if (regionMatches(line, nameStart, nameEnd, "tcptype")) {
+                    tcpType = CandidateTcpType.parse(token(line));
+                } else if (regionMatches(line, nameStart, nameEnd, "generation")) {
+                    generation = (int) parseLong(line);
+                } else if (regionMatches(line, nameStart, nameEnd, "ufrag")) {
+                    ufrag = token(line);
+                } else if (regionMatches(line, nameStart, nameEnd, "network-id")) {
+                    networkId = (int) parseLong(line);
+                } else if (regionMatches(line, nameStart, nameEnd, "network-cost")) {
+                    networkCost = (int) parseLong(line);
+                }
+            }
+            return port >= 0 && type != null;
+        }
+
+        /**
+         * Finds the next token, skipping whitespace and quotes.
+         *
+         * @return position after the token or -1 if there are no more tokens
+         */
+        private int nextToken(CharSequence line, int pos, int end) {
+            while (pos < end && isSeparator(line.charAt(pos))) {
+                pos++;
+            }
+            if (pos >= end) {
+                return -1;
+            }
+            tokenStart = pos;
+            while (pos < end && !isSeparator(line.charAt(pos))) {
+                pos++;
+            }
+            tokenEnd = pos;
+            return pos;
+        }
+
+        private static boolean isSeparator(char c) {
+            return c == ' ' || c == '"' || c == '\t' || c == '\r' || c == '\n';
+        }
+
+        private String token(CharSequence line) {
+            return line.subSequence(tokenStart, tokenEnd).toString();
+        }
+
+        private boolean regionMatches(CharSequence line, String expected) {
+            return regionMatches(line, tokenStart, tokenEnd, expected);
+        }
+
+        private static boolean regionMatches(CharSequence line, int start, int end, String expected) {
+            if (end - start != expected.length()) {
+                return false;
+            }
+            for (int i = 0; i < expected.length(); i++) {
+                if (Character.toLowerCase(line.charAt(start + i)) != expected.charAt(i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private long parseLong(CharSequence line) {
+            long value = 0L;
+            for (int i = tokenStart; i < tokenEnd; i++) {
+                char c = line.charAt(i);
+                if (c < '0' || c > '9') {
+                    throw new NumberFormatException("Invalid number in candidate: " + line.subSequence(tokenStart, tokenEnd));
+                }
+                value = value * 10L + (c - '0');
+            }
+            return value;
+        }
+
+        @Override
+        public String toString() {
+            return "ParsedCandidate [foundation=" + foundation + ", componentId=" + componentId + ", transport=" + transport + ", priority=" + priority + ", address=" + address + ", port=" + port + ", type=" + typeName + ", relatedAddress=" + relatedAddress + ", relatedPort=" + relatedPort + ", tcpType=" + tcpType + ", generation=" + generation + ", ufrag=" + ufrag + ", networkId=" + networkId + ", networkCost=" + networkCost + "]";
+        }
+
+    }
+
 }
@@ -0,0 +1,134 @@
+package org.red5.whip;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.red5pro.io.rtp.transform.dtls.DtlsControlImpl;
+
+/**
+ * Node-level holder of the DTLS certificate shared by new sessions. The certificate is generated by a template control
+ * off the request path and rotated on a schedule; per-session master controls are created from the template, which
+ * copies its certificate rather than generating a new key pair. The fingerprint attribute value is computed once per
+ * certificate.
+ *
+ * @author Paul Gregoire
+ */
+public class DtlsCertificateManager {
+
+    private static final Logger log = LoggerFactory.getLogger(DtlsCertificateManager.class);
+
+    private static volatile DtlsCertificateManager instance;
+
+    private final ScheduledExecutorService rotator;
+
+    private final AtomicLong rotations = new AtomicLong();
+
+    private volatile Certificate current;
+
+    private DtlsCertificateManager(long rotationIntervalMs) {
+        rotator = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "WhipDtlsCertificate");
+            thread.setDaemon(true);
+            return thread;
+        });
+        // generate the first certificate right away, then rotate on the interval
+        rotator.scheduleAtFixedRate(this::rotate, 0L, rotationIntervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Creates the node-wide manager; an interval of zero or less disables certificate sharing.
+     *
+     * @param rotationIntervalMs
+     */
+    public static void start(long rotationIntervalMs) {
+        if (instance == null && rotationIntervalMs > 0) {
+            log.info("Starting DTLS certificate manager rotation: {} ms", rotationIntervalMs);
+            instance = new DtlsCertificateManager(rotationIntervalMs);
+        }
+    }
+
+    public static void stop() {
+        if (instance != null) {
+            instance.rotator.shutdownNow();
+            instance = null;
+        }
+    }
+
+    /**
+     * Returns the manager or null if certificate sharing is disabled.
+     *
+     * @return manager
+     */
+    public static DtlsCertificateManager getInstance() {
+        return instance;
+    }
+
+    /**
+     * Returns the current certificate or null if the first one hasn't been generated yet.
+     *
+     * @return certificate
+     */
+    public Certificate getCertificate() {
+        return current;
+    }
+
+    public long getRotations() {
+        return rotations.get();
+    }
+
+    private void rotate() {
+        try {
+            long start = System.nanoTime();
+            DtlsControlImpl template = new DtlsControlImpl();
+            // forces generation of the key pair and certificate along with the fingerprint hash
+            String fingerprint = template.getLocalFingerprintHashFunction() + ' ' + template.getLocalFingerprint();
+            current = new Certificate(template, fingerprint);
+            rotations.incrementAndGet();
+            log.debug("DTLS certificate rotated in {} ms fingerprint: {}", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), fingerprint);
+        } catch (Throwable t) {
+            log.warn("DTLS certificate rotation failed, current certificate is retained", t);
+        }
+    }
+
+    /**
+     * A generated certificate and its fingerprint attribute value.
+     */
+    public static final class Certificate {
+
+        private final DtlsControlImpl template;
+
+        private final String fingerprint;
+
+        Certificate(DtlsControlImpl template, String fingerprint) {
+            this.template = template;
+            this.fingerprint = fingerprint;
+        }
+
+        /**
+         * Creates a master control sharing this certificate.
+         *
+         * @return control
+         */
+        public DtlsControlImpl createControl() {
+            DtlsControlImpl control = new DtlsControlImpl(template);
+            control.setMasterSession(true);
+            return control;
+        }
+
+        /**
+         * Returns the fingerprint attribute value; hash function, space, then fingerprint.
+         *
+         * @return fingerprint
+         */
+        public String getFingerprint() {
+            return fingerprint;
+        }
+
+    }
+
+}
@@ -0,0 +1,124 @@
+package org.red5.whip;
+
+import java.util.Iterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.BooleanSupplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Node-wide watcher completing the DTLS ready futures of publishers. A publisher's future is normally completed by its
+ * receive transformer when the first packet is decrypted; the watcher covers sessions where no media arrives, by
+ * checking every pending session's DTLS output state from a single thread, and fails the futures of handshakes which
+ * don't complete within the timeout.
+ *
+ * @author Paul Gregoire
+ */
+public class DtlsReadyWatcher {
+
+    private static final Logger log = LoggerFactory.getLogger(DtlsReadyWatcher.class);
+
+    private static volatile DtlsReadyWatcher instance;
+
+    private final long timeoutMs;
+
+    private final ConcurrentLinkedQueue<Watch> watches = new ConcurrentLinkedQueue<>();
+
+    private final ScheduledExecutorService checker;
+
+    private DtlsReadyWatcher(long intervalMs, long timeoutMs) {
+        this.timeoutMs = timeoutMs;
+        checker = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "WhipDtlsWatcher");
+            thread.setDaemon(true);
+            return thread;
+        });
+        checker.scheduleWithFixedDelay(this::check, intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Creates the node-wide watcher.
+     *
+     * @param intervalMs interval between checks of the pending sessions
+     * @param timeoutMs max time for a handshake to complete, zero or less to wait until the publisher stops
+     */
+    public static void start(long intervalMs, long timeoutMs) {
+        if (instance == null) {
+            log.info("Starting DTLS ready watcher interval: {} ms timeout: {} ms", intervalMs, timeoutMs);
+            instance = new DtlsReadyWatcher(Math.max(1L, intervalMs), timeoutMs);
+        }
+    }
+
+    public static void stop() {
+        if (instance != null) {
+            instance.checker.shutdownNow();
+            instance.watches.clear();
+            instance = null;
+        }
+    }
+
+    public static DtlsReadyWatcher getInstance() {
+        return instance;
+    }
+
+    /**
+     * Watches a session until its future is completed, by the watcher or anything else.
+     *
+     * @param ready DTLS output state of the session
+     * @param future completed when ready, or exceptionally with a TimeoutException
+     */
+    public void watch(BooleanSupplier ready, CompletableFuture<Void> future) {
+        if (!future.isDone()) {
+            watches.add(new Watch(ready, future, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs)));
+        }
+    }
+
+    public int getPending() {
+        return watches.size();
+    }
+
+    private void check() {
+        long now = System.nanoTime();
+        for (Iterator<Watch> it = watches.iterator(); it.hasNext();) {
+            Watch watch = it.next();
+            try {
+                if (watch.future.isDone()) {
+                    it.remove();
+                } else if (watch.ready.getAsBoolean()) {
+                    watch.future.complete(null);
+                    it.remove();
+                } else if (timeoutMs > 0L && now - watch.deadline > 0L) {
+                    watch.future.completeExceptionally(new TimeoutException(String.format("DTLS not ready after %d ms", timeoutMs)));
+                    it.remove();
+                }
+            } catch (Throwable t) {
+                log.warn("Exception checking DTLS state", t);
+                watch.future.completeExceptionally(t);
+                it.remove();
+            }
+        }
+    }
+
+    private static final class Watch {
+
+        final BooleanSupplier ready;
+
+        final CompletableFuture<Void> future;
+
+        final long deadline;
+
+        Watch(BooleanSupplier ready, CompletableFuture<Void> future, long deadline) {
+            this.ready = ready;
+            this.future = future;
+            this.deadline = deadline;
+        }
+
+    }
+
+}
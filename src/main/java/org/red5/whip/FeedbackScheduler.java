@@ -0,0 +1,181 @@
+package org.red5.whip;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Node-wide scheduler for periodic per-session feedback, such as REMB. Tasks are kept on a timer wheel whose slots
+ * together span one feedback interval; a task stays in the slot it was added to, and each tick hands the slot at the
+ * cursor to a fixed pool of workers, so every task runs once per interval no matter how many sessions there are. New
+ * tasks are added behind the cursor, which spreads sessions across the slots by the time they started.
+ *
+ * @author Paul Gregoire
+ */
+public class FeedbackScheduler {
+
+    private static final Logger log = LoggerFactory.getLogger(FeedbackScheduler.class);
+
+    // finest tick of the wheel in milliseconds
+    private static final long MIN_TICK_MS = 10L;
+
+    private static final int MAX_SLOTS = 1024;
+
+    private static volatile FeedbackScheduler instance;
+
+    private final long intervalMs;
+
+    private final Slot[] slots;
+
+    private volatile int cursor;
+
+    private final AtomicInteger tasks = new AtomicInteger();
+
+    private final ScheduledExecutorService ticker;
+
+    private final ExecutorService workers;
+
+    private FeedbackScheduler(long intervalMs, int threads) {
+        this.intervalMs = intervalMs;
+        int count = (int) Math.max(1L, Math.min(MAX_SLOTS, intervalMs / MIN_TICK_MS));
+        slots = new Slot[count];
+        for (int i = 0; i < count; i++) {
+            slots[i] = new Slot();
+        }
+        long tickMs = Math.max(1L, intervalMs / count);
+        ticker = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "WhipFeedbackTicker");
+            thread.setDaemon(true);
+            return thread;
+        });
+        AtomicInteger counter = new AtomicInteger();
+        workers = Executors.newFixedThreadPool(threads, r -> {
+            Thread thread = new Thread(r, String.format("WhipFeedback-%d", counter.incrementAndGet()));
+            thread.setDaemon(true);
+            return thread;
+        });
+        ticker.scheduleAtFixedRate(this::tick, tickMs, tickMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Creates the node-wide scheduler; an interval of zero or less disables periodic feedback.
+     *
+     * @param intervalMs interval between runs of each task
+     * @param threads workers running the tasks
+     */
+    public static void start(long intervalMs, int threads) {
+        if (instance == null && intervalMs > 0L) {
+            log.info("Starting feedback scheduler interval: {} ms threads: {}", intervalMs, threads);
+            instance = new FeedbackScheduler(intervalMs, Math.max(1, threads));
+        }
+    }
+
+    public static void stop() {
+        if (instance != null) {
+            instance.ticker.shutdownNow();
+            instance.workers.shutdownNow();
+            instance = null;
+        }
+    }
+
+    /**
+     * Returns the scheduler or null if periodic feedback is disabled.
+     *
+     * @return scheduler
+     */
+    public static FeedbackScheduler getInstance() {
+        return instance;
+    }
+
+    /**
+     * Adds a task to be run once per interval, starting one interval from now, until it returns false.
+     *
+     * @param task
+     */
+    public void schedule(Task task) {
+        // the slot just passed by the cursor comes around again last
+        int index = (cursor + slots.length - 1) % slots.length;
+        slots[index].tasks.add(task);
+        tasks.incrementAndGet();
+    }
+
+    public long getInterval() {
+        return intervalMs;
+    }
+
+    /**
+     * Returns the number of scheduled tasks.
+     *
+     * @return tasks
+     */
+    public int getTaskCount() {
+        return tasks.get();
+    }
+
+    private void tick() {
+        int index = cursor;
+        cursor = (index + 1) % slots.length;
+        Slot slot = slots[index];
+        if (!slot.tasks.isEmpty() && slot.running.compareAndSet(false, true)) {
+            try {
+                workers.execute(() -> run(slot));
+            } catch (Exception e) {
+                slot.running.set(false);
+            }
+        } else if (slot.running.get()) {
+            log.debug("Feedback slot {} still running from the last interval", index);
+        }
+    }
+
+    private void run(Slot slot) {
+        try {
+            for (Iterator<Task> it = slot.tasks.iterator(); it.hasNext();) {
+                Task task = it.next();
+                boolean keep;
+                try {
+                    keep = task.run();
+                } catch (Throwable t) {
+                    log.warn("Exception in feedback task", t);
+                    keep = false;
+                }
+                if (!keep) {
+                    it.remove();
+                    tasks.decrementAndGet();
+                }
+            }
+        } finally {
+            slot.running.set(false);
+        }
+    }
+
+    /**
+     * Periodic feedback for a session.
+     */
+    public interface Task {
+
+        /**
+         * Runs the task.
+         *
+         * @return true to run again next interval and false to be removed
+         */
+        boolean run();
+
+    }
+
+    private static final class Slot {
+
+        final ConcurrentLinkedQueue<Task> tasks = new ConcurrentLinkedQueue<>();
+
+        final AtomicBoolean running = new AtomicBoolean();
+
+    }
+
+}
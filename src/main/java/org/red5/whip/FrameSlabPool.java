@@ -0,0 +1,181 @@
+package org.red5.whip;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Node-wide pool of direct buffer slabs which assembled video frames are written into. A slab is filled front to back
+ * by one writer, a frame at a time, and each frame handed on holds a reference to it; once the writer has moved on to
+ * another slab and every frame cut from it has been released, the slab goes back to the pool. The pool keeps up to a
+ * maximum number of free slabs and allocates beyond that; a slab whose frames are never released isn't recycled and is
+ * left for the collector, so a consumer that doesn't release costs an allocation rather than a leak.
+ *
+ * @author Paul Gregoire
+ */
+public class FrameSlabPool {
+
+    private static final Logger log = LoggerFactory.getLogger(FrameSlabPool.class);
+
+    public static final int DEFAULT_SLAB_SIZE = 1 << 20;
+
+    private static volatile FrameSlabPool instance;
+
+    private final int slabSize, maxPooled;
+
+    private final ConcurrentLinkedQueue<Slab> free = new ConcurrentLinkedQueue<>();
+
+    private final AtomicInteger pooled = new AtomicInteger();
+
+    private final LongAdder allocated = new LongAdder();
+
+    private FrameSlabPool(int slabSize, int maxPooled) {
+        this.slabSize = slabSize;
+        this.maxPooled = maxPooled;
+    }
+
+    /**
+     * Creates the node-wide pool.
+     *
+     * @param slabSize bytes in each slab, which is also the largest frame
+     * @param maxPooled most free slabs kept
+     */
+    public static void start(int slabSize, int maxPooled) {
+        if (instance == null) {
+            log.info("Starting frame slab pool slab size: {} max pooled: {}", slabSize, maxPooled);
+            instance = new FrameSlabPool(Math.max(64 * 1024, slabSize), Math.max(0, maxPooled));
+        }
+    }
+
+    public static void stop() {
+        if (instance != null) {
+            instance.free.clear();
+            instance = null;
+        }
+    }
+
+    public static FrameSlabPool getInstance() {
+        return instance;
+    }
+
+    /**
+     * Takes a slab to write into, holding the writer's reference.
+     *
+     * @return slab
+     */
+    public Slab acquire() {
+        Slab slab = free.poll();
+        if (slab != null) {
+            pooled.decrementAndGet();
+        } else {
+            slab = new Slab(ByteBuffer.allocateDirect(slabSize));
+            allocated.increment();
+        }
+        slab.refs.set(1);
+        slab.position = 0;
+        return slab;
+    }
+
+    private void recycle(Slab slab) {
+        if (instance != this) {
+            // the pool has stopped, the slab is left for the collector
+            return;
+        }
+        if (pooled.incrementAndGet() <= maxPooled) {
+            free.add(slab);
+        } else {
+            pooled.decrementAndGet();
+        }
+    }
+
+    public int getSlabSize() {
+        return slabSize;
+    }
+
+    /**
+     * Returns the number of free slabs in the pool.
+     *
+     * @return pooled
+     */
+    public int getPooled() {
+        return pooled.get();
+    }
+
+    /**
+     * Returns the number of slabs allocated since the pool started.
+     *
+     * @return allocated
+     */
+    public long getAllocated() {
+        return allocated.sum();
+    }
+
+    /**
+     * Reference counted direct buffer filled by a single writer.
+     */
+    public final class Slab {
+
+        private final ByteBuffer buffer;
+
+        // relative writes without allocating, owned by the writer
+        private final ByteBuffer writer;
+
+        private final AtomicInteger refs = new AtomicInteger();
+
+        private int position;
+
+        Slab(ByteBuffer buffer) {
+            this.buffer = buffer;
+            writer = buffer.duplicate();
+        }
+
+        /**
+         * Returns the writer's view, positioned at the end of what's been written.
+         *
+         * @return writer
+         */
+        public ByteBuffer writer() {
+            writer.limit(writer.capacity()).position(position);
+            return writer;
+        }
+
+        /**
+         * Returns the bytes written since the position as a frame holding a reference to the slab, and moves the
+         * position past them.
+         *
+         * @param start where the frame starts
+         * @return frame, positioned at zero
+         */
+        public ByteBuffer commit(int start) {
+            int end = writer.position();
+            ByteBuffer frame = buffer.duplicate();
+            frame.limit(end).position(start);
+            position = end;
+            refs.incrementAndGet();
+            return frame.slice();
+        }
+
+        public int position() {
+            return position;
+        }
+
+        public int remaining() {
+            return buffer.capacity() - position;
+        }
+
+        /**
+         * Releases a reference, returning the slab to the pool with the last.
+         */
+        public void release() {
+            if (refs.decrementAndGet() == 0) {
+                recycle(this);
+            }
+        }
+
+    }
+
+}
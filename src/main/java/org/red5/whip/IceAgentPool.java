@@ -0,0 +1,286 @@
+package org.red5.whip;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.ice4j.Transport;
+import org.ice4j.ice.Agent;
+import org.ice4j.ice.Component;
+import org.ice4j.ice.IceMediaStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.red5pro.media.rtp.RTPCodec;
+import com.red5pro.server.util.PortManager;
+import com.red5pro.webrtc.plugin.WebRTCPlugin;
+
+/**
+ * Pool of ICE agents which have their media stream and component created ahead of time, meaning the port is bound and
+ * the local candidates are harvested before a publish asks for them. The pool is refilled in the background and agents
+ * idle longer than the max idle time are freed, so their reflexive mappings don't go stale.
+ *
+ * @author Paul Gregoire
+ */
+public class IceAgentPool {
+
+    private static final Logger log = LoggerFactory.getLogger(IceAgentPool.class);
+
+    private static volatile IceAgentPool instance;
+
+    private final int size;
+
+    private final long maxIdleMs;
+
+    private final Map<Transport, Pool> pools = new ConcurrentHashMap<>();
+
+    private final ScheduledExecutorService refiller;
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    private final AtomicLong refills = new AtomicLong();
+
+    private final AtomicLong expired = new AtomicLong();
+
+    private IceAgentPool(int size, long maxIdleMs, long refillIntervalMs) {
+        this.size = size;
+        this.maxIdleMs = maxIdleMs;
+        refiller = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "WhipAgentPool");
+            thread.setDaemon(true);
+            return thread;
+        });
+        refiller.scheduleWithFixedDelay(this::maintain, 0L, refillIntervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Creates the node-wide pool; a size of zero or less disables pooling.
+     *
+     * @param size agents to keep ready per transport
+     * @param maxIdleMs max time an agent may wait in the pool
+     * @param refillIntervalMs interval between maintenance passes
+     */
+    public static void start(int size, long maxIdleMs, long refillIntervalMs) {
+        if (instance == null && size > 0) {
+            log.info("Starting ICE agent pool size: {} max idle: {} ms", size, maxIdleMs);
+            instance = new IceAgentPool(size, maxIdleMs, refillIntervalMs);
+        }
+    }
+
+    public static void stop() {
+        if (instance != null) {
+            instance.refiller.shutdownNow();
+            instance.pools.values().forEach(pool -> {
+                PooledAgent pooled;
+                while ((pooled = pool.agents.poll()) != null) {
+                    pooled.free();
+                }
+            });
+            instance = null;
+        }
+    }
+
+    /**
+     * Returns the pool or null if pooling is disabled.
+     *
+     * @return pool
+     */
+    public static IceAgentPool getInstance() {
+        return instance;
+    }
+
+    /**
+     * Takes a ready agent for the given transport from the pool.
+     *
+     * @param transport
+     * @return pooled agent or null if none are ready
+     */
+    public PooledAgent take(Transport transport) {
+        Pool pool = pools.computeIfAbsent(transport, Pool::new);
+        PooledAgent pooled;
+        while ((pooled = pool.agents.poll()) != null) {
+            pool.count.decrementAndGet();
+            if (pooled.isExpired(maxIdleMs)) {
+                expired.incrementAndGet();
+                pooled.free();
+            } else {
+                hits.incrementAndGet();
+                // top it back up off the request thread
+                scheduleRefill(pool);
+                return pooled;
+            }
+        }
+        misses.incrementAndGet();
+        scheduleRefill(pool);
+        return null;
+    }
+
+    private void scheduleRefill(Pool pool) {
+        if (pool.refilling.compareAndSet(false, true)) {
+            try {
+                refiller.execute(() -> refill(pool));
+            } catch (Exception e) {
+                pool.refilling.set(false);
+            }
+        }
+    }
+
+    /**
+     * Expires old agents and refills all of the pools.
+     */
+    private void maintain() {
+        // the default transport is always kept ready
+        pools.computeIfAbsent(WebRTCPlugin.getDefaultTransport(), Pool::new);
+        pools.values().forEach(pool -> {
+            int count = pool.agents.size();
+            for (int i = 0; i < count; i++) {
+                PooledAgent pooled = pool.agents.poll();
+                if (pooled == null) {
+                    break;
+                }
+                if (pooled.isExpired(maxIdleMs)) {
+                    pool.count.decrementAndGet();
+                    expired.incrementAndGet();
+                    pooled.free();
+                } else {
+                    pool.agents.offer(pooled);
+                }
+            }
+            if (pool.refilling.compareAndSet(false, true)) {
+                refill(pool);
+            }
+        });
+    }
+
+    private void refill(Pool pool) {
+        try {
+            while (pool.count.get() < size) {
+                PooledAgent pooled = create(pool.transport);
+                if (pooled == null) {
+                    break;
+                }
+                pool.agents.offer(pooled);
+                pool.count.incrementAndGet();
+                refills.incrementAndGet();
+            }
+        } finally {
+            pool.refilling.set(false);
+        }
+    }
+
+    /**
+     * Creates an agent with its media stream and component, binding the port and harvesting candidates.
+     *
+     * @param transport
+     * @return pooled agent or null if the port could not be bound
+     */
+    private PooledAgent create(Transport transport) {
+        Agent agent = new Agent();
+        int port = PortManager.getRTPServerPort();
+        try {
+            IceMediaStream stream = agent.createMediaStream(RTPCodec.MEDIA_0);
+            Component component = agent.createComponent(stream, transport, port, port, port);
+            int allocatedPort = component.getSocket().getLocalPort();
+            // if the requested port doesnt match the bound port (allocatedPort), clear the original reservation
+            if (port != allocatedPort) {
+                PortManager.clearRTPServerPort(port);
+            }
+            log.debug("Pooled agent port: {} candidates: {}", allocatedPort, component.getLocalCandidateCount());
+            return new PooledAgent(agent, allocatedPort);
+        } catch (Throwable t) {
+            log.warn("Port: {} allocation failed for pooled agent", port, t);
+            PortManager.clearRTPServerPort(port);
+            agent.free();
+        }
+        return null;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getRefills() {
+        return refills.get();
+    }
+
+    public long getExpired() {
+        return expired.get();
+    }
+
+    /**
+     * Returns the number of agents ready across all transports.
+     *
+     * @return ready agents
+     */
+    public int getAvailable() {
+        return pools.values().stream().mapToInt(pool -> pool.count.get()).sum();
+    }
+
+    /**
+     * Agents for a single transport.
+     */
+    private static final class Pool {
+
+        final Transport transport;
+
+        final ConcurrentLinkedQueue<PooledAgent> agents = new ConcurrentLinkedQueue<>();
+
+        // size of the queue without walking it
+        final AtomicInteger count = new AtomicInteger();
+
+        final AtomicBoolean refilling = new AtomicBoolean();
+
+        Pool(Transport transport) {
+            this.transport = transport;
+        }
+
+    }
+
+    /**
+     * An agent with its media stream and component ready.
+     */
+    public static final class PooledAgent {
+
+        private final Agent agent;
+
+        private final int port;
+
+        private final long created = System.currentTimeMillis();
+
+        PooledAgent(Agent agent, int port) {
+            this.agent = agent;
+            this.port = port;
+        }
+
+        public Agent getAgent() {
+            return agent;
+        }
+
+        public int getPort() {
+            return port;
+        }
+
+        boolean isExpired(long maxIdleMs) {
+            return System.currentTimeMillis() - created > maxIdleMs;
+        }
+
+        void free() {
+            agent.free();
+            PortManager.clearRTPServerPort(port);
+        }
+
+    }
+
+}
@@ -0,0 +1,245 @@
+package org.red5.whip;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.mina.core.buffer.IoBuffer;
+import org.jitsi.impl.neomedia.VideoMediaStreamImpl;
+import org.jitsi.service.neomedia.RawPacket;
+import org.red5.server.api.stream.IBroadcastStream;
+import org.red5.server.api.stream.IStreamListener;
+import org.red5.server.api.stream.IStreamPacket;
+import org.red5.server.net.rtmp.message.Constants;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Node-wide keyframe request policy. Each publisher's video gets a session which takes requests for a keyframe, from a
+ * subscriber joining, from loss that retransmission couldn't repair, or from the optional max GOP timer, and turns them
+ * into PLI or FIR sent to the publisher. Requests are coalesced per session: while one is pending further requests are
+ * folded into it, a pending request is dropped if a keyframe arrives before it's sent, and no more than one is sent per
+ * min interval, so a burst of joins costs the encoder a single keyframe. FIR is sent for joins and the GOP timer when
+ * it was negotiated, being the request meant for a new decoder, and PLI otherwise.
+ *
+ * @author Paul Gregoire
+ */
+public class KeyframePolicy {
+
+    private static final Logger log = LoggerFactory.getLogger(KeyframePolicy.class);
+
+    // how often sessions are checked against the max GOP
+    private static final long GOP_CHECK_INTERVAL = 250L;
+
+    private static volatile KeyframePolicy instance;
+
+    private final long minIntervalMs, maxGopMs;
+
+    private final ConcurrentLinkedQueue<Session> sessions = new ConcurrentLinkedQueue<>();
+
+    private final ScheduledExecutorService scheduler;
+
+    /**
+     * Why a keyframe is requested.
+     */
+    public enum Reason {
+        JOIN, LOSS, MAX_GOP;
+    }
+
+    private KeyframePolicy(long minIntervalMs, long maxGopMs) {
+        this.minIntervalMs = minIntervalMs;
+        this.maxGopMs = maxGopMs;
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "WhipKeyframePolicy");
+            thread.setDaemon(true);
+            return thread;
+        });
+        if (maxGopMs > 0L) {
+            scheduler.scheduleWithFixedDelay(this::checkGop, GOP_CHECK_INTERVAL, GOP_CHECK_INTERVAL, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Creates the node-wide policy.
+     *
+     * @param minIntervalMs least time between requests sent to a publisher
+     * @param maxGopMs time without a keyframe before one is requested, zero or less for no limit
+     */
+    public static void start(long minIntervalMs, long maxGopMs) {
+        if (instance == null) {
+            log.info("Starting keyframe policy min interval: {} ms max gop: {} ms", minIntervalMs, maxGopMs);
+            instance = new KeyframePolicy(Math.max(0L, minIntervalMs), maxGopMs);
+        }
+    }
+
+    public static void stop() {
+        if (instance != null) {
+            instance.scheduler.shutdownNow();
+            instance.sessions.clear();
+            instance = null;
+        }
+    }
+
+    public static KeyframePolicy getInstance() {
+        return instance;
+    }
+
+    /**
+     * Creates a session for a publisher's video. The session is also a stream listener, which is to be added to the
+     * publisher's stream so it sees the keyframes.
+     *
+     * @param name stream name
+     * @param videoMediaStream stream the requests are sent on
+     * @param remoteSsrc publisher's video ssrc
+     * @param fir whether FIR was negotiated
+     * @return session
+     */
+    public Session open(String name, VideoMediaStreamImpl videoMediaStream, int remoteSsrc, boolean fir) {
+        Session session = new Session(name, videoMediaStream, remoteSsrc, fir);
+        sessions.add(session);
+        return session;
+    }
+
+    private void checkGop() {
+        long now = System.currentTimeMillis();
+        for (Iterator<Session> it = sessions.iterator(); it.hasNext();) {
+            Session session = it.next();
+            if (session.closed) {
+                it.remove();
+            } else if (now - session.lastKeyframe >= maxGopMs && now - session.lastSent >= maxGopMs) {
+                session.request(Reason.MAX_GOP);
+            }
+        }
+    }
+
+    /**
+     * Keyframe requests for one publisher.
+     */
+    public final class Session implements IStreamListener {
+
+        private final String name;
+
+        private final VideoMediaStreamImpl videoMediaStream;
+
+        private final int remoteSsrc;
+
+        private final boolean fir;
+
+        private final AtomicBoolean pending = new AtomicBoolean();
+
+        // whether the pending request should go out as FIR
+        private final AtomicBoolean pendingFir = new AtomicBoolean();
+
+        // when the pending request was made, it's dropped if a keyframe arrives after
+        private volatile long pendingSince;
+
+        // seeded with the open, so a publisher that never sends a keyframe is still held to the max GOP
+        private volatile long lastSent, lastKeyframe = System.currentTimeMillis();
+
+        private int firSequence;
+
+        private volatile boolean closed;
+
+        Session(String name, VideoMediaStreamImpl videoMediaStream, int remoteSsrc, boolean fir) {
+            this.name = name;
+            this.videoMediaStream = videoMediaStream;
+            this.remoteSsrc = remoteSsrc;
+            this.fir = fir;
+        }
+
+        /**
+         * Requests a keyframe, coalesced with any request already pending.
+         *
+         * @param reason
+         */
+        public void request(Reason reason) {
+            if (closed) {
+                return;
+            }
+            if (fir && reason != Reason.LOSS) {
+                pendingFir.set(true);
+            }
+            if (pending.compareAndSet(false, true)) {
+                long now = System.currentTimeMillis();
+                pendingSince = now;
+                long delay = Math.max(0L, lastSent + minIntervalMs - now);
+                log.debug("Keyframe requested for {} by {}, sending in {} ms", name, reason, delay);
+                try {
+                    scheduler.schedule(this::send, delay, TimeUnit.MILLISECONDS);
+                } catch (RejectedExecutionException e) {
+                    pending.set(false);
+                }
+            } else {
+                WhipMetrics.keyframeRequestCoalesced();
+            }
+        }
+
+        /**
+         * Records a request sent outside the policy, such as the first PLI, so it counts toward the min interval.
+         */
+        public void sent() {
+            lastSent = System.currentTimeMillis();
+        }
+
+        private void send() {
+            // cleared before the FIR flag is taken, so a request made in between is either folded into this one or
+            // schedules its own send, rather than being left pending without one
+            pending.set(false);
+            boolean asFir = pendingFir.getAndSet(false);
+            if (closed) {
+                return;
+            }
+            if (lastKeyframe > pendingSince) {
+                // already answered by a keyframe the publisher sent on its own
+                WhipMetrics.keyframeRequestCoalesced();
+                return;
+            }
+            lastSent = System.currentTimeMillis();
+            try {
+                if (asFir) {
+                    sendFir();
+                } else {
+                    videoMediaStream.sendPli(remoteSsrc);
+                }
+                WhipMetrics.keyframeRequestSent(asFir);
+            } catch (Exception e) {
+                log.debug("Keyframe request failed for {}", name, e);
+            }
+        }
+
+        // full intra request, RFC 5104 section 4.3.1
+        private void sendFir() throws Exception {
+            byte[] buf = new byte[20];
+            buf[0] = (byte) 0x84;
+            buf[1] = (byte) 206;
+            RtpPackets.writeUint16(buf, 2, buf.length / 4 - 1);
+            RtpPackets.writeUint32(buf, 4, videoMediaStream.getLocalSourceID() & 0xffffffffL);
+            // media source is unused, the target is in the fci
+            RtpPackets.writeUint32(buf, 12, remoteSsrc & 0xffffffffL);
+            buf[16] = (byte) firSequence++;
+            videoMediaStream.injectPacket(new RawPacket(buf, 0, buf.length), false, null);
+        }
+
+        @Override
+        public void packetReceived(IBroadcastStream stream, IStreamPacket packet) {
+            if (packet.getDataType() == Constants.TYPE_VIDEO_DATA) {
+                IoBuffer data = packet.getData();
+                // frame type in the upper nibble, under the enhanced rtmp flag when it's set
+                if (data != null && data.limit() > 0 && ((data.get(0) >> 4) & 0x07) == 1) {
+                    lastKeyframe = System.currentTimeMillis();
+                }
+            }
+        }
+
+        public void close() {
+            closed = true;
+            sessions.remove(this);
+        }
+
+    }
+
+}
@@ -0,0 +1,175 @@
+package org.red5.whip;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free latency histogram with log-linear buckets, in the style of HdrHistogram. Values are recorded in
+ * microseconds; each power of two range is split into 32 linear sub-buckets, so a recorded value is off by at most
+ * about 3% when read back. Values above roughly nine and a half hours are counted in the top bucket. Recording is a
+ * couple of atomic increments, so histograms may be recorded into and read from any thread at any time.
+ *
+ * @author Paul Gregoire
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 5;
+
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    // highest power of two tracked, 2^35 us
+    private static final int MAX_EXPONENT = 35;
+
+    private static final int BUCKETS = SUB_BUCKETS + (MAX_EXPONENT - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+    private final LongAdder total = new LongAdder();
+
+    private final LongAdder sum = new LongAdder();
+
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Records a duration.
+     *
+     * @param nanos
+     */
+    public void recordNanos(long nanos) {
+        record(nanos / 1000L);
+    }
+
+    /**
+     * Records a value in microseconds.
+     *
+     * @param micros
+     */
+    public void record(long micros) {
+        if (micros < 0L) {
+            micros = 0L;
+        }
+        counts.incrementAndGet(indexOf(micros));
+        total.increment();
+        sum.add(micros);
+        max.accumulateAndGet(micros, Math::max);
+    }
+
+    static int indexOf(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        if (exponent >= MAX_EXPONENT) {
+            return BUCKETS - 1;
+        }
+        int shift = exponent - SUB_BUCKET_BITS;
+        // the top bit is implied by the exponent, the next five select the sub-bucket
+        int subBucket = (int) (value >>> shift) - SUB_BUCKETS;
+        return SUB_BUCKETS + shift * SUB_BUCKETS + subBucket;
+    }
+
+    /**
+     * Returns the highest value which is counted in the bucket at the index.
+     */
+    static long highestValueAt(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int shift = (index - SUB_BUCKETS) / SUB_BUCKETS;
+        int subBucket = (index - SUB_BUCKETS) % SUB_BUCKETS;
+        return ((long) (SUB_BUCKETS + subBucket + 1) << shift) - 1L;
+    }
+
+    /**
+     * Returns the value at the given percentile in microseconds; the highest value equivalent to the recorded values
+     * in its bucket.
+     *
+     * @param percentile 0 to 100
+     * @return microseconds or zero if nothing has been recorded
+     */
+    public long getValueAtPercentile(double percentile) {
+        return getValuesAtPercentiles(percentile)[0];
+    }
+
+    /**
+     * Returns the values at each of the given percentiles in microseconds, reading the buckets once for all of them.
+     *
+     * @param percentiles ascending, 0 to 100
+     * @return microseconds for each percentile, zeros if nothing has been recorded
+     */
+    public long[] getValuesAtPercentiles(double... percentiles) {
+        long[] values = new long[percentiles.length];
+        // counts are read once so concurrent recording can't push the rank past the end
+        long[] snapshot = new long[BUCKETS];
+        long count = 0L;
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = counts.get(i);
+            count += snapshot[i];
+        }
+        if (count == 0L) {
+            return values;
+        }
+        long highest = max.get();
+        long seen = 0L;
+        int i = 0;
+        for (int p = 0; p < percentiles.length; p++) {
+            long rank = Math.max(1L, (long) Math.ceil(Math.min(percentiles[p], 100d) / 100d * count));
+            while (i < BUCKETS - 1 && seen + snapshot[i] < rank) {
+                seen += snapshot[i++];
+            }
+            values[p] = Math.min(highestValueAt(i), highest);
+        }
+        return values;
+    }
+
+    public long getCount() {
+        return total.sum();
+    }
+
+    /**
+     * Returns the sum of the recorded values in microseconds.
+     *
+     * @return sum
+     */
+    public long getSum() {
+        return sum.sum();
+    }
+
+    /**
+     * Returns the largest value recorded in microseconds.
+     *
+     * @return max
+     */
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * Returns the mean in microseconds.
+     *
+     * @return mean or zero if nothing has been recorded
+     */
+    public double getMean() {
+        long count = total.sum();
+        return count > 0L ? (double) sum.sum() / count : 0d;
+    }
+
+    /**
+     * Clears the histogram; values recorded while clearing may be partially kept.
+     */
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts.set(i, 0L);
+        }
+        total.reset();
+        sum.reset();
+        max.set(0L);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("count=%d mean=%.0fus p50=%dus p90=%dus p99=%dus max=%dus", getCount(), getMean(), getValueAtPercentile(50d), getValueAtPercentile(90d), getValueAtPercentile(99d), getMax());
+    }
+
+}
@@ -0,0 +1,180 @@
+package org.red5.whip;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Receive counters for one media type of a connection. Packets are counted by the media layer through the connection's
+ * receive counter callbacks; bytes, bitrate and the loss and late estimates come from the RTP headers seen by
+ * {@link WhipReceiveTransformer}. Everything is updated with adders or compare-and-set, so the counters can be read
+ * from any thread without locking the receive path.
+ * <br>
+ * Loss is estimated from gaps in the extended sequence number, in the manner of RFC 3550 appendix A.1; a packet which
+ * arrives behind the highest sequence number is counted as late and taken back out of the loss. Duplicates aren't told
+ * apart from late packets, so duplication shows up as late packets and a lower loss estimate.
+ *
+ * @author Paul Gregoire
+ */
+public class MediaCounters {
+
+    // forward jump treated as a sender restart rather than loss
+    private static final int MAX_DROPOUT = 3000;
+
+    // backward distance treated as late rather than a duplicate or restart
+    private static final int MAX_MISORDER = 100;
+
+    private final LongAdder packets = new LongAdder();
+
+    private final LongAdder bytes = new LongAdder();
+
+    private final LongAdder lost = new LongAdder();
+
+    private final LongAdder late = new LongAdder();
+
+    // packets recovered by retransmission and by fec, and the sum of their delays since they were found missing
+    private final LongAdder retransmitted = new LongAdder(), retransmitDelay = new LongAdder();
+
+    private final LongAdder fecRecovered = new LongAdder(), fecRecoveryDelay = new LongAdder();
+
+    private final BitrateEstimator bitrate = new BitrateEstimator();
+
+    // highest extended sequence number seen, -1 until the first packet
+    private final AtomicLong highestSeq = new AtomicLong(-1L);
+
+    /**
+     * Counts a packet.
+     */
+    public void increment() {
+        packets.increment();
+    }
+
+    /**
+     * Records an RTP packet.
+     *
+     * @param seq sequence number
+     * @param length packet length in bytes
+     * @param now milliseconds
+     */
+    public void received(int seq, int length, long now) {
+        bytes.add(length);
+        bitrate.add(now, length);
+        seq &= 0xffff;
+        for (;;) {
+            long highest = highestSeq.get();
+            if (highest < 0L) {
+                if (highestSeq.compareAndSet(highest, seq)) {
+                    return;
+                }
+                continue;
+            }
+            // signed distance from the highest sequence number, across the wrap
+            int delta = (short) (seq - (int) (highest & 0xffffL));
+            if (delta > 0) {
+                if (highestSeq.compareAndSet(highest, highest + delta)) {
+                    if (delta > 1 && delta < MAX_DROPOUT) {
+                        lost.add(delta - 1);
+                    }
+                    return;
+                }
+            } else {
+                if (delta < 0 && delta > -MAX_MISORDER) {
+                    late.increment();
+                    lost.decrement();
+                }
+                return;
+            }
+        }
+    }
+
+    /**
+     * Records a missing packet which came back by retransmission or was recovered from fec.
+     *
+     * @param fec true if recovered from fec
+     * @param delay milliseconds since the packet was found missing, or -1 if that isn't known
+     */
+    public void recovered(boolean fec, long delay) {
+        if (fec) {
+            fecRecovered.increment();
+            if (delay > 0L) {
+                fecRecoveryDelay.add(delay);
+            }
+        } else {
+            retransmitted.increment();
+            if (delay > 0L) {
+                retransmitDelay.add(delay);
+            }
+        }
+    }
+
+    public long getPackets() {
+        return packets.sum();
+    }
+
+    public long getBytes() {
+        return bytes.sum();
+    }
+
+    /**
+     * Returns the estimated number of packets lost.
+     *
+     * @return lost
+     */
+    public long getLost() {
+        // late packets which were never counted as lost can take the sum below zero
+        return Math.max(0L, lost.sum());
+    }
+
+    public long getLate() {
+        return late.sum();
+    }
+
+    public long getRetransmitted() {
+        return retransmitted.sum();
+    }
+
+    /**
+     * Returns the sum of the delays between packets being found missing and their retransmissions arriving.
+     *
+     * @return milliseconds
+     */
+    public long getRetransmitDelay() {
+        return retransmitDelay.sum();
+    }
+
+    public long getFecRecovered() {
+        return fecRecovered.sum();
+    }
+
+    /**
+     * Returns the sum of the delays between packets being found missing and their recovery from fec.
+     *
+     * @return milliseconds
+     */
+    public long getFecRecoveryDelay() {
+        return fecRecoveryDelay.sum();
+    }
+
+    /**
+     * Returns the receive bitrate over the last second.
+     *
+     * @return bits per second
+     */
+    public long getBitrate() {
+        return bitrate.getBitrate(System.currentTimeMillis());
+    }
+
+    /**
+     * Returns the highest extended sequence number received.
+     *
+     * @return sequence number or -1 if nothing has been received
+     */
+    public long getHighestSequence() {
+        return highestSeq.get();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("packets=%d bytes=%d lost=%d late=%d retransmitted=%d fec=%d bitrate=%d", getPackets(), getBytes(), getLost(), getLate(), getRetransmitted(), getFecRecovered(), getBitrate());
+    }
+
+}
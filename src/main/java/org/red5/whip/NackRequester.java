@@ -0,0 +1,259 @@
+package org.red5.whip;
+
+import java.util.Arrays;
+
+import org.jitsi.impl.neomedia.MediaStreamImpl;
+import org.jitsi.service.neomedia.RawPacket;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Generic NACK (RTCP transport layer feedback 205, format 1) scheduling for a publisher's video. Gaps in the sequence
+ * numbers are tracked in a fixed ring; a missing packet is only requested once the stream has moved a reorder window
+ * past it, so packets which are merely out of order aren't asked for, and it's asked for again each retry interval up
+ * to a retry limit. Gaps wider than the ring are given up on rather than flooding the sender with requests, and a jump
+ * back beyond the ring restarts the tracking from the new sequence number. Packets still missing a retry interval after
+ * the last request, and gaps given up on, are reported to the loss listener as unrecoverable. Like the transport-cc
+ * feedback, this runs on the receive path and is confined to that thread.
+ *
+ * @see <a href="https://datatracker.ietf.org/doc/html/rfc4585#section-6.2.1">RFC 4585 Generic NACK</a>
+ * @author Paul Gregoire
+ */
+public class NackRequester {
+
+    private static final Logger log = LoggerFactory.getLogger(NackRequester.class);
+
+    private static final int SIZE = 1 << 9, MASK = SIZE - 1;
+
+    // packets newer than a gap before it's requested
+    public static final int DEFAULT_REORDER_WINDOW = 3;
+
+    public static final long DEFAULT_RETRY_INTERVAL = 100L;
+
+    private static final int MAX_RETRIES = 3;
+
+    // how often the ring is scanned for requests that are due
+    private static final long SCAN_INTERVAL = 10L;
+
+    private final MediaStreamImpl mediaStream;
+
+    private final long senderSsrc, mediaSsrc;
+
+    private final int reorderWindow;
+
+    private final long retryInterval;
+
+    // told of loss that retransmission didn't repair
+    private final Runnable lossListener;
+
+    // missing sequence number held in each slot, -1 if the slot is free
+    private final int[] missing = new int[SIZE];
+
+    private final long[] nextRequest = new long[SIZE];
+
+    private final byte[] retries = new byte[SIZE];
+
+    // when each gap was found, for the recovery delay
+    private final long[] missingSince = new long[SIZE];
+
+    // scratch for building requests
+    private final int[] due = new int[SIZE];
+
+    private int missingCount;
+
+    // highest sequence number, -1 until the first packet
+    private int highestSeq = -1;
+
+    private long lastScan;
+
+    private long requested;
+
+    /**
+     * @param mediaStream stream the requests are sent on
+     * @param senderSsrc local ssrc
+     * @param mediaSsrc remote media ssrc
+     * @param reorderWindow packets newer than a gap before it's requested
+     * @param retryInterval time between requests for the same packet, in milliseconds
+     * @param lossListener told of unrecoverable loss, may be null
+     */
+    public NackRequester(MediaStreamImpl mediaStream, long senderSsrc, long mediaSsrc, int reorderWindow, long retryInterval, Runnable lossListener) {
+        this.mediaStream = mediaStream;
+        this.senderSsrc = senderSsrc;
+        this.mediaSsrc = mediaSsrc;
+        this.reorderWindow = Math.max(0, Math.min(reorderWindow, SIZE / 2));
+        this.retryInterval = retryInterval;
+        this.lossListener = lossListener;
+        Arrays.fill(missing, -1);
+    }
+
+    /**
+     * Records a received packet, original, retransmitted or recovered, and sends requests that are due.
+     *
+     * @param seq sequence number in the primary stream
+     * @param now time in milliseconds
+     * @return milliseconds since the packet was found missing, or -1 if it wasn't missing
+     */
+    public long received(int seq, long now) {
+        long delay = record(seq & 0xffff, now);
+        if (missingCount > 0 && now - lastScan >= SCAN_INTERVAL) {
+            lastScan = now;
+            byte[] nack = build(now);
+            if (nack != null) {
+                send(nack);
+            }
+        }
+        return delay;
+    }
+
+    long record(int seq, long now) {
+        if (highestSeq == -1) {
+            highestSeq = seq;
+            return -1L;
+        }
+        int diff = (short) (seq - highestSeq);
+        if (diff > 0) {
+            if (diff > SIZE) {
+                // too much is gone to recover by retransmission
+                clear();
+                lost();
+            } else {
+                for (int i = 1; i < diff; i++) {
+                    int lost = (highestSeq + i) & 0xffff;
+                    int slot = lost & MASK;
+                    if (missing[slot] == -1) {
+                        missingCount++;
+                    }
+                    missing[slot] = lost;
+                    nextRequest[slot] = now;
+                    missingSince[slot] = now;
+                    retries[slot] = 0;
+                }
+                // the new packet's slot may still hold a gap a whole ring behind it
+                int slot = seq & MASK;
+                if (missing[slot] != -1) {
+                    missing[slot] = -1;
+                    missingCount--;
+                }
+            }
+            highestSeq = seq;
+        } else if (diff <= -SIZE) {
+            // a jump back beyond the ring, or forward by half the sequence space or more, such as an encoder restart;
+            // the gaps can't be told from the new packets, so they're given up on and tracking restarts from here
+            if (missingCount > 0) {
+                clear();
+                lost();
+            }
+            highestSeq = seq;
+        } else if (diff < 0) {
+            int slot = seq & MASK;
+            if (missing[slot] == seq) {
+                missing[slot] = -1;
+                missingCount--;
+                return now - missingSince[slot];
+            }
+        }
+        return -1L;
+    }
+
+    /**
+     * Builds a request for the missing packets that are past the reorder window and due for a first request or retry.
+     *
+     * @param now time in milliseconds
+     * @return packet or null if nothing is due
+     */
+    byte[] build(long now) {
+        int count = 0;
+        boolean unrecoverable = false;
+        // oldest first, so the pid and bitmask pairs are in order
+        for (int i = SIZE - 1; i >= reorderWindow; i--) {
+            int seq = (highestSeq - i) & 0xffff;
+            int slot = seq & MASK;
+            if (missing[slot] != seq || now < nextRequest[slot]) {
+                continue;
+            }
+            if (retries[slot] >= MAX_RETRIES) {
+                // the last request went unanswered
+                missing[slot] = -1;
+                missingCount--;
+                unrecoverable = true;
+                continue;
+            }
+            due[count++] = seq;
+            retries[slot]++;
+            nextRequest[slot] = now + retryInterval;
+        }
+        if (unrecoverable) {
+            lost();
+        }
+        if (count == 0) {
+            return null;
+        }
+        // count the pid and bitmask pairs first, each covers a packet and the 16 after it
+        int pairs = 0;
+        for (int i = 0, pid = -1; i < count; i++) {
+            if (pid == -1 || ((due[i] - pid) & 0xffff) > 16) {
+                pid = due[i];
+                pairs++;
+            }
+        }
+        byte[] buf = new byte[12 + pairs * 4];
+        buf[0] = (byte) 0x81;
+        buf[1] = (byte) 205;
+        RtpPackets.writeUint16(buf, 2, buf.length / 4 - 1);
+        RtpPackets.writeUint32(buf, 4, senderSsrc);
+        RtpPackets.writeUint32(buf, 8, mediaSsrc);
+        int pos = 8;
+        for (int i = 0, pid = -1, blp = 0; i < count; i++) {
+            int distance = pid == -1 ? Integer.MAX_VALUE : (due[i] - pid) & 0xffff;
+            if (distance > 16) {
+                pos += 4;
+                pid = due[i];
+                blp = 0;
+                RtpPackets.writeUint16(buf, pos, pid);
+            } else {
+                blp |= 1 << (distance - 1);
+            }
+            RtpPackets.writeUint16(buf, pos + 2, blp);
+        }
+        requested += count;
+        return buf;
+    }
+
+    private void lost() {
+        if (lossListener != null) {
+            lossListener.run();
+        }
+    }
+
+    private void clear() {
+        Arrays.fill(missing, -1);
+        missingCount = 0;
+    }
+
+    private void send(byte[] nack) {
+        try {
+            mediaStream.injectPacket(new RawPacket(nack, 0, nack.length), false, null);
+        } catch (Exception e) {
+            log.debug("NACK send failed", e);
+        }
+    }
+
+    /**
+     * Returns the number of packets requested, counting retries.
+     *
+     * @return requested
+     */
+    public long getRequested() {
+        return requested;
+    }
+
+    /**
+     * Returns the number of packets currently missing.
+     *
+     * @return missing
+     */
+    public int getMissing() {
+        return missingCount;
+    }
+
+}
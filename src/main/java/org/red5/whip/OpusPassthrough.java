@@ -0,0 +1,97 @@
+package org.red5.whip;
+
+import java.nio.ByteOrder;
+
+import org.apache.mina.core.buffer.IoBuffer;
+import org.red5.server.net.rtmp.event.AudioData;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.red5pro.override.ProStream;
+
+/**
+ * Forwards a publisher's Opus into its stream without transcoding. Each RTP payload is one Opus packet, which is sent
+ * on as an enhanced RTMP audio tag: the ExHeader sound format with the coded frames packet type, the Opus fourcc and
+ * the packet. The first tag is the sequence start carrying an OpusHead, as in the Ogg mapping, for consumers which set
+ * up a decoder from it. Timestamps follow the RTP clock from the stream time of the first packet. Called on the receive
+ * thread only.
+ *
+ * @see <a href="https://veovera.org/docs/enhanced/enhanced-rtmp-v2">Enhanced RTMP</a>
+ * @author Paul Gregoire
+ */
+public class OpusPassthrough {
+
+    private static final Logger log = LoggerFactory.getLogger(OpusPassthrough.class);
+
+    // ExHeader sound format in the upper nibble, packet type in the lower
+    private static final int SEQUENCE_START = (9 << 4), CODED_FRAMES = (9 << 4) | 1;
+
+    private static final byte[] FOURCC = { 'O', 'p', 'u', 's' };
+
+    private static final int CLOCK_RATE = 48000;
+
+    private final ProStream stream;
+
+    private final int channels;
+
+    private long firstTimestamp = -1L, baseTime;
+
+    public OpusPassthrough(ProStream stream, int channels) {
+        this.stream = stream;
+        this.channels = channels;
+    }
+
+    /**
+     * Forwards the Opus packet in an RTP packet.
+     *
+     * @param buf
+     * @param offset packet offset
+     * @param length packet length
+     */
+    public void forward(byte[] buf, int offset, int length) {
+        int headerLength = RtpPackets.getHeaderLength(buf, offset, length);
+        if (headerLength == -1) {
+            return;
+        }
+        int payloadLength = length - headerLength - ((buf[offset] & 0x20) != 0 ? buf[offset + length - 1] & 0xff : 0);
+        if (payloadLength <= 0) {
+            return;
+        }
+        long rtpTimestamp = ((long) RtpPackets.readUint16(buf, offset + 4) << 16) | RtpPackets.readUint16(buf, offset + 6);
+        if (firstTimestamp < 0L) {
+            firstTimestamp = rtpTimestamp;
+            baseTime = Math.max(0L, System.currentTimeMillis() - stream.getCreationTime());
+            dispatch(sequenceStart(), (int) baseTime);
+            log.debug("Opus passthrough started for {} at {} ms", stream.getPublishedName(), baseTime);
+        }
+        // the timestamp difference is taken modulo 2^32, so it survives the rtp clock wrapping
+        long elapsed = (rtpTimestamp - firstTimestamp) & 0xffffffffL;
+        IoBuffer data = IoBuffer.allocate(1 + FOURCC.length + payloadLength);
+        data.put((byte) CODED_FRAMES).put(FOURCC).put(buf, offset + headerLength, payloadLength).flip();
+        dispatch(data, (int) (baseTime + elapsed * 1000L / CLOCK_RATE));
+    }
+
+    private IoBuffer sequenceStart() {
+        IoBuffer data = IoBuffer.allocate(1 + FOURCC.length + 19);
+        data.put((byte) SEQUENCE_START).put(FOURCC);
+        // OpusHead, RFC 7845 section 5.1; rtp carries no pre-skip, so none is given
+        data.put(new byte[] { 'O', 'p', 'u', 's', 'H', 'e', 'a', 'd' });
+        data.put((byte) 1).put((byte) channels);
+        data.order(ByteOrder.LITTLE_ENDIAN);
+        data.putShort((short) 0).putInt(CLOCK_RATE).putShort((short) 0);
+        data.put((byte) 0);
+        data.order(ByteOrder.BIG_ENDIAN);
+        return data.flip();
+    }
+
+    private void dispatch(IoBuffer data, int timestamp) {
+        AudioData audio = new AudioData(data);
+        audio.setTimestamp(timestamp);
+        try {
+            stream.dispatchEvent(audio);
+        } catch (Exception e) {
+            log.debug("Opus dispatch failed", e);
+        }
+    }
+
+}
@@ -0,0 +1,118 @@
+package org.red5.whip;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Bounded executors for the publish flow, keeping the servlet container threads free. The setup executor handles the
+ * offer to answer portion of a publish, the stage executor runs the independent setup stages in parallel and the start
+ * executor handles the publish start and, once ICE completes, the media start; no thread waits on ICE in between. The
+ * setup and start executors reject work once their queues are full, rather than growing.
+ *
+ * @author Paul Gregoire
+ */
+public class PublishPipeline {
+
+    private static final Logger log = LoggerFactory.getLogger(PublishPipeline.class);
+
+    private final ThreadPoolExecutor setupExecutor;
+
+    private final ThreadPoolExecutor stageExecutor;
+
+    private final ThreadPoolExecutor startExecutor;
+
+    public PublishPipeline(int setupThreads, int setupQueueSize, int startThreads, int startQueueSize) {
+        setupExecutor = new ThreadPoolExecutor(setupThreads, setupThreads, 60L, TimeUnit.SECONDS, new ArrayBlockingQueue<>(setupQueueSize), new NamedThreadFactory("WhipSetup"));
+        setupExecutor.allowCoreThreadTimeOut(true);
+        // forked stages never queue deeply, the forking thread runs the stage itself instead
+        stageExecutor = new ThreadPoolExecutor(setupThreads, setupThreads, 60L, TimeUnit.SECONDS, new ArrayBlockingQueue<>(setupThreads), new NamedThreadFactory("WhipStage"), new ThreadPoolExecutor.CallerRunsPolicy());
+        stageExecutor.allowCoreThreadTimeOut(true);
+        startExecutor = new ThreadPoolExecutor(startThreads, startThreads, 60L, TimeUnit.SECONDS, new ArrayBlockingQueue<>(startQueueSize), new NamedThreadFactory("WhipStart"));
+        startExecutor.allowCoreThreadTimeOut(true);
+        log.debug("Pipeline setup threads: {} queue: {} start threads: {} queue: {}", setupThreads, setupQueueSize, startThreads, startQueueSize);
+    }
+
+    /**
+     * Returns the executor for the offer to answer portion of a publish.
+     *
+     * @return setup executor
+     */
+    public Executor getSetupExecutor() {
+        return setupExecutor;
+    }
+
+    /**
+     * Returns the executor for independent setup stages which are forked from a setup thread; when its saturated the
+     * stage is run by the forking thread.
+     *
+     * @return stage executor
+     */
+    public Executor getStageExecutor() {
+        return stageExecutor;
+    }
+
+    /**
+     * Submits the publisher start, which begins ICE and starts the media streams once it completes. The returned future
+     * completes with the result of {@link WhipPublisher#start(Executor)}.
+     *
+     * @param publisher
+     * @return future for the start result
+     * @throws java.util.concurrent.RejectedExecutionException if the start queue is full
+     */
+    public CompletableFuture<Boolean> submitStart(WhipPublisher publisher) {
+        return CompletableFuture.supplyAsync(() -> publisher.start(startExecutor), startExecutor).thenCompose(Function.identity());
+    }
+
+    /**
+     * Returns the number of setups queued or running.
+     *
+     * @return setups in progress
+     */
+    public int getSetupsPending() {
+        return setupExecutor.getActiveCount() + setupExecutor.getQueue().size();
+    }
+
+    /**
+     * Returns the number of starts queued or running.
+     *
+     * @return starts in progress
+     */
+    public int getStartsPending() {
+        return startExecutor.getActiveCount() + startExecutor.getQueue().size();
+    }
+
+    public void shutdown() {
+        setupExecutor.shutdownNow();
+        stageExecutor.shutdownNow();
+        startExecutor.shutdownNow();
+    }
+
+    private static final class NamedThreadFactory implements ThreadFactory {
+
+        private final AtomicInteger counter = new AtomicInteger();
+
+        private final String prefix;
+
+        NamedThreadFactory(String prefix) {
+            this.prefix = prefix;
+        }
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, String.format("%s-%d", prefix, counter.incrementAndGet()));
+            thread.setDaemon(true);
+            return thread;
+        }
+
+    }
+
+}
@@ -0,0 +1,107 @@
+package org.red5.whip;
+
+import org.jitsi.impl.neomedia.MediaStreamImpl;
+import org.red5.server.api.scope.IScope;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Receive-side bandwidth estimate for a publisher's video, sent to the browser as REMB once per feedback interval. The
+ * estimate is loss based, along the lines of the loss controller in Google congestion control: it's grown while loss
+ * is low, held while loss is moderate and cut in proportion to the loss when its high. Growth is limited to half again
+ * what is being received, so the estimate follows the sender rather than running ahead of it. The estimate is kept
+ * between the scope policy's minimum and the lower of the publisher's requested bitrate and the policy's maximum.
+ *
+ * @author Paul Gregoire
+ */
+public class RembFeedback implements FeedbackScheduler.Task {
+
+    private static final Logger log = LoggerFactory.getLogger(RembFeedback.class);
+
+    // loss fractions bounding the hold band
+    private static final double LOW_LOSS = 0.02d, HIGH_LOSS = 0.1d;
+
+    private static final double INCREASE = 1.08d;
+
+    private final String name;
+
+    private final MediaStreamImpl mediaStream;
+
+    private final int remoteSsrc;
+
+    private final MediaCounters counters;
+
+    private final IScope scope;
+
+    private final long requestedBitrate;
+
+    private long estimate;
+
+    private long lastHighest = -1L, lastLost;
+
+    private volatile boolean cancelled;
+
+    /**
+     * @param name publisher name for logging
+     * @param mediaStream video stream the REMB is sent on
+     * @param remoteSsrc media source the estimate applies to
+     * @param counters video receive counters
+     * @param scope scope the policy is read from
+     * @param requestedBitrate bitrate requested in the answer, bits per second
+     */
+    public RembFeedback(String name, MediaStreamImpl mediaStream, int remoteSsrc, MediaCounters counters, IScope scope, long requestedBitrate) {
+        this.name = name;
+        this.mediaStream = mediaStream;
+        this.remoteSsrc = remoteSsrc;
+        this.counters = counters;
+        this.scope = scope;
+        this.requestedBitrate = requestedBitrate;
+        // the initial REMB was sent with the requested bitrate
+        this.estimate = requestedBitrate;
+    }
+
+    @Override
+    public boolean run() {
+        if (cancelled) {
+            return false;
+        }
+        long highest = counters.getHighestSequence();
+        long lost = counters.getLost();
+        double loss = 0d;
+        if (lastHighest >= 0L && highest > lastHighest) {
+            loss = Math.min(1d, Math.max(0d, (double) (lost - lastLost) / (highest - lastHighest)));
+        }
+        lastHighest = highest;
+        lastLost = lost;
+        long received = counters.getBitrate();
+        if (loss > HIGH_LOSS) {
+            estimate = (long) (estimate * (1d - 0.5d * loss));
+        } else if (loss < LOW_LOSS) {
+            estimate = Math.max(estimate, Math.min((long) (estimate * INCREASE), received + received / 2L));
+        }
+        WhipScopePolicy policy = WhipScopePolicy.of(scope);
+        long max = policy.getMaxVideoBitrate() > 0L ? Math.min(requestedBitrate, policy.getMaxVideoBitrate()) : requestedBitrate;
+        estimate = Math.max(Math.min(policy.getMinVideoBitrate(), max), Math.min(estimate, max));
+        try {
+            mediaStream.maybeSendRemb(remoteSsrc, (int) Math.min(Integer.MAX_VALUE, estimate));
+        } catch (Exception e) {
+            log.debug("REMB send failed for {}", name, e);
+        }
+        if (log.isTraceEnabled()) {
+            log.trace("REMB {} received: {} loss: {} estimate: {}", name, received, loss, estimate);
+        }
+        return true;
+    }
+
+    /**
+     * Stops the feedback; the task is dropped the next time its slot comes around.
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    public long getEstimate() {
+        return estimate;
+    }
+
+}
@@ -0,0 +1,194 @@
+package org.red5.whip;
+
+/**
+ * Reads and rewrites fields of RTP packets in place, without wrapping or copying them.
+ *
+ * @author Paul Gregoire
+ */
+public final class RtpPackets {
+
+    // one-byte and two-byte header extension profiles, RFC 8285
+    private static final int ONE_BYTE_PROFILE = 0xbede, TWO_BYTE_PROFILE_MASK = 0xfff0, TWO_BYTE_PROFILE = 0x1000;
+
+    private RtpPackets() {
+    }
+
+    /**
+     * Returns the length of the fixed header and csrc list.
+     *
+     * @param buf
+     * @param offset
+     * @return length
+     */
+    public static int getFixedHeaderLength(byte[] buf, int offset) {
+        return 12 + (buf[offset] & 0x0f) * 4;
+    }
+
+    /**
+     * Returns the length of the whole header, including the extension block.
+     *
+     * @param buf
+     * @param offset
+     * @param length
+     * @return length or -1 if the packet is too short for its header
+     */
+    public static int getHeaderLength(byte[] buf, int offset, int length) {
+        int headerLength = getFixedHeaderLength(buf, offset);
+        if ((buf[offset] & 0x10) != 0) {
+            if (length < headerLength + 4) {
+                return -1;
+            }
+            int words = ((buf[offset + headerLength + 2] & 0xff) << 8) | (buf[offset + headerLength + 3] & 0xff);
+            headerLength += 4 + words * 4;
+        }
+        return headerLength <= length ? headerLength : -1;
+    }
+
+    /**
+     * Finds a header extension element by id.
+     *
+     * @param buf
+     * @param offset packet offset
+     * @param length packet length
+     * @param id extension id
+     * @return offset of the element data or -1 if the packet doesn't carry it
+     */
+    public static int findExtension(byte[] buf, int offset, int length, int id) {
+        if (length < 12 || (buf[offset] & 0x10) == 0) {
+            return -1;
+        }
+        int pos = offset + getFixedHeaderLength(buf, offset);
+        int limit = offset + length;
+        if (pos + 4 > limit) {
+            return -1;
+        }
+        int profile = ((buf[pos] & 0xff) << 8) | (buf[pos + 1] & 0xff);
+        int end = pos + 4 + (((buf[pos + 2] & 0xff) << 8) | (buf[pos + 3] & 0xff)) * 4;
+        if (end > limit) {
+            return -1;
+        }
+        pos += 4;
+        if (profile == ONE_BYTE_PROFILE) {
+            while (pos < end) {
+                int b = buf[pos] & 0xff;
+                if (b == 0) {
+                    // padding
+                    pos++;
+                    continue;
+                }
+                int elementId = b >>> 4;
+                if (elementId == 15) {
+                    break;
+                }
+                int elementLength = (b & 0x0f) + 1;
+                if (elementId == id) {
+                    return pos + 1 + elementLength <= end ? pos + 1 : -1;
+                }
+                pos += 1 + elementLength;
+            }
+        } else if ((profile & TWO_BYTE_PROFILE_MASK) == TWO_BYTE_PROFILE) {
+            while (pos + 1 < end) {
+                int elementId = buf[pos] & 0xff;
+                if (elementId == 0) {
+                    pos++;
+                    continue;
+                }
+                int elementLength = buf[pos + 1] & 0xff;
+                if (elementId == id) {
+                    return pos + 2 + elementLength <= end ? pos + 2 : -1;
+                }
+                pos += 2 + elementLength;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Unwraps an RTX packet (RFC 4588) in place: the original sequence number is taken from the first two bytes of the
+     * payload, the rest of the packet is moved down over it, and the payload type and ssrc of the primary stream are
+     * written into the header. Header extensions and any padding are kept.
+     *
+     * @param buf
+     * @param offset packet offset
+     * @param length packet length
+     * @param payloadType primary payload type
+     * @param ssrc primary ssrc
+     * @return length of the unwrapped packet or -1 if it carries no original payload, as with padding only probes
+     */
+    public static int unwrapRtx(byte[] buf, int offset, int length, int payloadType, long ssrc) {
+        int headerLength = getHeaderLength(buf, offset, length);
+        if (headerLength == -1) {
+            return -1;
+        }
+        int padding = (buf[offset] & 0x20) != 0 ? buf[offset + length - 1] & 0xff : 0;
+        int payload = offset + headerLength;
+        if (length - headerLength - padding <= 2) {
+            return -1;
+        }
+        int osn = readUint16(buf, payload);
+        System.arraycopy(buf, payload + 2, buf, payload, length - headerLength - 2);
+        buf[offset + 1] = (byte) ((buf[offset + 1] & 0x80) | (payloadType & 0x7f));
+        writeUint16(buf, offset + 2, osn);
+        writeUint32(buf, offset + 8, ssrc);
+        return length - 2;
+    }
+
+    /**
+     * Unwraps a RED packet (RFC 2198) in place, keeping only the primary block: the block headers and any redundant
+     * blocks are removed and the primary block's payload type is written into the header. Browsers don't put redundant
+     * blocks in video RED, the primary block carries either the media or ULPFEC.
+     *
+     * @param buf
+     * @param offset packet offset
+     * @param length packet length
+     * @return length of the unwrapped packet or -1 if the block headers don't fit the packet
+     */
+    public static int unwrapRed(byte[] buf, int offset, int length) {
+        int headerLength = getHeaderLength(buf, offset, length);
+        if (headerLength == -1) {
+            return -1;
+        }
+        int end = offset + length - ((buf[offset] & 0x20) != 0 ? buf[offset + length - 1] & 0xff : 0);
+        int payload = offset + headerLength, pos = payload, redundant = 0;
+        // four byte headers for the redundant blocks, then one byte for the primary
+        while (pos < end && (buf[pos] & 0x80) != 0) {
+            if (pos + 4 > end) {
+                return -1;
+            }
+            redundant += ((buf[pos + 2] & 0x03) << 8) | (buf[pos + 3] & 0xff);
+            pos += 4;
+        }
+        int data = pos + 1 + redundant;
+        if (data > end) {
+            return -1;
+        }
+        int payloadType = buf[pos] & 0x7f;
+        System.arraycopy(buf, data, buf, payload, offset + length - data);
+        buf[offset + 1] = (byte) ((buf[offset + 1] & 0x80) | payloadType);
+        return length - (data - payload);
+    }
+
+    /**
+     * Reads an unsigned 16 bit value.
+     *
+     * @param buf
+     * @param offset
+     * @return value
+     */
+    public static int readUint16(byte[] buf, int offset) {
+        return ((buf[offset] & 0xff) << 8) | (buf[offset + 1] & 0xff);
+    }
+
+    public static void writeUint16(byte[] buf, int offset, int value) {
+        buf[offset] = (byte) (value >>> 8);
+        buf[offset + 1] = (byte) value;
+    }
+
+    public static void writeUint32(byte[] buf, int offset, long value) {
+        buf[offset] = (byte) (value >>> 24);
+        buf[offset + 1] = (byte) (value >>> 16);
+        buf[offset + 2] = (byte) (value >>> 8);
+        buf[offset + 3] = (byte) value;
+    }
+
+}
@@ -0,0 +1,187 @@
+package org.red5.whip;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.red5.whip.SetupTimings.Stage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.red5pro.media.sdp.SDPUserAgent;
+
+/**
+ * Node-wide registry of the publish setup latency histograms, one set of stage histograms per scope path and browser
+ * family. Histograms are created on first use and recorded into as the stages complete; they're readable at any time
+ * through the static accessors or the MXBean registered under {@value #OBJECT_NAME}.
+ *
+ * @author Paul Gregoire
+ */
+public class SetupMetrics implements SetupMetricsMXBean {
+
+    private static final Logger log = LoggerFactory.getLogger(SetupMetrics.class);
+
+    public static final String OBJECT_NAME = "org.red5.whip:type=SetupMetrics";
+
+    private static final Stage[] STAGES = Stage.values();
+
+    // scope path|browser family to stage histograms
+    private static final ConcurrentMap<String, LatencyHistogram[]> series = new ConcurrentHashMap<>();
+
+    private static final SetupMetrics instance = new SetupMetrics();
+
+    /**
+     * Registers the MXBean.
+     */
+    public static void start() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (!server.isRegistered(name)) {
+                server.registerMBean(instance, name);
+            }
+        } catch (Exception e) {
+            log.warn("Setup metrics MXBean registration failed", e);
+        }
+    }
+
+    public static void stop() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+        } catch (Exception e) {
+            log.warn("Setup metrics MXBean unregistration failed", e);
+        }
+    }
+
+    public static SetupMetrics getInstance() {
+        return instance;
+    }
+
+    /**
+     * Returns the stage histograms for the scope path and browser family, indexed by stage ordinal.
+     *
+     * @param scopePath
+     * @param userAgent
+     * @return histograms
+     */
+    public static LatencyHistogram[] getHistograms(String scopePath, SDPUserAgent userAgent) {
+        return series.computeIfAbsent(key(scopePath, userAgent != null ? userAgent.name() : SDPUserAgent.undefined.name()), k -> {
+            LatencyHistogram[] histograms = new LatencyHistogram[STAGES.length];
+            for (int i = 0; i < histograms.length; i++) {
+                histograms[i] = new LatencyHistogram();
+            }
+            return histograms;
+        });
+    }
+
+    /**
+     * Returns the histogram for a stage of a series.
+     *
+     * @param series scope|family
+     * @param stage
+     * @return histogram or null if the series hasn't been recorded
+     */
+    public static LatencyHistogram getHistogram(String series, Stage stage) {
+        LatencyHistogram[] histograms = SetupMetrics.series.get(series);
+        return histograms != null ? histograms[stage.ordinal()] : null;
+    }
+
+    /**
+     * Passes each series to the consumer with its scope path and browser family.
+     *
+     * @param consumer
+     */
+    public static void forEachSeries(SeriesConsumer consumer) {
+        series.forEach((key, histograms) -> {
+            int sep = key.lastIndexOf('|');
+            consumer.accept(key.substring(0, sep), key.substring(sep + 1), histograms);
+        });
+    }
+
+    private static String key(String scopePath, String family) {
+        return scopePath + '|' + family;
+    }
+
+    private static LatencyHistogram histogram(String series, String stage) {
+        try {
+            return getHistogram(series, Stage.valueOf(stage.toUpperCase()));
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public String[] getSeries() {
+        return series.keySet().toArray(new String[0]);
+    }
+
+    @Override
+    public String[] getStages() {
+        String[] names = new String[STAGES.length];
+        for (int i = 0; i < names.length; i++) {
+            names[i] = STAGES[i].name();
+        }
+        return names;
+    }
+
+    @Override
+    public long getCount(String series, String stage) {
+        LatencyHistogram histogram = histogram(series, stage);
+        return histogram != null ? histogram.getCount() : 0L;
+    }
+
+    @Override
+    public long getValueAtPercentile(String series, String stage, double percentile) {
+        LatencyHistogram histogram = histogram(series, stage);
+        return histogram != null ? histogram.getValueAtPercentile(percentile) : 0L;
+    }
+
+    @Override
+    public long getMax(String series, String stage) {
+        LatencyHistogram histogram = histogram(series, stage);
+        return histogram != null ? histogram.getMax() : 0L;
+    }
+
+    @Override
+    public String getReport() {
+        StringBuilder sb = new StringBuilder();
+        Map<String, LatencyHistogram[]> sorted = new TreeMap<>(series);
+        sorted.forEach((key, histograms) -> {
+            for (Stage stage : STAGES) {
+                LatencyHistogram histogram = histograms[stage.ordinal()];
+                if (histogram.getCount() > 0L) {
+                    sb.append(key).append(' ').append(stage.name().toLowerCase()).append(' ').append(histogram).append('\n');
+                }
+            }
+        });
+        return sb.toString();
+    }
+
+    @Override
+    public void reset() {
+        series.values().forEach(histograms -> {
+            for (LatencyHistogram histogram : histograms) {
+                histogram.reset();
+            }
+        });
+    }
+
+    /**
+     * Receives the stage histograms of a series, indexed by stage ordinal.
+     */
+    public interface SeriesConsumer {
+
+        void accept(String scopePath, String family, LatencyHistogram[] histograms);
+
+    }
+
+}
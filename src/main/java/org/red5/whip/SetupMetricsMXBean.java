@@ -0,0 +1,30 @@
+package org.red5.whip;
+
+/**
+ * JMX view of the publish setup latency histograms. A series is a scope path and browser family pair, written as
+ * scope|family, and stages are the names of {@link SetupTimings.Stage}. Values are in microseconds.
+ *
+ * @author Paul Gregoire
+ */
+public interface SetupMetricsMXBean {
+
+    String[] getSeries();
+
+    String[] getStages();
+
+    long getCount(String series, String stage);
+
+    long getValueAtPercentile(String series, String stage, double percentile);
+
+    long getMax(String series, String stage);
+
+    /**
+     * Returns count, mean, p50, p90, p99 and max for every stage of every series, one line per stage.
+     *
+     * @return report
+     */
+    String getReport();
+
+    void reset();
+
+}
@@ -0,0 +1,112 @@
+package org.red5.whip;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.red5pro.media.sdp.SDPUserAgent;
+
+/**
+ * Per-publisher record of how long each publisher setup stage took. Stages may run in parallel, so the durations are
+ * kept in an atomic array indexed by stage. When created for a scope and browser family, each recorded stage is also
+ * recorded into the node-wide {@link SetupMetrics} histograms.
+ *
+ * @author Paul Gregoire
+ */
+public class SetupTimings {
+
+    /**
+     * Stages of the publisher setup, in the order they are started. INIT spans OFFER through MEDIA; ICE_COMPLETE runs
+     * from the start of connectivity checks and DTLS_READY and FIRST_KEYFRAME are measured from ICE completion.
+     */
+    public enum Stage {
+        READ, PARSE, CREATE, OFFER, DTLS, ICE, REMOTE, MEDIA, INIT, ANSWER, REGISTER, WRITE, ICE_COMPLETE, DTLS_READY, FIRST_KEYFRAME;
+    }
+
+    private final long creationTime = System.nanoTime();
+
+    private final AtomicLongArray durations = new AtomicLongArray(Stage.values().length);
+
+    // histograms for the scope and browser family, null if not tracked
+    private final LatencyHistogram[] histograms;
+
+    public SetupTimings() {
+        histograms = null;
+    }
+
+    /**
+     * Creates timings which are also recorded into the histograms for the scope path and browser family.
+     *
+     * @param scopePath
+     * @param userAgent
+     */
+    public SetupTimings(String scopePath, SDPUserAgent userAgent) {
+        histograms = SetupMetrics.getHistograms(scopePath, userAgent);
+    }
+
+    /**
+     * Runs the task and records its duration against the stage.
+     *
+     * @param stage
+     * @param task
+     * @throws Exception
+     */
+    public void time(Stage stage, Task task) throws Exception {
+        long start = System.nanoTime();
+        try {
+            task.run();
+        } finally {
+            record(stage, System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Records the duration of a stage.
+     *
+     * @param stage
+     * @param nanos
+     */
+    public void record(Stage stage, long nanos) {
+        durations.set(stage.ordinal(), nanos);
+        if (histograms != null) {
+            histograms[stage.ordinal()].recordNanos(nanos);
+        }
+    }
+
+    /**
+     * Returns the duration of a stage in nanoseconds or zero if the stage has not run.
+     *
+     * @param stage
+     * @return nanoseconds
+     */
+    public long getDuration(Stage stage) {
+        return durations.get(stage.ordinal());
+    }
+
+    /**
+     * Returns the time since the timings were created in nanoseconds.
+     *
+     * @return nanoseconds
+     */
+    public long getElapsed() {
+        return System.nanoTime() - creationTime;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("SetupTimings [");
+        for (Stage stage : Stage.values()) {
+            sb.append(stage.name().toLowerCase()).append('=').append(getDuration(stage) / 1000L).append("us, ");
+        }
+        return sb.append("elapsed=").append(getElapsed() / 1000L).append("us]").toString();
+    }
+
+    /**
+     * A unit of setup work which may throw.
+     */
+    @FunctionalInterface
+    public interface Task {
+
+        void run() throws Exception;
+
+    }
+
+}
@@ -0,0 +1,290 @@
+package org.red5.whip;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Node-wide budget for audio transcoding. The transcoding itself runs in each publisher's audio device, so rather than
+ * moving the work this decides which streams may transcode: a stream wanting to transcode asks for admission through
+ * its {@link AudioTranscodeGate}, and is admitted while the node is under its limit of transcoding streams and its CPU
+ * budget, or else waits in a queue for its priority class. Admissions are paced, a few per sample, so a burst of
+ * publishers doesn't start all of its transcodes at once alongside their ICE and DTLS setup. When process CPU goes over
+ * budget, one stream per sample is shed, lowest priority and most recently admitted first, and goes back to waiting;
+ * high priority streams are never shed. A shed stream's audio is dropped ahead of its device, which costs nothing on
+ * the receive path. Waiting streams are admitted again, highest priority first, once CPU falls back under the budget.
+ *
+ * @author Paul Gregoire
+ */
+public class TranscodeScheduler {
+
+    private static final Logger log = LoggerFactory.getLogger(TranscodeScheduler.class);
+
+    private static final long SAMPLE_INTERVAL = 500L;
+
+    // percent under the budget the cpu must fall to before waiting streams are admitted
+    private static final int HYSTERESIS = 10;
+
+    private static volatile TranscodeScheduler instance;
+
+    /**
+     * Priority class of a stream's transcoding, set per scope.
+     */
+    public enum Priority {
+        HIGH, NORMAL, LOW;
+
+        /**
+         * Returns the priority named, ignoring case, or normal.
+         *
+         * @param name
+         * @return priority
+         */
+        public static Priority of(String name) {
+            if (name != null) {
+                for (Priority priority : values()) {
+                    if (priority.name().equalsIgnoreCase(name.trim())) {
+                        return priority;
+                    }
+                }
+            }
+            return NORMAL;
+        }
+    }
+
+    private static final Priority[] PRIORITIES = Priority.values();
+
+    private final int maxActive, cpuBudget, admitsPerSample;
+
+    private final OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+
+    // waiting and admitted gates for each priority, guarded by this
+    @SuppressWarnings("unchecked")
+    private final ArrayDeque<AudioTranscodeGate>[] waiting = new ArrayDeque[PRIORITIES.length];
+
+    @SuppressWarnings("unchecked")
+    private final ArrayDeque<AudioTranscodeGate>[] admitted = new ArrayDeque[PRIORITIES.length];
+
+    // counts changed under the lock and read without it, so the metrics scrape doesn't contend with admission
+    private final AtomicIntegerArray waitingCount = new AtomicIntegerArray(PRIORITIES.length);
+
+    private final AtomicInteger admittedCount = new AtomicInteger();
+
+    private int admitsThisSample;
+
+    // last sampled cpu load in percent, -1 when it's not available
+    private volatile int cpuLoad = -1;
+
+    private final ScheduledExecutorService sampler;
+
+    private TranscodeScheduler(int maxActive, int cpuBudget) {
+        this.maxActive = maxActive;
+        this.cpuBudget = cpuBudget;
+        admitsPerSample = Math.max(1, Runtime.getRuntime().availableProcessors());
+        for (int i = 0; i < PRIORITIES.length; i++) {
+            waiting[i] = new ArrayDeque<>();
+            admitted[i] = new ArrayDeque<>();
+        }
+        sampler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "WhipTranscodeScheduler");
+            thread.setDaemon(true);
+            return thread;
+        });
+        sampler.scheduleWithFixedDelay(this::sample, SAMPLE_INTERVAL, SAMPLE_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Creates the node-wide scheduler; with neither a limit nor a budget streams transcode unscheduled.
+     *
+     * @param maxActive most streams transcoding at once, zero or less for no limit
+     * @param cpuBudget process cpu percent over which streams are shed, zero or less for no budget
+     */
+    public static void start(int maxActive, int cpuBudget) {
+        if (instance == null && (maxActive > 0 || cpuBudget > 0)) {
+            log.info("Starting transcode scheduler max active: {} cpu budget: {}%", maxActive, cpuBudget);
+            instance = new TranscodeScheduler(maxActive > 0 ? maxActive : Integer.MAX_VALUE, cpuBudget);
+        }
+    }
+
+    public static void stop() {
+        if (instance != null) {
+            instance.sampler.shutdownNow();
+            instance = null;
+        }
+    }
+
+    public static TranscodeScheduler getInstance() {
+        return instance;
+    }
+
+    /**
+     * Asks for a gate to be admitted; it's started now if there's room, otherwise it waits. Nothing is done if the gate
+     * is already waiting or admitted.
+     *
+     * @param gate
+     */
+    public void request(AudioTranscodeGate gate) {
+        boolean start = false;
+        synchronized (this) {
+            int p = gate.getPriority().ordinal();
+            if (waiting[p].contains(gate) || admitted[p].contains(gate)) {
+                return;
+            }
+            if (hasRoom() && !hasWaiting(p)) {
+                admit(gate);
+                start = true;
+            } else {
+                gate.requestedAt = System.nanoTime();
+                waiting[p].add(gate);
+                waitingCount.incrementAndGet(p);
+            }
+        }
+        if (start) {
+            WhipMetrics.transcodeAdmitted(0L);
+            gate.start();
+        }
+    }
+
+    /**
+     * Removes a gate which stopped transcoding or closed, making room for a waiting one.
+     *
+     * @param gate
+     */
+    public synchronized void release(AudioTranscodeGate gate) {
+        int p = gate.getPriority().ordinal();
+        if (admitted[p].remove(gate)) {
+            admittedCount.decrementAndGet();
+        }
+        if (waiting[p].remove(gate)) {
+            waitingCount.decrementAndGet(p);
+        }
+    }
+
+    private boolean hasRoom() {
+        if (admittedCount.get() >= maxActive || admitsThisSample >= admitsPerSample) {
+            return false;
+        }
+        int load = cpuLoad;
+        return cpuBudget <= 0 || load < cpuBudget;
+    }
+
+    // whether a gate of the same or higher priority is already waiting ahead
+    private boolean hasWaiting(int p) {
+        for (int i = 0; i <= p; i++) {
+            if (!waiting[i].isEmpty()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void admit(AudioTranscodeGate gate) {
+        admitted[gate.getPriority().ordinal()].add(gate);
+        admittedCount.incrementAndGet();
+        admitsThisSample++;
+    }
+
+    private void sample() {
+        cpuLoad = readCpuLoad();
+        int load = cpuLoad;
+        AudioTranscodeGate shed = null;
+        AudioTranscodeGate[] starting = null;
+        long[] lags = null;
+        synchronized (this) {
+            admitsThisSample = 0;
+            if (cpuBudget > 0 && load >= cpuBudget) {
+                // high priority is never shed
+                for (int p = PRIORITIES.length - 1; p > Priority.HIGH.ordinal() && shed == null; p--) {
+                    // a gate not yet started, or stopping on its own, isn't shed and stays where it is
+                    for (Iterator<AudioTranscodeGate> it = admitted[p].descendingIterator(); it.hasNext();) {
+                        AudioTranscodeGate gate = it.next();
+                        if (gate.shed()) {
+                            it.remove();
+                            admittedCount.decrementAndGet();
+                            gate.requestedAt = System.nanoTime();
+                            waiting[p].addFirst(gate);
+                            waitingCount.incrementAndGet(p);
+                            shed = gate;
+                            break;
+                        }
+                    }
+                }
+            } else if (cpuBudget <= 0 || load < cpuBudget - HYSTERESIS) {
+                int count = 0;
+                starting = new AudioTranscodeGate[admitsPerSample];
+                lags = new long[admitsPerSample];
+                long now = System.nanoTime();
+                for (int p = 0; p < PRIORITIES.length; p++) {
+                    while (count < starting.length && admittedCount.get() < maxActive && !waiting[p].isEmpty()) {
+                        AudioTranscodeGate gate = waiting[p].poll();
+                        waitingCount.decrementAndGet(p);
+                        admit(gate);
+                        lags[count] = now - gate.requestedAt;
+                        starting[count++] = gate;
+                    }
+                }
+            }
+        }
+        if (shed != null) {
+            log.debug("Shed transcoding for {} at {}% cpu", shed.getName(), load);
+            WhipMetrics.transcodeShed();
+        }
+        if (starting != null) {
+            for (int i = 0; i < starting.length && starting[i] != null; i++) {
+                WhipMetrics.transcodeAdmitted(lags[i]);
+                starting[i].start();
+            }
+        }
+    }
+
+    private int readCpuLoad() {
+        double load = -1d;
+        if (os instanceof com.sun.management.OperatingSystemMXBean) {
+            load = ((com.sun.management.OperatingSystemMXBean) os).getProcessCpuLoad();
+        }
+        if (load < 0d) {
+            double average = os.getSystemLoadAverage();
+            if (average >= 0d) {
+                load = average / os.getAvailableProcessors();
+            }
+        }
+        return load < 0d ? -1 : (int) Math.min(100d, load * 100d);
+    }
+
+    /**
+     * Returns the number of gates waiting for admission at a priority.
+     *
+     * @param priority
+     * @return waiting
+     */
+    public int getWaiting(Priority priority) {
+        return waitingCount.get(priority.ordinal());
+    }
+
+    /**
+     * Returns the number of gates admitted.
+     *
+     * @return admitted
+     */
+    public int getAdmitted() {
+        return admittedCount.get();
+    }
+
+    /**
+     * Returns the last sampled process cpu load.
+     *
+     * @return percent, or -1 if it isn't available
+     */
+    public int getCpuLoad() {
+        return cpuLoad;
+    }
+
+}
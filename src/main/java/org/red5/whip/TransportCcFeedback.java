@@ -0,0 +1,224 @@
+package org.red5.whip;
+
+import java.util.Arrays;
+
+import org.jitsi.impl.neomedia.MediaStreamImpl;
+import org.jitsi.service.neomedia.RawPacket;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Transport-wide congestion control feedback for a publisher. Arrival times are recorded by transport-wide sequence
+ * number into a fixed ring, and a feedback packet (RTCP payload specific feedback 205, format 15) covering everything
+ * since the last one is sent once the feedback interval has passed, or sooner if the ring is filling. Recording and
+ * sending both happen on the receive path, the same way libjitsi's own transport-cc engine sends its feedback; the
+ * ring and scratch arrays are confined to that thread and nothing is allocated per packet.
+ *
+ * @see <a href="https://datatracker.ietf.org/doc/html/draft-holmer-rmcat-transport-wide-cc-extensions-01">
+ *      transport-wide-cc</a>
+ * @author Paul Gregoire
+ */
+public class TransportCcFeedback {
+
+    private static final Logger log = LoggerFactory.getLogger(TransportCcFeedback.class);
+
+    public static final String URI = "http://www.ietf.org/id/draft-holmer-rmcat-transport-wide-cc-extensions-01";
+
+    public static final long DEFAULT_INTERVAL_MICROS = 100000L;
+
+    private static final int SIZE = 1 << 11, MASK = SIZE - 1;
+
+    // packets reported per feedback before sending early
+    private static final int MAX_STATUS_COUNT = SIZE / 2;
+
+    private static final int NOT_RECEIVED = 0, SMALL_DELTA = 1, LARGE_DELTA = 2;
+
+    // receive deltas are in 250us ticks, the reference time in 64ms
+    private static final long TICK_MICROS = 250L, REFERENCE_TICKS = 256L;
+
+    private final MediaStreamImpl mediaStream;
+
+    private final long senderSsrc, mediaSsrc;
+
+    private final long intervalMicros;
+
+    // extended sequence number held in each slot and its arrival time
+    private final long[] sequences = new long[SIZE];
+
+    private final long[] arrivals = new long[SIZE];
+
+    // scratch for building feedback
+    private final byte[] symbols = new byte[SIZE];
+
+    private final int[] deltas = new int[SIZE];
+
+    // first unreported and highest extended sequence numbers, -1 until the first packet
+    private long nextSeq = -1L, highestSeq = -1L;
+
+    private long lastFeedback;
+
+    private int feedbackCount;
+
+    /**
+     * @param mediaStream stream the feedback is sent on
+     * @param senderSsrc local ssrc
+     * @param mediaSsrc remote media ssrc
+     * @param intervalMicros interval between feedback packets
+     */
+    public TransportCcFeedback(MediaStreamImpl mediaStream, long senderSsrc, long mediaSsrc, long intervalMicros) {
+        this.mediaStream = mediaStream;
+        this.senderSsrc = senderSsrc;
+        this.mediaSsrc = mediaSsrc;
+        this.intervalMicros = intervalMicros;
+        Arrays.fill(sequences, -1L);
+    }
+
+    /**
+     * Records an arrival and sends feedback when its due.
+     *
+     * @param seq transport-wide sequence number
+     * @param micros arrival time in microseconds
+     */
+    public void received(int seq, long micros) {
+        record(seq, micros);
+        if (highestSeq - nextSeq + 1L >= MAX_STATUS_COUNT || micros - lastFeedback >= intervalMicros) {
+            byte[] feedback = build();
+            if (feedback != null) {
+                lastFeedback = micros;
+                send(feedback);
+            }
+        }
+    }
+
+    void record(int seq, long micros) {
+        long ext;
+        if (highestSeq < 0L) {
+            ext = nextSeq = highestSeq = seq & 0xffff;
+            lastFeedback = micros;
+        } else {
+            ext = highestSeq + (short) (seq - (int) (highestSeq & 0xffffL));
+        }
+        if (ext < nextSeq) {
+            // already reported as not received
+            return;
+        }
+        if (ext > highestSeq) {
+            highestSeq = ext;
+            if (highestSeq - nextSeq >= SIZE) {
+                // the oldest unreported packets fall out of the ring
+                nextSeq = highestSeq - SIZE + 1L;
+            }
+        }
+        int slot = (int) (ext & MASK);
+        sequences[slot] = ext;
+        arrivals[slot] = micros;
+    }
+
+    /**
+     * Builds a feedback packet for everything since the last one.
+     *
+     * @return packet or null if there is nothing to report
+     */
+    byte[] build() {
+        if (highestSeq < 0L || highestSeq < nextSeq) {
+            return null;
+        }
+        int count = (int) (highestSeq - nextSeq + 1L);
+        // the reference time is taken from the first packet received; arrival times may be negative
+        long referenceTime = 0L;
+        boolean found = false;
+        for (int i = 0; i < count; i++) {
+            int slot = (int) ((nextSeq + i) & MASK);
+            if (sequences[slot] == nextSeq + i) {
+                referenceTime = Math.floorDiv(arrivals[slot], TICK_MICROS * REFERENCE_TICKS);
+                found = true;
+                break;
+            }
+        }
+        if (!found) {
+            return null;
+        }
+        long previousTicks = referenceTime * REFERENCE_TICKS;
+        int deltaBytes = 0;
+        for (int i = 0; i < count; i++) {
+            int slot = (int) ((nextSeq + i) & MASK);
+            symbols[i] = NOT_RECEIVED;
+            if (sequences[slot] == nextSeq + i) {
+                long ticks = Math.floorDiv(arrivals[slot], TICK_MICROS);
+                long delta = ticks - previousTicks;
+                if (delta >= 0L && delta <= 0xff) {
+                    symbols[i] = SMALL_DELTA;
+                    deltaBytes += 1;
+                } else if (delta >= Short.MIN_VALUE && delta <= Short.MAX_VALUE) {
+                    symbols[i] = LARGE_DELTA;
+                    deltaBytes += 2;
+                } else {
+                    // too far apart to be expressed, reported as not received
+                    continue;
+                }
+                deltas[i] = (int) delta;
+                previousTicks = ticks;
+            }
+        }
+        // header, worst case of one chunk per seven statuses, then the deltas and padding
+        byte[] buf = new byte[20 + ((count + 6) / 7) * 2 + deltaBytes + 3];
+        RtpPackets.writeUint32(buf, 4, senderSsrc);
+        RtpPackets.writeUint32(buf, 8, mediaSsrc);
+        RtpPackets.writeUint16(buf, 12, (int) (nextSeq & 0xffff));
+        RtpPackets.writeUint16(buf, 14, count);
+        buf[16] = (byte) (referenceTime >>> 16);
+        buf[17] = (byte) (referenceTime >>> 8);
+        buf[18] = (byte) referenceTime;
+        buf[19] = (byte) feedbackCount++;
+        int pos = 20;
+        int i = 0;
+        while (i < count) {
+            int symbol = symbols[i];
+            int run = 1;
+            while (i + run < count && symbols[i + run] == symbol && run < 0x1fff) {
+                run++;
+            }
+            if (run >= 7) {
+                // run length chunk
+                RtpPackets.writeUint16(buf, pos, (symbol << 13) | run);
+                i += run;
+            } else {
+                // status vector chunk of seven two bit symbols, the ones past the end are ignored
+                int chunk = 0xc000;
+                for (int k = 0; k < 7 && i + k < count; k++) {
+                    chunk |= symbols[i + k] << (12 - 2 * k);
+                }
+                RtpPackets.writeUint16(buf, pos, chunk);
+                i += 7;
+            }
+            pos += 2;
+        }
+        for (i = 0; i < count; i++) {
+            if (symbols[i] == SMALL_DELTA) {
+                buf[pos++] = (byte) deltas[i];
+            } else if (symbols[i] == LARGE_DELTA) {
+                RtpPackets.writeUint16(buf, pos, deltas[i] & 0xffff);
+                pos += 2;
+            }
+        }
+        int padding = (4 - (pos & 3)) & 3;
+        if (padding > 0) {
+            pos += padding;
+            buf[pos - 1] = (byte) padding;
+        }
+        buf[0] = (byte) (0x80 | (padding > 0 ? 0x20 : 0) | 15);
+        buf[1] = (byte) 205;
+        RtpPackets.writeUint16(buf, 2, pos / 4 - 1);
+        nextSeq = highestSeq + 1L;
+        return pos == buf.length ? buf : Arrays.copyOf(buf, pos);
+    }
+
+    private void send(byte[] feedback) {
+        try {
+            mediaStream.injectPacket(new RawPacket(feedback, 0, feedback.length), false, null);
+        } catch (Exception e) {
+            log.debug("Transport-cc feedback send failed", e);
+        }
+    }
+
+}
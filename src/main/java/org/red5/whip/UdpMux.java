@@ -0,0 +1,90 @@
+package org.red5.whip;
+
+import java.util.Collections;
+import java.util.List;
+
+import org.ice4j.ice.Agent;
+import org.ice4j.ice.Component;
+import org.ice4j.ice.IceMediaStream;
+import org.ice4j.ice.KeepAliveStrategy;
+import org.ice4j.ice.harvest.SinglePortUdpHarvester;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Single-port UDP mode for WHIP sessions. One UDP socket per local address is bound on the configured port and shared
+ * by all of the sessions; incoming STUN is demultiplexed to an agent by the ICE username fragment and, once a pair is
+ * selected, RTP, RTCP and DTLS are demultiplexed by the remote address. This keeps the firewall range to a single port
+ * and removes the per-session socket and selector registration.
+ *
+ * @author Paul Gregoire
+ */
+public class UdpMux {
+
+    private static final Logger log = LoggerFactory.getLogger(UdpMux.class);
+
+    private static volatile UdpMux instance;
+
+    private final int port;
+
+    private final List<SinglePortUdpHarvester> harvesters;
+
+    private UdpMux(int port, List<SinglePortUdpHarvester> harvesters) {
+        this.port = port;
+        this.harvesters = Collections.unmodifiableList(harvesters);
+    }
+
+    /**
+     * Binds the shared port; a port of zero or less leaves single-port mode disabled.
+     *
+     * @param port
+     */
+    public static void start(int port) {
+        if (instance == null && port > 0) {
+            List<SinglePortUdpHarvester> harvesters = SinglePortUdpHarvester.createHarvesters(port);
+            if (harvesters.isEmpty()) {
+                log.warn("Single-port mode disabled, no addresses could be bound on port: {}", port);
+            } else {
+                log.info("Single-port mode on port: {} addresses: {}", port, harvesters.size());
+                instance = new UdpMux(port, harvesters);
+            }
+        }
+    }
+
+    public static void stop() {
+        if (instance != null) {
+            instance.harvesters.forEach(SinglePortUdpHarvester::close);
+            instance = null;
+        }
+    }
+
+    /**
+     * Returns the mux or null if single-port mode is disabled.
+     *
+     * @return mux
+     */
+    public static UdpMux getInstance() {
+        return instance;
+    }
+
+    /**
+     * Creates the component for the stream on the shared socket instead of binding a port of its own.
+     *
+     * @param agent
+     * @param stream
+     * @return component
+     */
+    public Component createComponent(Agent agent, IceMediaStream stream) {
+        agent.setUseHostHarvester(false);
+        harvesters.forEach(agent::addCandidateHarvester);
+        // the component socket routes datagrams from the selected remote address to this session
+        Component component = agent.createComponent(stream, KeepAliveStrategy.SELECTED_ONLY, true);
+        log.debug("Muxed component on port: {} candidates: {}", port, component.getLocalCandidateCount());
+        return component;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+}
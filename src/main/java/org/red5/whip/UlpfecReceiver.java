@@ -0,0 +1,258 @@
+package org.red5.whip;
+
+import java.util.Arrays;
+
+import org.jitsi.service.neomedia.RawPacket;
+
+/**
+ * ULPFEC (RFC 5109) recovery for a publisher's video, run on the receive path ahead of the depacketizer. Media packets
+ * are copied into a fixed ring of slots and FEC packets into a smaller one; the slot buffers are allocated once, the
+ * first time each slot is used, and reused from then on, so memory is bounded by the two rings whatever the loss. When
+ * exactly one of the packets a FEC packet protects is missing, it's rebuilt by XOR of the FEC packet with the others.
+ * Only level 0 protection is used, which is all browsers send. Confined to the receive thread like the rest of the
+ * receive path.
+ *
+ * @author Paul Gregoire
+ */
+public class UlpfecReceiver {
+
+    // media packets kept for recovery, enough for the 48 packet masks with room for reordering
+    private static final int MEDIA_SIZE = 1 << 7, MEDIA_MASK = MEDIA_SIZE - 1;
+
+    private static final int FEC_SIZE = 1 << 5;
+
+    // larger packets aren't kept or recovered
+    private static final int MAX_PACKET_SIZE = 1500;
+
+    private static final int FEC_HEADER_LENGTH = 10;
+
+    // media ring, sequence number held in each slot or -1 if it's free
+    private final int[] mediaSeqs = new int[MEDIA_SIZE];
+
+    private final int[] mediaLengths = new int[MEDIA_SIZE];
+
+    private final byte[][] media = new byte[MEDIA_SIZE][];
+
+    // fec ring, the fec header onward of each pending packet; a zero length slot is free
+    private final int[] fecLengths = new int[FEC_SIZE];
+
+    private final byte[][] fec = new byte[FEC_SIZE][];
+
+    private int nextFec;
+
+    // highest media sequence number, -1 until the first packet
+    private int highestSeq = -1;
+
+    // recovered packets waiting to be passed on
+    private RawPacket[] recovered = new RawPacket[4];
+
+    private int recoveredCount;
+
+    public UlpfecReceiver() {
+        Arrays.fill(mediaSeqs, -1);
+    }
+
+    /**
+     * Records a media packet and recovers any packet it completes the protection set for.
+     *
+     * @param buf
+     * @param offset
+     * @param length
+     */
+    public void receivedMedia(byte[] buf, int offset, int length) {
+        int seq = RtpPackets.readUint16(buf, offset + 2);
+        if (store(buf, offset, length, seq)) {
+            for (int i = 0; i < FEC_SIZE; i++) {
+                if (fecLengths[i] != 0 && covers(i, seq)) {
+                    recover(i);
+                }
+            }
+        }
+    }
+
+    /**
+     * Records a FEC packet and recovers from it if it can.
+     *
+     * @param buf
+     * @param offset packet offset
+     * @param length packet length
+     */
+    public void receivedFec(byte[] buf, int offset, int length) {
+        int headerLength = RtpPackets.getHeaderLength(buf, offset, length);
+        if (headerLength == -1) {
+            return;
+        }
+        int fecOffset = offset + headerLength, fecLength = length - headerLength;
+        if ((buf[offset] & 0x20) != 0) {
+            fecLength -= buf[offset + length - 1] & 0xff;
+        }
+        // the fec header and level 0 header at least
+        if (fecLength < FEC_HEADER_LENGTH + 4 || fecLength < FEC_HEADER_LENGTH + levelHeaderLength(buf[fecOffset]) || fecLength > MAX_PACKET_SIZE) {
+            return;
+        }
+        int slot = nextFec;
+        nextFec = (nextFec + 1) % FEC_SIZE;
+        if (fec[slot] == null) {
+            fec[slot] = new byte[MAX_PACKET_SIZE];
+        }
+        System.arraycopy(buf, fecOffset, fec[slot], 0, fecLength);
+        fecLengths[slot] = fecLength;
+        recover(slot);
+    }
+
+    /**
+     * Returns whether there are recovered packets to pass on.
+     *
+     * @return true if there are
+     */
+    public boolean hasRecovered() {
+        return recoveredCount > 0;
+    }
+
+    /**
+     * Appends the recovered packets to the packets being passed on and clears them.
+     *
+     * @param pkts
+     * @return packets with the recovered ones at the end
+     */
+    public RawPacket[] drainRecovered(RawPacket[] pkts) {
+        int length = pkts != null ? pkts.length : 0;
+        RawPacket[] out = pkts != null ? Arrays.copyOf(pkts, length + recoveredCount) : new RawPacket[recoveredCount];
+        System.arraycopy(recovered, 0, out, length, recoveredCount);
+        Arrays.fill(recovered, 0, recoveredCount, null);
+        recoveredCount = 0;
+        return out;
+    }
+
+    private boolean store(byte[] buf, int offset, int length, int seq) {
+        if (length < 12 || length > MAX_PACKET_SIZE) {
+            return false;
+        }
+        if (highestSeq == -1 || (short) (seq - highestSeq) > 0) {
+            highestSeq = seq;
+        } else if ((short) (highestSeq - seq) >= MEDIA_SIZE) {
+            // too old to be of use
+            return false;
+        }
+        int slot = seq & MEDIA_MASK;
+        if (mediaSeqs[slot] == seq) {
+            return false;
+        }
+        if (media[slot] == null) {
+            media[slot] = new byte[MAX_PACKET_SIZE];
+        }
+        System.arraycopy(buf, offset, media[slot], 0, length);
+        mediaSeqs[slot] = seq;
+        mediaLengths[slot] = length;
+        return true;
+    }
+
+    private static int levelHeaderLength(byte fecHeader) {
+        return (fecHeader & 0x40) != 0 ? 8 : 4;
+    }
+
+    private boolean covers(int fecSlot, int seq) {
+        byte[] f = fec[fecSlot];
+        int distance = (seq - RtpPackets.readUint16(f, 2)) & 0xffff;
+        int maskBits = levelHeaderLength(f[0]) == 8 ? 48 : 16;
+        return distance < maskBits && isProtected(f, distance);
+    }
+
+    private static boolean isProtected(byte[] f, int bit) {
+        return (f[FEC_HEADER_LENGTH + 2 + bit / 8] & (0x80 >>> (bit % 8))) != 0;
+    }
+
+    /**
+     * Recovers the one missing packet of a FEC packet's protection set, freeing the FEC packet once nothing it protects
+     * is missing or the packets it protects have left the media ring.
+     */
+    private void recover(int fecSlot) {
+        byte[] f = fec[fecSlot];
+        int base = RtpPackets.readUint16(f, 2);
+        if (highestSeq != -1 && (short) (highestSeq - base) >= MEDIA_SIZE) {
+            fecLengths[fecSlot] = 0;
+            return;
+        }
+        int levelHeaderLength = levelHeaderLength(f[0]);
+        int maskBits = levelHeaderLength == 8 ? 48 : 16;
+        int missing = -1;
+        for (int bit = 0; bit < maskBits; bit++) {
+            if (isProtected(f, bit)) {
+                int seq = (base + bit) & 0xffff;
+                if (mediaSeqs[seq & MEDIA_MASK] != seq) {
+                    if (missing != -1) {
+                        // more than one missing, wait for another packet
+                        return;
+                    }
+                    missing = seq;
+                }
+            }
+        }
+        if (missing == -1) {
+            fecLengths[fecSlot] = 0;
+            return;
+        }
+        int protectionLength = RtpPackets.readUint16(f, FEC_HEADER_LENGTH);
+        int payload = FEC_HEADER_LENGTH + levelHeaderLength;
+        if (payload + protectionLength > fecLengths[fecSlot]) {
+            fecLengths[fecSlot] = 0;
+            return;
+        }
+        // xor the recovery fields and length with those of the packets which arrived
+        int b0 = f[0], b1 = f[1], lengthRecovery = RtpPackets.readUint16(f, 8);
+        int ts0 = f[4], ts1 = f[5], ts2 = f[6], ts3 = f[7];
+        byte[] ssrcFrom = null;
+        for (int bit = 0; bit < maskBits; bit++) {
+            int seq = (base + bit) & 0xffff;
+            if (seq != missing && isProtected(f, bit)) {
+                byte[] p = media[seq & MEDIA_MASK];
+                b0 ^= p[0];
+                b1 ^= p[1];
+                ts0 ^= p[4];
+                ts1 ^= p[5];
+                ts2 ^= p[6];
+                ts3 ^= p[7];
+                lengthRecovery ^= mediaLengths[seq & MEDIA_MASK] - 12;
+                ssrcFrom = p;
+            }
+        }
+        fecLengths[fecSlot] = 0;
+        if (ssrcFrom == null || lengthRecovery > protectionLength || 12 + lengthRecovery > MAX_PACKET_SIZE) {
+            return;
+        }
+        // the recovered packet is handed on, so it can't come from the rings
+        byte[] out = new byte[12 + lengthRecovery];
+        System.arraycopy(f, payload, out, 12, lengthRecovery);
+        for (int bit = 0; bit < maskBits; bit++) {
+            int seq = (base + bit) & 0xffff;
+            if (seq != missing && isProtected(f, bit)) {
+                int slot = seq & MEDIA_MASK;
+                byte[] p = media[slot];
+                int n = Math.min(lengthRecovery, mediaLengths[slot] - 12);
+                for (int i = 0; i < n; i++) {
+                    out[12 + i] ^= p[12 + i];
+                }
+            }
+        }
+        out[0] = (byte) (0x80 | (b0 & 0x3f));
+        out[1] = (byte) b1;
+        RtpPackets.writeUint16(out, 2, missing);
+        out[4] = (byte) ts0;
+        out[5] = (byte) ts1;
+        out[6] = (byte) ts2;
+        out[7] = (byte) ts3;
+        System.arraycopy(ssrcFrom, 8, out, 8, 4);
+        store(out, 0, out.length, missing);
+        if (recoveredCount == recovered.length) {
+            recovered = Arrays.copyOf(recovered, recoveredCount * 2);
+        }
+        recovered[recoveredCount++] = new RawPacket(out, 0, out.length);
+        // the recovered packet may leave another fec packet with only one missing
+        for (int i = 0; i < FEC_SIZE; i++) {
+            if (fecLengths[i] != 0 && covers(i, missing)) {
+                recover(i);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,601 @@
+package org.red5.whip;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+import org.apache.mina.core.buffer.IoBuffer;
+import org.red5.server.api.event.IEventDispatcher;
+import org.red5.server.net.rtmp.event.VideoData;
+import org.red5.whip.FrameSlabPool.Slab;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.red5pro.override.ProStream;
+
+/**
+ * Assembles a publisher's H264 or VP8 RTP into frames and dispatches them into its stream, in place of the video device
+ * and muxer. Packets are copied once, into a fixed ring of payload slots allocated on first use, and a frame is
+ * written straight from the ring into a {@link FrameSlabPool} slab as an RTMP video tag: AVC NALUs with four byte
+ * lengths for H264 (single NAL, STAP-A and FU-A) and an enhanced RTMP vp08 tag for VP8. The event handed to the stream
+ * wraps the tag where it lies in the slab and releases its reference when the event is released. A frame still missing
+ * packets after the wait, which covers NACK retries, is dropped along with those after it until the next keyframe, and
+ * the loss listener is told so a keyframe is requested. Timestamps follow the RTP clock from the stream time of the
+ * first frame. Confined to the receive thread.
+ *
+ * @author Paul Gregoire
+ */
+public class VideoDepacketizer {
+
+    private static final Logger log = LoggerFactory.getLogger(VideoDepacketizer.class);
+
+    private static final int SIZE = 1 << 9, MASK = SIZE - 1;
+
+    private static final int MAX_PAYLOAD = 1500;
+
+    private static final int CLOCK_RATE = 90000;
+
+    // time a frame may wait on missing packets, enough for the nack retries
+    private static final long MAX_WAIT = NackRequester.DEFAULT_RETRY_INTERVAL * 4;
+
+    // avc tag: frame type and codec, packet type, composition time; vp08 tag: ex header and fourcc
+    private static final int TAG_HEADER_LENGTH = 5;
+
+    private static final int MAX_PARAMETER_SET = 256;
+
+    private static final byte[] VP8_FOURCC = { 'v', 'p', '0', '8' };
+
+    // ex header sequence start, fourcc, then the record: version 1 and no flags, profile 0, level unset, 8 bit 4:2:0,
+    // unspecified colour and no initialization data
+    private static final byte[] VP8_SEQUENCE_START = { (byte) (0x80 | (1 << 4)), 'v', 'p', '0', '8', 1, 0, 0, 0, 0, 0, (byte) 0x82, 2, 2, 2, 0, 0 };
+
+    private static final int MARKER = 1, START = 2;
+
+    // the stream, its creation time and published name
+    private final IEventDispatcher stream;
+
+    private final LongSupplier creationTime;
+
+    private final Supplier<String> name;
+
+    private final boolean vp8;
+
+    private final FrameSlabPool pool;
+
+    // told of frames dropped, may be null
+    private final Runnable lossListener;
+
+    // payload ring, sequence number held in each slot or -1 if it's free
+    private final int[] seqs = new int[SIZE];
+
+    private final long[] timestamps = new long[SIZE];
+
+    private final int[] lengths = new int[SIZE];
+
+    private final byte[] flags = new byte[SIZE];
+
+    private final byte[][] payloads = new byte[SIZE][];
+
+    // first sequence number of the frame being waited on, -1 until a frame start arrives
+    private int nextSeq = -1, highestSeq;
+
+    // when the first packet of the frame being waited on arrived, -1 if none has
+    private long pendingSince = -1L;
+
+    private boolean waitingForKeyframe = true;
+
+    private final byte[] sps = new byte[MAX_PARAMETER_SET], pps = new byte[MAX_PARAMETER_SET];
+
+    private int spsLength, ppsLength;
+
+    private boolean configChanged, sequenceStarted;
+
+    private Slab slab;
+
+    // rtp timestamp of the frame being assembled
+    private long frameTimestamp;
+
+    private long firstTimestamp = -1L, baseTime;
+
+    private volatile boolean closed;
+
+    /**
+     * @param stream stream the frames are dispatched to
+     * @param vp8 whether the video is VP8 rather than H264
+     * @param lossListener told of frames dropped, may be null
+     */
+    public VideoDepacketizer(ProStream stream, boolean vp8, Runnable lossListener) {
+        this(stream, stream::getCreationTime, stream::getPublishedName, vp8, lossListener);
+    }
+
+    VideoDepacketizer(IEventDispatcher stream, LongSupplier creationTime, Supplier<String> name, boolean vp8, Runnable lossListener) {
+        this.stream = stream;
+        this.creationTime = creationTime;
+        this.name = name;
+        this.vp8 = vp8;
+        this.lossListener = lossListener;
+        pool = FrameSlabPool.getInstance();
+        Arrays.fill(seqs, -1);
+    }
+
+    /**
+     * Takes a video RTP packet, dispatching any frames it completes.
+     *
+     * @param buf
+     * @param offset packet offset
+     * @param length packet length
+     * @param now milliseconds
+     */
+    public void receive(byte[] buf, int offset, int length, long now) {
+        int headerLength = RtpPackets.getHeaderLength(buf, offset, length);
+        if (closed || headerLength == -1) {
+            return;
+        }
+        int payloadLength = length - headerLength - ((buf[offset] & 0x20) != 0 ? buf[offset + length - 1] & 0xff : 0);
+        if (payloadLength < 0 || payloadLength > MAX_PAYLOAD) {
+            return;
+        }
+        int payloadOffset = offset + headerLength;
+        int seq = RtpPackets.readUint16(buf, offset + 2);
+        boolean start = payloadLength > 0 && isStart(buf, payloadOffset, payloadLength);
+        if (nextSeq == -1) {
+            if (!start) {
+                return;
+            }
+            nextSeq = highestSeq = seq;
+        }
+        int diff = (short) (seq - nextSeq);
+        if (diff >= SIZE || diff <= -SIZE) {
+            // a jump either way the ring can't span, such as an encoder restart, starts over on the next frame start
+            drop();
+            clear();
+            nextSeq = -1;
+            pendingSince = -1L;
+            if (!start) {
+                return;
+            }
+            nextSeq = highestSeq = seq;
+            diff = 0;
+        }
+        // a late packet's frame is gone, but the wait is still checked below
+        if (diff >= 0) {
+            if ((short) (seq - highestSeq) > 0) {
+                highestSeq = seq;
+            }
+            int slot = seq & MASK;
+            if (payloads[slot] == null) {
+                payloads[slot] = new byte[MAX_PAYLOAD];
+            }
+            System.arraycopy(buf, payloadOffset, payloads[slot], 0, payloadLength);
+            seqs[slot] = seq;
+            lengths[slot] = payloadLength;
+            timestamps[slot] = ((long) RtpPackets.readUint16(buf, offset + 4) << 16) | RtpPackets.readUint16(buf, offset + 6);
+            flags[slot] = (byte) (((buf[offset + 1] & 0x80) != 0 ? MARKER : 0) | (start ? START : 0));
+            if (pendingSince == -1L) {
+                pendingSince = now;
+            }
+        }
+        while (nextSeq != -1) {
+            int end = findEnd();
+            if (end != -1) {
+                assemble(end, now);
+            } else if (pendingSince != -1L && now - pendingSince > MAX_WAIT) {
+                drop();
+                resync(now);
+            } else {
+                break;
+            }
+        }
+    }
+
+    private boolean isStart(byte[] buf, int offset, int length) {
+        if (vp8) {
+            // S set on partition 0
+            return (buf[offset] & 0x1f) == 0x10;
+        }
+        // anything but the middle or end of a fragmented nal
+        return (buf[offset] & 0x1f) != 28 || (length > 1 && (buf[offset + 1] & 0x80) != 0);
+    }
+
+    private boolean isPresent(int seq) {
+        return seqs[seq & MASK] == seq;
+    }
+
+    /**
+     * Returns the last sequence number of the frame starting at the next sequence number if all of it has arrived.
+     */
+    private int findEnd() {
+        if (!isPresent(nextSeq)) {
+            return -1;
+        }
+        long timestamp = timestamps[nextSeq & MASK];
+        for (int i = 0; i < SIZE; i++) {
+            int seq = (nextSeq + i) & 0xffff;
+            if (!isPresent(seq)) {
+                return -1;
+            }
+            int slot = seq & MASK;
+            if (timestamps[slot] != timestamp) {
+                // a lost marker, the next frame has started
+                return (seq - 1) & 0xffff;
+            }
+            if ((flags[slot] & MARKER) != 0) {
+                return seq;
+            }
+        }
+        return -1;
+    }
+
+    private void drop() {
+        WhipMetrics.videoFrameDropped();
+        if (!waitingForKeyframe) {
+            waitingForKeyframe = true;
+            if (lossListener != null) {
+                lossListener.run();
+            }
+        }
+    }
+
+    /**
+     * Skips to the first frame start after the frame given up on, or waits for another if none has arrived.
+     */
+    private void resync(long now) {
+        long timestamp = -1L;
+        int distance = (highestSeq - nextSeq) & 0xffff;
+        for (int i = 0; i <= distance; i++) {
+            int seq = (nextSeq + i) & 0xffff;
+            if (!isPresent(seq)) {
+                continue;
+            }
+            int slot = seq & MASK;
+            if (timestamp == -1L) {
+                timestamp = timestamps[slot];
+            } else if (timestamps[slot] != timestamp && (flags[slot] & START) != 0) {
+                release(nextSeq, seq);
+                nextSeq = seq;
+                pendingSince = now;
+                return;
+            }
+        }
+        clear();
+        nextSeq = -1;
+        pendingSince = -1L;
+    }
+
+    private void release(int from, int to) {
+        for (int seq = from; seq != to; seq = (seq + 1) & 0xffff) {
+            seqs[seq & MASK] = -1;
+        }
+    }
+
+    private void clear() {
+        Arrays.fill(seqs, -1);
+    }
+
+    private void assemble(int end, long now) {
+        int first = nextSeq;
+        int next = (end + 1) & 0xffff;
+        nextSeq = next;
+        // the next frame has been waiting since now if any of it has arrived
+        pendingSince = (short) (highestSeq - next) >= 0 ? now : -1L;
+        frameTimestamp = timestamps[first & MASK];
+        try {
+            if (vp8) {
+                assembleVp8(first, next);
+            } else {
+                assembleH264(first, next);
+            }
+        } finally {
+            release(first, next);
+        }
+    }
+
+    // room a frame can take in a slab, the payloads plus nal lengths
+    private int bound(int from, int to) {
+        int bound = TAG_HEADER_LENGTH;
+        for (int seq = from; seq != to; seq = (seq + 1) & 0xffff) {
+            int slot = seq & MASK;
+            bound += lengths[slot] + 4;
+            if (!vp8 && lengths[slot] > 0 && (payloads[slot][0] & 0x1f) == 24) {
+                // stap-a nal sizes grow from two bytes to four
+                bound += lengths[slot];
+            }
+        }
+        return bound;
+    }
+
+    /**
+     * Returns the slab's writer with room for a tag, moving to a new slab if the current one is short of it.
+     *
+     * @return writer or null if the tag is larger than a slab
+     */
+    private ByteBuffer reserve(int bound) {
+        if (bound > pool.getSlabSize()) {
+            return null;
+        }
+        if (slab == null || slab.remaining() < bound) {
+            if (slab != null) {
+                slab.release();
+            }
+            slab = pool.acquire();
+        }
+        return slab.writer();
+    }
+
+    private void assembleH264(int from, int to) {
+        scanParameterSets(from, to);
+        if (configChanged) {
+            writeSequenceHeader();
+        }
+        ByteBuffer out = reserve(bound(from, to));
+        if (out == null) {
+            drop();
+            return;
+        }
+        int start = out.position();
+        out.position(start + TAG_HEADER_LENGTH);
+        boolean keyframe = false;
+        // position of the length of the fragmented nal being assembled, -1 if there isn't one
+        int fragment = -1;
+        for (int seq = from; seq != to; seq = (seq + 1) & 0xffff) {
+            int slot = seq & MASK;
+            byte[] p = payloads[slot];
+            int length = lengths[slot];
+            if (length == 0) {
+                continue;
+            }
+            int type = p[0] & 0x1f;
+            if (type == 24) {
+                for (int pos = 1; pos + 2 < length;) {
+                    int size = RtpPackets.readUint16(p, pos);
+                    pos += 2;
+                    if (size == 0 || pos + size > length) {
+                        break;
+                    }
+                    keyframe |= writeNal(out, p, pos, size);
+                    pos += size;
+                }
+            } else if (type == 28) {
+                if (length < 2) {
+                    continue;
+                }
+                if ((p[1] & 0x80) != 0) {
+                    fragment = out.position();
+                    out.putInt(0).put((byte) ((p[0] & 0xe0) | (p[1] & 0x1f)));
+                    keyframe |= (p[1] & 0x1f) == 5;
+                }
+                if (fragment != -1) {
+                    out.put(p, 2, length - 2);
+                    if ((p[1] & 0x40) != 0) {
+                        out.putInt(fragment, out.position() - fragment - 4);
+                        fragment = -1;
+                    }
+                }
+            } else if (type >= 1 && type <= 23) {
+                keyframe |= writeNal(out, p, 0, length);
+            }
+        }
+        if (fragment != -1) {
+            // the end fragment never came, close the nal at what arrived
+            out.putInt(fragment, out.position() - fragment - 4);
+        }
+        finish(out, start, keyframe);
+    }
+
+    /**
+     * Writes a nal with its length; parameter sets are left out, they go in the sequence header.
+     *
+     * @return whether it's an idr slice
+     */
+    private static boolean writeNal(ByteBuffer out, byte[] p, int offset, int length) {
+        int type = p[offset] & 0x1f;
+        if (type == 7 || type == 8) {
+            return false;
+        }
+        out.putInt(length).put(p, offset, length);
+        return type == 5;
+    }
+
+    /**
+     * Keeps the frame's sps and pps, noting when they differ from those last sent.
+     */
+    private void scanParameterSets(int from, int to) {
+        for (int seq = from; seq != to; seq = (seq + 1) & 0xffff) {
+            int slot = seq & MASK;
+            byte[] p = payloads[slot];
+            int length = lengths[slot];
+            if (length == 0) {
+                continue;
+            }
+            int type = p[0] & 0x1f;
+            if (type == 24) {
+                for (int pos = 1; pos + 2 < length;) {
+                    int size = RtpPackets.readUint16(p, pos);
+                    pos += 2;
+                    if (size == 0 || pos + size > length) {
+                        break;
+                    }
+                    keepParameterSet(p, pos, size);
+                    pos += size;
+                }
+            } else if (type == 7 || type == 8) {
+                keepParameterSet(p, 0, length);
+            }
+        }
+    }
+
+    private void keepParameterSet(byte[] p, int offset, int length) {
+        int type = p[offset] & 0x1f;
+        if ((type != 7 && type != 8) || length > MAX_PARAMETER_SET) {
+            return;
+        }
+        byte[] set = type == 7 ? sps : pps;
+        int setLength = type == 7 ? spsLength : ppsLength;
+        if (length != setLength || !rangeEquals(set, p, offset, length)) {
+            System.arraycopy(p, offset, set, 0, length);
+            if (type == 7) {
+                spsLength = length;
+            } else {
+                ppsLength = length;
+            }
+            configChanged = true;
+        }
+    }
+
+    private static boolean rangeEquals(byte[] a, byte[] b, int offset, int length) {
+        for (int i = 0; i < length; i++) {
+            if (a[i] != b[offset + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Dispatches an AVC sequence header for the parameter sets, once there's both.
+     */
+    private void writeSequenceHeader() {
+        if (spsLength < 4 || ppsLength == 0) {
+            return;
+        }
+        ByteBuffer out = reserve(TAG_HEADER_LENGTH + 11 + spsLength + ppsLength);
+        int start = out.position();
+        out.put((byte) 0x17).put((byte) 0).put((byte) 0).put((byte) 0).put((byte) 0);
+        // AVCDecoderConfigurationRecord with four byte nal lengths
+        out.put((byte) 1).put(sps[1]).put(sps[2]).put(sps[3]).put((byte) 0xff);
+        out.put((byte) 0xe1).putShort((short) spsLength).put(sps, 0, spsLength);
+        out.put((byte) 1).putShort((short) ppsLength).put(pps, 0, ppsLength);
+        configChanged = false;
+        dispatch(slab.commit(start), frameTimestamp);
+    }
+
+    private void finish(ByteBuffer out, int start, boolean keyframe) {
+        if (out.position() - start <= TAG_HEADER_LENGTH || (waitingForKeyframe && !keyframe)) {
+            // nothing to pass on, the slab space is reused by the next frame
+            return;
+        }
+        waitingForKeyframe = false;
+        if (vp8) {
+            out.put(start, (byte) (0x80 | ((keyframe ? 1 : 2) << 4) | 1));
+            for (int i = 0; i < VP8_FOURCC.length; i++) {
+                out.put(start + 1 + i, VP8_FOURCC[i]);
+            }
+        } else {
+            out.put(start, (byte) (keyframe ? 0x17 : 0x27)).put(start + 1, (byte) 1);
+            out.put(start + 2, (byte) 0).put(start + 3, (byte) 0).put(start + 4, (byte) 0);
+        }
+        dispatch(slab.commit(start), frameTimestamp);
+    }
+
+    private void assembleVp8(int from, int to) {
+        int first = from & MASK;
+        int pos = vp8DescriptorLength(payloads[first], lengths[first]);
+        // P bit of the frame tag is clear on keyframes
+        boolean keyframe = pos != -1 && pos < lengths[first] && (payloads[first][pos] & 0x01) == 0;
+        if (keyframe && !sequenceStarted) {
+            writeVp8SequenceStart();
+        }
+        ByteBuffer out = reserve(bound(from, to));
+        if (out == null) {
+            drop();
+            return;
+        }
+        int start = out.position();
+        out.position(start + TAG_HEADER_LENGTH);
+        for (int seq = from; seq != to; seq = (seq + 1) & 0xffff) {
+            int slot = seq & MASK;
+            int length = lengths[slot];
+            pos = vp8DescriptorLength(payloads[slot], length);
+            if (pos != -1 && pos < length) {
+                out.put(payloads[slot], pos, length - pos);
+            }
+        }
+        finish(out, start, keyframe);
+    }
+
+    // RFC 7741 section 4.2
+    private static int vp8DescriptorLength(byte[] p, int length) {
+        if (length < 1) {
+            return -1;
+        }
+        int pos = 1;
+        if ((p[0] & 0x80) != 0) {
+            if (length < 2) {
+                return -1;
+            }
+            int x = p[1];
+            pos++;
+            if ((x & 0x80) != 0) {
+                pos += length > pos && (p[pos] & 0x80) != 0 ? 2 : 1;
+            }
+            if ((x & 0x40) != 0) {
+                pos++;
+            }
+            if ((x & 0x30) != 0) {
+                pos++;
+            }
+        }
+        return pos;
+    }
+
+    /**
+     * Dispatches an enhanced RTMP sequence start with a VPCodecConfigurationRecord ahead of the first keyframe.
+     */
+    private void writeVp8SequenceStart() {
+        ByteBuffer out = reserve(VP8_SEQUENCE_START.length);
+        int start = out.position();
+        out.put(VP8_SEQUENCE_START);
+        sequenceStarted = true;
+        dispatch(slab.commit(start), frameTimestamp);
+    }
+
+    private void dispatch(ByteBuffer frame, long rtpTimestamp) {
+        if (firstTimestamp < 0L) {
+            firstTimestamp = rtpTimestamp;
+            baseTime = Math.max(0L, System.currentTimeMillis() - creationTime.getAsLong());
+            log.debug("Video depacketizer started for {} at {} ms", name.get(), baseTime);
+        }
+        // the timestamp difference is taken modulo 2^32, so it survives the rtp clock wrapping
+        long elapsed = (rtpTimestamp - firstTimestamp) & 0xffffffffL;
+        SlabVideoData video = new SlabVideoData(IoBuffer.wrap(frame), slab);
+        video.setTimestamp((int) (baseTime + elapsed * 1000L / CLOCK_RATE));
+        try {
+            stream.dispatchEvent(video);
+        } catch (Exception e) {
+            log.debug("Video dispatch failed", e);
+        }
+    }
+
+    public void close() {
+        closed = true;
+        if (slab != null) {
+            slab.release();
+            slab = null;
+        }
+    }
+
+    /**
+     * Video event over a frame in a slab, releasing the frame's reference with the event.
+     */
+    private static final class SlabVideoData extends VideoData {
+
+        private Slab slab;
+
+        SlabVideoData(IoBuffer data, Slab slab) {
+            super(data);
+            this.slab = slab;
+        }
+
+        @Override
+        protected void releaseInternal() {
+            super.releaseInternal();
+            if (slab != null) {
+                slab.release();
+                slab = null;
+            }
+        }
+
+    }
+
+}
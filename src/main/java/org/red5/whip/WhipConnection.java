@@ -1,6 +1,7 @@
 package org.red5.whip;
 
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -55,7 +56,10 @@ public class WhipConnection extends RTMPConnection implements IRTCCapableConnect
     
     private String clientId;
 
-    private long lastReceiveTime, lastSendTime;
+    // latest packet times, only ever moved forward
+    private final AtomicLong lastReceiveTime = new AtomicLong(), lastSendTime = new AtomicLong();
+
+    private final MediaCounters audioCounters = new MediaCounters(), videoCounters = new MediaCounters(), otherCounters = new MediaCounters();
     
     public WhipConnection(String userAgent) {
         super(IConnection.Type.PERSISTENT.name().toLowerCase());
@@ -377,27 +381,56 @@ public class WhipConnection extends RTMPConnection implements IRTCCapableConnect
     }
 
     public void updateReceivePacketTime(long packetTime) {
-        if (lastReceiveTime < packetTime) {
-            lastReceiveTime = packetTime;
+        // skip the atomic update for the common case of a packet in the same millisecond
+        if (lastReceiveTime.get() < packetTime) {
+            lastReceiveTime.accumulateAndGet(packetTime, Math::max);
         }
     }
 
     public void updateSendPacketTime(long packetTime) {
-        if (lastSendTime < packetTime) {
-            lastSendTime = packetTime;
+        if (lastSendTime.get() < packetTime) {
+            lastSendTime.accumulateAndGet(packetTime, Math::max);
         }
     }
 
+    public long getLastReceiveTime() {
+        return lastReceiveTime.get();
+    }
+
+    public long getLastSendTime() {
+        return lastSendTime.get();
+    }
+
     @Override
-    public void updateAudioRecvCounter() {        
+    public void updateAudioRecvCounter() {
+        audioCounters.increment();
     }
 
     @Override
     public void updateVideoRecvCounter() {
+        videoCounters.increment();
     }
 
     @Override
     public void updateOtherRecvCounter() {
+        otherCounters.increment();
+    }
+
+    public MediaCounters getAudioCounters() {
+        return audioCounters;
+    }
+
+    public MediaCounters getVideoCounters() {
+        return videoCounters;
+    }
+
+    /**
+     * Returns the counters for everything other than audio and video, such as the data channel.
+     *
+     * @return counters
+     */
+    public MediaCounters getOtherCounters() {
+        return otherCounters;
     }
 
     @Override
@@ -1,8 +1,15 @@
 package org.red5.whip;
 
-import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
 
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
 import javax.servlet.ServletConfig;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
@@ -12,11 +19,13 @@ import javax.servlet.http.HttpServletResponse;
 import org.red5.server.api.scope.IGlobalScope;
 import org.red5.server.api.scope.IScope;
 import org.red5.server.plugin.PluginRegistry;
+import org.red5.whip.SetupTimings.Stage;
+import org.red5.whip.WhipEvents.OfferReceived;
+import org.red5.whip.WhipOffer.OfferTooLargeException;
+import org.red5.whip.WhipSessionService.StreamInUseException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.red5pro.media.sdp.SDPFactory;
-import com.red5pro.media.sdp.SessionDescription;
 import com.red5pro.plugin.Red5ProPlugin;
 import com.red5pro.util.ScopeUtil;
 import com.red5pro.webrtc.plugin.WebRTCPlugin;
@@ -38,13 +47,81 @@ public class WhipEndpoint extends HttpServlet {
 
     private static WhipSessionService sessionService;
 
+    private static PublishPipeline pipeline;
+
+    // async request timeout in milliseconds
+    private long asyncTimeout = 30000L;
+
+    // largest sdp offer accepted, in bytes
+    private int maxOfferSize = 65536;
+
     @Override
     public void init(ServletConfig config) throws ServletException {
         plugin = ((WebRTCPlugin) PluginRegistry.getPlugin(WebRTCPlugin.NAME));
+        int cores = Runtime.getRuntime().availableProcessors();
+        pipeline = new PublishPipeline(getIntParameter(config, "setupThreads", cores * 2), getIntParameter(config, "setupQueueSize", 256), getIntParameter(config, "startThreads", 64), getIntParameter(config, "startQueueSize", 1024));
         sessionService = new WhipSessionService();
+        sessionService.setPipeline(pipeline);
+        asyncTimeout = getIntParameter(config, "asyncTimeout", (int) asyncTimeout);
+        maxOfferSize = getIntParameter(config, "maxOfferSize", maxOfferSize);
+        DtlsCertificateManager.start(getIntParameter(config, "certificateRotationInterval", 86400000));
+        WhipPublisher.setIceStartOnCompleted(Boolean.parseBoolean(config.getInitParameter("iceStartOnCompleted")));
+        WhipPublisher.setTransportCc(Boolean.parseBoolean(config.getInitParameter("transportCc")));
+        String rtx = config.getInitParameter("rtx");
+        WhipPublisher.setRtx(rtx == null || Boolean.parseBoolean(rtx));
+        WhipPublisher.setUlpfec(Boolean.parseBoolean(config.getInitParameter("ulpfec")));
+        WhipPublisher.setTranscodeGracePeriod(getIntParameter(config, "transcodeGracePeriod", 30000));
+        WhipPublisher.setNackReorderWindow(getIntParameter(config, "nackReorderWindow", NackRequester.DEFAULT_REORDER_WINDOW));
+        String answerTemplates = config.getInitParameter("answerTemplates");
+        AnswerTemplate.setEnabled(answerTemplates == null || Boolean.parseBoolean(answerTemplates));
+        UdpMux.start(getIntParameter(config, "singlePort", 0));
+        SetupMetrics.start();
+        FeedbackScheduler.start(getIntParameter(config, "feedbackInterval", 1000), getIntParameter(config, "feedbackThreads", 2));
+        FrameSlabPool.start(getIntParameter(config, "frameSlabSize", FrameSlabPool.DEFAULT_SLAB_SIZE), getIntParameter(config, "frameSlabPoolSize", 64));
+        TranscodeScheduler.start(getIntParameter(config, "transcodeMaxActive", 0), getIntParameter(config, "transcodeCpuBudget", 0));
+        KeyframePolicy.start(getIntParameter(config, "keyframeMinInterval", 1000), getIntParameter(config, "keyframeMaxGop", 0));
+        DtlsReadyWatcher.start(getIntParameter(config, "dtlsCheckInterval", 100), getIntParameter(config, "dtlsTimeout", 10000));
+        IceAgentPool.start(getIntParameter(config, "agentPoolSize", 0), getIntParameter(config, "agentPoolMaxIdle", 30000), getIntParameter(config, "agentPoolRefillInterval", 1000));
         super.init(config);
     }
 
+    @Override
+    public void destroy() {
+        if (pipeline != null) {
+            pipeline.shutdown();
+        }
+        IceAgentPool.stop();
+        SetupMetrics.stop();
+        DtlsReadyWatcher.stop();
+        KeyframePolicy.stop();
+        TranscodeScheduler.stop();
+        FrameSlabPool.stop();
+        FeedbackScheduler.stop();
+        UdpMux.stop();
+        DtlsCertificateManager.stop();
+        super.destroy();
+    }
+
+    /**
+     * Returns an int init parameter or the default if its not set.
+     *
+     * @param config
+     * @param name
+     * @param defaultValue
+     * @return value
+     */
+    private int getIntParameter(ServletConfig config, String name, int defaultValue) {
+        String value = config.getInitParameter(name);
+        if (value != null) {
+            try {
+                return Integer.parseInt(value.trim());
+            } catch (NumberFormatException e) {
+                log.warn("Invalid value for {}: {}", name, value);
+            }
+        }
+        return defaultValue;
+    }
+
     @Override
     public void doPost(HttpServletRequest request, HttpServletResponse response) throws IOException {
         if (log.isDebugEnabled()) {
@@ -66,22 +143,21 @@ public class WhipEndpoint extends HttpServlet {
             // get the stream id / name
             String streamId = request.getParameter("streamId");
             log.info("Stream id: {}", streamId);
-            // offer sdp
-            SessionDescription offer = null;
-            // read the body
-            try (BufferedReader br = request.getReader()) {
-                int b;
-                StringBuilder buf = new StringBuilder();
-                while ((b = br.read()) != -1) {
-                    buf.append((char) b);
-                }
-                br.close();
-                offer = SDPFactory.createSessionDescription(buf.toString());
+            // offer sdp, read as bytes up to the max size; the session description is parsed during setup
+            WhipOffer offer = null;
+            long readStart = System.nanoTime();
+            try (InputStream in = request.getInputStream()) {
+                offer = WhipOffer.read(in, request.getContentLength(), maxOfferSize);
+            } catch (OfferTooLargeException e) {
+                log.warn("Rejecting sdp offer for {}: {}", streamId, e.getMessage());
+                response.sendError(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE, "Offer too large"); // 413
+                return;
             } catch (IOException e) {
                 log.warn("Exception reading the sdp offer for {}", streamId, e);
             }
+            long readNanos = System.nanoTime() - readStart;
             log.debug("SDP offer: {}", offer);
-            if (offer != null) {
+            if (offer != null && offer.isValid()) {
                 // start at the global scope               
                 IGlobalScope global = plugin.getServer().getGlobal("default");
                 // applications scope
@@ -98,50 +174,117 @@ public class WhipEndpoint extends HttpServlet {
                 // connect to the scope
                 IScope scope = path.length() > 0 ? ScopeUtil.resolveScope(appScope, path, true, false) : appScope;
                 if (scope != null) {
-                    // http response sent already?
-                    boolean responseSent = false;
                     // create a wrapper for this connection
                     WhipConnection conn = new WhipConnection(request.getHeader("user-agent"));
                     conn.setClientId(streamId);
                     // connect to the scope
                     conn.connect(scope);
-                    // create a publisher rtc session
-                    WhipPublisher publisher;
+                    // setup stages are recorded per scope and browser family
+                    SetupTimings timings = new SetupTimings(scope.getContextPath(), conn.getUserAgentEnum());
+                    timings.record(Stage.READ, readNanos);
+                    OfferReceived received = new OfferReceived(offer.getLength(), readNanos);
+                    if (received.shouldCommit()) {
+                        received.setSession(streamId, scope.getContextPath(), conn.getUserAgentEnum());
+                        received.commit();
+                    }
+                    // release the container thread; the response is completed once the answer is ready
+                    final AsyncContext asyncContext = request.startAsync();
+                    asyncContext.setTimeout(asyncTimeout);
+                    final WhipOffer offered = offer;
+                    // set by whichever of the setup, the timeout or an error finishes the request first
+                    final AtomicBoolean completed = new AtomicBoolean();
+                    final CompletableFuture<WhipPublisher> setup;
                     try {
-                        publisher = sessionService.setupPublisher(conn, streamId, offer);
-                        // get the answer sdp
-                        String answer = publisher.getLocalSdp();
-                        // as bytes
-                        byte[] answerBytes = answer.toString().getBytes();
-                        // generated location header for PATCH and DELETE POST's
-                        String location = String.format("%s/endpoint?streamId=%s", scope.getContextPath(), streamId);
-                        // prepare response
-                        response.setHeader("X-Powered-By", "Red5");
-                        response.setHeader("location", location);
-                        response.setStatus(HttpServletResponse.SC_ACCEPTED);
-                        response.setContentType(CONTENT_TYPE);
-                        response.setCharacterEncoding("UTF-8");
-                        response.setContentLength(answerBytes.length);
-                        try {
-                            response.getOutputStream().write(answerBytes);
-                            responseSent = true;
-                        } catch (Exception e) {
-                            log.warn("Exception writing sdp answer", e);
+                        // create a publisher rtc session
+                        setup = sessionService.setupPublisher(conn, streamId, offered, timings);
+                    } catch (RejectedExecutionException e) {
+                        log.warn("Publish setup rejected for {} at {}", streamId, requestedURI);
+                        conn.close("Publisher rejected", true);
+                        HttpServletResponse asyncResponse = (HttpServletResponse) asyncContext.getResponse();
+                        asyncResponse.setHeader("Retry-After", "1");
+                        asyncResponse.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "Too many publishes in progress"); // 503
+                        asyncContext.complete();
+                        return;
+                    }
+                    asyncContext.addListener(new AsyncListener() {
+
+                        @Override
+                        public void onTimeout(AsyncEvent event) throws IOException {
+                            if (completed.compareAndSet(false, true)) {
+                                log.warn("Publish setup timed out for {} at {}", streamId, requestedURI);
+                                // cancelling the setup cleans up its session, wherever it got to
+                                setup.cancel(false);
+                                conn.close("Publish setup timed out", true);
+                                HttpServletResponse asyncResponse = (HttpServletResponse) event.getAsyncContext().getResponse();
+                                if (!asyncResponse.isCommitted()) {
+                                    asyncResponse.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "Publish setup timed out"); // 503
+                                }
+                            }
+                            event.getAsyncContext().complete();
                         }
-                        // start the publish
-                        if (publisher.start()) {
-                            // SUCCESS!
-                        } else {
-                            conn.close("Publish start failed", true);
+
+                        @Override
+                        public void onError(AsyncEvent event) throws IOException {
+                            if (completed.compareAndSet(false, true)) {
+                                log.warn("Publish request failed for {} at {}", streamId, requestedURI, event.getThrowable());
+                                setup.cancel(false);
+                                conn.close("Publish request failed", true);
+                            }
+                            event.getAsyncContext().complete();
                         }
-                    } catch (Exception e) {
-                        conn.close("Publisher failed", true);
-                        // error not allowed after response is sent
-                        if (!responseSent) {
-                            response.sendError(HttpServletResponse.SC_NOT_ACCEPTABLE, e.getMessage()); // 406
+
+                        @Override
+                        public void onComplete(AsyncEvent event) throws IOException {
                         }
-                        log.warn("Publish failed for {} at {}", streamId, requestedURI, e);
-                    }
+
+                        @Override
+                        public void onStartAsync(AsyncEvent event) throws IOException {
+                        }
+
+                    });
+                    setup.whenComplete((publisher, t) -> {
+                        if (!completed.compareAndSet(false, true)) {
+                            // the request timed out or failed first and its response is gone
+                            if (publisher != null) {
+                                sessionService.cleanupStreamSessionForResource(publisher.getResourceId());
+                            }
+                            return;
+                        }
+                        HttpServletResponse asyncResponse = (HttpServletResponse) asyncContext.getResponse();
+                        if (t == null && writeAnswer(asyncResponse, scope, publisher)) {
+                            asyncContext.complete();
+                            // start the publish
+                            try {
+                                pipeline.submitStart(publisher).whenComplete((started, st) -> {
+                                    if (st != null || !started) {
+                                        log.warn("Publish start failed for {} at {}", streamId, requestedURI, st);
+                                        conn.close("Publish start failed", true);
+                                    }
+                                });
+                            } catch (RejectedExecutionException e) {
+                                log.warn("Publish start rejected for {} at {}", streamId, requestedURI);
+                                conn.close("Publish start rejected", true);
+                            }
+                        } else {
+                            conn.close("Publisher failed", true);
+                            // error not allowed after response is sent
+                            if (!asyncResponse.isCommitted()) {
+                                Throwable cause = t instanceof CompletionException && t.getCause() != null ? t.getCause() : t;
+                                String message = cause != null ? cause.getMessage() : "Answer write failed";
+                                try {
+                                    if (cause instanceof StreamInUseException) {
+                                        asyncResponse.sendError(HttpServletResponse.SC_CONFLICT, message); // 409
+                                    } else {
+                                        asyncResponse.sendError(HttpServletResponse.SC_NOT_ACCEPTABLE, message); // 406
+                                    }
+                                } catch (IOException e) {
+                                    log.warn("Exception sending error for {}", streamId, e);
+                                }
+                            }
+                            asyncContext.complete();
+                            log.warn("Publish failed for {} at {}", streamId, requestedURI, t);
+                        }
+                    });
                 } else {
                     log.warn("Scope resolver failed for {} at {}", streamId, requestedURI);
                     response.sendError(HttpServletResponse.SC_NOT_FOUND);
@@ -154,6 +297,39 @@ public class WhipEndpoint extends HttpServlet {
         }
     }
 
+    /**
+     * Writes the sdp answer and location header to the response.
+     *
+     * @param response
+     * @param scope
+     * @param publisher
+     * @return true if the answer was written and false otherwise
+     */
+    private boolean writeAnswer(HttpServletResponse response, IScope scope, WhipPublisher publisher) {
+        long start = System.nanoTime();
+        try {
+            // get the answer sdp
+            String answer = publisher.getLocalSdp();
+            // as bytes
+            byte[] answerBytes = answer.toString().getBytes();
+            // generated location header for PATCH and DELETE POST's
+            String location = String.format("%s/endpoint?resource=%s", scope.getContextPath(), publisher.getResourceId());
+            // prepare response
+            response.setHeader("X-Powered-By", "Red5");
+            response.setHeader("location", location);
+            response.setStatus(HttpServletResponse.SC_ACCEPTED);
+            response.setContentType(CONTENT_TYPE);
+            response.setCharacterEncoding("UTF-8");
+            response.setContentLength(answerBytes.length);
+            response.getOutputStream().write(answerBytes);
+            publisher.getSetupTimings().record(Stage.WRITE, System.nanoTime() - start);
+            return true;
+        } catch (Exception e) {
+            log.warn("Exception writing sdp answer", e);
+        }
+        return false;
+    }
+
     @Override
     public void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
         response.sendError(HttpServletResponse.SC_METHOD_NOT_ALLOWED, "GET method not supported"); // 405
@@ -184,11 +360,19 @@ public class WhipEndpoint extends HttpServlet {
             // connect to the scope
             IScope scope = path.length() > 0 ? ScopeUtil.resolveScope(appScope, path, false, false) : appScope;
             if (scope != null) {
-                // get the stream id / name
-                String streamId = request.getParameter("streamId");
-                log.info("Stream id: {}", streamId);
-                sessionService.cleanupStreamSession(streamId);
-                if (sessionService.getStreamSessionForRequest(streamId) == null) {
+                // get the resource id handed out in the location header
+                String resourceId = request.getParameter("resource");
+                boolean removed;
+                if (resourceId != null) {
+                    log.info("Resource id: {}", resourceId);
+                    removed = sessionService.cleanupStreamSessionForResource(resourceId);
+                } else {
+                    // fallback to the stream id / name
+                    String streamId = request.getParameter("streamId");
+                    log.info("Stream id: {}", streamId);
+                    removed = streamId != null && sessionService.cleanupStreamSession(scope.getContextPath(), streamId);
+                }
+                if (removed) {
                     response.setStatus(HttpServletResponse.SC_OK);
                 } else {
                     response.sendError(HttpServletResponse.SC_NOT_FOUND, "Session not found"); // 404
@@ -0,0 +1,242 @@
+package org.red5.whip;
+
+import com.red5pro.media.sdp.SDPUserAgent;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * Flight Recorder events for the WHIP session lifecycle, so setup stalls can be lined up with GC, safepoints and socket
+ * activity in the same recording. Each event carries the stream name, scope path and browser family; stages which do
+ * work are duration events, begun before the work and committed after it, while the points in between carry the time
+ * since the step they follow. Events are only filled in when {@link Event#shouldCommit()} says they're being recorded.
+ *
+ * @author Paul Gregoire
+ */
+public final class WhipEvents {
+
+    private WhipEvents() {
+    }
+
+    @Category({ "Red5", "WHIP" })
+    @StackTrace(false)
+    public abstract static class SessionEvent extends Event {
+
+        @Label("Stream Name")
+        String streamName;
+
+        @Label("Scope")
+        String scope;
+
+        @Label("User Agent")
+        String userAgent;
+
+        /**
+         * Sets the session fields.
+         *
+         * @param streamName
+         * @param scopePath
+         * @param userAgent
+         */
+        public void setSession(String streamName, String scopePath, SDPUserAgent userAgent) {
+            this.streamName = streamName;
+            this.scope = scopePath;
+            this.userAgent = userAgent != null ? userAgent.name() : null;
+        }
+
+    }
+
+    @Name("org.red5.whip.OfferReceived")
+    @Label("Offer Received")
+    public static final class OfferReceived extends SessionEvent {
+
+        @Label("Offer Length")
+        @DataAmount
+        int offerLength;
+
+        @Label("Read Duration")
+        @Timespan
+        long readDuration;
+
+        public OfferReceived(int offerLength, long readDuration) {
+            this.offerLength = offerLength;
+            this.readDuration = readDuration;
+        }
+
+    }
+
+    @Name("org.red5.whip.CodecSelected")
+    @Label("Codec Selected")
+    @Description("Codec selection from the offer")
+    public static final class CodecSelected extends SessionEvent {
+
+        @Label("Audio Codec")
+        String audioCodec;
+
+        @Label("Audio Payload Type")
+        int audioPayloadType;
+
+        @Label("Video Codec")
+        String videoCodec;
+
+        @Label("Video Payload Type")
+        int videoPayloadType;
+
+        public void setCodecs(Object audioCodec, int audioPayloadType, Object videoCodec, int videoPayloadType) {
+            this.audioCodec = String.valueOf(audioCodec);
+            this.audioPayloadType = audioPayloadType;
+            this.videoCodec = String.valueOf(videoCodec);
+            this.videoPayloadType = videoPayloadType;
+        }
+
+    }
+
+    @Name("org.red5.whip.DtlsControlCreated")
+    @Label("DTLS Control Created")
+    @Description("Creation of the DTLS/SRTP controls")
+    public static final class DtlsControlCreated extends SessionEvent {
+
+        @Label("Controls")
+        int controls;
+
+        @Label("Shared Certificate")
+        boolean sharedCertificate;
+
+        public void setControls(int controls, boolean sharedCertificate) {
+            this.controls = controls;
+            this.sharedCertificate = sharedCertificate;
+        }
+
+    }
+
+    @Name("org.red5.whip.PortBound")
+    @Label("Port Bound")
+    @Description("Binding of the ICE component port")
+    public static final class PortBound extends SessionEvent {
+
+        @Label("Requested Port")
+        int requestedPort;
+
+        @Label("Port")
+        int port;
+
+        @Label("Pooled")
+        @Description("The port came bound with a pooled agent")
+        boolean pooled;
+
+        public void setPort(int requestedPort, int port, boolean pooled) {
+            this.requestedPort = requestedPort;
+            this.port = port;
+            this.pooled = pooled;
+        }
+
+    }
+
+    @Name("org.red5.whip.IceStateChange")
+    @Label("ICE State Change")
+    public static final class IceStateChange extends SessionEvent {
+
+        @Label("Old State")
+        String oldState;
+
+        @Label("New State")
+        String newState;
+
+        @Label("Since ICE Start")
+        @Timespan
+        long sinceIceStart;
+
+        public void setStates(Object oldState, Object newState, long sinceIceStart) {
+            this.oldState = String.valueOf(oldState);
+            this.newState = String.valueOf(newState);
+            this.sinceIceStart = sinceIceStart;
+        }
+
+    }
+
+    @Name("org.red5.whip.IceCompleted")
+    @Label("ICE Completed")
+    public static final class IceCompleted extends SessionEvent {
+
+        @Label("Connect Duration")
+        @Timespan
+        long connectDuration;
+
+        public IceCompleted(long connectDuration) {
+            this.connectDuration = connectDuration;
+        }
+
+    }
+
+    @Name("org.red5.whip.DtlsReady")
+    @Label("DTLS Ready")
+    public static final class DtlsReady extends SessionEvent {
+
+        @Label("Since ICE Completed")
+        @Timespan
+        long sinceIceComplete;
+
+        public DtlsReady(long sinceIceComplete) {
+            this.sinceIceComplete = sinceIceComplete;
+        }
+
+    }
+
+    @Name("org.red5.whip.FirstPliSent")
+    @Label("First PLI Sent")
+    public static final class FirstPliSent extends SessionEvent {
+
+        @Label("Media Source")
+        long ssrc;
+
+        @Label("Since ICE Completed")
+        @Timespan
+        long sinceIceComplete;
+
+        public FirstPliSent(long ssrc, long sinceIceComplete) {
+            this.ssrc = ssrc;
+            this.sinceIceComplete = sinceIceComplete;
+        }
+
+    }
+
+    @Name("org.red5.whip.Stop")
+    @Label("Publisher Stop")
+    @Description("Publisher teardown, from stop begun to stop finished")
+    public static final class Stop extends SessionEvent {
+
+        @Label("Started")
+        @Description("The publisher had started its media")
+        boolean started;
+
+        @Label("Tore Down")
+        @Description("This call performed the teardown rather than finding it already done")
+        boolean toreDown;
+
+        public void setStop(boolean started, boolean toreDown) {
+            this.started = started;
+            this.toreDown = toreDown;
+        }
+
+    }
+
+    @Name("org.red5.whip.PortReleased")
+    @Label("Port Released")
+    public static final class PortReleased extends SessionEvent {
+
+        @Label("Port")
+        int port;
+
+        public PortReleased(int port) {
+            this.port = port;
+        }
+
+    }
+
+}
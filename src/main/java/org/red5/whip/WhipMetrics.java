@@ -0,0 +1,340 @@
+package org.red5.whip;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.red5.whip.SetupTimings.Stage;
+import org.red5.whip.TranscodeScheduler.Priority;
+
+/**
+ * Node-wide WHIP ingest counters, updated as sessions move through their lifecycle and exported in the Prometheus text
+ * format by {@link WhipMetricsServlet}. Every value is an adder, an atomic or a map entry maintained by the lifecycle
+ * events, so a scrape only reads what's already been counted; sessions, the session service and the ICE agents aren't
+ * walked.
+ *
+ * @author Paul Gregoire
+ */
+public class WhipMetrics {
+
+    private static final double[] QUANTILES = { 50d, 90d, 99d };
+
+    private static final Stage[] STAGES = Stage.values();
+
+    // scope path to started sessions
+    private static final ConcurrentMap<String, AtomicLong> activeSessions = new ConcurrentHashMap<>();
+
+    // scope path/stream name to the connection of a started session
+    private static final ConcurrentMap<String, StreamEntry> streams = new ConcurrentHashMap<>();
+
+    private static final LongAdder setupsInFlight = new LongAdder();
+
+    private static final LongAdder iceFailures = new LongAdder();
+
+    private static final LongAdder dtlsFailures = new LongAdder();
+
+    private static final LongAdder allocatedPorts = new LongAdder();
+
+    private static final LongAdder pendingTeardowns = new LongAdder();
+
+    private static final LongAdder plisSent = new LongAdder(), firsSent = new LongAdder();
+
+    private static final LongAdder keyframeRequestsCoalesced = new LongAdder();
+
+    private static final LongAdder transcodingActive = new LongAdder();
+
+    private static final LongAdder transcodesShed = new LongAdder();
+
+    private static final LongAdder videoFramesDropped = new LongAdder();
+
+    // time streams waited for the transcode scheduler to admit them
+    private static final LatencyHistogram transcodeAdmissionLag = new LatencyHistogram();
+
+    private WhipMetrics() {
+    }
+
+    public static void setupStarted() {
+        setupsInFlight.increment();
+    }
+
+    public static void setupFinished() {
+        setupsInFlight.decrement();
+    }
+
+    public static void iceFailed() {
+        iceFailures.increment();
+    }
+
+    public static void dtlsFailed() {
+        dtlsFailures.increment();
+    }
+
+    public static void portAllocated() {
+        allocatedPorts.increment();
+    }
+
+    public static void portReleased() {
+        allocatedPorts.decrement();
+    }
+
+    public static void keyframeRequestSent(boolean fir) {
+        (fir ? firsSent : plisSent).increment();
+    }
+
+    public static void keyframeRequestCoalesced() {
+        keyframeRequestsCoalesced.increment();
+    }
+
+    public static void transcodingStarted() {
+        transcodingActive.increment();
+    }
+
+    public static void transcodingStopped() {
+        transcodingActive.decrement();
+    }
+
+    public static void transcodeAdmitted(long lagNanos) {
+        transcodeAdmissionLag.recordNanos(lagNanos);
+    }
+
+    public static void transcodeShed() {
+        transcodesShed.increment();
+    }
+
+    public static void videoFrameDropped() {
+        videoFramesDropped.increment();
+    }
+
+    public static void teardownStarted() {
+        pendingTeardowns.increment();
+    }
+
+    public static void teardownFinished() {
+        pendingTeardowns.decrement();
+    }
+
+    /**
+     * Adds a started session and its stream.
+     *
+     * @param scopePath
+     * @param streamName
+     * @param conn
+     */
+    public static void sessionStarted(String scopePath, String streamName, WhipConnection conn) {
+        activeSessions.computeIfAbsent(scopePath, path -> new AtomicLong()).incrementAndGet();
+        streams.put(scopePath + '/' + streamName, new StreamEntry(scopePath, streamName, conn));
+    }
+
+    /**
+     * Removes a started session and its stream.
+     *
+     * @param scopePath
+     * @param streamName
+     */
+    public static void sessionStopped(String scopePath, String streamName) {
+        if (streams.remove(scopePath + '/' + streamName) != null) {
+            AtomicLong count = activeSessions.get(scopePath);
+            if (count != null) {
+                count.decrementAndGet();
+            }
+        }
+    }
+
+    public static long getSetupsInFlight() {
+        return setupsInFlight.sum();
+    }
+
+    public static long getAllocatedPorts() {
+        return allocatedPorts.sum();
+    }
+
+    /**
+     * Returns a snapshot of the active session counts by scope path.
+     *
+     * @return counts
+     */
+    public static Map<String, Long> getActiveSessions() {
+        Map<String, Long> counts = new ConcurrentHashMap<>();
+        activeSessions.forEach((scopePath, count) -> counts.put(scopePath, count.get()));
+        return counts;
+    }
+
+    /**
+     * Writes all of the metrics in the Prometheus text exposition format.
+     *
+     * @param sb
+     */
+    public static void render(StringBuilder sb) {
+        header(sb, "whip_sessions_active", "gauge", "Publish sessions started and not yet stopped");
+        activeSessions.forEach((scopePath, count) -> {
+            sb.append("whip_sessions_active{scope=\"");
+            escape(sb, scopePath).append("\"} ").append(count.get()).append('\n');
+        });
+        gauge(sb, "whip_setups_in_flight", "Offers being answered", setupsInFlight.sum());
+        counter(sb, "whip_ice_failures_total", "Sessions whose ICE connectivity failed or timed out", iceFailures.sum());
+        counter(sb, "whip_dtls_failures_total", "Sessions stopped after ICE completed without DTLS becoming ready", dtlsFailures.sum());
+        gauge(sb, "whip_rtp_ports_allocated", "RTP ports held by sessions", allocatedPorts.sum());
+        IceAgentPool agents = IceAgentPool.getInstance();
+        if (agents != null) {
+            gauge(sb, "whip_agent_pool_idle", "ICE agents bound and harvested, waiting in the pool", agents.getAvailable());
+            counter(sb, "whip_agent_pool_hits_total", "Publishes given a pooled ICE agent", agents.getHits());
+            counter(sb, "whip_agent_pool_misses_total", "Publishes which found no pooled ICE agent ready", agents.getMisses());
+            counter(sb, "whip_agent_pool_refills_total", "ICE agents created to refill the pool", agents.getRefills());
+            counter(sb, "whip_agent_pool_expired_total", "Pooled ICE agents freed after idling past the max idle time", agents.getExpired());
+        }
+        gauge(sb, "whip_teardowns_pending", "Sessions being stopped", pendingTeardowns.sum());
+        gauge(sb, "whip_audio_transcoding_active", "Lazily or scheduled transcoded sessions currently transcoding audio", transcodingActive.sum());
+        renderTranscodeScheduler(sb);
+        counter(sb, "whip_video_frames_dropped_total", "Incomplete or oversized frames dropped by the video depacketizer", videoFramesDropped.sum());
+        FrameSlabPool slabs = FrameSlabPool.getInstance();
+        if (slabs != null) {
+            gauge(sb, "whip_frame_slabs_pooled", "Free frame slabs held by the pool", slabs.getPooled());
+            counter(sb, "whip_frame_slabs_allocated_total", "Frame slabs allocated", slabs.getAllocated());
+        }
+        header(sb, "whip_keyframe_requests_total", "counter", "Keyframe requests sent to publishers by the keyframe policy");
+        sb.append("whip_keyframe_requests_total{type=\"pli\"} ").append(plisSent.sum()).append('\n');
+        sb.append("whip_keyframe_requests_total{type=\"fir\"} ").append(firsSent.sum()).append('\n');
+        counter(sb, "whip_keyframe_requests_coalesced_total", "Keyframe requests folded into a pending one or answered before sending", keyframeRequestsCoalesced.sum());
+        renderSetupLatency(sb);
+        renderStreams(sb);
+    }
+
+    private static void renderSetupLatency(StringBuilder sb) {
+        header(sb, "whip_setup_latency_seconds", "summary", "Publish setup stage durations");
+        SetupMetrics.forEachSeries((scopePath, family, histograms) -> {
+            for (Stage stage : STAGES) {
+                LatencyHistogram histogram = histograms[stage.ordinal()];
+                long count = histogram.getCount();
+                if (count == 0L) {
+                    continue;
+                }
+                long[] values = histogram.getValuesAtPercentiles(QUANTILES);
+                for (int q = 0; q < QUANTILES.length; q++) {
+                    latencyLabels(sb.append("whip_setup_latency_seconds{"), scopePath, family, stage).append(",quantile=\"").append(QUANTILES[q] / 100d).append("\"} ");
+                    seconds(sb, values[q]).append('\n');
+                }
+                latencyLabels(sb.append("whip_setup_latency_seconds_sum{"), scopePath, family, stage).append("} ");
+                seconds(sb, histogram.getSum()).append('\n');
+                latencyLabels(sb.append("whip_setup_latency_seconds_count{"), scopePath, family, stage).append("} ").append(count).append('\n');
+            }
+        });
+    }
+
+    private static void renderTranscodeScheduler(StringBuilder sb) {
+        TranscodeScheduler scheduler = TranscodeScheduler.getInstance();
+        if (scheduler == null) {
+            return;
+        }
+        header(sb, "whip_transcode_waiting", "gauge", "Streams waiting for the transcode scheduler to admit them");
+        for (Priority priority : Priority.values()) {
+            sb.append("whip_transcode_waiting{priority=\"").append(priority.name().toLowerCase()).append("\"} ").append(scheduler.getWaiting(priority)).append('\n');
+        }
+        gauge(sb, "whip_transcode_admitted", "Streams admitted by the transcode scheduler", scheduler.getAdmitted());
+        gauge(sb, "whip_transcode_cpu_percent", "Process cpu load last sampled by the transcode scheduler", scheduler.getCpuLoad());
+        counter(sb, "whip_transcode_shed_total", "Streams whose transcoding was shed over the cpu budget", transcodesShed.sum());
+        header(sb, "whip_transcode_admission_lag_seconds", "summary", "Time streams waited for transcode admission");
+        long count = transcodeAdmissionLag.getCount();
+        if (count > 0L) {
+            long[] values = transcodeAdmissionLag.getValuesAtPercentiles(QUANTILES);
+            for (int q = 0; q < QUANTILES.length; q++) {
+                sb.append("whip_transcode_admission_lag_seconds{quantile=\"").append(QUANTILES[q] / 100d).append("\"} ");
+                seconds(sb, values[q]).append('\n');
+            }
+        }
+        seconds(sb.append("whip_transcode_admission_lag_seconds_sum "), transcodeAdmissionLag.getSum()).append('\n');
+        sb.append("whip_transcode_admission_lag_seconds_count ").append(count).append('\n');
+    }
+
+    private static void renderStreams(StringBuilder sb) {
+        header(sb, "whip_stream_bitrate_bits", "gauge", "Receive bitrate over the last second");
+        streams.values().forEach(entry -> entry.forEachMedia(sb, "whip_stream_bitrate_bits", MediaCounters::getBitrate));
+        header(sb, "whip_stream_packets_total", "counter", "Packets received");
+        streams.values().forEach(entry -> entry.forEachMedia(sb, "whip_stream_packets_total", MediaCounters::getPackets));
+        header(sb, "whip_stream_bytes_total", "counter", "RTP bytes received");
+        streams.values().forEach(entry -> entry.forEachMedia(sb, "whip_stream_bytes_total", MediaCounters::getBytes));
+        header(sb, "whip_stream_lost_packets_total", "counter", "Estimated RTP packets lost");
+        streams.values().forEach(entry -> entry.forEachMedia(sb, "whip_stream_lost_packets_total", MediaCounters::getLost));
+        header(sb, "whip_stream_retransmitted_packets_total", "counter", "Missing RTP packets received by retransmission");
+        streams.values().forEach(entry -> entry.forEachMedia(sb, "whip_stream_retransmitted_packets_total", MediaCounters::getRetransmitted));
+        header(sb, "whip_stream_retransmit_delay_milliseconds_total", "counter", "Time from packets found missing to their retransmission arriving");
+        streams.values().forEach(entry -> entry.forEachMedia(sb, "whip_stream_retransmit_delay_milliseconds_total", MediaCounters::getRetransmitDelay));
+        header(sb, "whip_stream_fec_recovered_packets_total", "counter", "Missing RTP packets recovered from FEC");
+        streams.values().forEach(entry -> entry.forEachMedia(sb, "whip_stream_fec_recovered_packets_total", MediaCounters::getFecRecovered));
+        header(sb, "whip_stream_fec_recovery_delay_milliseconds_total", "counter", "Time from packets found missing to their recovery from FEC");
+        streams.values().forEach(entry -> entry.forEachMedia(sb, "whip_stream_fec_recovery_delay_milliseconds_total", MediaCounters::getFecRecoveryDelay));
+    }
+
+    private static StringBuilder latencyLabels(StringBuilder sb, String scopePath, String family, Stage stage) {
+        sb.append("scope=\"");
+        escape(sb, scopePath).append("\",ua=\"").append(family).append("\",stage=\"").append(stage.name().toLowerCase()).append('"');
+        return sb;
+    }
+
+    private static StringBuilder seconds(StringBuilder sb, long micros) {
+        return sb.append(micros / 1000000L).append('.').append(String.format("%06d", micros % 1000000L));
+    }
+
+    private static void header(StringBuilder sb, String name, String type, String help) {
+        sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        sb.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void gauge(StringBuilder sb, String name, String help, long value) {
+        header(sb, name, "gauge", help);
+        sb.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void counter(StringBuilder sb, String name, String help, long value) {
+        header(sb, name, "counter", help);
+        sb.append(name).append(' ').append(value).append('\n');
+    }
+
+    // label values escape backslash, double-quote and line feed
+    static StringBuilder escape(StringBuilder sb, String value) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '\\' || c == '"') {
+                sb.append('\\').append(c);
+            } else if (c == '\n') {
+                sb.append("\\n");
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb;
+    }
+
+    private interface CounterValue {
+
+        long get(MediaCounters counters);
+
+    }
+
+    private static final class StreamEntry {
+
+        final String scopePath, streamName;
+
+        final WhipConnection conn;
+
+        StreamEntry(String scopePath, String streamName, WhipConnection conn) {
+            this.scopePath = scopePath;
+            this.streamName = streamName;
+            this.conn = conn;
+        }
+
+        void forEachMedia(StringBuilder sb, String name, CounterValue value) {
+            media(sb, name, "audio", value.get(conn.getAudioCounters()));
+            media(sb, name, "video", value.get(conn.getVideoCounters()));
+        }
+
+        private void media(StringBuilder sb, String name, String media, long value) {
+            sb.append(name).append("{scope=\"");
+            escape(sb, scopePath).append("\",stream=\"");
+            escape(sb, streamName).append("\",media=\"").append(media).append("\"} ").append(value).append('\n');
+        }
+
+    }
+
+}
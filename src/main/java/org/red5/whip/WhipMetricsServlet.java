@@ -0,0 +1,35 @@
+package org.red5.whip;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Read-only export of the WHIP ingest metrics in the Prometheus text format.
+ *
+ * @author Paul Gregoire
+ */
+public class WhipMetricsServlet extends HttpServlet {
+
+    private static final long serialVersionUID = 3366655543L;
+
+    private static final String CONTENT_TYPE = "text/plain; version=0.0.4";
+
+    @Override
+    public void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+        StringBuilder sb = new StringBuilder(4096);
+        WhipMetrics.render(sb);
+        byte[] body = sb.toString().getBytes(StandardCharsets.UTF_8);
+        response.setStatus(HttpServletResponse.SC_OK);
+        response.setContentType(CONTENT_TYPE);
+        response.setCharacterEncoding("UTF-8");
+        response.setHeader("Cache-Control", "no-cache");
+        response.setContentLength(body.length);
+        response.getOutputStream().write(body);
+    }
+
+}
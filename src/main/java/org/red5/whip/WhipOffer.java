@@ -0,0 +1,706 @@
+package org.red5.whip;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import com.red5pro.media.sdp.SDPFactory;
+import com.red5pro.media.sdp.SessionDescription;
+
+/**
+ * Offer SDP as received in a WHIP POST. The body is read once into a byte array no larger than the configured cap, and
+ * the lines WHIP needs are located lazily in a single pass the first time any of them is requested: m-lines and the
+ * rtpmap, fmtp, ssrc, ssrc-group, ice-ufrag, ice-pwd, fingerprint, setup, mid, sctp-port, sctpmap and candidate
+ * attributes. Only the start and end offsets of those lines are indexed; values are decoded when they're asked for. The
+ * full session description model is also created lazily, off the container thread.
+ *
+ * @author Paul Gregoire
+ */
+public class WhipOffer {
+
+    // offers are usually well under 8k, non-bundled offers with many candidates may be a few times that
+    private static final int INITIAL_SIZE = 8192;
+
+    private final byte[] bytes;
+
+    private final int length;
+
+    // session level section followed by the media sections, created on first use
+    private Media[] sections;
+
+    private SessionDescription sessionDescription;
+
+    private WhipOffer(byte[] bytes, int length) {
+        this.bytes = bytes;
+        this.length = length;
+    }
+
+    /**
+     * Reads an offer from the stream. When the content length is known the buffer is allocated once at that size and
+     * an oversized offer is rejected before any of it is read.
+     *
+     * @param in request body
+     * @param contentLength declared length or -1 if unknown
+     * @param maxSize largest offer accepted, in bytes
+     * @return offer
+     * @throws OfferTooLargeException if the offer exceeds the max size
+     * @throws IOException if the body could not be read or was shorter than declared
+     */
+    public static WhipOffer read(InputStream in, int contentLength, int maxSize) throws IOException {
+        if (contentLength > maxSize) {
+            throw new OfferTooLargeException(contentLength, maxSize);
+        }
+        byte[] buf = new byte[contentLength > 0 ? contentLength : Math.min(INITIAL_SIZE, maxSize)];
+        int length = 0, read;
+        while ((read = in.read(buf, length, buf.length - length)) != -1) {
+            length += read;
+            if (length == buf.length) {
+                if (contentLength > 0) {
+                    break;
+                }
+                if (length == maxSize) {
+                    // full at the cap, anything more is too much
+                    if (in.read() != -1) {
+                        throw new OfferTooLargeException(length + 1, maxSize);
+                    }
+                    break;
+                }
+                buf = Arrays.copyOf(buf, Math.min(length * 2, maxSize));
+            }
+        }
+        if (contentLength > 0 && length < contentLength) {
+            throw new IOException(String.format("Offer truncated at %d of %d bytes", length, contentLength));
+        }
+        return new WhipOffer(buf, length);
+    }
+
+    /**
+     * Creates an offer from an sdp string.
+     *
+     * @param sdp
+     * @return offer
+     */
+    public static WhipOffer of(String sdp) {
+        byte[] buf = sdp.getBytes(StandardCharsets.UTF_8);
+        return new WhipOffer(buf, buf.length);
+    }
+
+    /**
+     * Returns whether the offer looks like sdp; it starts with the version line and has at least one media section.
+     *
+     * @return true if valid and false otherwise
+     */
+    public boolean isValid() {
+        return length > 2 && bytes[0] == 'v' && bytes[1] == '=' && getMediaCount() > 0;
+    }
+
+    /**
+     * Returns the size of the offer in bytes.
+     *
+     * @return length
+     */
+    public int getLength() {
+        return length;
+    }
+
+    /**
+     * Returns the session level attributes.
+     *
+     * @return session section
+     */
+    public Media getSession() {
+        return index()[0];
+    }
+
+    public int getMediaCount() {
+        return index().length - 1;
+    }
+
+    /**
+     * Returns the media section at the given m-line index.
+     *
+     * @param index
+     * @return media
+     */
+    public Media getMedia(int index) {
+        return index()[index + 1];
+    }
+
+    /**
+     * Returns the first media section of the given type; audio, video or application.
+     *
+     * @param type
+     * @return media or null if the type wasn't offered
+     */
+    public Media getMedia(String type) {
+        Media[] sections = index();
+        for (int i = 1; i < sections.length; i++) {
+            if (type.equals(sections[i].type)) {
+                return sections[i];
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the session description model of the offer, parsing it on first call.
+     *
+     * @return session description or null if the sdp factory rejects the offer
+     */
+    public synchronized SessionDescription getSessionDescription() {
+        if (sessionDescription == null) {
+            sessionDescription = SDPFactory.createSessionDescription(toString());
+        }
+        return sessionDescription;
+    }
+
+    private synchronized Media[] index() {
+        if (sections == null) {
+            List<Media> list = new ArrayList<>(4);
+            Media current = new Media(null);
+            list.add(current);
+            int pos = 0;
+            while (pos < length) {
+                int end = pos;
+                while (end < length && bytes[end] != '\n') {
+                    end++;
+                }
+                int next = end + 1;
+                if (end > pos && bytes[end - 1] == '\r') {
+                    end--;
+                }
+                if (end - pos > 2 && bytes[pos + 1] == '=') {
+                    if (bytes[pos] == 'm') {
+                        current = new Media(mediaType(pos + 2, end));
+                        list.add(current);
+                    } else if (bytes[pos] == 'a') {
+                        current.add(pos + 2, end);
+                    }
+                }
+                pos = next;
+            }
+            sections = list.toArray(new Media[0]);
+        }
+        return sections;
+    }
+
+    private String mediaType(int start, int end) {
+        if (matches(start, end, "audio ")) {
+            return "audio";
+        } else if (matches(start, end, "video ")) {
+            return "video";
+        } else if (matches(start, end, "application ")) {
+            return "application";
+        }
+        int space = indexOf(start, end, (byte) ' ');
+        return string(start, space != -1 ? space : end);
+    }
+
+    private boolean matches(int start, int end, String prefix) {
+        int len = prefix.length();
+        if (end - start < len) {
+            return false;
+        }
+        for (int i = 0; i < len; i++) {
+            if (bytes[start + i] != prefix.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int indexOf(int start, int end, byte b) {
+        for (int i = start; i < end; i++) {
+            if (bytes[i] == b) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private String string(int start, int end) {
+        return new String(bytes, start, end - start, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Parses an unsigned decimal at the given offset, stopping at the first non-digit.
+     *
+     * @return value or -1 if there are no digits
+     */
+    private long number(int start, int end) {
+        long value = -1L;
+        for (int i = start; i < end; i++) {
+            int digit = bytes[i] - '0';
+            if (digit < 0 || digit > 9) {
+                break;
+            }
+            value = (value < 0 ? 0 : value * 10) + digit;
+        }
+        return value;
+    }
+
+    /**
+     * Returns the offset after the next space, or end if there isn't one.
+     */
+    private int skipToken(int start, int end) {
+        int space = indexOf(start, end, (byte) ' ');
+        return space != -1 ? space + 1 : end;
+    }
+
+    /**
+     * Returns the offer as sent.
+     */
+    @Override
+    public String toString() {
+        return string(0, length);
+    }
+
+    /**
+     * Attributes which are only read from their first occurrence in a section.
+     */
+    private enum Attr {
+
+        MID("mid"), ICE_UFRAG("ice-ufrag"), ICE_PWD("ice-pwd"), FINGERPRINT("fingerprint"), SETUP("setup"), SSRC("ssrc"), SCTP_PORT("sctp-port"), SCTPMAP("sctpmap");
+
+        final String name;
+
+        Attr(String name) {
+            this.name = name;
+        }
+
+    }
+
+    /**
+     * Offsets of the attributes in a session or media section. Each range starts at the attribute value, after the
+     * colon, and ends before the line terminator.
+     */
+    public final class Media {
+
+        private final String type;
+
+        // start and end pairs per single valued attribute, -1 if absent
+        private final int[] attrs = new int[Attr.values().length * 2];
+
+        private int[] rtpmaps = new int[8];
+
+        private int rtpmapCount;
+
+        private int[] fmtps = new int[8];
+
+        private int fmtpCount;
+
+        private int[] candidates = new int[8];
+
+        private int candidateCount;
+
+        private int[] extmaps = new int[8];
+
+        private int extmapCount;
+
+        private int[] rtcpFbs = new int[8];
+
+        private int rtcpFbCount;
+
+        private int[] ssrcGroups = new int[2];
+
+        private int ssrcGroupCount;
+
+        Media(String type) {
+            this.type = type;
+            Arrays.fill(attrs, -1);
+        }
+
+        private void add(int start, int end) {
+            int colon = indexOf(start, end, (byte) ':');
+            int nameEnd = colon != -1 ? colon : end;
+            int valueStart = colon != -1 ? colon + 1 : end;
+            int nameLength = nameEnd - start;
+            if (nameLength == 6 && matches(start, nameEnd, "rtpmap")) {
+                rtpmaps = append(rtpmaps, rtpmapCount++, valueStart, end);
+            } else if (nameLength == 4 && matches(start, nameEnd, "fmtp")) {
+                fmtps = append(fmtps, fmtpCount++, valueStart, end);
+            } else if (nameLength == 6 && matches(start, nameEnd, "extmap")) {
+                extmaps = append(extmaps, extmapCount++, valueStart, end);
+            } else if (nameLength == 7 && matches(start, nameEnd, "rtcp-fb")) {
+                rtcpFbs = append(rtcpFbs, rtcpFbCount++, valueStart, end);
+            } else if (nameLength == 10 && matches(start, nameEnd, "ssrc-group")) {
+                ssrcGroups = append(ssrcGroups, ssrcGroupCount++, valueStart, end);
+            } else if (nameLength == 9 && matches(start, nameEnd, "candidate")) {
+                // candidates keep their prefix, the parser accepts either form
+                candidates = append(candidates, candidateCount++, start, end);
+            } else {
+                for (Attr attr : Attr.values()) {
+                    if (nameLength == attr.name.length() && matches(start, nameEnd, attr.name)) {
+                        int slot = attr.ordinal() * 2;
+                        if (attrs[slot] == -1) {
+                            attrs[slot] = valueStart;
+                            attrs[slot + 1] = end;
+                        }
+                        break;
+                    }
+                }
+            }
+        }
+
+        private int[] append(int[] ranges, int index, int start, int end) {
+            if (index * 2 + 1 >= ranges.length) {
+                ranges = Arrays.copyOf(ranges, ranges.length * 2);
+            }
+            ranges[index * 2] = start;
+            ranges[index * 2 + 1] = end;
+            return ranges;
+        }
+
+        private String value(Attr attr) {
+            int slot = attr.ordinal() * 2;
+            return attrs[slot] != -1 ? string(attrs[slot], attrs[slot + 1]) : null;
+        }
+
+        // session level value when the media section doesn't carry one
+        private String valueOrSession(Attr attr) {
+            String value = value(attr);
+            return value == null && type != null ? getSession().value(attr) : value;
+        }
+
+        /**
+         * Returns the media type or null for the session section.
+         *
+         * @return type
+         */
+        public String getType() {
+            return type;
+        }
+
+        public String getMid() {
+            return value(Attr.MID);
+        }
+
+        public String getIceUfrag() {
+            return valueOrSession(Attr.ICE_UFRAG);
+        }
+
+        public String getIcePwd() {
+            return valueOrSession(Attr.ICE_PWD);
+        }
+
+        /**
+         * Returns the fingerprint hash function, such as sha-256.
+         *
+         * @return hash function or null if there's no fingerprint
+         */
+        public String getFingerprintHash() {
+            int[] range = fingerprintRange();
+            if (range != null) {
+                int space = indexOf(range[0], range[1], (byte) ' ');
+                return string(range[0], space != -1 ? space : range[1]);
+            }
+            return null;
+        }
+
+        /**
+         * Returns the fingerprint without its hash function.
+         *
+         * @return fingerprint or null if there's no fingerprint
+         */
+        public String getFingerprint() {
+            int[] range = fingerprintRange();
+            if (range != null) {
+                int space = indexOf(range[0], range[1], (byte) ' ');
+                if (space != -1) {
+                    return string(space + 1, range[1]);
+                }
+            }
+            return null;
+        }
+
+        private int[] fingerprintRange() {
+            int slot = Attr.FINGERPRINT.ordinal() * 2;
+            Media media = attrs[slot] != -1 || type == null ? this : getSession();
+            return media.attrs[slot] != -1 ? new int[] { media.attrs[slot], media.attrs[slot + 1] } : null;
+        }
+
+        public String getSetup() {
+            return valueOrSession(Attr.SETUP);
+        }
+
+        /**
+         * Returns the first ssrc in the section.
+         *
+         * @return ssrc or -1 if there isn't one
+         */
+        public long getSsrc() {
+            int slot = Attr.SSRC.ordinal() * 2;
+            return attrs[slot] != -1 ? number(attrs[slot], attrs[slot + 1]) : -1L;
+        }
+
+        /**
+         * Returns the sctp port from sctp-port or the older sctpmap form.
+         *
+         * @return port or -1 if neither is present
+         */
+        public int getSctpPort() {
+            int slot = Attr.SCTP_PORT.ordinal() * 2;
+            if (attrs[slot] == -1) {
+                slot = Attr.SCTPMAP.ordinal() * 2;
+            }
+            return attrs[slot] != -1 ? (int) number(attrs[slot], attrs[slot + 1]) : -1;
+        }
+
+        /**
+         * Returns the stream count from an sctpmap; port, protocol then streams.
+         *
+         * @return streams or -1 if there's no sctpmap
+         */
+        public int getSctpStreams() {
+            int slot = Attr.SCTPMAP.ordinal() * 2;
+            if (attrs[slot] != -1) {
+                int end = attrs[slot + 1];
+                return (int) number(skipToken(skipToken(attrs[slot], end), end), end);
+            }
+            return -1;
+        }
+
+        /**
+         * Returns whether an sctpmap was offered rather than sctp-port.
+         *
+         * @return true for sctpmap
+         */
+        public boolean hasSctpMap() {
+            return attrs[Attr.SCTPMAP.ordinal() * 2] != -1;
+        }
+
+        public int getRtpMapCount() {
+            return rtpmapCount;
+        }
+
+        /**
+         * Returns the payload type of the rtpmap at the given index.
+         *
+         * @param index
+         * @return payload type
+         */
+        public int getPayloadType(int index) {
+            return (int) number(rtpmaps[index * 2], rtpmaps[index * 2 + 1]);
+        }
+
+        /**
+         * Returns the encoding name of the rtpmap at the given index.
+         *
+         * @param index
+         * @return encoding name
+         */
+        public String getEncodingName(int index) {
+            int end = rtpmaps[index * 2 + 1];
+            int start = skipToken(rtpmaps[index * 2], end);
+            int slash = indexOf(start, end, (byte) '/');
+            return string(start, slash != -1 ? slash : end);
+        }
+
+        /**
+         * Returns whether the rtpmap at the given index has the encoding name, ignoring case.
+         *
+         * @param index
+         * @param encodingName
+         * @return true if it matches and false otherwise
+         */
+        public boolean isEncoding(int index, String encodingName) {
+            int end = rtpmaps[index * 2 + 1];
+            int start = skipToken(rtpmaps[index * 2], end);
+            int len = encodingName.length();
+            if (end - start < len || (end - start > len && bytes[start + len] != '/')) {
+                return false;
+            }
+            for (int i = 0; i < len; i++) {
+                if (Character.toLowerCase((char) bytes[start + i]) != Character.toLowerCase(encodingName.charAt(i))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Returns the payload type of the first rtpmap with the encoding name.
+         *
+         * @param encodingName
+         * @return payload type or -1 if not offered
+         */
+        public int findPayloadType(String encodingName) {
+            for (int i = 0; i < rtpmapCount; i++) {
+                if (isEncoding(i, encodingName)) {
+                    return getPayloadType(i);
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * Returns the format parameters for the payload type, without the payload type.
+         *
+         * @param payloadType
+         * @return parameters or null if there's no fmtp for the payload type
+         */
+        public String getFmtp(int payloadType) {
+            int index = fmtpIndex(payloadType);
+            if (index != -1) {
+                int end = fmtps[index * 2 + 1];
+                return string(skipToken(fmtps[index * 2], end), end);
+            }
+            return null;
+        }
+
+        /**
+         * Returns a single format parameter for the payload type.
+         *
+         * @param payloadType
+         * @param name parameter name, such as profile-level-id
+         * @return value or null if the parameter isn't present
+         */
+        public String getFmtpParameter(int payloadType, String name) {
+            int index = fmtpIndex(payloadType);
+            if (index != -1) {
+                int end = fmtps[index * 2 + 1];
+                int start = skipToken(fmtps[index * 2], end);
+                int len = name.length();
+                while (start < end) {
+                    int semi = indexOf(start, end, (byte) ';');
+                    int paramEnd = semi != -1 ? semi : end;
+                    // tolerate a space after the separator
+                    while (start < paramEnd && bytes[start] == ' ') {
+                        start++;
+                    }
+                    if (paramEnd - start > len && bytes[start + len] == '=' && matches(start, paramEnd, name)) {
+                        return string(start + len + 1, paramEnd);
+                    }
+                    start = paramEnd + 1;
+                }
+            }
+            return null;
+        }
+
+        private int fmtpIndex(int payloadType) {
+            for (int i = 0; i < fmtpCount; i++) {
+                if (number(fmtps[i * 2], fmtps[i * 2 + 1]) == payloadType) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * Returns the payload type of the rtx format whose apt is the given payload type.
+         *
+         * @param payloadType primary payload type
+         * @return rtx payload type or -1 if rtx isn't offered for it
+         */
+        public int findRtxPayloadType(int payloadType) {
+            String apt = String.valueOf(payloadType);
+            for (int i = 0; i < rtpmapCount; i++) {
+                if (isEncoding(i, "rtx")) {
+                    int rtxPayloadType = getPayloadType(i);
+                    if (apt.equals(getFmtpParameter(rtxPayloadType, "apt"))) {
+                        return rtxPayloadType;
+                    }
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * Returns the ssrc paired with the primary ssrc by an FID ssrc-group, which is the retransmission ssrc.
+         *
+         * @param ssrc primary ssrc
+         * @return paired ssrc or -1 if there's no FID group for the ssrc
+         */
+        public long getFidSsrc(long ssrc) {
+            for (int i = 0; i < ssrcGroupCount; i++) {
+                int start = ssrcGroups[i * 2], end = ssrcGroups[i * 2 + 1];
+                if (end - start > 4 && matches(start, end, "FID ")) {
+                    int primary = skipToken(start, end);
+                    if (primary < end && number(primary, end) == ssrc) {
+                        int paired = skipToken(primary, end);
+                        if (paired < end) {
+                            return number(paired, end);
+                        }
+                    }
+                }
+            }
+            return -1L;
+        }
+
+        /**
+         * Returns the id of the header extension with the uri, ignoring any direction.
+         *
+         * @param uri extension uri
+         * @return id or -1 if the extension isn't offered
+         */
+        public int getExtmapId(String uri) {
+            for (int i = 0; i < extmapCount; i++) {
+                int start = extmaps[i * 2], end = extmaps[i * 2 + 1];
+                int uriStart = skipToken(start, end);
+                int uriEnd = indexOf(uriStart, end, (byte) ' ');
+                if (uriEnd == -1) {
+                    uriEnd = end;
+                }
+                if (uriEnd - uriStart == uri.length() && matches(uriStart, uriEnd, uri)) {
+                    return (int) number(start, end);
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * Returns whether the feedback type is offered for the payload type, directly or through a wildcard.
+         *
+         * @param payloadType
+         * @param type feedback type and any parameter, such as transport-cc or nack pli
+         * @return true if offered
+         */
+        public boolean hasRtcpFb(int payloadType, String type) {
+            for (int i = 0; i < rtcpFbCount; i++) {
+                int start = rtcpFbs[i * 2], end = rtcpFbs[i * 2 + 1];
+                if (bytes[start] == '*' || number(start, end) == payloadType) {
+                    int typeStart = skipToken(start, end);
+                    if (end - typeStart == type.length() && matches(typeStart, end, type)) {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Returns the candidate lines of the section, each starting with the candidate prefix.
+         *
+         * @return candidates
+         */
+        public List<String> getCandidates() {
+            if (candidateCount == 0) {
+                return Collections.emptyList();
+            }
+            List<String> list = new ArrayList<>(candidateCount);
+            for (int i = 0; i < candidateCount; i++) {
+                list.add(string(candidates[i * 2], candidates[i * 2 + 1]));
+            }
+            return list;
+        }
+
+    }
+
+    /**
+     * Thrown when an offer is larger than the configured max size.
+     */
+    public static final class OfferTooLargeException extends IOException {
+
+        private static final long serialVersionUID = 4736718453512937011L;
+
+        OfferTooLargeException(int size, int maxSize) {
+            super(String.format("Offer of %d bytes exceeds the max size of %d bytes", size, maxSize));
+        }
+
+    }
+
+}
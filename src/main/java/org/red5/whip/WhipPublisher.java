@@ -9,14 +9,20 @@ import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BooleanSupplier;
 
 import javax.media.format.AudioFormat;
 import javax.media.format.ParameterizedVideoFormat;
 import javax.media.format.VideoFormat;
 
+import org.apache.mina.core.buffer.IoBuffer;
 import org.apache.mina.core.session.IoSession;
 import org.ice4j.Transport;
 import org.ice4j.TransportAddress;
@@ -42,8 +48,29 @@ import org.red5.codec.AVCVideo;
 import org.red5.codec.StreamCodecInfo;
 import org.red5.server.api.IContext;
 import org.red5.server.api.Red5;
+import org.red5.server.api.scope.IBroadcastScope;
 import org.red5.server.api.scope.IScope;
+import org.red5.server.api.stream.IBroadcastStream;
+import org.red5.server.api.stream.IStreamListener;
+import org.red5.server.api.stream.IStreamPacket;
+import org.red5.server.messaging.IPipeConnectionListener;
+import org.red5.server.messaging.PipeConnectionEvent;
+import org.red5.server.net.rtmp.message.Constants;
 import org.red5.server.stream.IProviderService;
+import org.red5.whip.DtlsCertificateManager.Certificate;
+import org.red5.whip.IceAgentPool.PooledAgent;
+import org.red5.whip.KeyframePolicy.Reason;
+import org.red5.whip.SetupTimings.Stage;
+import org.red5.whip.WhipEvents.CodecSelected;
+import org.red5.whip.WhipEvents.DtlsControlCreated;
+import org.red5.whip.WhipEvents.DtlsReady;
+import org.red5.whip.WhipEvents.FirstPliSent;
+import org.red5.whip.WhipEvents.IceCompleted;
+import org.red5.whip.WhipEvents.IceStateChange;
+import org.red5.whip.WhipEvents.PortBound;
+import org.red5.whip.WhipEvents.PortReleased;
+import org.red5.whip.WhipEvents.SessionEvent;
+import org.red5.whip.WhipEvents.Stop;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -60,6 +87,7 @@ import com.red5pro.media.SourceType;
 import com.red5pro.media.VideoConstants;
 import com.red5pro.media.rtp.RTPCodec;
 import com.red5pro.media.rtp.RTPCodecEnum;
+import com.red5pro.media.sdp.SDPFactory;
 import com.red5pro.media.sdp.SDPUserAgent;
 import com.red5pro.media.sdp.SessionDescription;
 import com.red5pro.media.sdp.model.AttributeField;
@@ -85,8 +113,7 @@ import com.red5pro.webrtc.stream.MuxMaster;
  * Steps:
  * <li>setOffer</li>
  * <li>init</li>
- * <li>setupDTLS</li>
- * <li>setupICE</li>
+ * <li>setupDTLS and setupICE, in parallel with codec selection</li>
  * <li>createAnswer</li>
  * <li>setupSockets</li>
  * <li>start</li>
@@ -116,6 +143,15 @@ public class WhipPublisher implements IRTCStream {
     // name for the source stream
     private String sourceStreamName;
 
+    // opaque id for the WHIP resource
+    private String resourceId;
+
+    // durations of the setup stages
+    private SetupTimings timings = new SetupTimings();
+
+    // executor for setup stages which may run in parallel
+    private Executor stageExecutor;
+
     // Local SDP offer
     private SessionDescription localSdp;
 
@@ -125,7 +161,8 @@ public class WhipPublisher implements IRTCStream {
     // ICE agent
     private volatile Agent agent;
 
-    private CountDownLatch iceSetupLatch;
+    // completed by the agent once ICE completes, cancelled on stop
+    private final CompletableFuture<Void> iceComplete = new CompletableFuture<>();
 
     private String publicIPAddress = NetworkManager.getPublicAddress();
 
@@ -134,6 +171,12 @@ public class WhipPublisher implements IRTCStream {
     // port allocated and paired by this stream instance
     private int allocatedPort;
 
+    // whether the agent came from the pool with its port already bound
+    private boolean pooledAgent;
+
+    // whether the agent is controlled and starts on the pair the browser nominates
+    private static volatile boolean iceStartOnCompleted;
+
     // the selected audio codec
     private RTPCodecEnum selectedAudioCodec = RTPCodecEnum.OPUS;
 
@@ -143,9 +186,18 @@ public class WhipPublisher implements IRTCStream {
     // the offer sdp
     private SessionDescription offerSdp;
 
+    // the offer as received, for the fields read directly
+    private WhipOffer offer;
+
     // the answer sdp
     private String answerSdp;
 
+    // whether the answer requested reduced size rtcp
+    private boolean reducedSizeRtcp;
+
+    // browser family of the publisher
+    private SDPUserAgent userAgent;
+
     private int audioBR = 128;
 
     private int videoBR = 500;
@@ -155,6 +207,37 @@ public class WhipPublisher implements IRTCStream {
 
     private int audioPayloadType = -1;
 
+    // negotiated transport-wide-cc extension ids, -1 if not negotiated
+    private int audioTransportCcId = -1, videoTransportCcId = -1;
+
+    // whether transport-cc is negotiated when offered
+    private static volatile boolean transportCc;
+
+    private WhipReceiveTransformer receiveTransformer;
+
+    // negotiated video rtx payload type and the remote rtx ssrc from the FID group, -1 if not negotiated
+    private int videoRtxPayloadType = -1;
+
+    private long remoteVideoRtxSsrc = -1L;
+
+    // whether the publisher accepts nack for the video
+    private boolean videoNack;
+
+    // negotiated video red and ulpfec payload types, -1 if not negotiated
+    private int videoRedPayloadType = -1, videoUlpfecPayloadType = -1;
+
+    // whether red and ulpfec are negotiated when offered
+    private static volatile boolean ulpfec;
+
+    // whether rtx is negotiated when offered
+    private static volatile boolean rtx = true;
+
+    // packets newer than a gap before it's nacked
+    private static volatile int nackReorderWindow = NackRequester.DEFAULT_REORDER_WINDOW;
+
+    // offered sctp port and sctpmap stream count
+    private int offeredSctpPort = -1, offeredSctpStreams = -1;
+
     private int videoPayloadType = -1;
 
     private static final Map<String, String> EMPTY_MAP = Collections.emptyMap();
@@ -168,9 +251,56 @@ public class WhipPublisher implements IRTCStream {
     // holder of dtls/srtp controls (audio, video, bundle, etc...)
     private Map<String, DtlsControl> controls = new HashMap<>();
 
+    // fingerprint attribute value shared by the controls
+    private String localFingerprint;
+
     // set only if start() completes successfully
     private volatile boolean started;
 
+    // when ICE completed, the base for the DTLS and first keyframe timings
+    private volatile long iceCompleteTime;
+
+    // periodic receiver estimate feedback, set once DTLS is ready
+    private volatile RembFeedback rembFeedback;
+
+    // keyframe requests for the video, once DTLS is ready
+    private volatile KeyframePolicy.Session keyframes;
+
+    // requests a keyframe when a subscriber connects to the stream and starts or stops lazy audio transcoding
+    private final IPipeConnectionListener joinListener = event -> {
+        if (event.getType() == PipeConnectionEvent.EventType.CONSUMER_CONNECT_PUSH) {
+            KeyframePolicy.Session session = keyframes;
+            if (session != null) {
+                session.request(Reason.JOIN);
+            }
+            if (transcodeGate != null) {
+                transcodeGate.consumerConnected(event.getConsumer());
+            }
+        } else if (event.getType() == PipeConnectionEvent.EventType.CONSUMER_DISCONNECT) {
+            if (transcodeGate != null) {
+                transcodeGate.consumerDisconnected(event.getConsumer());
+            }
+        }
+    };
+
+    // whether the publisher accepts fir for the video
+    private boolean videoFir;
+
+    // audio transcoding on demand, null when always transcoding or passing opus through
+    private AudioTranscodeGate transcodeGate;
+
+    // assembles video in place of the video device, null when the device is used
+    private VideoDepacketizer videoDepacketizer;
+
+    // time audio transcoding continues after the last consumer leaves
+    private static volatile long transcodeGracePeriod = 30000L;
+
+    // completed by the first decrypted packet or the DTLS ready watcher, whichever is first
+    private final CompletableFuture<Void> dtlsReady = new CompletableFuture<>();
+
+    // when connectivity checks began, the base for the ICE state change events
+    private volatile long iceStartTime;
+
     private AtomicBoolean starting = new AtomicBoolean();
 
     private AtomicBoolean stopped = new AtomicBoolean();
@@ -193,8 +323,19 @@ public class WhipPublisher implements IRTCStream {
         this.conn = conn;
         this.scope = conn.getScope();
         this.sourceStreamName = streamName;
-        // instance an agent
-        agent = new Agent();
+        // use a ready agent if one is pooled, otherwise instance an agent; pooled agents have their own port so they're
+        // skipped in single-port mode
+        IceAgentPool pool = UdpMux.getInstance() == null ? IceAgentPool.getInstance() : null;
+        PooledAgent pooled = pool != null ? pool.take(conn.getTransport()) : null;
+        if (pooled != null) {
+            agent = pooled.getAgent();
+            // the port is bound, its released along with the agent in stop
+            allocatedPort = pooled.getPort();
+            WhipMetrics.portAllocated();
+            pooledAgent = true;
+        } else {
+            agent = new Agent();
+        }
     }
 
     /**
@@ -202,7 +343,65 @@ public class WhipPublisher implements IRTCStream {
      */
     public void init(SDPUserAgent userAgent) throws Exception {
         log.debug("init id: {} ua: {}", sourceStreamName, userAgent);
-        boolean offeredDataChannel = false;
+        this.userAgent = userAgent;
+        // get all the media descriptions
+        final MediaField[] medias = offerSdp.getMediaDescriptions();
+        if (medias == null) {
+            throw new Exception("No media fields offered");
+        }
+        // the controls to create depend only on which media are offered, so capture that before forking
+        final boolean audio = selectedAudioCodec != RTPCodecEnum.NONE;
+        final boolean video = selectedVideoCodec != RTPCodecEnum.NONE;
+        final boolean offeredDataChannel = offerSdp.getMediaDescription(SDPMediaType.application) != null;
+        // setup DTLS
+        CompletableFuture<Void> dtlsStage = forkStage(Stage.DTLS, () -> setupDTLS(audio, video, offeredDataChannel));
+        // setup ice (controlling = true, non-controlling = false); binds the port and harvests local candidates. when
+        // starting on completion the browser is the controlling side and does the nominating
+        CompletableFuture<Void> iceStage = forkStage(Stage.ICE, () -> setupICE(!iceStartOnCompleted));
+        // select codecs from the offer while the other stages run
+        CodecSelected selected = new CodecSelected();
+        selected.begin();
+        timings.time(Stage.OFFER, () -> selectCodecs(userAgent, medias));
+        if (selected.shouldCommit()) {
+            session(selected).setCodecs(selectedAudioCodec, audioPayloadType, selectedVideoCodec, videoPayloadType);
+            selected.commit();
+        }
+        try {
+            CompletableFuture.allOf(dtlsStage, iceStage).join();
+        } catch (CompletionException e) {
+            throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+        }
+        // set the props
+        timings.time(Stage.REMOTE, () -> setRemoteProperties(offer));
+        // create the media streams
+        timings.time(Stage.MEDIA, () -> createMediaStreams(offeredDataChannel));
+        log.trace("init - exit");
+    }
+
+    /**
+     * Runs a setup stage on the stage executor, or on the calling thread if there isn't one.
+     *
+     * @param stage
+     * @param task
+     * @return future for the stage
+     */
+    private CompletableFuture<Void> forkStage(Stage stage, SetupTimings.Task task) {
+        return CompletableFuture.runAsync(() -> {
+            try {
+                timings.time(stage, task);
+            } catch (Exception e) {
+                throw new CompletionException(e);
+            }
+        }, stageExecutor != null ? stageExecutor : Runnable::run);
+    }
+
+    /**
+     * Selects the codecs from the offer and adds the selected media to the local sdp.
+     *
+     * @param userAgent
+     * @param medias
+     */
+    private void selectCodecs(SDPUserAgent userAgent, MediaField[] medias) throws Exception {
         // create local sdp, the answer
         localSdp = new SessionDescription();
         // set ua
@@ -216,27 +415,27 @@ public class WhipPublisher implements IRTCStream {
         // get encoding names in precedence order
         String[] audioEncNames = RTPCodecEnum.getAudioEncodingNamesAsArray();
         String[] videoEncNames = RTPCodecEnum.getVideoEncodingNamesAsArray();
-        // sctp parameters
-        String[] offeredSctp = null;
-        // get all the media descriptions
-        MediaField[] medias = offerSdp.getMediaDescriptions();
-        if (medias == null) {
-            throw new Exception("No media fields offered");
-        }
         // create a muxer
         muxer = new MuxMaster(proStream);
-        for (MediaField media : medias) {
+        for (int m = 0; m < medias.length; m++) {
+            MediaField media = medias[m];
+            // the same m-line in the raw offer
+            WhipOffer.Media offered = offer.getMedia(m);
             SDPMediaType mediaType = media.getMediaType();
             if (isTrace) {
                 log.trace("Checking {}", media);
             }
             if (SDPMediaType.audio.equals(mediaType)) {
                 // look over all incoming rtpmap for our server preferred codec(s)
-                String audioCodec = media.getAttribute(AttributeKey.rtpmap, EnumSet.of(RTPCodecEnum.OPUS)).getValue();
-                String[] audioCodecParts = audioCodec.split("[\\s|\\/]");
-                audioPayloadType = Integer.valueOf(audioCodecParts[0]);
-                String audioCodecName = audioCodecParts[1];
-                log.debug("Offerred audio codec: {} {} {}", audioCodec, audioPayloadType, audioCodecName);
+                audioPayloadType = offered.findPayloadType(RTPCodecEnum.OPUS.encodingName);
+                if (audioPayloadType == -1) {
+                    throw new Exception("No supported audio codec offered");
+                }
+                if (transportCc && offered.hasRtcpFb(audioPayloadType, "transport-cc")) {
+                    audioTransportCcId = offered.getExtmapId(TransportCcFeedback.URI);
+                }
+                String audioCodecName = RTPCodecEnum.OPUS.encodingName;
+                log.debug("Offerred audio codec: {} {}", audioPayloadType, audioCodecName);
                 for (String encName : audioEncNames) {
                     if (encName.equalsIgnoreCase(audioCodecName)) {
                         selectedAudioCodec = RTPCodecEnum.getByEncodingName(encName);
@@ -258,43 +457,33 @@ public class WhipPublisher implements IRTCStream {
                 log.debug("Audio streams bitrate: {}", requestedAudioBitrate);
             } else if (SDPMediaType.video.equals(mediaType)) { // detect video type
                 // look over all incoming rtpmap for our server preferred codec(s)
-                List<AttributeField> videoCodecs = media.getAttributeSelections(AttributeKey.rtpmap, EnumSet.of(RTPCodecEnum.H264_PMODE1, RTPCodecEnum.VP8));
-                String videoCodec = null;
-                for (AttributeField videoAtt : videoCodecs) {
-                    videoCodec = videoAtt.getValue();
-                    String[] videoCodecParts = videoCodec.split("[\\s|\\/]");
-                    int pt = Integer.valueOf(videoCodecParts[0]);
-                    String videoCodecName = videoCodecParts[1];
-                    log.debug("Offerred video codec: {} {} {}", videoCodec, pt, videoCodecName);
-                    String offeredFmtp = media.getAttribute(AttributeKey.fmtp, pt).getValue();
-                    String[] fmtpParts = offeredFmtp.split("[\\s|\\;]");
+                for (int i = 0; i < offered.getRtpMapCount(); i++) {
+                    if (!offered.isEncoding(i, RTPCodecEnum.H264_PMODE1.encodingName) && !offered.isEncoding(i, RTPCodecEnum.VP8.encodingName)) {
+                        continue;
+                    }
+                    int pt = offered.getPayloadType(i);
+                    String videoCodecName = offered.getEncodingName(i);
+                    log.debug("Offerred video codec: {} {}", pt, videoCodecName);
                     for (String encName : videoEncNames) {
                         if (encName.equalsIgnoreCase(videoCodecName)) {
                             selectedVideoCodec = RTPCodecEnum.getByEncodingName(encName);
-                            if (RTPCodecEnum.getByEncodingName(encName) == RTPCodecEnum.H264_PMODE1 && offeredFmtp.contains("packetization-mode=1")) {
+                            if (RTPCodecEnum.getByEncodingName(encName) == RTPCodecEnum.H264_PMODE1 && "1".equals(offered.getFmtpParameter(pt, "packetization-mode"))) {
                                 // sort out the differing h264 profiles
                                 H264Profile selected = H264Profile.None;
-                                String profile = "42e01f";
-                                String profileSent = null;
-                                for (String part : fmtpParts) {
-                                    int idx = -1;
-                                    if ((idx = part.indexOf("profile-level-id")) != -1) {
-                                        profileSent = part.substring(idx + 17);
-                                        int results = acceptProfile(selected, profileSent);
-                                        if (results > selected.ordinal()) {
-                                            log.debug("Upgrading profile to payload id: {}, {}", pt, profileSent);
-                                            selected = H264Profile.valueOf(results);
-                                            profile = profileSent;
-                                            // add a media field to our local sdp
-                                            MediaField video = new MediaField(mediaType, 9, MediaField.PROTOCOL_UDP, 1);
-                                            videoPayloadType = pt;
-                                            AttributeField fmtp = new AttributeField(AttributeKey.fmtp, String.format("%d profile-level-id=%s;level-asymmetry-allowed=1;packetization-mode=1", videoPayloadType, profile));
-                                            video.addAttributeField(fmtp);
-                                            localSdp.addMediaDescription(video);
-                                            break;
-                                        } else {
-                                            log.debug("Skipping profile in sdp offer: {}", profileSent);
-                                        }
+                                String profileSent = offered.getFmtpParameter(pt, "profile-level-id");
+                                if (profileSent != null) {
+                                    int results = acceptProfile(selected, profileSent);
+                                    if (results > selected.ordinal()) {
+                                        log.debug("Upgrading profile to payload id: {}, {}", pt, profileSent);
+                                        selected = H264Profile.valueOf(results);
+                                        // add a media field to our local sdp
+                                        MediaField video = new MediaField(mediaType, 9, MediaField.PROTOCOL_UDP, 1);
+                                        videoPayloadType = pt;
+                                        AttributeField fmtp = new AttributeField(AttributeKey.fmtp, String.format("%d profile-level-id=%s;level-asymmetry-allowed=1;packetization-mode=1", videoPayloadType, profileSent));
+                                        video.addAttributeField(fmtp);
+                                        localSdp.addMediaDescription(video);
+                                    } else {
+                                        log.debug("Skipping profile in sdp offer: {}", profileSent);
                                     }
                                 }
                             }
@@ -303,6 +492,30 @@ public class WhipPublisher implements IRTCStream {
                         }
                     }
                 }
+                if (transportCc && videoPayloadType != -1 && offered.hasRtcpFb(videoPayloadType, "transport-cc")) {
+                    videoTransportCcId = offered.getExtmapId(TransportCcFeedback.URI);
+                }
+                // flexfec isn't supported, publishers offering it get red and ulpfec when they offer those too
+                if (ulpfec && videoPayloadType != -1) {
+                    int redPayloadType = offered.findPayloadType("red"), ulpfecPayloadType = offered.findPayloadType("ulpfec");
+                    if (redPayloadType != -1 && ulpfecPayloadType != -1) {
+                        videoRedPayloadType = redPayloadType;
+                        videoUlpfecPayloadType = ulpfecPayloadType;
+                        log.debug("Offered video red: {} ulpfec: {}", videoRedPayloadType, videoUlpfecPayloadType);
+                    }
+                }
+                videoFir = videoPayloadType != -1 && offered.hasRtcpFb(videoPayloadType, "ccm fir");
+                if (videoPayloadType != -1 && offered.hasRtcpFb(videoPayloadType, "nack")) {
+                    videoNack = true;
+                    // rtx is unwrapped onto the primary ssrc, so it's only accepted when that's known
+                    if (rtx && offered.getSsrc() != -1L) {
+                        videoRtxPayloadType = offered.findRtxPayloadType(getRtxAssociatedPayloadType());
+                        if (videoRtxPayloadType != -1) {
+                            remoteVideoRtxSsrc = offered.getFidSsrc(offered.getSsrc());
+                            log.debug("Offered video rtx: {} apt: {} ssrc: {}", videoRtxPayloadType, getRtxAssociatedPayloadType(), remoteVideoRtxSsrc);
+                        }
+                    }
+                }
                 bandwidth = media.getBandwidth();
                 if (bandwidth != null) {
                     videoBR = bandwidth.getBandwidth();
@@ -312,31 +525,28 @@ public class WhipPublisher implements IRTCStream {
                 }
                 log.debug("Video streams bitrate: {}", requestedVideoBitrate);
             } else if (SDPMediaType.application.equals(mediaType)) {
-                MediaField offeredData = offerSdp.getMediaDescription(SDPMediaType.application);
                 MediaField data = null;
-                AttributeField sctpMap = offeredData.getAttribute(AttributeKey.sctpmap);
-                if (sctpMap != null) {
-                    offeredSctp = sctpMap.getValue().split("[\\s]");
-                    log.debug("SCTP map: {}", Arrays.toString(offeredSctp));
-                    data = new MediaField(mediaType, 9, MediaField.PROTOCOL_SCTP, new int[] { Integer.valueOf(offeredSctp[0]) });
-                } else {
-                    // look for sctp-port instead
-                    AttributeField sctpPort = offeredData.getAttribute(AttributeKey.sctpport);
-                    if (sctpPort != null) {
-                        data = new MediaField(mediaType, 9, MediaField.PROTOCOL_UDP_SCTP, new int[] { Integer.valueOf(sctpPort.getValue()) });
-                    }
+                offeredSctpPort = offered.getSctpPort();
+                if (offered.hasSctpMap()) {
+                    offeredSctpStreams = offered.getSctpStreams();
+                    log.debug("SCTP map port: {} streams: {}", offeredSctpPort, offeredSctpStreams);
+                    data = new MediaField(mediaType, 9, MediaField.PROTOCOL_SCTP, new int[] { offeredSctpPort });
+                } else if (offeredSctpPort != -1) {
+                    // sctp-port instead
+                    data = new MediaField(mediaType, 9, MediaField.PROTOCOL_UDP_SCTP, new int[] { offeredSctpPort });
                 }
                 localSdp.addMediaDescription(data);
                 log.debug("Datachannel stream added to local sdp");
-                offeredDataChannel = true;
             }
         }
-        // setup DTLS
-        setupDTLS(offeredDataChannel);
-        // setup ice (controlling = true, non-controlling = false)
-        setupICE(true);
-        // set the props
-        setRemoteProperties(offerSdp);
+    }
+
+    /**
+     * Creates the media streams for the selected codecs.
+     *
+     * @param offeredDataChannel
+     */
+    private void createMediaStreams(boolean offeredDataChannel) {
         DtlsControl control = null;
         // create the media streams
         AudioMediaStreamImpl audioMediaStream = null;
@@ -428,7 +638,19 @@ public class WhipPublisher implements IRTCStream {
                     rtpmap = rtpmap.replace(String.valueOf(selectedVideoCodec.payloadType), String.valueOf(videoPayloadType));
                 }
                 video.addAttributeField(new AttributeField(AttributeKey.rtpmap, rtpmap));
-                video.setFormats(new int[] { videoPayloadType });
+                int[] formats = { videoPayloadType };
+                if (videoRedPayloadType != -1) {
+                    video.addAttributeField(new AttributeField(AttributeKey.rtpmap, String.format("%d red/90000", videoRedPayloadType)));
+                    video.addAttributeField(new AttributeField(AttributeKey.rtpmap, String.format("%d ulpfec/90000", videoUlpfecPayloadType)));
+                    formats = new int[] { videoPayloadType, videoRedPayloadType, videoUlpfecPayloadType };
+                }
+                if (videoRtxPayloadType != -1) {
+                    video.addAttributeField(new AttributeField(AttributeKey.rtpmap, String.format("%d rtx/90000", videoRtxPayloadType)));
+                    video.addAttributeField(new AttributeField(AttributeKey.fmtp, String.format("%d apt=%d", videoRtxPayloadType, getRtxAssociatedPayloadType())));
+                    formats = Arrays.copyOf(formats, formats.length + 1);
+                    formats[formats.length - 1] = videoRtxPayloadType;
+                }
+                video.setFormats(formats);
                 // set the payload on the media stream
                 videoMediaStream.setPayloadType(videoPayloadType);
             }
@@ -452,33 +674,63 @@ public class WhipPublisher implements IRTCStream {
             dataMediaStream.setOwner(conn);
             // send and receive (keep in-mind that this is different from the single direction of the a/v portion)
             dataMediaStream.setDirection(MediaDirection.SENDRECV);
-            if (offeredSctp != null) {
-                dataMediaStream.setSctpPortNumber(Integer.valueOf(offeredSctp[0]));
-                dataMediaStream.setStreamCount(Integer.valueOf(offeredSctp[2]));
+            if (offeredSctpStreams != -1) {
+                dataMediaStream.setSctpPortNumber(offeredSctpPort);
+                dataMediaStream.setStreamCount(offeredSctpStreams);
             }
         }
         // if we're bundling, create the bundle stream
         mediaStream = new WhipMediaStreamBundle(conn, audioMediaStream, videoMediaStream, dataMediaStream);
         mediaStream.setSrtpControl(control);
-        log.trace("init - exit");
+        // decrypted rtp is counted per media type on the connection
+        receiveTransformer = new WhipReceiveTransformer(conn, audioPayloadType, videoPayloadType, dtlsReady);
+        if (videoMediaStream != null) {
+            if (videoRtxPayloadType != -1) {
+                receiveTransformer.setRtx(videoRtxPayloadType, getRtxAssociatedPayloadType(), offer.getMedia("video").getSsrc());
+            }
+            if (videoRedPayloadType != -1) {
+                receiveTransformer.setFec(videoRedPayloadType, videoUlpfecPayloadType);
+            }
+            if (FrameSlabPool.getInstance() != null && WhipScopePolicy.of(scope).isVideoDepacketizer()) {
+                log.debug("Video depacketizer for {}", sourceStreamName);
+                videoDepacketizer = new VideoDepacketizer(proStream, selectedVideoCodec == RTPCodecEnum.VP8, this::onUnrecoverableLoss);
+                receiveTransformer.setVideoDepacketizer(videoDepacketizer);
+            }
+        }
+        if (audioMediaStream != null) {
+            WhipScopePolicy policy = WhipScopePolicy.of(scope);
+            if (policy.isOpusPassthrough()) {
+                log.debug("Opus passthrough for {}", sourceStreamName);
+                receiveTransformer.setOpusPassthrough(new OpusPassthrough(proStream, 2));
+            } else if (policy.isLazyTranscode() || TranscodeScheduler.getInstance() != null) {
+                log.debug("Audio transcoding gated for {} lazy: {} priority: {}", sourceStreamName, policy.isLazyTranscode(), policy.getTranscodePriority());
+                transcodeGate = new AudioTranscodeGate(sourceStreamName, transcodeGracePeriod, policy.isLazyTranscode(), policy.getTranscodePriority());
+                receiveTransformer.setTranscodeGate(transcodeGate);
+            }
+        }
+        mediaStream.setExternalTransformer(receiveTransformer);
     }
 
     public void setupDTLS(boolean offeredDataChannel) {
+        setupDTLS(selectedAudioCodec != RTPCodecEnum.NONE, selectedVideoCodec != RTPCodecEnum.NONE, offeredDataChannel);
+    }
+
+    private void setupDTLS(boolean audio, boolean video, boolean offeredDataChannel) {
         log.debug("setupDTLS control: {}", dtlsControlSetup);
+        DtlsControlCreated created = new DtlsControlCreated();
+        created.begin();
         DtlsControlImpl audioControl = null;
-        if (selectedAudioCodec != RTPCodecEnum.NONE) {
-            audioControl = new DtlsControlImpl();
-            audioControl.setMasterSession(true);
+        if (audio) {
+            audioControl = createMasterControl();
             controls.put("audio", audioControl);
         }
         DtlsControlImpl videoControl = null;
-        if (selectedVideoCodec != RTPCodecEnum.NONE) {
-            if (selectedAudioCodec != RTPCodecEnum.NONE) {
+        if (video) {
+            if (audio) {
                 videoControl = new DtlsControlImpl(audioControl);
                 videoControl.setMultistream(audioControl);
             } else {
-                videoControl = new DtlsControlImpl();
-                videoControl.setMasterSession(true);
+                videoControl = createMasterControl();
             }
             controls.put("video", videoControl);
         }
@@ -491,11 +743,45 @@ public class WhipPublisher implements IRTCStream {
                 dataControl = new DtlsControlImpl(videoControl);
                 dataControl.setMultistream(videoControl);
             } else {
-                dataControl = new DtlsControlImpl();
-                dataControl.setMasterSession(true);
+                dataControl = createMasterControl();
             }
             controls.put("data", dataControl);
         }
+        if (created.shouldCommit()) {
+            session(created).setControls(controls.size(), DtlsCertificateManager.getInstance() != null);
+            created.commit();
+        }
+    }
+
+    /**
+     * Creates a master control, sharing the node certificate when its available.
+     *
+     * @return control
+     */
+    private DtlsControlImpl createMasterControl() {
+        DtlsCertificateManager manager = DtlsCertificateManager.getInstance();
+        Certificate certificate = manager != null ? manager.getCertificate() : null;
+        if (certificate != null) {
+            localFingerprint = certificate.getFingerprint();
+            return certificate.createControl();
+        }
+        DtlsControlImpl control = new DtlsControlImpl();
+        control.setMasterSession(true);
+        return control;
+    }
+
+    /**
+     * Returns the fingerprint attribute value for the controls; they all share the master controls certificate, so its
+     * only computed once.
+     *
+     * @param control
+     * @return fingerprint
+     */
+    private String getLocalFingerprint(DtlsControl control) {
+        if (localFingerprint == null) {
+            localFingerprint = control.getLocalFingerprintHashFunction() + ' ' + control.getLocalFingerprint();
+        }
+        return localFingerprint;
     }
 
     @SuppressWarnings("incomplete-switch")
@@ -504,20 +790,32 @@ public class WhipPublisher implements IRTCStream {
         agent.setControlling(controlling);
         agent.setTrickling(false);
         log.trace("Agent state: {}", agent.getState());
-        // create latch
-        iceSetupLatch = new CountDownLatch(1);
         // use a property change listener
         agent.addStateChangeListener((evt) -> {
             if (isTrace) {
                 log.trace("Change event: {}", evt);
             }
             final IceProcessingState state = (IceProcessingState) evt.getNewValue();
+            IceStateChange change = new IceStateChange();
+            if (change.shouldCommit()) {
+                session(change).setStates(evt.getOldValue(), state, iceStartTime != 0L ? System.nanoTime() - iceStartTime : 0L);
+                change.commit();
+            }
             switch (state) {
                 case COMPLETED:
                     log.debug("ICE connectivity completed: {}", getName());
+                    // the first pair nominated by the browser is selected, don't wait for termination
+                    if (iceStartOnCompleted) {
+                        if (starting.get()) {
+                            iceComplete.complete(null);
+                        } else {
+                            log.warn("ICE sockets not starting for: {}", getName());
+                        }
+                    }
                     break;
                 case FAILED:
                     log.warn("ICE connectivity failed for: {} port: {}", getName(), allocatedPort);
+                    WhipMetrics.iceFailed();
                     // set a close message
                     conn.close("ICE failure", true);
                     stop();
@@ -526,28 +824,46 @@ public class WhipPublisher implements IRTCStream {
                     log.debug("ICE connectivity terminated: {}", getName());
                     // ensure we're starting
                     if (starting.get()) {
-                        iceSetupLatch.countDown();
+                        iceComplete.complete(null);
                     } else {
                         log.warn("ICE sockets not starting for: {}", getName());
                     }
                     break;
             }
         });
-        try {
-            configureMediaPorts(agent.createMediaStream(RTPCodec.MEDIA_0));
-        } catch (BindException e) {
-            log.warn("Exception in setupICE for: {}", getName());
+        // pooled agents already have their media stream and component
+        if (pooledAgent) {
+            log.debug("Using pooled agent on port: {} for {}", allocatedPort, getName());
+            PortBound bound = new PortBound();
+            if (bound.shouldCommit()) {
+                session(bound).setPort(allocatedPort, allocatedPort, true);
+                bound.commit();
+            }
+        } else if (UdpMux.getInstance() != null && conn.getTransport() == Transport.UDP) {
+            // share the single port with the other sessions, there is no port to allocate
+            UdpMux mux = UdpMux.getInstance();
+            log.debug("Using single-port mode on port: {} for {}", mux.getPort(), getName());
+            mux.createComponent(agent, agent.createMediaStream(RTPCodec.MEDIA_0));
+        } else {
+            try {
+                configureMediaPorts(agent.createMediaStream(RTPCodec.MEDIA_0));
+            } catch (BindException e) {
+                log.warn("Exception in setupICE for: {}", getName());
+            }
         }
     }
 
     private void configureMediaPorts(IceMediaStream stream) throws BindException {
         Transport transport = conn.getTransport();
         log.debug("Preferred transport for ICE media: {}", transport);
+        PortBound bound = new PortBound();
+        bound.begin();
         int port = PortManager.getRTPServerPort();
         log.info("Attempting to use port: {} for {}", port, getName());
         try {
             Component component = agent.createComponent(stream, transport, port, port, port);
             allocatedPort = component.getSocket().getLocalPort();
+            WhipMetrics.portAllocated();
             if (isDebug) {
                 log.debug("Port requested: {} port bound: {}", port, allocatedPort);
             }
@@ -556,13 +872,25 @@ public class WhipPublisher implements IRTCStream {
                 PortManager.clearRTPServerPort(port);
             }
             log.debug("Candidate count for {}: {}", transport, component.getLocalCandidateCount());
+            if (bound.shouldCommit()) {
+                session(bound).setPort(port, allocatedPort, false);
+                bound.commit();
+            }
         } catch (Throwable t) {
             log.warn("Port: {} allocation failed for {}", port, getName(), t);
             PortManager.clearRTPServerPort(port);
         }
     }
 
-    public boolean start() {
+    /**
+     * Starts the stream and ICE connectivity establishment. No thread waits on ICE; the media streams are started on
+     * the given executor once the agent reports completion, or the publisher is stopped if the connect timeout passes
+     * first.
+     *
+     * @param executor executor for the media start
+     * @return future completing with true if the media streams were started
+     */
+    public CompletableFuture<Boolean> start(Executor executor) {
         log.debug("start: {} audio: {} {}k video: {} {}k", sourceStreamName, selectedAudioCodec, audioBR, selectedVideoCodec, videoBR);
         // get started flag
         if (starting.compareAndSet(false, true)) {
@@ -583,15 +911,38 @@ public class WhipPublisher implements IRTCStream {
             proStream.start();
             // start publish flash stream
             proStream.startPublishing();
+            // time to the first keyframe out of the video device
+            if (selectedVideoCodec != RTPCodecEnum.NONE) {
+                proStream.addStreamListener(new KeyframeListener());
+            }
+            // keyframes for subscribers joining, and audio transcoding while there are any
+            if (selectedVideoCodec != RTPCodecEnum.NONE || transcodeGate != null) {
+                IBroadcastScope broadcastScope = scope.getBroadcastScope(sourceStreamName);
+                if (broadcastScope != null) {
+                    broadcastScope.addPipeConnectionListener(joinListener);
+                    // subscribers waiting on the stream before it was published, once each if the listener saw them
+                    if (transcodeGate != null) {
+                        broadcastScope.getConsumers().forEach(transcodeGate::consumerConnected);
+                    }
+                }
+            }
             // start the ICE process
+            final long connectStart = System.nanoTime();
+            iceStartTime = connectStart;
             agent.startConnectivityEstablishment();
             log.debug("Connectivity establishment in process");
-            // wait maxICETimeoutMs time for latch items to complete
+            // the agent's state changes complete the future, which times out if ICE doesn't complete in time
             int maxICETimeoutMs = WebRTCPlugin.getIceConnectTimeout();
-            try {
-                log.debug("Waiting for ICE {} ms", maxICETimeoutMs);
-                if (iceSetupLatch.await(maxICETimeoutMs, TimeUnit.MILLISECONDS)) {
+            log.debug("Waiting for ICE {} ms", maxICETimeoutMs);
+            return iceComplete.orTimeout(maxICETimeoutMs, TimeUnit.MILLISECONDS).handleAsync((connected, cause) -> {
+                if (cause == null) {
                     log.debug("ICE establishment is complete");
+                    iceCompleteTime = System.nanoTime();
+                    timings.record(Stage.ICE_COMPLETE, iceCompleteTime - connectStart);
+                    IceCompleted completed = new IceCompleted(iceCompleteTime - connectStart);
+                    if (completed.shouldCommit()) {
+                        session(completed).commit();
+                    }
                     try {
                         if (mediaStream == null) {
                             log.trace("MediaStreams creation failed");
@@ -599,7 +950,7 @@ public class WhipPublisher implements IRTCStream {
                             // set up the socket and stream connections
                             setupStreamConnectors();
                             // set rsize property for rtcp parsing
-                            if (localSdp.getMediaDescriptions()[0].getAttribute(AttributeKey.rtcprsize) != null) {
+                            if (reducedSizeRtcp) {
                                 // this gets set on bundle media stream to be shared by a/v media streams
                                 mediaStream.setReducedSizeRTCP(true);
                             }
@@ -611,97 +962,83 @@ public class WhipPublisher implements IRTCStream {
                             if (audioMediaStream != null) {
                                 // set/get the remote / source ssrc
                                 int localSsrc = audioMediaStream.getLocalSourceID();
-                                String[] ssrcAttrParts = offerSdp.getMediaDescription(SDPMediaType.audio).getAttribute(AttributeKey.ssrc).getValue().split("\\s");
-                                log.trace("SSRC (audio) attr parts: {}", Arrays.toString(ssrcAttrParts));
-                                int remoteAudioSSrc = Integer.parseUnsignedInt(ssrcAttrParts[0]);
+                                int remoteAudioSSrc = (int) offer.getMedia("audio").getSsrc();
                                 audioMediaStream.addRemoteSourceID(remoteAudioSSrc);
-                                log.info("SSRC (audio) local: {} remote: {}", Integer.toUnsignedString(localSsrc), ssrcAttrParts[0]);
-                                // sending audio bitrate if we're an audio-only stream only
-                                if (videoMediaStream == null) {
-                                    final AudioMediaStreamImpl ams = audioMediaStream;
-                                    WebRTCPlugin.submit(() -> {
-                                        Thread.currentThread().setName(String.format("AFBSend@%s:%s", sourceStreamName, Integer.toUnsignedString(localSsrc)));
-                                        try {
-                                            do {
-                                                // exit sleeping loop once DTLS is ready
-                                                if (audioMediaStream.isDTLSOutputReady()) {
-                                                    log.info("DTLS is ready");
-                                                    sendRemb(ams, remoteAudioSSrc, requestedAudioBitrate);
-                                                    break;
-                                                }
-                                                Thread.sleep(200L);
-                                            } while (!stopped.get());
-                                        } catch (Throwable t) {
-                                        }
-                                    });
-                                }
+                                log.info("SSRC (audio) local: {} remote: {}", Integer.toUnsignedString(localSsrc), Integer.toUnsignedString(remoteAudioSSrc));
                             }
                             if (videoMediaStream != null) {
                                 // set/get the remote / source ssrc
                                 final int localSsrc = videoMediaStream.getLocalSourceID();
-                                String[] ssrcAttrParts = offerSdp.getMediaDescription(SDPMediaType.video).getAttribute(AttributeKey.ssrc).getValue().split("\\s");
-                                log.trace("SSRC (video) attr parts: {}", Arrays.toString(ssrcAttrParts));
-                                int remoteVideoSSrc = Integer.parseUnsignedInt(ssrcAttrParts[0]);
+                                int remoteVideoSSrc = (int) offer.getMedia("video").getSsrc();
                                 videoMediaStream.addRemoteSourceID(remoteVideoSSrc);
-                                log.debug("SSRC (video) local: {} remote: {}", Integer.toUnsignedString(localSsrc), ssrcAttrParts[0]);
-                                final VideoMediaStreamImpl vms = videoMediaStream;
-                                // setup a task to send feedback to the source / browser
-                                WebRTCPlugin.submit(() -> {
-                                    Thread.currentThread().setName(String.format("VFBSend@%s:%s", sourceStreamName, Integer.toUnsignedString(localSsrc)));
-                                    try {
-                                        do {
-                                            // exit sleeping loop once DTLS is ready
-                                            if (vms.isDTLSOutputReady()) {
-                                                log.info("DTLS is ready, awaiting keyframe");
-                                                sendRemb(vms, remoteVideoSSrc, requestedVideoBitrate);
-                                                vms.sendPli(remoteVideoSSrc);
-                                                break;
-                                            }
-                                            Thread.sleep(200L);
-                                        } while (!stopped.get());
-                                        log.debug("Starting feedback");
-                                        // do remb/tmmbr
-                                    } catch (InterruptedException e) {
-                                        // no-op we expect this may happen
-                                    } catch (Throwable t) {
-                                        log.warn("Exception in feedback sender", t);
+                                log.debug("SSRC (video) local: {} remote: {}", Integer.toUnsignedString(localSsrc), Integer.toUnsignedString(remoteVideoSSrc));
+                                if (remoteVideoRtxSsrc != -1L) {
+                                    videoMediaStream.addRemoteSourceID((int) remoteVideoRtxSsrc);
+                                    log.debug("SSRC (video rtx) remote: {}", remoteVideoRtxSsrc);
+                                }
+                                if (videoNack) {
+                                    receiveTransformer.setNackRequester(new NackRequester(videoMediaStream, localSsrc & 0xffffffffL, remoteVideoSSrc & 0xffffffffL, nackReorderWindow, NackRequester.DEFAULT_RETRY_INTERVAL, this::onUnrecoverableLoss));
+                                }
+                            }
+                            // transport-wide feedback is sent on the receive path, over the video stream if any
+                            if (audioTransportCcId > 0 || videoTransportCcId > 0) {
+                                MediaStreamImpl feedbackStream = videoMediaStream != null ? videoMediaStream : audioMediaStream;
+                                long mediaSsrc = offer.getMedia(videoMediaStream != null ? "video" : "audio").getSsrc();
+                                receiveTransformer.setTransportCc(new TransportCcFeedback(feedbackStream, feedbackStream.getLocalSourceID() & 0xffffffffL, Math.max(0L, mediaSsrc), TransportCcFeedback.DEFAULT_INTERVAL_MICROS), audioTransportCcId, videoTransportCcId);
+                            }
+                            // the initial feedback goes out as soon as DTLS is ready
+                            if (audioMediaStream != null || videoMediaStream != null) {
+                                final int audioSsrc = audioMediaStream != null ? (int) offer.getMedia("audio").getSsrc() : 0;
+                                final int videoSsrc = videoMediaStream != null ? (int) offer.getMedia("video").getSsrc() : 0;
+                                dtlsReady.whenComplete((ready, t) -> {
+                                    // readiness may be signaled on the receive path, so the feedback is sent elsewhere
+                                    if (t == null) {
+                                        WebRTCPlugin.submit(() -> onDtlsReady(audioMediaStream, audioSsrc, videoMediaStream, videoSsrc));
+                                    } else if (!(t instanceof CancellationException)) {
+                                        log.warn("DTLS failed for: {} {}", sourceStreamName, t.getMessage());
+                                        WebRTCPlugin.submit(() -> {
+                                            conn.close("DTLS failure", true);
+                                            stop();
+                                        });
                                     }
                                 });
+                                DtlsReadyWatcher watcher = DtlsReadyWatcher.getInstance();
+                                if (watcher != null) {
+                                    BooleanSupplier outputReady = videoMediaStream != null ? videoMediaStream::isDTLSOutputReady : audioMediaStream::isDTLSOutputReady;
+                                    watcher.watch(outputReady, dtlsReady);
+                                }
                             }
                             // set ao or vo streaming to meta in case someone is interested down the line
                             if (dataMediaStream != null) {
                                 // set/get the remote / source ssrc (not SSRC's here, they are SCTP port numbers)
                                 final int localSsrc = dataMediaStream.getLocalSourceID();
-                                AttributeField desc = offerSdp.getMediaDescription(SDPMediaType.application).getAttribute(AttributeKey.sctpmap);
-                                // try sctp-port
-                                if (desc == null) {
-                                    desc = offerSdp.getMediaDescription(SDPMediaType.application).getAttribute(AttributeKey.sctpport);
-                                }
-                                if (desc != null) {
-                                    String[] ssrcAttrParts = desc.getValue().split("\\s");
-                                    log.trace("SCTP attr parts: {}", Arrays.toString(ssrcAttrParts));
-                                    int remoteSsrc = Integer.parseUnsignedInt(ssrcAttrParts[0]);
+                                // sctpmap or sctp-port
+                                int remoteSsrc = offer.getMedia("application").getSctpPort();
+                                if (remoteSsrc != -1) {
                                     dataMediaStream.addRemoteSourceID(remoteSsrc);
-                                    log.info("SCTP local: {} remote: {}", Integer.toUnsignedString(localSsrc), ssrcAttrParts[0]);
+                                    log.info("SCTP local: {} remote: {}", Integer.toUnsignedString(localSsrc), remoteSsrc);
                                 }
                             }
                             // started!
                             started = true;
+                            WhipMetrics.sessionStarted(scope.getContextPath(), sourceStreamName, conn);
                         }
                     } catch (Throwable e) {
                         log.warn("Exception in start", e);
                     }
-                } else {
+                } else if (cause instanceof TimeoutException) {
                     log.debug("ICE establishment failed for: {}", sourceStreamName);
+                    WhipMetrics.iceFailed();
                     stop();
+                } else {
+                    // failed or stopped while connecting, which has already been handled
+                    log.debug("ICE establishment ended for: {}", sourceStreamName);
                 }
-            } catch (InterruptedException e) {
-                log.warn("Countdown latch interrupted", e);
-                stop();
-            }
+                log.debug("start - exit");
+                return started;
+            }, executor);
         }
-        log.debug("start - exit");
-        return started;
+        return CompletableFuture.completedFuture(started);
     }
 
     void setupStreamConnectors() {
@@ -723,6 +1060,7 @@ public class WhipPublisher implements IRTCStream {
         MediaStreamTarget mediaStreamTarget = new MediaStreamTarget(addr);
         log.debug("Stream target for {} - {}", iceMediaStream.getName(), mediaStreamTarget);
         LocalCandidate localCandidate = rtpPair.getLocalCandidate();
+        // in single-port mode the candidates socket is the shared sockets view of the selected remote address
         // if there is only one stream, it could be audio or video or bundle
         StreamConnector streamConnector = new NIOStreamConnector(localCandidate);
         streamConnector.setName(getName());
@@ -761,12 +1099,43 @@ public class WhipPublisher implements IRTCStream {
     @Override
     public void stop() {
         log.info("Publisher {} stop, stopped? {}", sourceStreamName, stopped);
+        Stop stopEvent = new Stop();
+        stopEvent.begin();
+        boolean wasStarted = started;
         Red5.setConnectionLocal(conn);
-        if (stopped.compareAndSet(false, true)) {
+        boolean tearingDown = stopped.compareAndSet(false, true);
+        if (tearingDown) {
+            WhipMetrics.teardownStarted();
+            if (started) {
+                WhipMetrics.sessionStopped(scope.getContextPath(), sourceStreamName);
+            }
+            if (iceCompleteTime != 0L && (!dtlsReady.isDone() || dtlsReady.isCompletedExceptionally())) {
+                WhipMetrics.dtlsFailed();
+            }
+            // releases a start waiting on ICE
+            iceComplete.cancel(false);
+            // drops the session from the watcher
+            dtlsReady.cancel(false);
+            if (rembFeedback != null) {
+                rembFeedback.cancel();
+            }
+            if (keyframes != null) {
+                keyframes.close();
+            }
+            if (videoDepacketizer != null) {
+                videoDepacketizer.close();
+            }
+            if (transcodeGate != null) {
+                transcodeGate.close();
+            }
             // reset flag
             starting.set(false);
             // ensure close was called on the stream via stream service if not force it
             if (proStream != null && !proStream.isClosed()) {
+                IBroadcastScope broadcastScope = scope.getBroadcastScope(sourceStreamName);
+                if (broadcastScope != null) {
+                    broadcastScope.removePipeConnectionListener(joinListener);
+                }
                 // get the broadcast scope from the stream
                 IScope bsScope = proStream.getScope();
                 // get the scope context
@@ -790,6 +1159,8 @@ public class WhipPublisher implements IRTCStream {
             }
             // clear the media stream controls map; clear only after stopAudio/stopVideo
             controls.clear();
+            // free up the stream name for re-use
+            WhipSessionService.release(resourceId);
         }
         // clean up ICE agent
         if (agent != null) {
@@ -801,7 +1172,12 @@ public class WhipPublisher implements IRTCStream {
         if (allocatedPort > 0) {
             log.info("Deallocating port: {}", allocatedPort);
             PortManager.clearRTPServerPort(allocatedPort);
+            PortReleased released = new PortReleased(allocatedPort);
+            if (released.shouldCommit()) {
+                session(released).commit();
+            }
             allocatedPort = 0;
+            WhipMetrics.portReleased();
         }
         // deactivate the muxmaster after the prostream is stopped
         if (muxer != null) {
@@ -811,12 +1187,20 @@ public class WhipPublisher implements IRTCStream {
         if (offerSdp != null) {
             offerSdp.free();
             offerSdp = null;
+            offer = null;
         }
         if (localSdp != null) {
             localSdp.free();
             localSdp = null;
         }
+        if (tearingDown) {
+            WhipMetrics.teardownFinished();
+        }
         Red5.setConnectionLocal(null);
+        if (stopEvent.shouldCommit()) {
+            session(stopEvent).setStop(wasStarted, tearingDown);
+            stopEvent.commit();
+        }
     }
 
     void stopAudio() {
@@ -861,7 +1245,8 @@ public class WhipPublisher implements IRTCStream {
     }
 
     /**
-     * Create the answer SDP based on the offer.
+     * Create the answer SDP based on the offer. If the answer shape has a verified template the answer is written from
+     * it, otherwise the answer is built with the sdp model and then used to compile or verify the shapes template.
      */
     public void createAnswer() {
         log.trace("createAnswer");
@@ -871,18 +1256,108 @@ public class WhipPublisher implements IRTCStream {
             sessionVersion = offerSdp.getOrigin().getSessionVersion() + 1L;
         } catch (Exception e) {
         }
-        // set the origin
-        OriginField origin = new OriginField(String.format("red5pro_%s", sourceStreamName), IdGenerator.generateNumericStringId(13), sessionVersion, "0.0.0.0");
-        localSdp.setOrigin(origin);
-        // set bundling
-        localSdp.setBundle(true);
+        String originUser = String.format("red5pro_%s", sourceStreamName);
+        String sessionId = IdGenerator.generateNumericStringId(13);
         // get the media streams
         AudioMediaStreamImpl audioMediaStream = mediaStream.getAudioMediaStream();
         VideoMediaStreamImpl videoMediaStream = mediaStream.getVideoMediaStream();
         DataMediaStreamImpl dataMediaStream = mediaStream.getDataMediaStream();
-        DtlsControl dtlsControl = null;
         // grab our candidates
         List<String> cands = getLocalCandidates();
+        String shape = AnswerTemplate.isEnabled() ? getAnswerShape(audioMediaStream, videoMediaStream, dataMediaStream, cands) : null;
+        AnswerTemplate template = shape != null ? AnswerTemplate.get(shape) : null;
+        if (template != null && template.isVerified()) {
+            String rendered = template.render(getAnswerValues(originUser, sessionId, sessionVersion, cands));
+            // audio and video sections always carry rtcp-rsize
+            reducedSizeRtcp = localSdp.getMediaDescriptions()[0].getMediaType() != SDPMediaType.application;
+            // the model only has the codec selections, so it's swapped for the answer before the answer is published
+            SessionDescription answer = SDPFactory.createSessionDescription(rendered);
+            if (answer != null) {
+                localSdp.free();
+                localSdp = answer;
+            }
+            answerSdp = rendered;
+            log.debug("Generated answer from template: {}", answerSdp);
+        } else {
+            buildAnswer(originUser, sessionId, sessionVersion, audioMediaStream, videoMediaStream, dataMediaStream, cands);
+            if (shape != null) {
+                if (template != null) {
+                    template.verify(shape, answerSdp, getAnswerValues(originUser, sessionId, sessionVersion, cands));
+                } else if (!AnswerTemplate.isKnown(shape)) {
+                    AnswerTemplate.learn(shape, answerSdp, getAnswerValues(originUser, sessionId, sessionVersion, cands));
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the answer shape; everything other than the template values that the answer depends on.
+     *
+     * @return shape or null if the answer can't be templated
+     */
+    private String getAnswerShape(AudioMediaStreamImpl audioMediaStream, VideoMediaStreamImpl videoMediaStream, DataMediaStreamImpl dataMediaStream, List<String> cands) {
+        // codec selection failures are left to the model
+        if ((audioMediaStream != null) != localSdp.hasAudio() || (videoMediaStream != null) != localSdp.hasVideo() || (dataMediaStream != null) != (localSdp.getMediaDescription(SDPMediaType.application) != null)) {
+            return null;
+        }
+        StringBuilder shape = new StringBuilder(128);
+        shape.append(userAgent).append('|').append(agent.isTrickling()).append('|').append(dtlsControlSetup).append('|').append(publicIPAddress).append('|').append(cands.isEmpty());
+        for (MediaField media : localSdp.getMediaDescriptions()) {
+            SDPMediaType mediaType = media.getMediaType();
+            shape.append('|').append(mediaType).append(':').append(offerSdp.getMediaDescription(mediaType).getMediaId());
+            switch (mediaType) {
+                case audio:
+                    shape.append(':').append(selectedAudioCodec).append(':').append(media.getFormats()[0]).append(':').append(audioBR).append(':').append(requestedAudioBitrate).append(':').append(audioTransportCcId);
+                    break;
+                case video:
+                    AttributeField fmtp = media.getAttribute(AttributeKey.fmtp);
+                    shape.append(':').append(selectedVideoCodec).append(':').append(media.getFormats()[0]).append(':').append(fmtp != null ? fmtp.getValue() : "").append(':').append(videoBR);
+                    shape.append(':').append(isRembOffered()).append(':').append(isMaxFsNeeded()).append(':').append(videoTransportCcId).append(':').append(videoRtxPayloadType).append(':').append(videoRedPayloadType).append(':').append(videoFir);
+                    break;
+                case application:
+                    shape.append(':').append(offeredSctpPort).append(':').append(offeredSctpStreams != -1).append(':').append(maximumMessageSize);
+                    break;
+                default:
+                    return null;
+            }
+        }
+        return shape.toString();
+    }
+
+    /**
+     * Returns the per-session answer values for the template.
+     */
+    private AnswerTemplate.Values getAnswerValues(String originUser, String sessionId, long sessionVersion, List<String> cands) {
+        AnswerTemplate.Values values = new AnswerTemplate.Values(originUser, sessionId, sessionVersion, agent.getLocalUfrag(), agent.getLocalPassword(), cands);
+        DtlsControl control = controls.get("audio");
+        if (control != null) {
+            values.setFingerprint(AnswerTemplate.AUDIO, getLocalFingerprint(control));
+        }
+        control = controls.get("video");
+        if (control != null) {
+            values.setFingerprint(AnswerTemplate.VIDEO, getLocalFingerprint(control));
+        }
+        control = controls.get("data");
+        if (control != null) {
+            values.setFingerprint(AnswerTemplate.DATA, getLocalFingerprint(control));
+        }
+        DataMediaStreamImpl dataMediaStream = mediaStream.getDataMediaStream();
+        if (dataMediaStream != null) {
+            values.setSctpPort(dataMediaStream.getLocalSourceID());
+        }
+        return values;
+    }
+
+    /**
+     * Builds the answer with the sdp model.
+     */
+    private void buildAnswer(String originUser, String sessionId, long sessionVersion, AudioMediaStreamImpl audioMediaStream, VideoMediaStreamImpl videoMediaStream, DataMediaStreamImpl dataMediaStream, List<String> cands) {
+        // set the origin
+        OriginField origin = new OriginField(originUser, sessionId, sessionVersion, "0.0.0.0");
+        localSdp.setOrigin(origin);
+        // set bundling
+        localSdp.setBundle(true);
+        DtlsControl dtlsControl = null;
         if (audioMediaStream != null) {
             MediaField audio = localSdp.getMediaDescription(SDPMediaType.audio);
             log.debug("Audio streams in local sdp: {}", localSdp.getAudio());
@@ -897,7 +1372,7 @@ public class WhipPublisher implements IRTCStream {
                 if (agent.isTrickling()) {
                     audio.addAttributeField(new AttributeField(AttributeKey.iceoptions, "trickle"));
                 }
-                audio.addAttributeField(new AttributeField(AttributeKey.fingerprint, dtlsControl.getLocalFingerprintHashFunction() + ' ' + dtlsControl.getLocalFingerprint()));
+                audio.addAttributeField(new AttributeField(AttributeKey.fingerprint, getLocalFingerprint(dtlsControl)));
                 audio.addAttributeField(new AttributeField(AttributeKey.setup, dtlsControlSetup.toString()));
                 audio.addAttributeField(new AttributeField(AttributeKey.mid, offerSdp.getMediaDescription(SDPMediaType.audio).getMediaId()));
                 // add our candidates
@@ -911,6 +1386,10 @@ public class WhipPublisher implements IRTCStream {
                 audio.addAttributeField(new AttributeField(AttributeKey.rtcpmux, null));
                 audio.addAttributeField(new AttributeField(AttributeKey.rtcprsize, null));
                 int pt = audio.getFormats()[0];
+                if (audioTransportCcId > 0) {
+                    audio.addAttributeField(new AttributeField(AttributeKey.extmap, String.format("%d %s", audioTransportCcId, TransportCcFeedback.URI)));
+                    audio.addAttributeField(new AttributeField(AttributeKey.rtcpfb, String.format("%d transport-cc", pt)));
+                }
                 if (selectedAudioCodec == RTPCodecEnum.OPUS) {
                     List<MediaField> offerredAudio = offerSdp.getMediaDescriptions(SDPMediaType.audio);
                     if (!offerredAudio.isEmpty()) {
@@ -944,7 +1423,7 @@ public class WhipPublisher implements IRTCStream {
                 if (agent.isTrickling()) {
                     video.addAttributeField(new AttributeField(AttributeKey.iceoptions, "trickle"));
                 }
-                video.addAttributeField(new AttributeField(AttributeKey.fingerprint, dtlsControl.getLocalFingerprintHashFunction() + ' ' + dtlsControl.getLocalFingerprint()));
+                video.addAttributeField(new AttributeField(AttributeKey.fingerprint, getLocalFingerprint(dtlsControl)));
                 video.addAttributeField(new AttributeField(AttributeKey.setup, dtlsControlSetup.toString()));
                 video.addAttributeField(new AttributeField(AttributeKey.mid, offeredVideo.getMediaId()));
                 // add our candidates
@@ -960,26 +1439,18 @@ public class WhipPublisher implements IRTCStream {
                 int pt = video.getFormats()[0];
                 video.addAttributeField(new AttributeField(AttributeKey.rtcpfb, String.format("%d nack", pt)));
                 video.addAttributeField(new AttributeField(AttributeKey.rtcpfb, String.format("%d nack pli", pt)));
-                if (offeredVideo.hasAttributeWithValue(AttributeKey.rtcpfb, "goog-remb")) {
+                if (videoFir) {
+                    video.addAttributeField(new AttributeField(AttributeKey.rtcpfb, String.format("%d ccm fir", pt)));
+                }
+                if (isRembOffered()) {
                     video.addAttributeField(new AttributeField(AttributeKey.rtcpfb, String.format("%d goog-remb", pt)));
                 }
-                if (offerSdp.isFirefox()) {
-                    List<MediaField> offerredVideo = offerSdp.getMediaDescriptions(SDPMediaType.video);
-                    if (!offerredVideo.isEmpty()) {
-                        boolean gotMaxFs = false;
-                        for (MediaField offerVideo : offerredVideo) {
-                            if (offerVideo.getAttribute(AttributeKey.rtpmap).getValue().contains(selectedVideoCodec.encodingName)) {
-                                AttributeField offerVideoFmtp = offerVideo.getAttribute(AttributeKey.fmtp);
-                                if (offerVideoFmtp != null && offerVideoFmtp.getValue().contains("max-fs")) {
-                                    gotMaxFs = true;
-                                }
-                                break;
-                            }
-                        }
-                        if (!gotMaxFs) {
-                            video.addAttributeField(new AttributeField(AttributeKey.fmtp, String.format("%d max-fs=12288", pt)));
-                        }
-                    }
+                if (videoTransportCcId > 0) {
+                    video.addAttributeField(new AttributeField(AttributeKey.extmap, String.format("%d %s", videoTransportCcId, TransportCcFeedback.URI)));
+                    video.addAttributeField(new AttributeField(AttributeKey.rtcpfb, String.format("%d transport-cc", pt)));
+                }
+                if (isMaxFsNeeded()) {
+                    video.addAttributeField(new AttributeField(AttributeKey.fmtp, String.format("%d max-fs=12288", pt)));
                 }
             } else {
                 // video codec selection failed if we're here
@@ -995,7 +1466,7 @@ public class WhipPublisher implements IRTCStream {
                 dtlsControl = controls.get("data");
                 data.addAttributeField(new AttributeField(AttributeKey.iceufrag, agent.getLocalUfrag()));
                 data.addAttributeField(new AttributeField(AttributeKey.icepwd, agent.getLocalPassword()));
-                data.addAttributeField(new AttributeField(AttributeKey.fingerprint, dtlsControl.getLocalFingerprintHashFunction() + ' ' + dtlsControl.getLocalFingerprint()));
+                data.addAttributeField(new AttributeField(AttributeKey.fingerprint, getLocalFingerprint(dtlsControl)));
                 data.addAttributeField(new AttributeField(AttributeKey.setup, dtlsControlSetup.toString()));
                 // get media id from offer
                 data.addAttributeField(new AttributeField(AttributeKey.mid, offeredData.getMediaId()));
@@ -1011,6 +1482,47 @@ public class WhipPublisher implements IRTCStream {
         // get answer sdp as a string
         //answerSdp = localSdp.toString().replaceAll("[\\r\\n|\\n]", "\\\\n"); // no cr/crlf replacing for direct http response
         answerSdp = localSdp.toString();
+        reducedSizeRtcp = localSdp.getMediaDescriptions()[0].getAttribute(AttributeKey.rtcprsize) != null;
+    }
+
+    /**
+     * Returns whether the offer supports goog-remb feedback for video.
+     *
+     * @return true if offered
+     */
+    private boolean isRembOffered() {
+        MediaField offeredVideo = offerSdp.getMediaDescription(SDPMediaType.video);
+        return offeredVideo != null && offeredVideo.hasAttributeWithValue(AttributeKey.rtcpfb, "goog-remb");
+    }
+
+    /**
+     * Returns the payload type rtx is associated with; red when it's negotiated, since everything is then sent in red.
+     *
+     * @return payload type
+     */
+    private int getRtxAssociatedPayloadType() {
+        return videoRedPayloadType != -1 ? videoRedPayloadType : videoPayloadType;
+    }
+
+    /**
+     * Returns whether the answer needs a max-fs fmtp, which is the case for Firefox offers without one.
+     *
+     * @return true if max-fs is to be added
+     */
+    private boolean isMaxFsNeeded() {
+        if (offerSdp.isFirefox()) {
+            List<MediaField> offerredVideo = offerSdp.getMediaDescriptions(SDPMediaType.video);
+            if (!offerredVideo.isEmpty()) {
+                for (MediaField offerVideo : offerredVideo) {
+                    if (offerVideo.getAttribute(AttributeKey.rtpmap).getValue().contains(selectedVideoCodec.encodingName)) {
+                        AttributeField offerVideoFmtp = offerVideo.getAttribute(AttributeKey.fmtp);
+                        return offerVideoFmtp == null || !offerVideoFmtp.getValue().contains("max-fs");
+                    }
+                }
+                return true;
+            }
+        }
+        return false;
     }
 
     /**
@@ -1023,6 +1535,21 @@ public class WhipPublisher implements IRTCStream {
         return offerSdp;
     }
 
+    /**
+     * Set the offer as received and configure the ProStream based on the published media.
+     *
+     * @param offer
+     * @throws Exception if the offer cannot be parsed
+     */
+    public void setOffer(WhipOffer offer) throws Exception {
+        SessionDescription sdp = offer.getSessionDescription();
+        if (sdp == null) {
+            throw new Exception("Invalid offer");
+        }
+        this.offer = offer;
+        setOffer(sdp);
+    }
+
     /**
      * Set the offer SDP and configure the ProStream based on the published media
      *
@@ -1030,6 +1557,9 @@ public class WhipPublisher implements IRTCStream {
      */
     public void setOffer(SessionDescription sdp) {
         this.offerSdp = sdp;
+        if (offer == null) {
+            offer = WhipOffer.of(sdp.toString());
+        }
         log.debug("Offer: {}", sdp);
         // grab codec info
         StreamCodecInfo codecInfo = (StreamCodecInfo) proStream.getCodecInfo();
@@ -1115,11 +1645,185 @@ public class WhipPublisher implements IRTCStream {
         return current.ordinal();
     }
 
+    /**
+     * Sets the session fields of a flight recorder event.
+     *
+     * @param event
+     * @return event
+     */
+    private <T extends SessionEvent> T session(T event) {
+        event.setSession(sourceStreamName, scope != null ? scope.getContextPath() : null, userAgent);
+        return event;
+    }
+
+    /**
+     * Sends the initial feedback once DTLS is ready; the SRTP keys for both directions are exported together at the end
+     * of the handshake, so the first decrypted packet also means feedback can be sent.
+     *
+     * @param audioMediaStream
+     * @param remoteAudioSSrc
+     * @param videoMediaStream
+     * @param remoteVideoSSrc
+     */
+    private void onDtlsReady(AudioMediaStreamImpl audioMediaStream, int remoteAudioSSrc, VideoMediaStreamImpl videoMediaStream, int remoteVideoSSrc) {
+        if (stopped.get()) {
+            return;
+        }
+        timings.record(Stage.DTLS_READY, System.nanoTime() - iceCompleteTime);
+        commitDtlsReady();
+        try {
+            if (videoMediaStream != null) {
+                log.info("DTLS is ready, awaiting keyframe");
+                sendRemb(videoMediaStream, remoteVideoSSrc, requestedVideoBitrate);
+                videoMediaStream.sendPli(remoteVideoSSrc);
+                // later requests go through the policy, which counts this one toward its min interval
+                KeyframePolicy policy = KeyframePolicy.getInstance();
+                if (policy != null) {
+                    KeyframePolicy.Session session = policy.open(sourceStreamName, videoMediaStream, remoteVideoSSrc, videoFir);
+                    session.sent();
+                    keyframes = session;
+                    proStream.addStreamListener(session);
+                    // a stop racing the open would miss the close
+                    if (stopped.get()) {
+                        session.close();
+                    }
+                }
+                FirstPliSent pli = new FirstPliSent(remoteVideoSSrc & 0xffffffffL, System.nanoTime() - iceCompleteTime);
+                if (pli.shouldCommit()) {
+                    session(pli).commit();
+                }
+                // ongoing remb from the node-wide scheduler; tmmbr isn't sent by the media streams
+                FeedbackScheduler scheduler = FeedbackScheduler.getInstance();
+                if (scheduler != null && isRembOffered()) {
+                    log.debug("Starting feedback");
+                    rembFeedback = new RembFeedback(sourceStreamName, videoMediaStream, remoteVideoSSrc, conn.getVideoCounters(), scope, requestedVideoBitrate);
+                    scheduler.schedule(rembFeedback);
+                    // a stop racing the scheduling would miss the cancel
+                    if (stopped.get()) {
+                        rembFeedback.cancel();
+                    }
+                }
+            } else {
+                log.info("DTLS is ready");
+                // sending audio bitrate if we're an audio-only stream only
+                sendRemb(audioMediaStream, remoteAudioSSrc, requestedAudioBitrate);
+            }
+        } catch (Throwable t) {
+            log.warn("Exception in feedback sender", t);
+        }
+    }
+
+    /**
+     * Requests a keyframe when retransmission hasn't repaired loss in the video.
+     */
+    private void onUnrecoverableLoss() {
+        KeyframePolicy.Session session = keyframes;
+        if (session != null) {
+            session.request(Reason.LOSS);
+        }
+    }
+
+    /**
+     * Returns the future completed once DTLS is ready, or exceptionally if the handshake doesn't complete.
+     *
+     * @return DTLS ready future
+     */
+    public CompletableFuture<Void> getDtlsReady() {
+        return dtlsReady;
+    }
+
+    private void commitDtlsReady() {
+        DtlsReady ready = new DtlsReady(System.nanoTime() - iceCompleteTime);
+        if (ready.shouldCommit()) {
+            session(ready).commit();
+        }
+    }
+
     @Override
     public String getName() {
         return sourceStreamName;
     }
 
+    /**
+     * Sets whether publishers created after the call start on ICE completion. The agent is then controlled and the
+     * first pair nominated by the browser is used without waiting for the agent to terminate. It's still a full ICE
+     * agent running its own checks, not an ice-lite one, so the answer doesn't advertise <code>a=ice-lite</code>.
+     *
+     * @param iceStartOnCompleted
+     */
+    public static void setIceStartOnCompleted(boolean iceStartOnCompleted) {
+        WhipPublisher.iceStartOnCompleted = iceStartOnCompleted;
+    }
+
+    /**
+     * Sets whether transport-wide congestion control is negotiated when a publisher offers it.
+     *
+     * @param transportCc
+     */
+    public static void setTransportCc(boolean transportCc) {
+        WhipPublisher.transportCc = transportCc;
+    }
+
+    /**
+     * Sets whether video retransmissions on a separate rtx stream are negotiated when a publisher offers them.
+     *
+     * @param rtx
+     */
+    public static void setRtx(boolean rtx) {
+        WhipPublisher.rtx = rtx;
+    }
+
+    /**
+     * Sets how long audio transcoding continues after the last consumer of a lazily transcoded stream leaves.
+     *
+     * @param transcodeGracePeriod milliseconds
+     */
+    public static void setTranscodeGracePeriod(long transcodeGracePeriod) {
+        WhipPublisher.transcodeGracePeriod = transcodeGracePeriod;
+    }
+
+    /**
+     * Sets whether video red and ulpfec are negotiated when a publisher offers them.
+     *
+     * @param ulpfec
+     */
+    public static void setUlpfec(boolean ulpfec) {
+        WhipPublisher.ulpfec = ulpfec;
+    }
+
+    /**
+     * Sets how many newer packets must arrive after a gap before the missing packets are nacked.
+     *
+     * @param nackReorderWindow
+     */
+    public static void setNackReorderWindow(int nackReorderWindow) {
+        WhipPublisher.nackReorderWindow = nackReorderWindow;
+    }
+
+    public static boolean isIceStartOnCompleted() {
+        return iceStartOnCompleted;
+    }
+
+    public SetupTimings getSetupTimings() {
+        return timings;
+    }
+
+    public void setSetupTimings(SetupTimings timings) {
+        this.timings = timings;
+    }
+
+    public void setStageExecutor(Executor stageExecutor) {
+        this.stageExecutor = stageExecutor;
+    }
+
+    public String getResourceId() {
+        return resourceId;
+    }
+
+    public void setResourceId(String resourceId) {
+        this.resourceId = resourceId;
+    }
+
     @Override
     public List<String> getLocalCandidates() {
         log.trace("getLocalCandidates");
@@ -1153,46 +1857,47 @@ public class WhipPublisher implements IRTCStream {
         return results;
     }
 
-    @SuppressWarnings("incomplete-switch")
     public void setRemoteProperties(SessionDescription sdp) {
+        setRemoteProperties(sdp == offerSdp && offer != null ? offer : WhipOffer.of(sdp.toString()));
+    }
+
+    /**
+     * Sets the remote ICE credentials, DTLS fingerprint and setup role, and candidates from the offer. These are read
+     * from the first media section, falling back to the session level where the media doesn't carry them.
+     *
+     * @param offer
+     */
+    @SuppressWarnings("incomplete-switch")
+    public void setRemoteProperties(WhipOffer offer) {
         log.trace("setRemoteProperties");
-        // get all the mlines
-        MediaField[] medias = sdp.getMediaDescriptions();
-        // media elements will be null if none exist in the sdp; also if theres an unbundle answer to a bundled offer
-        if (medias != null) {
+        // media elements will be missing if none exist in the sdp; also if theres an unbundle answer to a bundled offer
+        if (offer.getMediaCount() > 0) {
             // get all the ice streams
             List<IceMediaStream> iceMediaStreams = agent.getStreams();
             for (IceMediaStream iceMediaStream : iceMediaStreams) {
                 if (iceMediaStream != null) {
                     // get the first media entry
-                    MediaField media = medias[0];
-                    log.debug("setRemoteProperties: {} {}", media.getMediaId(), iceMediaStream.getName());
-                    // if the media doesnt contain a ice props, check the session
-                    String ufrag = media.getAttribute(AttributeKey.iceufrag).getValue();
-                    String passwd = media.getAttribute(AttributeKey.icepwd).getValue();
-                    if (ufrag == null) {
-                        ufrag = sdp.getAttribute(AttributeKey.iceufrag).getValue();
-                    }
-                    if (passwd == null) {
-                        passwd = sdp.getAttribute(AttributeKey.icepwd).getValue();
-                    }
+                    WhipOffer.Media media = offer.getMedia(0);
+                    log.debug("setRemoteProperties: {} {}", media.getMid(), iceMediaStream.getName());
+                    // if the media doesnt contain a ice props, the session values are returned
+                    String ufrag = media.getIceUfrag();
+                    String passwd = media.getIcePwd();
                     log.trace("Setting remote audio ufrag: {} passwd: {}", ufrag, passwd);
                     iceMediaStream.setRemoteUfrag(ufrag);
                     iceMediaStream.setRemotePassword(passwd);
                     // setup dtls map
                     Map<String, String> dtlsMap = new HashMap<>();
-                    AttributeField fingerPrint = media.getAttribute(AttributeKey.fingerprint);
-                    // if the media doesnt contain a fingerprint, check the session
-                    if (fingerPrint == null) {
-                        fingerPrint = sdp.getAttribute(AttributeKey.fingerprint);
-                    }
+                    // if the media doesnt contain a fingerprint, the session fingerprint is returned
+                    String fingerPrint = media.getFingerprint();
                     // continue only if we have a fingerprint
                     if (fingerPrint != null) {
-                        String[] parts = fingerPrint.getValue().split(" ");
-                        dtlsMap.put(parts[0], parts[1]);
+                        dtlsMap.put(media.getFingerprintHash(), fingerPrint);
                         // check if remote wants to be active and ensure we dont clash
-                        AttributeField attr = sdp.getAttribute(AttributeKey.setup) != null ? sdp.getAttribute(AttributeKey.setup) : media.getAttribute(AttributeKey.setup);
-                        Setup remoteSetup = Setup.valueOf(attr.getValue().toUpperCase());
+                        String setup = offer.getSession().getSetup();
+                        if (setup == null) {
+                            setup = media.getSetup();
+                        }
+                        Setup remoteSetup = Setup.valueOf(setup.toUpperCase());
                         log.debug("Remote DTLS: {}", remoteSetup);
                         switch (remoteSetup) {
                             case ACTIVE:
@@ -1233,16 +1938,13 @@ public class WhipPublisher implements IRTCStream {
                             log.debug("Datachannel control not found");
                         }
                         // get an candidates
-                        Arrays.stream(media.getAttributes(AttributeKey.candidate)).forEach(candAttr -> {
-                            String candidate = candAttr.getValue();
-                            if (candidate.length() > 0) {
-                                setRemoteCandidates(0, candidate);
-                            }
-                        });
+                        for (String candidate : media.getCandidates()) {
+                            setRemoteCandidates(0, candidate);
+                        }
                         // we only want to loop once at most, so lets break out
                         break;
                     } else {
-                        log.warn("Fingerprint was not found in the sdp, media: {} will not be available", media.getMediaId());
+                        log.warn("Fingerprint was not found in the sdp, media: {} will not be available", media.getMid());
                     }
                 }
             }
@@ -1377,4 +2079,25 @@ public class WhipPublisher implements IRTCStream {
         return "WhipPublisher [starting=" + starting + ", started=" + started + ", sourceStreamName=" + sourceStreamName + ", scope=" + scope.getName() + "]";
     }
 
+    /**
+     * Records the time from ICE completion to the first AVC keyframe leaving the video device, then removes itself.
+     */
+    private final class KeyframeListener implements IStreamListener {
+
+        @Override
+        public void packetReceived(IBroadcastStream stream, IStreamPacket packet) {
+            if (packet.getDataType() == Constants.TYPE_VIDEO_DATA) {
+                IoBuffer data = packet.getData();
+                // keyframe and avc in the first byte, a nalu rather than the sequence header in the second
+                if (data != null && data.limit() > 1 && data.get(0) == 0x17 && data.get(1) == 0x01) {
+                    stream.removeStreamListener(this);
+                    if (iceCompleteTime > 0L) {
+                        timings.record(Stage.FIRST_KEYFRAME, System.nanoTime() - iceCompleteTime);
+                    }
+                }
+            }
+        }
+
+    }
+
 }
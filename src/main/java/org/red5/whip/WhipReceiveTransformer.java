@@ -0,0 +1,273 @@
+package org.red5.whip;
+
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+
+import org.jitsi.impl.neomedia.transform.PacketTransformer;
+import org.jitsi.impl.neomedia.transform.SinglePacketTransformerAdapter;
+import org.jitsi.impl.neomedia.transform.TransformEngine;
+import org.jitsi.service.neomedia.RawPacket;
+
+/**
+ * External transformer on the publisher's bundle stream which sees each RTP packet after SRTP has decrypted it. Packets
+ * are matched to a media type by payload type and recorded into the connection's receive counters; the packets
+ * themselves pass through untouched, apart from RTX and RED which are unwrapped back into the primary video stream
+ * before it's depacketized. ULPFEC packets are taken out of the stream here and packets recovered from them are passed
+ * on after the packets they were recovered with. Audio is forwarded as is and dropped here when the scope takes Opus
+ * without transcoding, or held back while a lazily transcoded stream has no consumers. The first packet also completes
+ * the publisher's DTLS ready future, and packet arrivals feed the transport-cc feedback and NACK requests when they're
+ * negotiated. When the scope assembles video itself, video ends here in the depacketizer rather than going on to the
+ * device.
+ *
+ * @author Paul Gregoire
+ */
+public class WhipReceiveTransformer extends SinglePacketTransformerAdapter implements TransformEngine {
+
+    private final WhipConnection conn;
+
+    private final int audioPayloadType, videoPayloadType;
+
+    // completed with the first packet, which can only be decrypted once DTLS is done
+    private final CompletableFuture<Void> dtlsReady;
+
+    // set once the streams are started if transport-cc was negotiated
+    private volatile TransportCcFeedback transportCc;
+
+    private int audioTransportCcId = -1, videoTransportCcId = -1;
+
+    // rtx payload type, the payload type it's associated with and the primary video ssrc, -1 if rtx wasn't negotiated
+    private int rtxPayloadType = -1, rtxAssociatedPayloadType = -1;
+
+    private long videoSsrc;
+
+    // red and ulpfec payload types, -1 if they weren't negotiated
+    private int redPayloadType = -1, ulpfecPayloadType = -1;
+
+    private UlpfecReceiver ulpfecReceiver;
+
+    private volatile NackRequester nackRequester;
+
+    // forwards opus into the stream in place of the transcoding device, null when transcoding
+    private volatile OpusPassthrough opusPassthrough;
+
+    // holds audio back from the transcoding device while nothing consumes it, null to always transcode
+    private AudioTranscodeGate transcodeGate;
+
+    // assembles video in place of the video device, null to use the device
+    private VideoDepacketizer videoDepacketizer;
+
+    public WhipReceiveTransformer(WhipConnection conn, int audioPayloadType, int videoPayloadType, CompletableFuture<Void> dtlsReady) {
+        this.conn = conn;
+        this.audioPayloadType = audioPayloadType;
+        this.videoPayloadType = videoPayloadType;
+        this.dtlsReady = dtlsReady;
+    }
+
+    @Override
+    public RawPacket reverseTransform(RawPacket pkt) {
+        if (pkt != null) {
+            if (!dtlsReady.isDone()) {
+                dtlsReady.complete(null);
+            }
+            int payloadType = pkt.getPayloadType() & 0x7f;
+            boolean rtx = payloadType == rtxPayloadType;
+            MediaCounters counters = rtx || payloadType == redPayloadType ? conn.getVideoCounters() : getCounters(payloadType);
+            if (counters != null) {
+                long now = System.currentTimeMillis();
+                conn.updateReceivePacketTime(now);
+                TransportCcFeedback feedback = transportCc;
+                if (feedback != null) {
+                    int id = counters == conn.getVideoCounters() ? videoTransportCcId : (counters == conn.getAudioCounters() ? audioTransportCcId : -1);
+                    if (id > 0) {
+                        byte[] buf = pkt.getBuffer();
+                        int offset = RtpPackets.findExtension(buf, pkt.getOffset(), pkt.getLength(), id);
+                        if (offset != -1) {
+                            feedback.received(RtpPackets.readUint16(buf, offset), System.nanoTime() / 1000L);
+                        }
+                    }
+                }
+                if (rtx) {
+                    // padding only rtx is bandwidth probing, already recorded for transport-cc, with nothing to pass on
+                    int length = RtpPackets.unwrapRtx(pkt.getBuffer(), pkt.getOffset(), pkt.getLength(), rtxAssociatedPayloadType, videoSsrc);
+                    if (length == -1) {
+                        return null;
+                    }
+                    pkt.setLength(length);
+                }
+                if (redPayloadType != -1 && (pkt.getPayloadType() & 0x7f) == redPayloadType) {
+                    int length = RtpPackets.unwrapRed(pkt.getBuffer(), pkt.getOffset(), pkt.getLength());
+                    if (length == -1) {
+                        return null;
+                    }
+                    pkt.setLength(length);
+                }
+                // fec shares the media's sequence numbers, so it's counted and tracked for nack like media
+                counters.received(pkt.getSequenceNumber(), pkt.getLength(), now);
+                NackRequester nack = nackRequester;
+                if (nack != null && counters == conn.getVideoCounters()) {
+                    long delay = nack.received(pkt.getSequenceNumber(), now);
+                    if (rtx && delay != -1L) {
+                        counters.recovered(false, delay);
+                    }
+                }
+                OpusPassthrough passthrough = opusPassthrough;
+                if (passthrough != null && counters == conn.getAudioCounters()) {
+                    passthrough.forward(pkt.getBuffer(), pkt.getOffset(), pkt.getLength());
+                    // nothing reaches the transcoding device
+                    return null;
+                }
+                AudioTranscodeGate gate = transcodeGate;
+                if (gate != null && counters == conn.getAudioCounters() && !gate.admit(pkt.getBuffer(), pkt.getOffset(), pkt.getLength(), now)) {
+                    return null;
+                }
+                UlpfecReceiver fec = ulpfecReceiver;
+                if (fec != null && counters == conn.getVideoCounters()) {
+                    if ((pkt.getPayloadType() & 0x7f) == ulpfecPayloadType) {
+                        fec.receivedFec(pkt.getBuffer(), pkt.getOffset(), pkt.getLength());
+                        return null;
+                    }
+                    fec.receivedMedia(pkt.getBuffer(), pkt.getOffset(), pkt.getLength());
+                }
+                VideoDepacketizer depacketizer = videoDepacketizer;
+                if (depacketizer != null && counters == conn.getVideoCounters()) {
+                    depacketizer.receive(pkt.getBuffer(), pkt.getOffset(), pkt.getLength(), now);
+                    return null;
+                }
+            }
+        }
+        return pkt;
+    }
+
+    @Override
+    public RawPacket[] reverseTransform(RawPacket[] pkts) {
+        pkts = super.reverseTransform(pkts);
+        AudioTranscodeGate gate = transcodeGate;
+        if (gate != null) {
+            pkts = gate.replay(pkts);
+        }
+        UlpfecReceiver fec = ulpfecReceiver;
+        if (fec != null && fec.hasRecovered()) {
+            int from = pkts != null ? pkts.length : 0;
+            pkts = fec.drainRecovered(pkts);
+            long now = System.currentTimeMillis();
+            MediaCounters counters = conn.getVideoCounters();
+            NackRequester nack = nackRequester;
+            for (int i = from; i < pkts.length; i++) {
+                RawPacket recovered = pkts[i];
+                counters.received(recovered.getSequenceNumber(), recovered.getLength(), now);
+                counters.recovered(true, nack != null ? nack.received(recovered.getSequenceNumber(), now) : -1L);
+            }
+            VideoDepacketizer depacketizer = videoDepacketizer;
+            if (depacketizer != null) {
+                for (int i = from; i < pkts.length; i++) {
+                    depacketizer.receive(pkts[i].getBuffer(), pkts[i].getOffset(), pkts[i].getLength(), now);
+                }
+                pkts = Arrays.copyOf(pkts, from);
+            }
+        }
+        return pkts;
+    }
+
+    @Override
+    public RawPacket transform(RawPacket pkt) {
+        // nothing is sent on the media streams of a publisher
+        return pkt;
+    }
+
+    /**
+     * Sets the transport-cc feedback and the extension ids carrying the sequence numbers; audio and video share the
+     * bundle's receive thread, which the feedback is confined to.
+     *
+     * @param transportCc
+     * @param audioTransportCcId
+     * @param videoTransportCcId
+     */
+    public void setTransportCc(TransportCcFeedback transportCc, int audioTransportCcId, int videoTransportCcId) {
+        this.audioTransportCcId = audioTransportCcId;
+        this.videoTransportCcId = videoTransportCcId;
+        this.transportCc = transportCc;
+    }
+
+    /**
+     * Sets the rtx payload type whose packets are unwrapped into the primary video stream.
+     *
+     * @param rtxPayloadType
+     * @param associatedPayloadType payload type the rtx carries, the video's or red's
+     * @param videoSsrc primary video ssrc
+     */
+    public void setRtx(int rtxPayloadType, int associatedPayloadType, long videoSsrc) {
+        this.videoSsrc = videoSsrc;
+        this.rtxAssociatedPayloadType = associatedPayloadType;
+        this.rtxPayloadType = rtxPayloadType;
+    }
+
+    /**
+     * Sets the red and ulpfec payload types; red is unwrapped and ulpfec recovered from. Set before the transformer is
+     * installed.
+     *
+     * @param redPayloadType
+     * @param ulpfecPayloadType
+     */
+    public void setFec(int redPayloadType, int ulpfecPayloadType) {
+        this.redPayloadType = redPayloadType;
+        this.ulpfecPayloadType = ulpfecPayloadType;
+        ulpfecReceiver = ulpfecPayloadType != -1 ? new UlpfecReceiver() : null;
+    }
+
+    /**
+     * Sets the NACK requester fed with the video sequence numbers, after any rtx is unwrapped.
+     *
+     * @param nackRequester
+     */
+    public void setNackRequester(NackRequester nackRequester) {
+        this.nackRequester = nackRequester;
+    }
+
+    /**
+     * Sets the passthrough which audio is forwarded to instead of going on to the transcoding device.
+     *
+     * @param opusPassthrough passthrough or null to transcode
+     */
+    public void setOpusPassthrough(OpusPassthrough opusPassthrough) {
+        this.opusPassthrough = opusPassthrough;
+    }
+
+    /**
+     * Sets the gate audio passes through on the way to the transcoding device. Set before the transformer is installed.
+     *
+     * @param transcodeGate
+     */
+    public void setTranscodeGate(AudioTranscodeGate transcodeGate) {
+        this.transcodeGate = transcodeGate;
+    }
+
+    /**
+     * Sets the depacketizer video is assembled by instead of going on to the device. Set before the transformer is
+     * installed.
+     *
+     * @param videoDepacketizer
+     */
+    public void setVideoDepacketizer(VideoDepacketizer videoDepacketizer) {
+        this.videoDepacketizer = videoDepacketizer;
+    }
+
+    private MediaCounters getCounters(int payloadType) {
+        if (payloadType == videoPayloadType) {
+            return conn.getVideoCounters();
+        } else if (payloadType == audioPayloadType) {
+            return conn.getAudioCounters();
+        }
+        return null;
+    }
+
+    @Override
+    public PacketTransformer getRTPTransformer() {
+        return this;
+    }
+
+    @Override
+    public PacketTransformer getRTCPTransformer() {
+        return null;
+    }
+
+}
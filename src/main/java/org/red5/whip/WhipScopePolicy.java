@@ -0,0 +1,152 @@
+package org.red5.whip;
+
+import org.red5.server.api.scope.IScope;
+import org.red5.whip.TranscodeScheduler.Priority;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Per-scope WHIP ingest policy, read from scope attributes. An attribute set on a scope applies to the scopes below it
+ * unless they set their own, so a policy may be set once on the application scope. Values may be numbers or strings;
+ * the attributes are read each time a policy is taken, so changes apply to running sessions.
+ *
+ * @author Paul Gregoire
+ */
+public class WhipScopePolicy {
+
+    private static final Logger log = LoggerFactory.getLogger(WhipScopePolicy.class);
+
+    /**
+     * Highest video bitrate in bits per second requested from publishers, 0 for no limit beyond their own request.
+     */
+    public static final String MAX_VIDEO_BITRATE = "whip.maxVideoBitrate";
+
+    /**
+     * Lowest video bitrate in bits per second requested from publishers.
+     */
+    public static final String MIN_VIDEO_BITRATE = "whip.minVideoBitrate";
+
+    /**
+     * Whether Opus is forwarded into the stream as is, tagged as enhanced RTMP Opus audio, rather than transcoded to
+     * AAC. Consumers which can't take Opus get no audio from such streams.
+     */
+    public static final String OPUS_PASSTHROUGH = "whip.opusPassthrough";
+
+    /**
+     * Whether audio is only transcoded to AAC while the stream has consumers, plus a grace period after the last
+     * leaves.
+     */
+    public static final String LAZY_TRANSCODE = "whip.lazyTranscode";
+
+    /**
+     * Priority class of audio transcoding with the node's transcode scheduler: high, normal or low. High priority
+     * streams are admitted first and never shed.
+     */
+    public static final String TRANSCODE_PRIORITY = "whip.transcodePriority";
+
+    /**
+     * Whether video is assembled into frames by the WHIP depacketizer and dispatched into the stream directly, rather
+     * than going through the video device and muxer.
+     */
+    public static final String VIDEO_DEPACKETIZER = "whip.videoDepacketizer";
+
+    private static final long DEFAULT_MIN_VIDEO_BITRATE = 100000L;
+
+    private final long maxVideoBitrate;
+
+    private final long minVideoBitrate;
+
+    private final boolean opusPassthrough;
+
+    private final boolean lazyTranscode;
+
+    private final Priority transcodePriority;
+
+    private final boolean videoDepacketizer;
+
+    private WhipScopePolicy(IScope scope) {
+        maxVideoBitrate = getLong(scope, MAX_VIDEO_BITRATE, 0L);
+        minVideoBitrate = getLong(scope, MIN_VIDEO_BITRATE, DEFAULT_MIN_VIDEO_BITRATE);
+        opusPassthrough = getBoolean(scope, OPUS_PASSTHROUGH, false);
+        lazyTranscode = getBoolean(scope, LAZY_TRANSCODE, false);
+        Object priority = getAttribute(scope, TRANSCODE_PRIORITY);
+        transcodePriority = Priority.of(priority != null ? priority.toString() : null);
+        videoDepacketizer = getBoolean(scope, VIDEO_DEPACKETIZER, false);
+    }
+
+    /**
+     * Returns the policy in effect for the scope.
+     *
+     * @param scope
+     * @return policy
+     */
+    public static WhipScopePolicy of(IScope scope) {
+        return new WhipScopePolicy(scope);
+    }
+
+    public long getMaxVideoBitrate() {
+        return maxVideoBitrate;
+    }
+
+    public long getMinVideoBitrate() {
+        return minVideoBitrate;
+    }
+
+    public boolean isOpusPassthrough() {
+        return opusPassthrough;
+    }
+
+    public boolean isLazyTranscode() {
+        return lazyTranscode;
+    }
+
+    public Priority getTranscodePriority() {
+        return transcodePriority;
+    }
+
+    public boolean isVideoDepacketizer() {
+        return videoDepacketizer;
+    }
+
+    /**
+     * Returns the first value of the attribute found walking up from the scope.
+     *
+     * @param scope
+     * @param name
+     * @return value or null if no scope has it
+     */
+    static Object getAttribute(IScope scope, String name) {
+        for (IScope current = scope; current != null; current = current.getParent()) {
+            Object value = current.getAttribute(name);
+            if (value != null) {
+                return value;
+            }
+        }
+        return null;
+    }
+
+    static long getLong(IScope scope, String name, long defaultValue) {
+        Object value = getAttribute(scope, name);
+        if (value instanceof Number) {
+            return ((Number) value).longValue();
+        } else if (value != null) {
+            try {
+                return Long.parseLong(value.toString().trim());
+            } catch (NumberFormatException e) {
+                log.warn("Invalid value for {}: {}", name, value);
+            }
+        }
+        return defaultValue;
+    }
+
+    static boolean getBoolean(IScope scope, String name, boolean defaultValue) {
+        Object value = getAttribute(scope, name);
+        if (value instanceof Boolean) {
+            return (Boolean) value;
+        } else if (value != null) {
+            return Boolean.parseBoolean(value.toString().trim());
+        }
+        return defaultValue;
+    }
+
+}
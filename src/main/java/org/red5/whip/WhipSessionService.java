@@ -1,18 +1,26 @@
 package org.red5.whip;
 
-import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.red5.server.BaseConnection;
 import org.red5.server.api.IContext;
 import org.red5.server.api.Red5;
 import org.red5.server.api.scope.IBroadcastScope;
 import org.red5.server.api.scope.IScope;
-import org.red5.server.api.stream.IBroadcastStream;
 import org.red5.server.stream.IProviderService;
+import org.red5.whip.SetupTimings.Stage;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.red5pro.media.sdp.SessionDescription;
 import com.red5pro.override.ProStream;
 import com.red5pro.server.ConnectionAttributeKey;
 import com.red5pro.server.stream.webrtc.IRTCStream;
@@ -21,102 +29,400 @@ import com.red5pro.webrtc.session.RTCStreamSession;
 
 /**
  * Whip implementation of a session service.
- * 
+ * <br>
+ * Sessions are indexed by scope path and stream id, as well as by an opaque resource id which is handed to the client
+ * in the Location header for subsequent PATCH and DELETE requests.
+ *
  * @author Paul Gregoire
  */
 public class WhipSessionService {
 
     private Logger log = LoggerFactory.getLogger(getClass());
 
-    private static CopyOnWriteArraySet<IRTCStreamSession> sessions = new CopyOnWriteArraySet<>();
+    private PublishPipeline pipeline;
+
+    // scope path to stream id to session entry
+    private static ConcurrentMap<String, ConcurrentMap<String, SessionEntry>> scopes = new ConcurrentHashMap<>();
+
+    // resource id to session entry
+    private static ConcurrentMap<String, SessionEntry> resources = new ConcurrentHashMap<>();
 
     public void start() {
     }
 
     public void stop() {
-        sessions.forEach(session -> cleanupStreamSession(session));
-        sessions.clear();
+        resources.values().forEach(entry -> {
+            if (entry.session != null) {
+                cleanupStreamSession(entry.session);
+            }
+        });
+        resources.clear();
+        scopes.clear();
+    }
+
+    public void setPipeline(PublishPipeline pipeline) {
+        this.pipeline = pipeline;
+    }
+
+    /**
+     * Sets up a publisher in stages on the pipelines setup executor. Independent work within the stages, such as DTLS
+     * control creation, ICE port binding and codec selection, is run in parallel on the stage executor. The returned
+     * stage completes with the publisher once its answer is ready and it has been registered for publishing; cancelling
+     * it cancels the setup as a delete would.
+     *
+     * @param conn
+     * @param streamName
+     * @param offer offer as received; its session description is parsed in the create stage
+     * @return future for the publisher, which cancels the setup if cancelled
+     * @throws java.util.concurrent.RejectedExecutionException if the setup executor is saturated
+     */
+    public CompletableFuture<WhipPublisher> setupPublisher(WhipConnection conn, String streamName, WhipOffer offer) {
+        return setupPublisher(conn, streamName, offer, new SetupTimings(conn.getScope().getContextPath(), conn.getUserAgentEnum()));
     }
 
-    public WhipPublisher setupPublisher(WhipConnection conn, String streamName, SessionDescription offerSdp) throws Exception {
+    /**
+     * Sets up a publisher, recording the stages into the given timings.
+     *
+     * @param conn
+     * @param streamName
+     * @param offer offer as received; its session description is parsed in the create stage
+     * @param timings timings which may already hold the request stages
+     * @return future for the publisher, which cancels the setup if cancelled
+     * @throws java.util.concurrent.RejectedExecutionException if the setup executor is saturated
+     */
+    public CompletableFuture<WhipPublisher> setupPublisher(WhipConnection conn, String streamName, WhipOffer offer, SetupTimings timings) {
         log.debug("setupPublisher: {} connection: {}", streamName, conn);
+        final IScope scope = conn.getScope();
+        final AtomicReference<SessionEntry> reservation = new AtomicReference<>();
+        final AtomicBoolean cancelled = new AtomicBoolean();
+        WhipMetrics.setupStarted();
+        CompletableFuture<SessionEntry> reserved;
+        try {
+            reserved = CompletableFuture.supplyAsync(() -> {
+                // reserve the stream name in the scope before doing any of the heavy lifting
+                SessionEntry entry = reserve(scope.getContextPath(), streamName);
+                if (entry == null) {
+                    throw new CompletionException(new StreamInUseException(String.format("Stream %s is already being published", streamName)));
+                }
+                reservation.set(entry);
+                // the returned future may have been cancelled before there was an entry to cancel
+                if (cancelled.get()) {
+                    entry.cancelled = true;
+                }
+                return entry;
+            }, pipeline.getSetupExecutor());
+        } catch (RejectedExecutionException e) {
+            WhipMetrics.setupFinished();
+            throw e;
+        }
+        CompletableFuture<WhipPublisher> setup = reserved.thenApply(entry -> stage(entry, conn, timings, Stage.CREATE, () -> {
+            WhipPublisher publisher = new WhipPublisher(conn, streamName);
+            publisher.setResourceId(entry.resourceId);
+            publisher.setSetupTimings(timings);
+            publisher.setStageExecutor(pipeline.getStageExecutor());
+            // creates / gets the broadcast stream
+            publisher.getProStream();
+            // parse and set the offer
+            timings.time(Stage.PARSE, offer::getSessionDescription);
+            publisher.setOffer(offer);
+            // build a stream session with an RTC source for tying rtc/rtmp stream together
+            RTCStreamSession session = new RTCStreamSession(publisher, (ProStream) publisher.getProStream());
+            // XXX this isnt available in the webapp classloader due to this classes resolution
+            // set the handler
+            //session.setHandler(this);
+            // add session; a delete which came in before it was set is caught once the stage ends
+            entry.session = session;
+            return publisher;
+        })).thenApply(publisher -> stage(reservation.get(), conn, timings, Stage.INIT, () -> {
+            // tells the session to start internal members; this initializes the publisher
+            reservation.get().session.start(conn.getUserAgentEnum());
+            return publisher;
+        })).thenApply(publisher -> stage(reservation.get(), conn, timings, Stage.ANSWER, () -> {
+            // generate the answer while we're still on a setup thread
+            publisher.getLocalSdp();
+            return publisher;
+        })).thenApply(publisher -> stage(reservation.get(), conn, timings, Stage.REGISTER, () -> {
+            IRTCStreamSession session = reservation.get().session;
+            ProStream proStream = (ProStream) publisher.getProStream();
+            // publish name
+            String publishName = proStream.getPublishedName();
+            // register the publisher, but don't publish yet
+            IContext context = scope.getContext();
+            IProviderService providerService = (IProviderService) context.getBean(IProviderService.BEAN_NAME);
+            if (providerService.registerBroadcastStream(scope, streamName, proStream)) {
+                IBroadcastScope bsScope = scope.getBroadcastScope(streamName);
+                bsScope.setClientBroadcastStream(proStream);
+                ((BaseConnection) conn).registerBasicScope(bsScope);
+                log.debug("Scope: {} registered with connection: {}", bsScope.getPath(), conn.getSessionId());
+                // set the connection on the stream for later referencing
+                proStream.setConnection(conn);
+                // add stream name to the connection
+                conn.setAttribute(ConnectionAttributeKey.STREAM_NAME, publishName);
+                conn.setSession(session);
+                log.debug("Successfully registered for publishing: {}", publishName);
+            } else {
+                // the name is in use outside of whip; failing the stage releases the entry and stops the session
+                log.info("Failed to register for publishing: {}", publishName);
+                throw new CompletionException(new StreamInUseException(String.format("Stream %s is already registered", streamName)));
+            }
+            return publisher;
+        })).whenComplete((publisher, t) -> {
+            WhipMetrics.setupFinished();
+            if (t != null) {
+                SessionEntry entry = reservation.get();
+                if (entry != null) {
+                    // release the reservation so the stream name may be reused
+                    release(entry);
+                    // stops the publisher and releases its ports etc, even if a delete already released the entry
+                    stopSession(entry);
+                }
+            }
+            log.debug("Setup for {} {}", streamName, timings);
+        });
+        // cancelling doesn't reach the stages behind the returned future, so the entry is cancelled instead
+        setup.whenComplete((publisher, t) -> {
+            if (setup.isCancelled()) {
+                cancelled.set(true);
+                SessionEntry entry = reservation.get();
+                if (entry != null) {
+                    cleanupStreamSessionForResource(entry.resourceId);
+                }
+            }
+        });
+        return setup;
+    }
+
+    /**
+     * Runs a setup stage with the connection thread local set, recording its duration. The stage fails if the setup
+     * was cancelled by a delete, either before it starts or while it ran.
+     *
+     * @param entry
+     * @param conn
+     * @param timings
+     * @param stage
+     * @param task
+     * @return publisher
+     */
+    private WhipPublisher stage(SessionEntry entry, WhipConnection conn, SetupTimings timings, Stage stage, Callable<WhipPublisher> task) {
+        checkCancelled(entry);
         // set the thread local for internals etc
         Red5.setConnectionLocal(conn);
-        WhipPublisher publisher = new WhipPublisher(conn, streamName);
-        // creates / gets the broadcast stream
-        ProStream proStream = (ProStream) publisher.getProStream();
-        // set the offer
-        publisher.setOffer(offerSdp);
-        // build a stream session with an RTC source for tying rtc/rtmp stream together
-        RTCStreamSession session = new RTCStreamSession(publisher, proStream);
-        // XXX this isnt available in the webapp classloader due to this classes resolution
-        // set the handler
-        //session.setHandler(this);
-        // add session
-        sessions.add(session);
-        // tells the session to start internal members
-        session.start(conn.getUserAgentEnum());
-        // publish name
-        String publishName = proStream.getPublishedName();
-        // register the publisher, but don't publish yet        
-        IScope scope = conn.getScope();
-        IContext context = scope.getContext();
-        IProviderService providerService = (IProviderService) context.getBean(IProviderService.BEAN_NAME);
-        if (providerService.registerBroadcastStream(scope, streamName, proStream)) {
-            IBroadcastScope bsScope = scope.getBroadcastScope(streamName);
-            bsScope.setClientBroadcastStream(proStream);
-            ((BaseConnection) conn).registerBasicScope(bsScope);
-            log.debug("Scope: {} registered with connection: {}", bsScope.getPath(), conn.getSessionId());
-            // set the connection on the stream for later referencing
-            proStream.setConnection(conn);
-            // add stream name to the connection
-            conn.setAttribute(ConnectionAttributeKey.STREAM_NAME, publishName);
-            conn.setSession(session);
-            log.debug("Successfully registered for publishing: {}", publishName);
-        } else {
-            log.info("Failed to register for publishing: {}", publishName);
-            cleanupStreamSession(session);
+        long start = System.nanoTime();
+        try {
+            WhipPublisher publisher = task.call();
+            checkCancelled(entry);
+            return publisher;
+        } catch (CompletionException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new CompletionException(e);
+        } finally {
+            timings.record(stage, System.nanoTime() - start);
+            // clear thread local
+            Red5.setConnectionLocal(null);
+        }
+    }
+
+    /**
+     * Fails the setup if its entry was cancelled by a delete.
+     *
+     * @param entry
+     */
+    private void checkCancelled(SessionEntry entry) {
+        if (entry.cancelled) {
+            throw new CompletionException(new CancellationException(String.format("Setup of %s was cancelled", entry.streamName)));
+        }
+    }
+
+    /**
+     * Stops the entry's session, once, whether or not the entry is still indexed.
+     *
+     * @param entry
+     */
+    private void stopSession(SessionEntry entry) {
+        IRTCStreamSession session = entry.session;
+        if (session != null && entry.stopped.compareAndSet(false, true)) {
+            ((IRTCStream) session.getRtcStream()).stop();
+            session.getProStream().stop();
+        }
+    }
+
+    /**
+     * Reserves the stream name within the given scope path. Only one caller will succeed for a given scope path and
+     * stream name pairing, racing callers will receive null.
+     *
+     * @param scopePath
+     * @param streamName
+     * @return session entry if reserved and null if the stream name is already in-use
+     */
+    private SessionEntry reserve(String scopePath, String streamName) {
+        SessionEntry entry = new SessionEntry(scopePath, streamName);
+        ConcurrentMap<String, SessionEntry> streams = scopes.computeIfAbsent(scopePath, path -> new ConcurrentHashMap<>());
+        if (streams.putIfAbsent(streamName, entry) == null) {
+            resources.put(entry.resourceId, entry);
+            return entry;
+        }
+        log.debug("Stream {} already reserved in {}", streamName, scopePath);
+        return null;
+    }
+
+    /**
+     * Removes the entry from the indexes.
+     *
+     * @param entry
+     * @return true if the entry was removed and false if it was already released
+     */
+    private boolean release(SessionEntry entry) {
+        if (resources.remove(entry.resourceId, entry)) {
+            ConcurrentMap<String, SessionEntry> streams = scopes.get(entry.scopePath);
+            if (streams != null) {
+                streams.remove(entry.streamName, entry);
+            }
+            return true;
         }
-        // clear thread local
-        Red5.setConnectionLocal(null);
-        return publisher;
+        return false;
     }
 
-    public IRTCStreamSession getStreamSessionForRequest(String requestId) {
-        if (log.isDebugEnabled()) {
-            log.debug("Get session for {}\n{}", requestId, sessions);
+    /**
+     * Removes the entry for the given resource id from the indexes; called by publishers which stop on their own, such
+     * as on ICE failure or connection close.
+     *
+     * @param resourceId
+     */
+    static void release(String resourceId) {
+        if (resourceId != null) {
+            SessionEntry entry = resources.remove(resourceId);
+            if (entry != null) {
+                ConcurrentMap<String, SessionEntry> streams = scopes.get(entry.scopePath);
+                if (streams != null) {
+                    streams.remove(entry.streamName, entry);
+                }
+            }
         }
-        for (IRTCStreamSession session : sessions) {
-            // look for matching request id
-            IRTCStream rtcStream = (IRTCStream) session.getRtcStream();
-            if (rtcStream instanceof WhipPublisher && ((WhipPublisher) rtcStream).getName().equals(requestId)) {
-                log.debug("Session found for request: {}", session);
-                return session;
+    }
+
+    /**
+     * Returns the session for the given scope path and stream id.
+     *
+     * @param scopePath
+     * @param streamName
+     * @return session or null if not found
+     */
+    public IRTCStreamSession getStreamSession(String scopePath, String streamName) {
+        ConcurrentMap<String, SessionEntry> streams = scopes.get(scopePath);
+        if (streams != null) {
+            SessionEntry entry = streams.get(streamName);
+            if (entry != null) {
+                log.debug("Session found for {} in {}", streamName, scopePath);
+                return entry.session;
             }
         }
-        log.debug("Session not found for {}", requestId);
+        log.debug("Session not found for {} in {}", streamName, scopePath);
         return null;
     }
 
-    public void cleanupStreamSession(String requestId) {
-        if (log.isDebugEnabled()) {
-            log.debug("Clean up session for {}\n{}", requestId, sessions);
+    /**
+     * Returns the session for the given resource id.
+     *
+     * @param resourceId
+     * @return session or null if not found
+     */
+    public IRTCStreamSession getStreamSessionForResource(String resourceId) {
+        SessionEntry entry = resources.get(resourceId);
+        if (entry != null) {
+            log.debug("Session found for resource: {}", resourceId);
+            return entry.session;
         }
-        sessions.forEach(session -> {
-            // look for matching request id
-            IRTCStream rtcStream = (IRTCStream) session.getRtcStream();
-            if (rtcStream instanceof WhipPublisher && ((WhipPublisher) rtcStream).getName().equals(requestId)) {
-                log.debug("Session found for request: {}", session);
-                cleanupStreamSession(session);
+        log.debug("Session not found for resource: {}", resourceId);
+        return null;
+    }
+
+    /**
+     * Cleans up the session for the given resource id. A setup still in flight is cancelled and stops its publisher at
+     * the next stage boundary.
+     *
+     * @param resourceId
+     * @return true if a session was found and cleaned up and false otherwise
+     */
+    public boolean cleanupStreamSessionForResource(String resourceId) {
+        SessionEntry entry = resources.get(resourceId);
+        if (entry != null) {
+            // set before reading the session, so either this stops it or the setup sees the flag once it's set
+            entry.cancelled = true;
+            if (release(entry)) {
+                stopSession(entry);
+                return true;
             }
-        });
+        }
+        return false;
+    }
+
+    /**
+     * Cleans up the session for the given scope path and stream id.
+     *
+     * @param scopePath
+     * @param streamName
+     * @return true if a session was found and cleaned up and false otherwise
+     */
+    public boolean cleanupStreamSession(String scopePath, String streamName) {
+        ConcurrentMap<String, SessionEntry> streams = scopes.get(scopePath);
+        if (streams != null) {
+            SessionEntry entry = streams.get(streamName);
+            if (entry != null) {
+                return cleanupStreamSessionForResource(entry.resourceId);
+            }
+        }
+        return false;
     }
 
     public void cleanupStreamSession(IRTCStreamSession session) {
-        if (sessions.remove(session)) {
-            session.getRtcStream().stop();
-            session.getProStream().stop();
+        IRTCStream rtcStream = (IRTCStream) session.getRtcStream();
+        if (rtcStream instanceof WhipPublisher) {
+            SessionEntry entry = resources.get(((WhipPublisher) rtcStream).getResourceId());
+            // only the caller that removes the entry performs the stop
+            if (entry != null && entry.session == session && release(entry)) {
+                stopSession(entry);
+            }
         }
     }
 
+    /**
+     * Thrown when a setup fails because its stream name is already in use in the scope.
+     */
+    public static final class StreamInUseException extends IllegalStateException {
+
+        private static final long serialVersionUID = -2318563541874170415L;
+
+        StreamInUseException(String message) {
+            super(message);
+        }
+
+    }
+
+    /**
+     * Index entry for a session; the session is set after the stream name is reserved.
+     */
+    private static final class SessionEntry {
+
+        final String scopePath;
+
+        final String streamName;
+
+        // opaque id handed to the client
+        final String resourceId = UUID.randomUUID().toString();
+
+        volatile IRTCStreamSession session;
+
+        // set by a delete, checked by the setup at each stage boundary
+        volatile boolean cancelled;
+
+        final AtomicBoolean stopped = new AtomicBoolean();
+
+        SessionEntry(String scopePath, String streamName) {
+            this.scopePath = scopePath;
+            this.streamName = streamName;
+        }
+
+    }
+
 }
@@ -0,0 +1,164 @@
+package org.red5.whip;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+import org.red5.whip.AnswerTemplate.Values;
+
+/**
+ * Tests that templated answers are byte for byte those of the model.
+ *
+ * @author Paul Gregoire
+ */
+public class AnswerTemplateTest {
+
+    private static final List<String> CANDIDATES = Arrays.asList("candidate:1 1 udp 2130706431 10.0.0.5 49152 typ host", "candidate:2 1 udp 1694498815 71.38.119.248 49152 typ srflx raddr 10.0.0.5 rport 49152");
+
+    private static int shapes;
+
+    // templates are node-wide, so each test learns a shape of its own
+    private static String shape() {
+        return "test|" + (shapes++);
+    }
+
+    private static Values values(int session, List<String> candidates) {
+        Values values = new Values("red5pro_stream" + session, Long.toString(1000000000000L + session * 7919L), session + 1, "uf" + session, "pwd" + session + "x8Ya2LtS4qv0zfgJ", candidates);
+        values.setFingerprint(AnswerTemplate.AUDIO, fingerprint(session, 0x11));
+        values.setFingerprint(AnswerTemplate.VIDEO, fingerprint(session, 0x22));
+        values.setFingerprint(AnswerTemplate.DATA, fingerprint(session, 0x33));
+        values.setSctpPort(5000 + session);
+        return values;
+    }
+
+    private static String fingerprint(int session, int seed) {
+        StringBuilder sb = new StringBuilder("sha-256 ");
+        for (int i = 0; i < 32; i++) {
+            if (i > 0) {
+                sb.append(':');
+            }
+            sb.append(String.format("%02X", (session * 31 + seed + i) & 0xff));
+        }
+        return sb.toString();
+    }
+
+    // stands in for the sdp model
+    private static String build(Values values, String eol) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("v=0").append(eol);
+        sb.append("o=").append(values.originUser).append(' ').append(values.sessionId).append(' ').append(values.sessionVersion).append(" IN IP4 0.0.0.0").append(eol);
+        sb.append("s=-").append(eol).append("t=0 0").append(eol);
+        sb.append("a=group:BUNDLE 0 1 2").append(eol);
+        sb.append("a=ice-options:trickle").append(eol);
+        section(sb, values, eol, "m=audio 9 UDP/TLS/RTP/SAVPF 111", "0", AnswerTemplate.AUDIO);
+        sb.append("a=rtpmap:111 opus/48000/2").append(eol);
+        sb.append("a=fmtp:111 minptime=10;useinbandfec=1").append(eol);
+        section(sb, values, eol, "m=video 9 UDP/TLS/RTP/SAVPF 102 103", "1", AnswerTemplate.VIDEO);
+        sb.append("a=rtpmap:102 H264/90000").append(eol);
+        sb.append("a=fmtp:102 level-asymmetry-allowed=1;packetization-mode=1;profile-level-id=42e01f").append(eol);
+        sb.append("a=rtpmap:103 rtx/90000").append(eol);
+        sb.append("a=fmtp:103 apt=102").append(eol);
+        section(sb, values, eol, "m=application 9 UDP/DTLS/SCTP webrtc-datachannel", "2", AnswerTemplate.DATA);
+        sb.append("a=sctp-port:").append(values.sctpPort).append(eol);
+        sb.append("a=max-message-size:262144").append(eol);
+        return sb.toString();
+    }
+
+    private static void section(StringBuilder sb, Values values, String eol, String media, String mid, int section) {
+        sb.append(media).append(eol);
+        sb.append("c=IN IP4 0.0.0.0").append(eol);
+        sb.append("a=ice-ufrag:").append(values.ufrag).append(eol);
+        sb.append("a=ice-pwd:").append(values.pwd).append(eol);
+        sb.append("a=fingerprint:").append(values.fingerprints[section]).append(eol);
+        sb.append("a=setup:passive").append(eol);
+        sb.append("a=mid:").append(mid).append(eol);
+        for (String candidate : values.candidates) {
+            sb.append("a=").append(candidate).append(eol);
+        }
+        sb.append("a=recvonly").append(eol);
+    }
+
+    private static AnswerTemplate learn(String shape, String eol, List<String> candidates) {
+        AnswerTemplate.learn(shape, build(values(0, candidates), eol), values(0, candidates));
+        return AnswerTemplate.get(shape);
+    }
+
+    @Test
+    public void testRenderMatchesModel() {
+        String shape = shape();
+        AnswerTemplate template = learn(shape, "\r\n", CANDIDATES);
+        assertNotNull(template);
+        assertTrue(AnswerTemplate.isKnown(shape));
+        // other sessions, including values of other lengths
+        for (int session : new int[] { 1, 9, 10, 123, 40000 }) {
+            Values values = values(session, Arrays.asList(CANDIDATES.get(1), CANDIDATES.get(0).replace("10.0.0.5", "192.168.100.200")));
+            assertEquals(build(values, "\r\n"), template.render(values));
+        }
+    }
+
+    @Test
+    public void testBareLineFeeds() {
+        AnswerTemplate template = learn(shape(), "\n", CANDIDATES);
+        assertNotNull(template);
+        Values values = values(5, CANDIDATES);
+        assertEquals(build(values, "\n"), template.render(values));
+    }
+
+    @Test
+    public void testWithoutCandidates() {
+        AnswerTemplate template = learn(shape(), "\r\n", Collections.<String> emptyList());
+        assertNotNull(template);
+        Values values = values(3, null);
+        assertEquals(build(values, "\r\n"), template.render(values));
+    }
+
+    @Test
+    public void testVerify() {
+        String shape = shape();
+        AnswerTemplate template = learn(shape, "\r\n", CANDIDATES);
+        assertFalse(template.isVerified());
+        for (int session = 1; session <= 3; session++) {
+            Values values = values(session, CANDIDATES);
+            assertTrue(template.verify(shape, build(values, "\r\n"), values));
+        }
+        assertTrue(template.isVerified());
+        assertNotNull(AnswerTemplate.get(shape));
+    }
+
+    @Test
+    public void testMismatchDisablesShape() {
+        String shape = shape();
+        AnswerTemplate template = learn(shape, "\r\n", CANDIDATES);
+        Values values = values(2, CANDIDATES);
+        assertFalse(template.verify(shape, build(values, "\r\n").replace("a=recvonly", "a=inactive"), values));
+        assertNull(AnswerTemplate.get(shape));
+        assertTrue(AnswerTemplate.isKnown(shape));
+    }
+
+    @Test
+    public void testPerSessionValueInLiteral() {
+        // the ufrag written outside its own line would leak into other sessions answers
+        String shape = shape();
+        Values values = values(0, CANDIDATES);
+        AnswerTemplate.learn(shape, build(values, "\r\n") + "a=x-ufrag-copy:" + values.ufrag + "\r\n", values);
+        assertNull(AnswerTemplate.get(shape));
+        assertTrue(AnswerTemplate.isKnown(shape));
+    }
+
+    @Test
+    public void testCandidateMismatch() {
+        String shape = shape();
+        Values values = values(0, CANDIDATES);
+        // answer carrying a candidate the values don't
+        AnswerTemplate.learn(shape, build(values(0, Arrays.asList(CANDIDATES.get(0))), "\r\n"), values);
+        assertNull(AnswerTemplate.get(shape));
+    }
+
+}
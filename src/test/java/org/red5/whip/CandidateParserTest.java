@@ -0,0 +1,127 @@
+package org.red5.whip;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.ice4j.Transport;
+import org.ice4j.ice.CandidateTcpType;
+import org.ice4j.ice.CandidateType;
+import org.junit.Test;
+import org.red5.whip.CandidateParser.ParsedCandidate;
+
+/**
+ * Tests for the single pass candidate parser.
+ *
+ * @author Paul Gregoire
+ */
+public class CandidateParserTest {
+
+    private static final String CHROME_SRFLX = "candidate:976374523 1 udp 1686052607 71.38.119.248 34303 typ srflx raddr 10.0.0.5 rport 34303 generation 0 ufrag PnfW network-id 1 network-cost 10";
+
+    private static ParsedCandidate parse(String line) {
+        ParsedCandidate parsed = new ParsedCandidate();
+        int start = line.startsWith("candidate:") ? 10 : 0;
+        parsed.parse(line, start, line.length());
+        return parsed;
+    }
+
+    @Test
+    public void testParseAllFields() {
+        ParsedCandidate parsed = new ParsedCandidate();
+        assertTrue(parsed.parse(CHROME_SRFLX, 10, CHROME_SRFLX.length()));
+        assertEquals("976374523", parsed.foundation);
+        assertEquals(1, parsed.componentId);
+        assertEquals(Transport.UDP, parsed.transport);
+        assertEquals(1686052607L, parsed.priority);
+        assertEquals("71.38.119.248", parsed.address);
+        assertEquals(34303, parsed.port);
+        assertEquals(CandidateType.SERVER_REFLEXIVE_CANDIDATE, parsed.type);
+        assertEquals("srflx", parsed.typeName);
+        assertEquals("10.0.0.5", parsed.relatedAddress);
+        assertEquals(34303, parsed.relatedPort);
+        assertEquals(0, parsed.generation);
+        assertEquals("PnfW", parsed.ufrag);
+        assertEquals(1, parsed.networkId);
+        assertEquals(10, parsed.networkCost);
+    }
+
+    @Test
+    public void testParseResetsBetweenCandidates() {
+        ParsedCandidate parsed = new ParsedCandidate();
+        assertTrue(parsed.parse(CHROME_SRFLX, 10, CHROME_SRFLX.length()));
+        String host = "candidate:1 1 UDP 2122252543 10.0.0.5 61952 typ host";
+        assertTrue(parsed.parse(host, 10, host.length()));
+        assertEquals(Transport.UDP, parsed.transport);
+        assertEquals(CandidateType.HOST_CANDIDATE, parsed.type);
+        assertNull(parsed.relatedAddress);
+        assertEquals(-1, parsed.relatedPort);
+        assertEquals(-1, parsed.generation);
+        assertNull(parsed.ufrag);
+        assertEquals(-1, parsed.networkId);
+        assertEquals(-1, parsed.networkCost);
+    }
+
+    @Test
+    public void testParseWithinBounds() {
+        String line = "a=candidate:1 1 udp 2122252543 10.0.0.5 61952 typ host\r\na=end-of-candidates";
+        int start = line.indexOf(':') + 1;
+        ParsedCandidate parsed = new ParsedCandidate();
+        assertTrue(parsed.parse(line, start, line.indexOf('\r')));
+        assertEquals(61952, parsed.port);
+        assertNull(parsed.relatedAddress);
+    }
+
+    @Test
+    public void testParseTcp() {
+        ParsedCandidate parsed = parse("candidate:3 1 tcp 1518280447 10.0.0.5 9 typ host tcptype active generation 0");
+        assertEquals(Transport.TCP, parsed.transport);
+        assertEquals(9, parsed.port);
+        assertEquals(CandidateTcpType.ACTIVE, parsed.tcpType);
+        assertEquals(0, parsed.generation);
+    }
+
+    @Test
+    public void testSkipsUnparseable() {
+        ParsedCandidate parsed = new ParsedCandidate();
+        String[] lines = { "end-of-candidates", "1 1 udp 2122252543 10.0.0.5", "1 1 udp 2122252543 10.0.0.5 6x952 typ host", "1 1 udp 2122252543 10.0.0.5 61952 typ bogus", "1 1 tcp 1518280447 10.0.0.5 9 typ host tcptype bogus", "" };
+        for (String line : lines) {
+            assertFalse(line, parsed.parse(line, 0, line.length()));
+        }
+        // the parser is usable after an unparseable line
+        assertTrue(parsed.parse(CHROME_SRFLX, 10, CHROME_SRFLX.length()));
+    }
+
+    @Test
+    public void testToJson() {
+        assertEquals("{\"foundation\":976374523,\"protocol\":\"udp\",\"priority\":1686052607,\"ip\":\"71.38.119.248\",\"port\":34303,\"type\":\"srflx\",\"relatedAddress\":\"10.0.0.5\",\"relatedPort\":34303}", CandidateParser.toJson(CHROME_SRFLX));
+        assertEquals("{\"foundation\":1,\"protocol\":\"tcp\",\"priority\":1518280447,\"ip\":\"10.0.0.5\",\"port\":9,\"type\":\"host\",\"tcpType\":\"active\"}", CandidateParser.toJson("candidate:1 1 TCP 1518280447 10.0.0.5 9 typ host tcptype active"));
+    }
+
+    @Test
+    public void testToJsonQuotesFoundation() {
+        // non-numeric foundations, and those too long for a json number, are strings
+        assertEquals("{\"foundation\":\"x\\\\1f\",\"protocol\":\"udp\",\"priority\":1,\"ip\":\"10.0.0.5\",\"port\":5000,\"type\":\"host\"}", CandidateParser.toJson("candidate:x\\1f 1 udp 1 10.0.0.5 5000 typ host"));
+        assertTrue(CandidateParser.toJson("candidate:1234567890123456789 1 udp 1 10.0.0.5 5000 typ host").startsWith("{\"foundation\":\"1234567890123456789\","));
+    }
+
+    @Test
+    public void testToJsonWithoutPrefix() {
+        // the colons of an ipv6 address aren't taken for the prefix
+        assertEquals("{\"foundation\":2,\"protocol\":\"udp\",\"priority\":2122252542,\"ip\":\"fd83:6b9b:a38a:2::1\",\"port\":62275,\"type\":\"host\"}", CandidateParser.toJson("2 2 UDP 2122252542 fd83:6b9b:a38a:2::1 62275 typ host"));
+    }
+
+    @Test
+    public void testToJsonUnparseable() {
+        assertEquals("{}", CandidateParser.toJson("candidate:1 1 udp 1 10.0.0.5 5000 typ bogus"));
+        assertEquals("{}", CandidateParser.toJson("candidate:1 1 udp 1 10.0.0.5"));
+    }
+
+    @Test
+    public void testIsIPv6Candidate() {
+        assertTrue(CandidateParser.isIPv6Candidate("{\"candidate\":\"candidate:2 2 UDP 2122252542 fd83:6b9b:a38a:2:8def:5885:2ea7:44d1 62275 typ host\"}"));
+        assertFalse(CandidateParser.isIPv6Candidate("{\"ip\":\"71.38.119.248\",\"port\":34303}"));
+    }
+
+}
@@ -0,0 +1,118 @@
+package org.red5.whip;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import java.nio.ByteBuffer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.red5.whip.FrameSlabPool.Slab;
+
+/**
+ * Tests for writing frames into slabs and recycling them.
+ *
+ * @author Paul Gregoire
+ */
+public class FrameSlabPoolTest {
+
+    private static final int SLAB_SIZE = 64 * 1024;
+
+    private FrameSlabPool pool;
+
+    @Before
+    public void setUp() {
+        FrameSlabPool.start(SLAB_SIZE, 1);
+        pool = FrameSlabPool.getInstance();
+    }
+
+    @After
+    public void tearDown() {
+        FrameSlabPool.stop();
+    }
+
+    private static ByteBuffer write(Slab slab, int... values) {
+        ByteBuffer writer = slab.writer();
+        int start = writer.position();
+        for (int value : values) {
+            writer.put((byte) value);
+        }
+        return slab.commit(start);
+    }
+
+    private static byte[] bytes(ByteBuffer frame) {
+        byte[] b = new byte[frame.remaining()];
+        frame.duplicate().get(b);
+        return b;
+    }
+
+    @Test
+    public void testCommit() {
+        Slab slab = pool.acquire();
+        ByteBuffer first = write(slab, 1, 2, 3);
+        ByteBuffer second = write(slab, 4, 5);
+        // each frame is a view of its own bytes, unmoved by later commits
+        assertEquals(0, first.position());
+        assertArrayEquals(new byte[] { 1, 2, 3 }, bytes(first));
+        assertArrayEquals(new byte[] { 4, 5 }, bytes(second));
+        assertEquals(5, slab.position());
+        assertEquals(SLAB_SIZE - 5, slab.remaining());
+    }
+
+    @Test
+    public void testUncommittedWriteIsReused() {
+        Slab slab = pool.acquire();
+        ByteBuffer writer = slab.writer();
+        writer.put((byte) 9).put((byte) 9);
+        // a frame given up on before its commit leaves the position where it was
+        assertArrayEquals(new byte[] { 1 }, bytes(write(slab, 1)));
+    }
+
+    @Test
+    public void testRecycle() {
+        Slab slab = pool.acquire();
+        write(slab, 1);
+        // the writer moves on, the frame cut from the slab is still held
+        slab.release();
+        assertEquals(0, pool.getPooled());
+        slab.release();
+        assertEquals(1, pool.getPooled());
+        Slab next = pool.acquire();
+        assertSame(slab, next);
+        assertEquals(0, next.position());
+        assertEquals(0, pool.getPooled());
+        assertEquals(1L, pool.getAllocated());
+    }
+
+    @Test
+    public void testAllocatesWhenEmpty() {
+        Slab first = pool.acquire();
+        Slab second = pool.acquire();
+        assertNotSame(first, second);
+        assertEquals(2L, pool.getAllocated());
+        assertEquals(0, pool.getPooled());
+    }
+
+    @Test
+    public void testMaxPooled() {
+        Slab first = pool.acquire();
+        Slab second = pool.acquire();
+        first.release();
+        assertEquals(1, pool.getPooled());
+        // beyond the max, left for the collector
+        second.release();
+        assertEquals(1, pool.getPooled());
+    }
+
+    @Test
+    public void testStoppedPoolDoesntRecycle() {
+        Slab slab = pool.acquire();
+        FrameSlabPool.stop();
+        slab.release();
+        assertEquals(0, pool.getPooled());
+    }
+
+}
@@ -0,0 +1,171 @@
+package org.red5.whip;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for the NACK gap tracking and requests, recorded and built without a stream to send them on.
+ *
+ * @author Paul Gregoire
+ */
+public class NackRequesterTest {
+
+    private NackRequester requester;
+
+    private int losses;
+
+    @Before
+    public void setUp() {
+        losses = 0;
+        requester = new NackRequester(null, 0x11223344L, 0x55667788L, NackRequester.DEFAULT_REORDER_WINDOW, NackRequester.DEFAULT_RETRY_INTERVAL, () -> losses++);
+    }
+
+    private void record(int from, int to, long now) {
+        for (int seq = from; seq <= to; seq++) {
+            requester.record(seq & 0xffff, now);
+        }
+    }
+
+    private static int u16(byte[] buf, int pos) {
+        return ((buf[pos] & 0xff) << 8) | (buf[pos + 1] & 0xff);
+    }
+
+    @Test
+    public void testInOrder() {
+        record(0, 100, 0L);
+        assertEquals(0, requester.getMissing());
+        assertNull(requester.build(0L));
+    }
+
+    @Test
+    public void testReorderWindow() {
+        requester.record(0, 0L);
+        requester.record(2, 0L);
+        assertEquals(1, requester.getMissing());
+        // not yet far enough behind to be anything but out of order
+        assertNull(requester.build(0L));
+        record(3, 5, 0L);
+        byte[] buf = requester.build(0L);
+        assertEquals(16, buf.length);
+        assertEquals(0x81, buf[0] & 0xff);
+        assertEquals(205, buf[1] & 0xff);
+        assertEquals(3, u16(buf, 2));
+        assertEquals(0x1122, u16(buf, 4));
+        assertEquals(0x3344, u16(buf, 6));
+        assertEquals(0x5566, u16(buf, 8));
+        assertEquals(0x7788, u16(buf, 10));
+        assertEquals(1, u16(buf, 12));
+        assertEquals(0, u16(buf, 14));
+        assertEquals(1L, requester.getRequested());
+    }
+
+    @Test
+    public void testRecovered() {
+        requester.record(0, 0L);
+        requester.record(2, 10L);
+        assertEquals(30L, requester.record(1, 40L));
+        assertEquals(0, requester.getMissing());
+        // a duplicate or old packet wasn't missing
+        assertEquals(-1L, requester.record(1, 50L));
+        assertEquals(-1L, requester.record(2, 50L));
+        record(3, 10, 60L);
+        assertNull(requester.build(60L));
+    }
+
+    @Test
+    public void testBitmask() {
+        requester.record(9, 0L);
+        record(12, 12, 0L);
+        record(14, 26, 0L);
+        record(28, 40, 0L);
+        assertEquals(4, requester.getMissing());
+        byte[] buf = requester.build(0L);
+        assertEquals(20, buf.length);
+        assertEquals(4, u16(buf, 2));
+        // 10 with 11 and 13, then 27 which is more than 16 past 10
+        assertEquals(10, u16(buf, 12));
+        assertEquals(0x0005, u16(buf, 14));
+        assertEquals(27, u16(buf, 16));
+        assertEquals(0, u16(buf, 18));
+        assertEquals(4L, requester.getRequested());
+    }
+
+    @Test
+    public void testRetries() {
+        requester.record(0, 0L);
+        record(2, 10, 0L);
+        assertEquals(1, u16(requester.build(0L), 12));
+        // not due until the retry interval has passed
+        assertNull(requester.build(50L));
+        assertEquals(1, u16(requester.build(100L), 12));
+        assertEquals(1, u16(requester.build(200L), 12));
+        assertEquals(3L, requester.getRequested());
+        assertEquals(0, losses);
+        // the last request went unanswered
+        assertNull(requester.build(300L));
+        assertEquals(1, losses);
+        assertEquals(0, requester.getMissing());
+        assertEquals(3L, requester.getRequested());
+    }
+
+    @Test
+    public void testSequenceWrap() {
+        requester.record(65534, 0L);
+        record(1, 4, 0L);
+        assertEquals(2, requester.getMissing());
+        byte[] buf = requester.build(0L);
+        assertEquals(16, buf.length);
+        assertEquals(65535, u16(buf, 12));
+        assertEquals(0x0001, u16(buf, 14));
+        assertEquals(10L, requester.record(0, 10L));
+    }
+
+    @Test
+    public void testGapWiderThanRing() {
+        requester.record(0, 0L);
+        requester.record(1, 0L);
+        requester.record(600, 0L);
+        assertEquals(1, losses);
+        assertEquals(0, requester.getMissing());
+        // tracking goes on from the new packet
+        requester.record(602, 0L);
+        assertEquals(1, requester.getMissing());
+    }
+
+    @Test
+    public void testJumpBack() {
+        requester.record(1000, 0L);
+        requester.record(1002, 0L);
+        assertEquals(1, requester.getMissing());
+        requester.record(100, 0L);
+        assertEquals(1, losses);
+        assertEquals(0, requester.getMissing());
+        // the old gap isn't requested, and the restarted sequence isn't taken for a gap
+        record(101, 110, 0L);
+        assertEquals(0, requester.getMissing());
+        assertNull(requester.build(0L));
+    }
+
+    @Test
+    public void testJumpBackWithoutGaps() {
+        record(1000, 1010, 0L);
+        requester.record(100, 0L);
+        assertEquals(0, losses);
+        record(101, 110, 0L);
+        assertEquals(0, requester.getMissing());
+    }
+
+    @Test
+    public void testJumpForwardHalfSpace() {
+        record(0, 10, 0L);
+        // seen as a jump back, tracking restarts rather than marking half the sequence space missing
+        requester.record(40000, 0L);
+        record(40001, 40010, 0L);
+        assertEquals(0, requester.getMissing());
+        assertEquals(0, losses);
+    }
+
+}
@@ -0,0 +1,173 @@
+package org.red5.whip;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+/**
+ * Tests for the in place RTP header reads and rewrites.
+ *
+ * @author Paul Gregoire
+ */
+public class RtpPacketsTest {
+
+    // offset the packets are written at, so nothing relies on them starting the array
+    private static final int OFFSET = 5;
+
+    /**
+     * Writes a packet at the offset.
+     *
+     * @param marker marker bit
+     * @param payloadType
+     * @param seq
+     * @param ssrc
+     * @param extension extension block including its profile and length, or null
+     * @param payload
+     * @return buffer
+     */
+    private static byte[] packet(boolean marker, int payloadType, int seq, long ssrc, byte[] extension, int... payload) {
+        int extLength = extension != null ? extension.length : 0;
+        byte[] buf = new byte[OFFSET + 12 + extLength + payload.length + 3];
+        buf[OFFSET] = (byte) (extension != null ? 0x90 : 0x80);
+        buf[OFFSET + 1] = (byte) ((marker ? 0x80 : 0) | payloadType);
+        RtpPackets.writeUint16(buf, OFFSET + 2, seq);
+        RtpPackets.writeUint32(buf, OFFSET + 4, 90000L);
+        RtpPackets.writeUint32(buf, OFFSET + 8, ssrc);
+        if (extension != null) {
+            System.arraycopy(extension, 0, buf, OFFSET + 12, extLength);
+        }
+        for (int i = 0; i < payload.length; i++) {
+            buf[OFFSET + 12 + extLength + i] = (byte) payload[i];
+        }
+        return buf;
+    }
+
+    private static int length(byte[] buf) {
+        return buf.length - OFFSET - 3;
+    }
+
+    private static byte[] bytes(int... values) {
+        byte[] b = new byte[values.length];
+        for (int i = 0; i < values.length; i++) {
+            b[i] = (byte) values[i];
+        }
+        return b;
+    }
+
+    // one-byte extensions: id 1 with two bytes, a padding byte, id 3 with one byte
+    private static final byte[] ONE_BYTE = bytes(0xbe, 0xde, 0, 2, 0x11, 0xaa, 0xbb, 0, 0x30, 0xcc, 0, 0);
+
+    // two-byte extensions: id 1 with two bytes, id 7 with three bytes
+    private static final byte[] TWO_BYTE = bytes(0x10, 0x00, 0, 3, 1, 2, 0xaa, 0xbb, 7, 3, 0xcc, 0xdd, 0xee, 0, 0, 0);
+
+    @Test
+    public void testHeaderLength() {
+        byte[] buf = packet(false, 96, 1, 1L, null, 1, 2, 3);
+        assertEquals(12, RtpPackets.getFixedHeaderLength(buf, OFFSET));
+        assertEquals(12, RtpPackets.getHeaderLength(buf, OFFSET, length(buf)));
+        // two csrcs
+        buf[OFFSET] |= 2;
+        assertEquals(20, RtpPackets.getFixedHeaderLength(buf, OFFSET));
+        assertEquals(-1, RtpPackets.getHeaderLength(buf, OFFSET, length(buf)));
+        buf = packet(false, 96, 1, 1L, ONE_BYTE, 1, 2, 3);
+        assertEquals(24, RtpPackets.getHeaderLength(buf, OFFSET, length(buf)));
+        // extension block longer than the packet
+        assertEquals(-1, RtpPackets.getHeaderLength(buf, OFFSET, 23));
+        assertEquals(-1, RtpPackets.getHeaderLength(buf, OFFSET, 14));
+    }
+
+    @Test
+    public void testFindOneByteExtension() {
+        byte[] buf = packet(false, 96, 1, 1L, ONE_BYTE, 1, 2, 3);
+        int length = length(buf);
+        assertEquals(OFFSET + 17, RtpPackets.findExtension(buf, OFFSET, length, 1));
+        assertEquals(OFFSET + 21, RtpPackets.findExtension(buf, OFFSET, length, 3));
+        assertEquals(-1, RtpPackets.findExtension(buf, OFFSET, length, 2));
+        // not carried when the extension bit is clear
+        buf[OFFSET] &= ~0x10;
+        assertEquals(-1, RtpPackets.findExtension(buf, OFFSET, length, 1));
+    }
+
+    @Test
+    public void testFindTwoByteExtension() {
+        byte[] buf = packet(false, 96, 1, 1L, TWO_BYTE, 1, 2, 3);
+        int length = length(buf);
+        assertEquals(OFFSET + 18, RtpPackets.findExtension(buf, OFFSET, length, 1));
+        assertEquals(OFFSET + 22, RtpPackets.findExtension(buf, OFFSET, length, 7));
+        assertEquals(-1, RtpPackets.findExtension(buf, OFFSET, length, 3));
+    }
+
+    @Test
+    public void testFindMalformedExtension() {
+        // element running past the end of the block
+        byte[] buf = packet(false, 96, 1, 1L, bytes(0xbe, 0xde, 0, 1, 0x13, 0xaa, 0xbb, 0xcc), 1, 2, 3);
+        assertEquals(-1, RtpPackets.findExtension(buf, OFFSET, length(buf), 1));
+        // id 15 ends the elements
+        buf = packet(false, 96, 1, 1L, bytes(0xbe, 0xde, 0, 1, 0xf0, 0x20, 0xaa, 0), 1, 2, 3);
+        assertEquals(-1, RtpPackets.findExtension(buf, OFFSET, length(buf), 2));
+        // block longer than the packet
+        buf = packet(false, 96, 1, 1L, ONE_BYTE);
+        assertEquals(-1, RtpPackets.findExtension(buf, OFFSET, 20, 1));
+        // unknown profile
+        buf = packet(false, 96, 1, 1L, bytes(0x12, 0x34, 0, 1, 0x10, 0xaa, 0, 0), 1);
+        assertEquals(-1, RtpPackets.findExtension(buf, OFFSET, length(buf), 1));
+    }
+
+    @Test
+    public void testUnwrapRtx() {
+        byte[] buf = packet(true, 97, 500, 0x2222L, ONE_BYTE, 0x12, 0x34, 1, 2, 3);
+        int length = RtpPackets.unwrapRtx(buf, OFFSET, length(buf), 96, 0x1111L);
+        assertEquals(27, length);
+        assertArrayEquals(Arrays.copyOfRange(packet(true, 96, 0x1234, 0x1111L, ONE_BYTE, 1, 2, 3), OFFSET, OFFSET + length), Arrays.copyOfRange(buf, OFFSET, OFFSET + length));
+    }
+
+    @Test
+    public void testUnwrapRtxPaddingOnly() {
+        // a probe carrying only padding has no original packet
+        byte[] buf = packet(false, 97, 500, 0x2222L, null, 0, 0, 0, 4);
+        buf[OFFSET] |= 0x20;
+        assertEquals(-1, RtpPackets.unwrapRtx(buf, OFFSET, length(buf), 96, 0x1111L));
+        buf = packet(false, 97, 500, 0x2222L, null, 0x12);
+        assertEquals(-1, RtpPackets.unwrapRtx(buf, OFFSET, length(buf), 96, 0x1111L));
+    }
+
+    @Test
+    public void testUnwrapRedPrimaryOnly() {
+        byte[] buf = packet(true, 116, 9, 0x1111L, null, 96, 1, 2, 3);
+        int length = RtpPackets.unwrapRed(buf, OFFSET, length(buf));
+        assertEquals(15, length);
+        assertArrayEquals(Arrays.copyOfRange(packet(true, 96, 9, 0x1111L, null, 1, 2, 3), OFFSET, OFFSET + length), Arrays.copyOfRange(buf, OFFSET, OFFSET + length));
+    }
+
+    @Test
+    public void testUnwrapRedWithRedundantBlock() {
+        // redundant block of two bytes, then the primary ulpfec block
+        byte[] buf = packet(false, 116, 9, 0x1111L, ONE_BYTE, 0x80 | 96, 0, 0, 2, 117, 0xaa, 0xbb, 4, 5);
+        int length = RtpPackets.unwrapRed(buf, OFFSET, length(buf));
+        assertEquals(26, length);
+        assertArrayEquals(Arrays.copyOfRange(packet(false, 117, 9, 0x1111L, ONE_BYTE, 4, 5), OFFSET, OFFSET + length), Arrays.copyOfRange(buf, OFFSET, OFFSET + length));
+    }
+
+    @Test
+    public void testUnwrapRedTruncated() {
+        // block header cut short
+        byte[] buf = packet(false, 116, 9, 0x1111L, null, 0x80 | 96, 0);
+        assertEquals(-1, RtpPackets.unwrapRed(buf, OFFSET, length(buf)));
+        // redundant block longer than the packet
+        buf = packet(false, 116, 9, 0x1111L, null, 0x80 | 96, 0, 0, 9, 96, 1);
+        assertEquals(-1, RtpPackets.unwrapRed(buf, OFFSET, length(buf)));
+    }
+
+    @Test
+    public void testReadWrite() {
+        byte[] buf = new byte[6];
+        RtpPackets.writeUint16(buf, 0, 0xfffe);
+        RtpPackets.writeUint32(buf, 2, 0xdeadbeefL);
+        assertEquals(0xfffe, RtpPackets.readUint16(buf, 0));
+        assertArrayEquals(bytes(0xff, 0xfe, 0xde, 0xad, 0xbe, 0xef), buf);
+    }
+
+}
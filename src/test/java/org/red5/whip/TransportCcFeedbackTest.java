@@ -0,0 +1,185 @@
+package org.red5.whip;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for the transport-cc feedback packets, recorded and built without a stream to send them on.
+ *
+ * @author Paul Gregoire
+ */
+public class TransportCcFeedbackTest {
+
+    private TransportCcFeedback feedback;
+
+    @Before
+    public void setUp() {
+        feedback = new TransportCcFeedback(null, 0x11223344L, 0x55667788L, TransportCcFeedback.DEFAULT_INTERVAL_MICROS);
+    }
+
+    private static int u16(byte[] buf, int pos) {
+        return ((buf[pos] & 0xff) << 8) | (buf[pos + 1] & 0xff);
+    }
+
+    @Test
+    public void testHeader() {
+        feedback.record(10, 64000L);
+        feedback.record(11, 64250L);
+        feedback.record(12, 65000L);
+        byte[] buf = feedback.build();
+        // 20 byte header, one chunk and three deltas, padded to 28
+        assertEquals(28, buf.length);
+        assertEquals(0xaf, buf[0] & 0xff);
+        assertEquals(205, buf[1] & 0xff);
+        assertEquals(6, u16(buf, 2));
+        assertEquals(0x1122, u16(buf, 4));
+        assertEquals(0x3344, u16(buf, 6));
+        assertEquals(0x5566, u16(buf, 8));
+        assertEquals(0x7788, u16(buf, 10));
+        assertEquals(10, u16(buf, 12));
+        assertEquals(3, u16(buf, 14));
+        // reference time in 64ms
+        assertEquals(0, buf[16]);
+        assertEquals(0, buf[17]);
+        assertEquals(1, buf[18]);
+        assertEquals(0, buf[19]);
+        // status vector of three small deltas
+        assertEquals(0xd500, u16(buf, 20));
+        assertEquals(0, buf[22]);
+        assertEquals(1, buf[23]);
+        assertEquals(3, buf[24]);
+        // padding, with its count in the last byte
+        assertEquals(0, buf[25]);
+        assertEquals(0, buf[26]);
+        assertEquals(3, buf[27]);
+    }
+
+    @Test
+    public void testWithoutPadding() {
+        feedback.record(0, 0L);
+        feedback.record(1, 250L);
+        byte[] buf = feedback.build();
+        assertEquals(24, buf.length);
+        assertEquals(0x8f, buf[0] & 0xff);
+        assertEquals(5, u16(buf, 2));
+        assertEquals(0xd400, u16(buf, 20));
+    }
+
+    @Test
+    public void testRunLengthChunk() {
+        for (int seq = 0; seq < 10; seq++) {
+            feedback.record(seq, seq * 500L);
+        }
+        byte[] buf = feedback.build();
+        assertEquals(10, u16(buf, 14));
+        // ten small deltas
+        assertEquals((1 << 13) | 10, u16(buf, 20));
+        assertEquals(0, buf[22]);
+        for (int i = 1; i < 10; i++) {
+            assertEquals(2, buf[22 + i]);
+        }
+        assertEquals(32, buf.length);
+    }
+
+    @Test
+    public void testLostRun() {
+        feedback.record(0, 0L);
+        feedback.record(20, 5000L);
+        byte[] buf = feedback.build();
+        assertEquals(21, u16(buf, 14));
+        // one received and six lost, a run of thirteen lost, then the last received
+        assertEquals(0xd000, u16(buf, 20));
+        assertEquals(13, u16(buf, 22));
+        assertEquals(0xd000, u16(buf, 24));
+        assertEquals(0, buf[26]);
+        assertEquals(20, buf[27]);
+        assertEquals(28, buf.length);
+    }
+
+    @Test
+    public void testLargeDelta() {
+        feedback.record(0, 0L);
+        feedback.record(1, 100000L);
+        byte[] buf = feedback.build();
+        // small then large
+        assertEquals(0xd800, u16(buf, 20));
+        assertEquals(0, buf[22]);
+        assertEquals(400, u16(buf, 23));
+        assertEquals(28, buf.length);
+    }
+
+    @Test
+    public void testNegativeDelta() {
+        // reordered, the second arrives first
+        feedback.record(0, 10000L);
+        feedback.record(1, 5000L);
+        byte[] buf = feedback.build();
+        assertEquals(0xd800, u16(buf, 20));
+        assertEquals(40, buf[22]);
+        assertEquals(-20 & 0xffff, u16(buf, 23));
+    }
+
+    @Test
+    public void testDeltaOutOfRange() {
+        // more than 32767 ticks apart can't be expressed and is reported as not received
+        feedback.record(0, 0L);
+        feedback.record(1, 10000000L);
+        byte[] buf = feedback.build();
+        assertEquals(2, u16(buf, 14));
+        assertEquals(0xd000, u16(buf, 20));
+        assertEquals(24, buf.length);
+    }
+
+    @Test
+    public void testSequenceWrap() {
+        int[] seqs = { 65534, 65535, 0, 1 };
+        for (int i = 0; i < seqs.length; i++) {
+            feedback.record(seqs[i], i * 250L);
+        }
+        byte[] buf = feedback.build();
+        assertEquals(65534, u16(buf, 12));
+        assertEquals(4, u16(buf, 14));
+        assertEquals(0xd540, u16(buf, 20));
+    }
+
+    @Test
+    public void testNegativeArrivalTimes() {
+        feedback.record(0, -64000L);
+        feedback.record(1, -63750L);
+        byte[] buf = feedback.build();
+        // reference time of -1 in 24 bits
+        assertEquals(0xff, buf[16] & 0xff);
+        assertEquals(0xff, buf[17] & 0xff);
+        assertEquals(0xff, buf[18] & 0xff);
+        assertEquals(0, buf[22]);
+        assertEquals(1, buf[23]);
+    }
+
+    @Test
+    public void testNothingToReport() {
+        assertNull(feedback.build());
+        feedback.record(5, 1000L);
+        byte[] buf = feedback.build();
+        assertEquals(5, u16(buf, 12));
+        assertNull(feedback.build());
+        // already reported
+        feedback.record(4, 2000L);
+        assertNull(feedback.build());
+    }
+
+    @Test
+    public void testFeedbackCount() {
+        feedback.record(0, 0L);
+        assertEquals(0, feedback.build()[19]);
+        feedback.record(1, 250L);
+        byte[] buf = feedback.build();
+        assertEquals(1, buf[19]);
+        // picks up where the last left off
+        assertEquals(1, u16(buf, 12));
+        assertEquals(1, u16(buf, 14));
+    }
+
+}
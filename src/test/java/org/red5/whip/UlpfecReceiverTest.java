@@ -0,0 +1,210 @@
+package org.red5.whip;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+
+import org.jitsi.service.neomedia.RawPacket;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for ULPFEC recovery, with the FEC packets generated here as a browser would.
+ *
+ * @author Paul Gregoire
+ */
+public class UlpfecReceiverTest {
+
+    private static final long SSRC = 0x1234abcdL;
+
+    private UlpfecReceiver receiver;
+
+    @Before
+    public void setUp() {
+        receiver = new UlpfecReceiver();
+    }
+
+    /**
+     * Builds a media packet whose payload differs by sequence number and length.
+     */
+    private static byte[] media(int seq, int payloadLength, boolean marker) {
+        byte[] p = new byte[12 + payloadLength];
+        p[0] = (byte) 0x80;
+        p[1] = (byte) ((marker ? 0x80 : 0) | 96);
+        RtpPackets.writeUint16(p, 2, seq);
+        RtpPackets.writeUint32(p, 4, 3000L * (seq / 3));
+        RtpPackets.writeUint32(p, 8, SSRC);
+        for (int i = 0; i < payloadLength; i++) {
+            p[12 + i] = (byte) (seq * 31 + i * 7);
+        }
+        return p;
+    }
+
+    /**
+     * Builds a level 0 FEC packet (RFC 5109) in its own RTP packet, protecting the packets whose bits are set in the
+     * mask from the base sequence number.
+     */
+    private static byte[] fec(int seq, int base, boolean longMask, byte[]... protectedPackets) {
+        int protectionLength = 0;
+        for (byte[] p : protectedPackets) {
+            protectionLength = Math.max(protectionLength, p.length - 12);
+        }
+        int levelHeaderLength = longMask ? 8 : 4;
+        byte[] out = new byte[12 + 10 + levelHeaderLength + protectionLength];
+        out[0] = (byte) 0x80;
+        out[1] = (byte) 117;
+        RtpPackets.writeUint16(out, 2, seq);
+        RtpPackets.writeUint32(out, 8, SSRC);
+        int b0 = 0, b1 = 0, length = 0;
+        long mask = 0L;
+        for (byte[] p : protectedPackets) {
+            b0 ^= p[0];
+            b1 ^= p[1];
+            for (int i = 4; i < 8; i++) {
+                out[12 + i] ^= p[i];
+            }
+            length ^= p.length - 12;
+            int bit = (RtpPackets.readUint16(p, 2) - base) & 0xffff;
+            mask |= 1L << (47 - bit);
+            for (int i = 12; i < p.length; i++) {
+                out[12 + 10 + levelHeaderLength + i - 12] ^= p[i];
+            }
+        }
+        out[12] = (byte) ((longMask ? 0x40 : 0) | (b0 & 0x3f));
+        out[13] = (byte) b1;
+        RtpPackets.writeUint16(out, 14, base);
+        RtpPackets.writeUint16(out, 20, length);
+        RtpPackets.writeUint16(out, 22, protectionLength);
+        for (int i = 0; i < levelHeaderLength - 2; i++) {
+            out[24 + i] = (byte) (mask >>> (40 - 8 * i));
+        }
+        return out;
+    }
+
+    private void media(byte[] p) {
+        receiver.receivedMedia(p, 0, p.length);
+    }
+
+    private void fec(byte[] p) {
+        receiver.receivedFec(p, 0, p.length);
+    }
+
+    private static byte[] bytes(RawPacket pkt) {
+        return Arrays.copyOfRange(pkt.getBuffer(), pkt.getOffset(), pkt.getOffset() + pkt.getLength());
+    }
+
+    @Test
+    public void testRecoverFromFec() {
+        byte[] p0 = media(100, 40, false), p1 = media(101, 60, false), p2 = media(102, 20, true);
+        media(p0);
+        media(p2);
+        assertFalse(receiver.hasRecovered());
+        fec(fec(7, 100, false, p0, p1, p2));
+        assertTrue(receiver.hasRecovered());
+        RawPacket[] pkts = receiver.drainRecovered(null);
+        assertEquals(1, pkts.length);
+        assertArrayEquals(p1, bytes(pkts[0]));
+        assertFalse(receiver.hasRecovered());
+    }
+
+    @Test
+    public void testRecoverFromMedia() {
+        // fec ahead of the media it needs
+        byte[] p0 = media(100, 40, true), p1 = media(101, 60, false), p2 = media(102, 20, false);
+        fec(fec(7, 100, false, p0, p1, p2));
+        media(p0);
+        assertFalse(receiver.hasRecovered());
+        media(p1);
+        assertArrayEquals(p2, bytes(receiver.drainRecovered(null)[0]));
+    }
+
+    @Test
+    public void testNothingMissing() {
+        byte[] p0 = media(100, 40, false), p1 = media(101, 60, true);
+        media(p0);
+        media(p1);
+        fec(fec(7, 100, false, p0, p1));
+        assertFalse(receiver.hasRecovered());
+    }
+
+    @Test
+    public void testTwoMissing() {
+        byte[] p0 = media(100, 40, false), p1 = media(101, 60, false), p2 = media(102, 20, false), p3 = media(103, 80, true);
+        media(p0);
+        fec(fec(7, 100, false, p0, p1, p2, p3));
+        media(p3);
+        assertFalse(receiver.hasRecovered());
+        // the fec packet is kept until only one is missing
+        media(p2);
+        assertArrayEquals(p1, bytes(receiver.drainRecovered(null)[0]));
+        // and isn't used again
+        media(p1);
+        assertFalse(receiver.hasRecovered());
+    }
+
+    @Test
+    public void testLongMaskAcrossWrap() {
+        byte[] p0 = media(65530, 30, false), p1 = media(65535, 50, false), p2 = media(34, 70, true);
+        media(p0);
+        media(p2);
+        fec(fec(7, 65530, true, p0, p1, p2));
+        assertArrayEquals(p1, bytes(receiver.drainRecovered(null)[0]));
+    }
+
+    @Test
+    public void testChainedRecovery() {
+        byte[] p0 = media(10, 40, false), p1 = media(11, 60, false), p2 = media(12, 20, true);
+        media(p0);
+        // protects the two missing packets, so waits
+        fec(fec(7, 11, false, p1, p2));
+        assertFalse(receiver.hasRecovered());
+        // recovers 11, which leaves the first fec packet able to recover 12
+        fec(fec(8, 10, false, p0, p1));
+        RawPacket[] pkts = receiver.drainRecovered(null);
+        assertEquals(2, pkts.length);
+        assertArrayEquals(p1, bytes(pkts[0]));
+        assertArrayEquals(p2, bytes(pkts[1]));
+    }
+
+    @Test
+    public void testDrainAppends() {
+        byte[] p0 = media(100, 40, false), p1 = media(101, 60, true);
+        media(p0);
+        fec(fec(7, 100, false, p0, p1));
+        RawPacket first = new RawPacket(p0, 0, p0.length);
+        RawPacket[] pkts = receiver.drainRecovered(new RawPacket[] { first });
+        assertEquals(2, pkts.length);
+        assertEquals(first, pkts[0]);
+        assertArrayEquals(p1, bytes(pkts[1]));
+    }
+
+    @Test
+    public void testProtectedPacketsTooOld() {
+        byte[] p0 = media(100, 40, false), p1 = media(101, 60, true);
+        media(p0);
+        // the media ring has moved on past what the fec packet protects
+        for (int seq = 102; seq < 400; seq++) {
+            media(media(seq, 10, false));
+        }
+        fec(fec(7, 100, false, p0, p1));
+        assertFalse(receiver.hasRecovered());
+    }
+
+    @Test
+    public void testMalformedFec() {
+        byte[] p0 = media(100, 40, false), p1 = media(101, 60, true);
+        media(p0);
+        byte[] f = fec(7, 100, false, p0, p1);
+        // too short for the headers
+        receiver.receivedFec(f, 0, 24);
+        // protection length past the end of the packet
+        receiver.receivedFec(f, 0, f.length - 1);
+        assertFalse(receiver.hasRecovered());
+        fec(f);
+        assertTrue(receiver.hasRecovered());
+    }
+
+}
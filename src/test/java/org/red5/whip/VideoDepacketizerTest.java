@@ -0,0 +1,244 @@
+package org.red5.whip;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.red5.server.net.rtmp.event.VideoData;
+
+/**
+ * Tests for frame assembly, dispatched to a list rather than a stream.
+ *
+ * @author Paul Gregoire
+ */
+public class VideoDepacketizerTest {
+
+    private static final byte[] SPS = bytes(0x67, 0x42, 0x00, 0x1f, 0xaa);
+
+    private static final byte[] PPS = bytes(0x68, 0xce, 0x38);
+
+    private final List<VideoData> events = new ArrayList<>();
+
+    private int losses;
+
+    @Before
+    public void setUp() {
+        FrameSlabPool.start(64 * 1024, 4);
+        events.clear();
+        losses = 0;
+    }
+
+    @After
+    public void tearDown() {
+        events.forEach(VideoData::release);
+        FrameSlabPool.stop();
+    }
+
+    private VideoDepacketizer depacketizer(boolean vp8) {
+        return new VideoDepacketizer(event -> events.add((VideoData) event), System::currentTimeMillis, () -> "test", vp8, () -> losses++);
+    }
+
+    private static byte[] bytes(int... values) {
+        byte[] b = new byte[values.length];
+        for (int i = 0; i < values.length; i++) {
+            b[i] = (byte) values[i];
+        }
+        return b;
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        ByteBuffer out = ByteBuffer.allocate(parts.length * 256);
+        for (byte[] part : parts) {
+            out.put(part);
+        }
+        byte[] b = new byte[out.position()];
+        out.flip();
+        out.get(b);
+        return b;
+    }
+
+    private static void receive(VideoDepacketizer depacketizer, int seq, long timestamp, boolean marker, long now, int... payload) {
+        byte[] buf = new byte[12 + payload.length];
+        buf[0] = (byte) 0x80;
+        buf[1] = (byte) ((marker ? 0x80 : 0) | 96);
+        RtpPackets.writeUint16(buf, 2, seq & 0xffff);
+        RtpPackets.writeUint32(buf, 4, timestamp);
+        RtpPackets.writeUint32(buf, 8, 0x1234L);
+        for (int i = 0; i < payload.length; i++) {
+            buf[12 + i] = (byte) payload[i];
+        }
+        depacketizer.receive(buf, 0, buf.length, now);
+    }
+
+    // idr slice in a single nal packet
+    private static void idr(VideoDepacketizer depacketizer, int seq, long timestamp, long now) {
+        receive(depacketizer, seq, timestamp, true, now, 0x65, 1, 2, 3);
+    }
+
+    // non-idr slice in a single nal packet
+    private static void slice(VideoDepacketizer depacketizer, int seq, long timestamp, long now) {
+        receive(depacketizer, seq, timestamp, true, now, 0x41, 4, 5);
+    }
+
+    private static byte[] tag(VideoData event) {
+        ByteBuffer data = event.getData().buf().duplicate();
+        byte[] b = new byte[data.remaining()];
+        data.get(b);
+        return b;
+    }
+
+    @Test
+    public void testStapAAndSingleNal() {
+        VideoDepacketizer depacketizer = depacketizer(false);
+        receive(depacketizer, 10, 1000L, false, 0L, 24, 0, 5, 0x67, 0x42, 0x00, 0x1f, 0xaa, 0, 3, 0x68, 0xce, 0x38);
+        idr(depacketizer, 11, 1000L, 0L);
+        assertEquals(2, events.size());
+        // sequence header for the parameter sets
+        assertArrayEquals(concat(bytes(0x17, 0, 0, 0, 0, 1, 0x42, 0x00, 0x1f, 0xff, 0xe1, 0, 5), SPS, bytes(1, 0, 3), PPS), tag(events.get(0)));
+        // the frame, without the parameter sets
+        assertArrayEquals(bytes(0x17, 1, 0, 0, 0, 0, 0, 0, 4, 0x65, 1, 2, 3), tag(events.get(1)));
+        // sent again only when they change
+        slice(depacketizer, 12, 4000L, 0L);
+        receive(depacketizer, 13, 7000L, false, 0L, 24, 0, 5, 0x67, 0x42, 0x00, 0x1f, 0xaa, 0, 3, 0x68, 0xce, 0x38);
+        idr(depacketizer, 14, 7000L, 0L);
+        assertEquals(4, events.size());
+        assertArrayEquals(bytes(0x27, 1, 0, 0, 0, 0, 0, 0, 3, 0x41, 4, 5), tag(events.get(2)));
+    }
+
+    @Test
+    public void testFuA() {
+        VideoDepacketizer depacketizer = depacketizer(false);
+        receive(depacketizer, 100, 1000L, false, 0L, 0x7c, 0x85, 0xa0, 0xa1);
+        // middle arriving after the end
+        receive(depacketizer, 102, 1000L, true, 0L, 0x7c, 0x45, 0xa3);
+        assertEquals(0, events.size());
+        receive(depacketizer, 101, 1000L, false, 0L, 0x7c, 0x05, 0xa2);
+        assertEquals(1, events.size());
+        assertArrayEquals(bytes(0x17, 1, 0, 0, 0, 0, 0, 0, 5, 0x65, 0xa0, 0xa1, 0xa2, 0xa3), tag(events.get(0)));
+    }
+
+    @Test
+    public void testWaitsForKeyframe() {
+        VideoDepacketizer depacketizer = depacketizer(false);
+        slice(depacketizer, 0, 0L, 0L);
+        slice(depacketizer, 1, 3000L, 0L);
+        assertEquals(0, events.size());
+        idr(depacketizer, 2, 6000L, 0L);
+        slice(depacketizer, 3, 9000L, 0L);
+        assertEquals(2, events.size());
+        assertEquals(0, losses);
+    }
+
+    @Test
+    public void testTimestamps() {
+        VideoDepacketizer depacketizer = depacketizer(false);
+        // across the rtp clock wrapping
+        idr(depacketizer, 0, 0xffffff00L, 0L);
+        slice(depacketizer, 1, 0xffffff00L + 9000L, 0L);
+        slice(depacketizer, 2, 0xffffff00L + 90000L, 0L);
+        assertEquals(3, events.size());
+        int base = events.get(0).getTimestamp();
+        assertEquals(base + 100, events.get(1).getTimestamp());
+        assertEquals(base + 1000, events.get(2).getTimestamp());
+    }
+
+    @Test
+    public void testDropAfterWait() {
+        VideoDepacketizer depacketizer = depacketizer(false);
+        idr(depacketizer, 0, 0L, 0L);
+        // the middle of this frame never arrives
+        receive(depacketizer, 1, 3000L, false, 10L, 0x7c, 0x81, 0xa0);
+        receive(depacketizer, 3, 3000L, true, 10L, 0x7c, 0x41, 0xa2);
+        slice(depacketizer, 4, 6000L, 20L);
+        assertEquals(1, events.size());
+        assertEquals(0, losses);
+        // past the wait the frame is dropped, and so are those after it until a keyframe
+        slice(depacketizer, 5, 9000L, 500L);
+        assertEquals(1, events.size());
+        assertEquals(1, losses);
+        slice(depacketizer, 6, 12000L, 510L);
+        idr(depacketizer, 7, 15000L, 520L);
+        assertEquals(2, events.size());
+        assertEquals(1, losses);
+    }
+
+    @Test
+    public void testLatePacketChecksWait() {
+        VideoDepacketizer depacketizer = depacketizer(false);
+        idr(depacketizer, 0, 0L, 0L);
+        receive(depacketizer, 1, 3000L, false, 10L, 0x7c, 0x81, 0xa0);
+        receive(depacketizer, 3, 3000L, true, 10L, 0x7c, 0x41, 0xa2);
+        // a retransmission of a packet already passed on still gives up on the frame
+        idr(depacketizer, 0, 0L, 500L);
+        assertEquals(1, losses);
+        idr(depacketizer, 4, 6000L, 510L);
+        assertEquals(2, events.size());
+    }
+
+    @Test
+    public void testJumpForward() {
+        VideoDepacketizer depacketizer = depacketizer(false);
+        idr(depacketizer, 0, 0L, 0L);
+        receive(depacketizer, 1, 3000L, false, 0L, 0x7c, 0x81, 0xa0);
+        // further than the ring spans, the incomplete frame is dropped and assembly starts over
+        idr(depacketizer, 1000, 6000L, 0L);
+        assertEquals(2, events.size());
+        assertEquals(1, losses);
+        slice(depacketizer, 1001, 9000L, 0L);
+        assertEquals(3, events.size());
+    }
+
+    @Test
+    public void testJumpBack() {
+        VideoDepacketizer depacketizer = depacketizer(false);
+        idr(depacketizer, 5000, 0L, 0L);
+        slice(depacketizer, 5001, 3000L, 0L);
+        // an encoder restart
+        idr(depacketizer, 100, 6000L, 0L);
+        slice(depacketizer, 101, 9000L, 0L);
+        assertEquals(4, events.size());
+    }
+
+    @Test
+    public void testJumpWithoutFrameStart() {
+        VideoDepacketizer depacketizer = depacketizer(false);
+        idr(depacketizer, 0, 0L, 0L);
+        // the middle of a fragmented nal can't start a frame
+        receive(depacketizer, 2000, 3000L, false, 0L, 0x7c, 0x05, 0xa0);
+        receive(depacketizer, 2001, 3000L, true, 0L, 0x7c, 0x45, 0xa1);
+        assertEquals(1, events.size());
+        idr(depacketizer, 2002, 6000L, 0L);
+        assertEquals(2, events.size());
+    }
+
+    @Test
+    public void testVp8() {
+        VideoDepacketizer depacketizer = depacketizer(true);
+        // keyframe over two packets
+        receive(depacketizer, 0, 0L, false, 0L, 0x10, 0x50, 1, 2);
+        receive(depacketizer, 1, 0L, true, 0L, 0x00, 3, 4);
+        // interframe with an extended descriptor and a two byte picture id
+        receive(depacketizer, 2, 3000L, true, 0L, 0x90, 0x80, 0x81, 0x23, 0x51, 7);
+        assertEquals(3, events.size());
+        // sequence start with the codec configuration record
+        assertEquals(0x90, tag(events.get(0))[0] & 0xff);
+        assertArrayEquals(bytes(0x91, 'v', 'p', '0', '8', 0x50, 1, 2, 3, 4), tag(events.get(1)));
+        assertArrayEquals(bytes(0xa1, 'v', 'p', '0', '8', 0x51, 7), tag(events.get(2)));
+    }
+
+    @Test
+    public void testVp8WaitsForKeyframe() {
+        VideoDepacketizer depacketizer = depacketizer(true);
+        receive(depacketizer, 0, 0L, true, 0L, 0x10, 0x51, 1);
+        assertEquals(0, events.size());
+        receive(depacketizer, 1, 3000L, true, 0L, 0x10, 0x50, 2);
+        assertEquals(2, events.size());
+    }
+
+}
@@ -0,0 +1,294 @@
+package org.red5.whip;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import org.junit.Test;
+import org.red5.whip.WhipOffer.Media;
+import org.red5.whip.WhipOffer.OfferTooLargeException;
+
+/**
+ * Tests for reading offers and the lazy line index.
+ *
+ * @author Paul Gregoire
+ */
+public class WhipOfferTest {
+
+    private static final String TRANSPORT_CC = "http://www.ietf.org/id/draft-holmer-rmcat-transport-wide-cc-extensions-01";
+
+    // trimmed chrome publish offer, bundled with rtx, red and ulpfec for the video
+    static final String OFFER = String.join("\r\n",
+            "v=0",
+            "o=- 4611731400430051336 2 IN IP4 127.0.0.1",
+            "s=-",
+            "t=0 0",
+            "a=group:BUNDLE 0 1",
+            "a=fingerprint:sha-256 19:E2:1C:3B:4B:9F:81:E6:B8:5C:F4:A5:A8:D8:73:04:BB:05:2F:70:9F:04:A9:0E:05:E9:26:33:E8:70:88:A2",
+            "a=msid-semantic: WMS stream",
+            "m=audio 9 UDP/TLS/RTP/SAVPF 111 63",
+            "c=IN IP4 0.0.0.0",
+            "a=ice-ufrag:EsAw",
+            "a=ice-pwd:bP+XJMM09aR8AiX1jdukzR6Y",
+            "a=setup:actpass",
+            "a=mid:0",
+            "a=extmap:3 http://www.ietf.org/id/draft-holmer-rmcat-transport-wide-cc-extensions-01",
+            "a=sendonly",
+            "a=rtcp-mux",
+            "a=rtpmap:111 opus/48000/2",
+            "a=rtcp-fb:111 transport-cc",
+            "a=fmtp:111 minptime=10;useinbandfec=1",
+            "a=rtpmap:63 red/48000/2",
+            "a=fmtp:63 111/111",
+            "a=ssrc:3570614608 cname:4TOk42mSjXCkVIa6",
+            "m=video 9 UDP/TLS/RTP/SAVPF 96 97 102 103 116 117",
+            "c=IN IP4 0.0.0.0",
+            "a=ice-ufrag:EsAw",
+            "a=ice-pwd:bP+XJMM09aR8AiX1jdukzR6Y",
+            "a=setup:actpass",
+            "a=mid:1",
+            "a=extmap:3/sendonly http://www.ietf.org/id/draft-holmer-rmcat-transport-wide-cc-extensions-01",
+            "a=sendonly",
+            "a=rtcp-mux",
+            "a=rtpmap:96 VP8/90000",
+            "a=rtcp-fb:96 goog-remb",
+            "a=rtcp-fb:96 nack pli",
+            "a=rtpmap:97 rtx/90000",
+            "a=fmtp:97 apt=96",
+            "a=rtpmap:102 H264/90000",
+            "a=rtcp-fb:* transport-cc",
+            "a=fmtp:102 level-asymmetry-allowed=1; packetization-mode=1;profile-level-id=42001f",
+            "a=rtpmap:103 rtx/90000",
+            "a=fmtp:103 apt=102",
+            "a=rtpmap:116 red/90000",
+            "a=rtpmap:117 ulpfec/90000",
+            "a=ssrc-group:FID 1876887138 2271450306",
+            "a=ssrc:1876887138 cname:4TOk42mSjXCkVIa6",
+            "a=ssrc:2271450306 cname:4TOk42mSjXCkVIa6",
+            "a=candidate:1 1 udp 2122260223 192.168.1.10 54321 typ host generation 0",
+            "a=candidate:2 1 udp 1686052607 71.38.119.248 54321 typ srflx raddr 192.168.1.10 rport 54321 generation 0",
+            "m=application 9 UDP/DTLS/SCTP webrtc-datachannel",
+            "c=IN IP4 0.0.0.0",
+            "a=mid:2",
+            "a=sctp-port:5000",
+            "");
+
+    @Test
+    public void testSessionAndMedia() {
+        WhipOffer offer = WhipOffer.of(OFFER);
+        assertTrue(offer.isValid());
+        assertEquals(OFFER.length(), offer.getLength());
+        assertEquals(OFFER, offer.toString());
+        assertEquals(3, offer.getMediaCount());
+        assertNull(offer.getSession().getType());
+        assertEquals("audio", offer.getMedia(0).getType());
+        assertEquals("video", offer.getMedia(1).getType());
+        assertEquals("application", offer.getMedia(2).getType());
+        assertEquals("video", offer.getMedia("video").getType());
+        assertNull(offer.getMedia("text"));
+    }
+
+    @Test
+    public void testAttributes() {
+        WhipOffer offer = WhipOffer.of(OFFER);
+        Media audio = offer.getMedia("audio");
+        assertEquals("0", audio.getMid());
+        assertEquals("EsAw", audio.getIceUfrag());
+        assertEquals("bP+XJMM09aR8AiX1jdukzR6Y", audio.getIcePwd());
+        assertEquals("actpass", audio.getSetup());
+        assertEquals(3570614608L, audio.getSsrc());
+        // the fingerprint is only at the session level
+        assertEquals("sha-256", audio.getFingerprintHash());
+        assertEquals("19:E2:1C:3B:4B:9F:81:E6:B8:5C:F4:A5:A8:D8:73:04:BB:05:2F:70:9F:04:A9:0E:05:E9:26:33:E8:70:88:A2", audio.getFingerprint());
+        Media data = offer.getMedia("application");
+        assertEquals(5000, data.getSctpPort());
+        assertFalse(data.hasSctpMap());
+        assertEquals(-1L, data.getSsrc());
+    }
+
+    @Test
+    public void testSessionLevelFallback() {
+        String sdp = "v=0\r\na=ice-ufrag:sess\r\na=ice-pwd:sessionpwd\r\na=setup:passive\r\nm=audio 9 UDP/TLS/RTP/SAVPF 111\r\na=ice-ufrag:media\r\n";
+        Media audio = WhipOffer.of(sdp).getMedia(0);
+        assertEquals("media", audio.getIceUfrag());
+        assertEquals("sessionpwd", audio.getIcePwd());
+        assertEquals("passive", audio.getSetup());
+        assertNull(audio.getFingerprint());
+        assertNull(audio.getMid());
+    }
+
+    @Test
+    public void testRtpMaps() {
+        Media video = WhipOffer.of(OFFER).getMedia("video");
+        assertEquals(6, video.getRtpMapCount());
+        assertEquals(96, video.getPayloadType(0));
+        assertEquals("VP8", video.getEncodingName(0));
+        assertTrue(video.isEncoding(0, "vp8"));
+        assertFalse(video.isEncoding(0, "vp"));
+        assertEquals(102, video.findPayloadType("h264"));
+        assertEquals(117, video.findPayloadType("ulpfec"));
+        assertEquals(-1, video.findPayloadType("VP9"));
+        assertEquals(111, WhipOffer.of(OFFER).getMedia("audio").findPayloadType("opus"));
+    }
+
+    @Test
+    public void testFmtp() {
+        WhipOffer offer = WhipOffer.of(OFFER);
+        Media video = offer.getMedia("video");
+        assertEquals("level-asymmetry-allowed=1; packetization-mode=1;profile-level-id=42001f", video.getFmtp(102));
+        assertEquals("42001f", video.getFmtpParameter(102, "profile-level-id"));
+        // a space after the separator is tolerated
+        assertEquals("1", video.getFmtpParameter(102, "packetization-mode"));
+        assertNull(video.getFmtpParameter(102, "profile"));
+        assertNull(video.getFmtp(96));
+        assertEquals("1", offer.getMedia("audio").getFmtpParameter(111, "useinbandfec"));
+    }
+
+    @Test
+    public void testRtx() {
+        Media video = WhipOffer.of(OFFER).getMedia("video");
+        assertEquals(97, video.findRtxPayloadType(96));
+        assertEquals(103, video.findRtxPayloadType(102));
+        assertEquals(-1, video.findRtxPayloadType(116));
+        assertEquals(1876887138L, video.getSsrc());
+        assertEquals(2271450306L, video.getFidSsrc(1876887138L));
+        assertEquals(-1L, video.getFidSsrc(2271450306L));
+    }
+
+    @Test
+    public void testExtmapAndFeedback() {
+        WhipOffer offer = WhipOffer.of(OFFER);
+        Media audio = offer.getMedia("audio");
+        Media video = offer.getMedia("video");
+        assertEquals(3, audio.getExtmapId(TRANSPORT_CC));
+        // the direction doesn't get in the way
+        assertEquals(3, video.getExtmapId(TRANSPORT_CC));
+        assertEquals(-1, video.getExtmapId("urn:ietf:params:rtp-hdrext:sdes:mid"));
+        assertTrue(audio.hasRtcpFb(111, "transport-cc"));
+        assertFalse(audio.hasRtcpFb(63, "transport-cc"));
+        assertTrue(video.hasRtcpFb(96, "nack pli"));
+        assertFalse(video.hasRtcpFb(96, "nack"));
+        // through the wildcard
+        assertTrue(video.hasRtcpFb(102, "transport-cc"));
+    }
+
+    @Test
+    public void testCandidates() {
+        WhipOffer offer = WhipOffer.of(OFFER);
+        assertEquals(Arrays.asList("candidate:1 1 udp 2122260223 192.168.1.10 54321 typ host generation 0", "candidate:2 1 udp 1686052607 71.38.119.248 54321 typ srflx raddr 192.168.1.10 rport 54321 generation 0"), offer.getMedia("video").getCandidates());
+        assertTrue(offer.getMedia("audio").getCandidates().isEmpty());
+    }
+
+    @Test
+    public void testSctpMap() {
+        String sdp = "v=0\r\nm=application 9 DTLS/SCTP 5000\r\na=sctpmap:5000 webrtc-datachannel 1024\r\n";
+        Media data = WhipOffer.of(sdp).getMedia("application");
+        assertTrue(data.hasSctpMap());
+        assertEquals(5000, data.getSctpPort());
+        assertEquals(1024, data.getSctpStreams());
+    }
+
+    @Test
+    public void testLineEndings() {
+        // bare line feeds and a missing final line ending
+        WhipOffer offer = WhipOffer.of("v=0\nm=audio 9 UDP/TLS/RTP/SAVPF 111\na=rtpmap:111 opus/48000/2\na=mid:0");
+        assertEquals("0", offer.getMedia(0).getMid());
+        assertEquals("opus", offer.getMedia(0).getEncodingName(0));
+    }
+
+    @Test
+    public void testIsValid() {
+        assertFalse(WhipOffer.of("").isValid());
+        assertFalse(WhipOffer.of("v=0\r\ns=-\r\n").isValid());
+        assertFalse(WhipOffer.of("o=- 1 2 IN IP4 127.0.0.1\r\nm=audio 9 UDP/TLS/RTP/SAVPF 111\r\n").isValid());
+    }
+
+    @Test
+    public void testReadWithContentLength() throws IOException {
+        byte[] bytes = OFFER.getBytes(StandardCharsets.UTF_8);
+        WhipOffer offer = WhipOffer.read(new TrickleStream(bytes), bytes.length, 65536);
+        assertEquals(OFFER, offer.toString());
+        assertEquals(3, offer.getMediaCount());
+    }
+
+    @Test
+    public void testReadWithoutContentLength() throws IOException {
+        // larger than the initial buffer, so it grows
+        StringBuilder sb = new StringBuilder(OFFER);
+        while (sb.length() < 20000) {
+            sb.append("a=candidate:1 1 udp 2122260223 192.168.1.10 54321 typ host generation 0\r\n");
+        }
+        String sdp = sb.toString();
+        WhipOffer offer = WhipOffer.read(new TrickleStream(sdp.getBytes(StandardCharsets.UTF_8)), -1, 65536);
+        assertEquals(sdp, offer.toString());
+    }
+
+    @Test
+    public void testReadAtMaxSize() throws IOException {
+        byte[] bytes = OFFER.getBytes(StandardCharsets.UTF_8);
+        assertEquals(OFFER, WhipOffer.read(new ByteArrayInputStream(bytes), -1, bytes.length).toString());
+    }
+
+    @Test
+    public void testReadTooLarge() throws IOException {
+        byte[] bytes = OFFER.getBytes(StandardCharsets.UTF_8);
+        try {
+            WhipOffer.read(new ByteArrayInputStream(bytes), bytes.length, bytes.length - 1);
+            fail("Declared length over the max was read");
+        } catch (OfferTooLargeException e) {
+            // expected
+        }
+        try {
+            WhipOffer.read(new ByteArrayInputStream(bytes), -1, bytes.length - 1);
+            fail("Undeclared length over the max was read");
+        } catch (OfferTooLargeException e) {
+            // expected
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void testReadTruncated() throws IOException {
+        byte[] bytes = OFFER.getBytes(StandardCharsets.UTF_8);
+        WhipOffer.read(new ByteArrayInputStream(bytes, 0, 100), bytes.length, 65536);
+    }
+
+    /**
+     * Returns a few bytes per read, as a socket may.
+     */
+    private static final class TrickleStream extends InputStream {
+
+        private final byte[] bytes;
+
+        private int pos;
+
+        TrickleStream(byte[] bytes) {
+            this.bytes = bytes;
+        }
+
+        @Override
+        public int read() {
+            return pos < bytes.length ? bytes[pos++] & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (pos >= bytes.length) {
+                return -1;
+            }
+            int count = Math.min(Math.min(len, 7), bytes.length - pos);
+            System.arraycopy(bytes, pos, b, off, count);
+            pos += count;
+            return count;
+        }
+
+    }
+
+}